@@ -0,0 +1,381 @@
+package fr.inserm.u1078.estiage;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Two-level cache for the annotations (frequencies, recombination rates)<br/>
+ * Entries are keyed by (resource identity, chromosome, position, allele), where the identity of a resource is its path, size and modification date<ul>
+ *   <li>level 1 : an in-memory LRU</li>
+ *   <li>level 2 : an on-disk store (one file per resource), enabled with call to java -Dcache=/PATH/TO/DIRECTORY, its size (number of entries in the whole directory) can be customized with -DcacheSize=N</li>
+ * </ul>
+ * When the store is saved, the files of resources that have changed (or disappeared) since they were cached are deleted, then the least
+ * recently used entries are dropped until the directory holds at most N entries : the files are taken from the least recently saved,
+ * and the entries of a file from the least recently used (a disk hit counts as a use)
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class AnnotationCache {
+  public static final int DEFAULT_MEMORY_SIZE = 100000;
+  public static final int DEFAULT_DISK_SIZE = 1000000;
+  private static final String EXTENSION = ".cache";
+  private static final String T = "\t";
+
+  private static AnnotationCache defaultCache;
+
+  private final File directory;
+  private final int diskSize;
+  private final LinkedHashMap<String, Double> memory;
+  private final HashMap<String, DiskStore> disk;
+
+  private long memoryHits = 0;
+  private long diskHits = 0;
+  private long misses = 0;
+
+  /**
+   * Creates a new cache
+   * @param directory the directory of the on-disk store, null for a memory only cache
+   * @param memorySize the maximum number of entries in memory
+   * @param diskSize the maximum number of entries on disk, for all the resources
+   */
+  public AnnotationCache(File directory, final int memorySize, int diskSize) {
+    this.directory = directory;
+    this.diskSize = diskSize;
+    this.memory = new LinkedHashMap<String, Double>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Double> eldest) {
+        return size() > memorySize;
+      }
+    };
+    this.disk = new HashMap<>();
+    if(directory != null && !directory.isDirectory() && !directory.mkdirs())
+      Log.warning("Could not create cache directory ["+directory+"]");
+  }
+
+  /**
+   * Gets the cache shared by the whole process, configured by the system properties "cache" and "cacheSize"
+   * @return the default cache
+   */
+  public static synchronized AnnotationCache getDefault() {
+    if(defaultCache == null) {
+      String dir = System.getProperty("cache");
+      int size = DEFAULT_DISK_SIZE;
+      String s = System.getProperty("cacheSize");
+      if(s != null && !s.isEmpty()) {
+        try {
+          size = Integer.parseInt(s);
+        } catch(NumberFormatException e) {
+          Log.warning("Could not parse cache size ["+s+"]");
+        }
+      }
+      defaultCache = new AnnotationCache(dir == null || dir.isEmpty() ? null : new File(dir), DEFAULT_MEMORY_SIZE, size);
+    }
+    return defaultCache;
+  }
+
+  /**
+   * Gets the identity of a resource file : canonical path, size and last modification date
+   * @param filename the name of the resource file
+   * @return the identity of the file
+   * @throws IOException if the canonical path can't be resolved
+   */
+  public static String identity(String filename) throws IOException {
+    File f = new File(filename);
+    return f.getCanonicalPath() + "|" + f.length() + "|" + f.lastModified();
+  }
+
+  /**
+   * Gets a value from the cache
+   * @param resource the identity of the resource
+   * @param chr the chromosome
+   * @param pos the position
+   * @param allele the allele (or any other discriminating key)
+   * @return the cached value, or null if absent
+   */
+  public synchronized Double get(String resource, String chr, int pos, String allele) {
+    String key = key(resource, chr, pos, allele);
+    Double value = memory.get(key);
+    if(value != null) {
+      memoryHits++;
+      return value;
+    }
+    DiskStore store = getStore(resource);
+    if(store != null) {
+      value = store.entries.get(key(chr, pos, allele));
+      if(value != null) {
+        diskHits++;
+        store.used = true;
+        memory.put(key, value);
+        return value;
+      }
+    }
+    misses++;
+    return null;
+  }
+
+  /**
+   * Puts a value in the cache
+   * @param resource the identity of the resource
+   * @param chr the chromosome
+   * @param pos the position
+   * @param allele the allele (or any other discriminating key)
+   * @param value the value
+   */
+  public synchronized void put(String resource, String chr, int pos, String allele, double value) {
+    memory.put(key(resource, chr, pos, allele), value);
+    DiskStore store = getStore(resource);
+    if(store != null) {
+      store.entries.put(key(chr, pos, allele), value);
+      store.used = true;
+    }
+  }
+
+  /**
+   * Writes the used stores to disk, then deletes the files of the resources that have changed and trims the directory to its size
+   * @throws IOException if the store can't be written
+   */
+  public synchronized void save() throws IOException {
+    if(directory == null)
+      return;
+    for(DiskStore store : disk.values())
+      store.save();
+    trim();
+  }
+
+  /**
+   * Deletes the cache files of the resources that have changed, then drops the least recently used entries until the directory holds at most diskSize entries
+   * @throws IOException if a cache file can't be read or written
+   */
+  private void trim() throws IOException {
+    File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+    if(files == null)
+      return;
+    HashMap<File, DiskStore> loaded = new HashMap<>();
+    for(DiskStore store : disk.values())
+      loaded.put(store.file, store);
+    ArrayList<File> kept = new ArrayList<>();
+    HashMap<File, Integer> sizes = new HashMap<>();
+    long total = 0;
+    for(File file : files) {
+      DiskStore store = loaded.get(file);
+      String resource = store != null ? store.resource : readHeader(file);
+      if(resource == null || isStale(resource)) {
+        Log.debug("Deleting stale cache file ["+file+"] for ["+resource+"]");
+        delete(file, store);
+        continue;
+      }
+      int size = store != null ? store.entries.size() : countEntries(file);
+      kept.add(file);
+      sizes.put(file, size);
+      total += size;
+    }
+    kept.sort(Comparator.comparingLong(File::lastModified));
+    for(File file : kept) {
+      if(total <= diskSize)
+        break;
+      int size = sizes.get(file);
+      long excess = total - diskSize;
+      DiskStore store = loaded.get(file);
+      if(size <= excess)
+        delete(file, store);
+      else if(store != null) {
+        Iterator<String> keys = store.entries.keySet().iterator();
+        for(long i = excess; i > 0; i--) {
+          keys.next();
+          keys.remove();
+        }
+        store.write();
+      } else
+        dropOldest(file, (int)excess);
+      total -= Math.min(size, excess);
+    }
+  }
+
+  /**
+   * Deletes a cache file, and forgets its store if it is loaded
+   * @param file the cache file
+   * @param store the loaded store of the file (null if it is not loaded)
+   */
+  private void delete(File file, DiskStore store) {
+    if(store != null)
+      disk.remove(store.resource);
+    if(!file.delete())
+      Log.warning("Could not delete cache file ["+file+"]");
+  }
+
+  /**
+   * @param resource the identity of a resource
+   * @return true if the file of the resource has changed or disappeared since the identity was computed
+   */
+  private static boolean isStale(String resource) {
+    int size = resource.lastIndexOf('|', resource.lastIndexOf('|') - 1);
+    if(size < 0)
+      return true;
+    try {
+      return !resource.equals(identity(resource.substring(0, size)));
+    } catch(IOException e) {
+      return true;
+    }
+  }
+
+  /**
+   * @param file a cache file
+   * @return the identity of the resource (header line) of the cache file, null if it can't be read
+   */
+  private static String readHeader(File file) {
+    try(BufferedReader in = new BufferedReader(new FileReader(file))) {
+      return in.readLine();
+    } catch(IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @param file a cache file
+   * @return the number of entries in the cache file
+   * @throws IOException if the file can't be read
+   */
+  private static int countEntries(File file) throws IOException {
+    int lines = 0;
+    try(BufferedReader in = new BufferedReader(new FileReader(file))) {
+      while(in.readLine() != null)
+        lines++;
+    }
+    return Math.max(0, lines - 1);
+  }
+
+  /**
+   * Drops the oldest entries of a cache file that is not loaded
+   * @param file the cache file
+   * @param n the number of entries to drop
+   * @throws IOException if the file can't be read or written
+   */
+  private static void dropOldest(File file, int n) throws IOException {
+    ArrayList<String> lines = new ArrayList<>();
+    try(BufferedReader in = new BufferedReader(new FileReader(file))) {
+      String line;
+      while((line = in.readLine()) != null)
+        lines.add(line);
+    }
+    try(PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+      out.println(lines.get(0));
+      for(int i = 1 + n; i < lines.size(); i++)
+        out.println(lines.get(i));
+    }
+  }
+
+  /**
+   * Gets the hit/miss counters
+   * @return a printable summary of the counters
+   */
+  public synchronized String getSummary() {
+    long total = memoryHits + diskHits + misses;
+    return "Annotation cache : "+memoryHits+" memory hits, "+diskHits+" disk hits, "+misses+" misses ("+total+" lookups)";
+  }
+
+  public synchronized long getHits() {
+    return memoryHits + diskHits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  private static String key(String resource, String chr, int pos, String allele) {
+    return resource + T + key(chr, pos, allele);
+  }
+
+  private static String key(String chr, int pos, String allele) {
+    return chr + T + pos + T + allele;
+  }
+
+  /**
+   * Gets (and loads if needed) the on-disk store of a resource
+   * @param resource the identity of the resource
+   * @return the store, or null for a memory only cache
+   */
+  private DiskStore getStore(String resource) {
+    if(directory == null)
+      return null;
+    DiskStore store = disk.get(resource);
+    if(store == null) {
+      store = new DiskStore(new File(directory, digest(resource) + EXTENSION), resource);
+      disk.put(resource, store);
+    }
+    return store;
+  }
+
+  /**
+   * @param resource the identity of the resource
+   * @return a file name compatible digest of the identity
+   */
+  private static String digest(String resource) {
+    try {
+      byte[] hash = MessageDigest.getInstance("SHA-1").digest(resource.getBytes(StandardCharsets.UTF_8));
+      StringBuilder sb = new StringBuilder();
+      for(byte b : hash)
+        sb.append(String.format("%02x", b));
+      return sb.toString();
+    } catch(NoSuchAlgorithmException e) {
+      return Integer.toHexString(resource.hashCode());
+    }
+  }
+
+  /**
+   * The on-disk entries for one resource. Format : 1 header line (identity of the resource), then chr pos allele value,
+   * from the least recently used to the most recently used
+   */
+  private static class DiskStore {
+    private final File file;
+    private final String resource;
+    /* In access order : gets and puts make an entry the most recently used */
+    private final LinkedHashMap<String, Double> entries;
+    /* True if an entry was read or added since the store was last written */
+    private boolean used = false;
+
+    DiskStore(File file, String resource) {
+      this.file = file;
+      this.resource = resource;
+      this.entries = new LinkedHashMap<>(16, 0.75f, true);
+      if(file.exists()) {
+        try(BufferedReader in = new BufferedReader(new FileReader(file))) {
+          String line = in.readLine();
+          if(!resource.equals(line)) {
+            Log.warning("Ignoring cache file ["+file+"] for another resource ["+line+"]");
+            return;
+          }
+          while((line = in.readLine()) != null) {
+            int idx = line.lastIndexOf(T);
+            entries.put(line.substring(0, idx), Double.parseDouble(line.substring(idx + 1)));
+          }
+        } catch(IOException | RuntimeException e) {
+          Log.warning("Ignoring unreadable cache file ["+file+"] : "+e.getMessage());
+          entries.clear();
+        }
+      }
+    }
+
+    /**
+     * Writes the store if it was used, so that the recency of its entries (and of the file) is kept
+     */
+    void save() throws IOException {
+      if(used)
+        write();
+    }
+
+    void write() throws IOException {
+      try(PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+        out.println(resource);
+        for(Map.Entry<String, Double> entry : entries.entrySet())
+          out.println(entry.getKey() + T + entry.getValue());
+      }
+      used = false;
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package fr.inserm.u1078.estiage;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * OutputStream writing in the BGZF format (blocked gzip, as produced by bgzip)<br/>
+ * Each block of at most 64KB is a complete gzip member, with the BC extra field holding the size of the compressed block.
+ * The stream ends with the standard empty EOF block.<br/>
+ * The output can be read by any gzip reader, and indexed by tabix
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class BGZFOutputStream extends FilterOutputStream {
+  /**
+   * Maximum size of uncompressed data per block (leaves room for incompressible data within the 64KB limit)
+   */
+  private static final int BLOCK_SIZE = 0xff00;
+  private static final int HEADER_SIZE = 18;
+  private static final int FOOTER_SIZE = 8;
+  private static final byte[] EOF = {
+      0x1f, (byte) 0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xff, 0x06, 0x00, 0x42, 0x43, 0x02, 0x00,
+      0x1b, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00
+  };
+
+  private final byte[] uncompressed = new byte[BLOCK_SIZE];
+  private final byte[] compressed = new byte[0x10000];
+  private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+  private final CRC32 crc = new CRC32();
+  private int size = 0;
+  private boolean closed = false;
+
+  /**
+   * Creates a new BGZF stream
+   * @param out the underlying stream
+   */
+  public BGZFOutputStream(OutputStream out) {
+    super(out);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if(size == BLOCK_SIZE)
+      writeBlock();
+    uncompressed[size++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while(len > 0) {
+      if(size == BLOCK_SIZE)
+        writeBlock();
+      int n = Math.min(len, BLOCK_SIZE - size);
+      System.arraycopy(b, off, uncompressed, size, n);
+      size += n;
+      off += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Flushes the current block (a new block is started, so flushing too often degrades the compression)
+   * @throws IOException if the block can't be written
+   */
+  @Override
+  public void flush() throws IOException {
+    if(size > 0)
+      writeBlock();
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if(closed)
+      return;
+    closed = true;
+    if(size > 0)
+      writeBlock();
+    out.write(EOF);
+    deflater.end();
+    out.close();
+  }
+
+  /**
+   * Compresses and writes the current block
+   * @throws IOException if the block can't be written
+   */
+  private void writeBlock() throws IOException {
+    deflater.reset();
+    deflater.setInput(uncompressed, 0, size);
+    deflater.finish();
+    int length = deflater.deflate(compressed, 0, compressed.length);
+    if(!deflater.finished())
+      throw new IOException("BGZF block could not be compressed within 64KB");
+    crc.reset();
+    crc.update(uncompressed, 0, size);
+
+    int blockSize = HEADER_SIZE + length + FOOTER_SIZE - 1;
+    byte[] header = {
+        0x1f, (byte) 0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xff, 0x06, 0x00, 0x42, 0x43, 0x02, 0x00,
+        (byte) blockSize, (byte) (blockSize >> 8)
+    };
+    out.write(header);
+    out.write(compressed, 0, length);
+    writeInt((int) crc.getValue());
+    writeInt(size);
+    size = 0;
+  }
+
+  /**
+   * Writes a little endian int
+   */
+  private void writeInt(int v) throws IOException {
+    out.write(v & 0xff);
+    out.write((v >> 8) & 0xff);
+    out.write((v >> 16) & 0xff);
+    out.write((v >> 24) & 0xff);
+  }
+}
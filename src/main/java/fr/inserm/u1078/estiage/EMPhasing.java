@@ -0,0 +1,650 @@
+package fr.inserm.u1078.estiage;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Statistical phasing of unphased data, by estimation of the haplotype frequencies with an EM algorithm<br/>
+ * The haplotypes are grown from the target marker, one marker at a time (first to the left, then to the right). At each step :<ul>
+ *   <li>the haplotype pairs compatible with each sample are extended with the alleles of the new marker (any observed allele for a missing one)</li>
+ *   <li>the haplotype frequencies are estimated by EM, the E step is computed in parallel, and the iterations stop as soon as the frequencies converge</li>
+ *   <li>the unlikely pairs are pruned, so that the phase configurations are never enumerated</li>
+ * </ul>
+ * For each sample carrying the target allele, the most likely carrier haplotype is exported with its posterior probability,
+ * in a RAW file with a {@link TSVFile#POSTERIOR} column (that ends up in the 5th column of the estiage input file).
+ * The posterior probability is the one of the markers used by estiage (up to the first allele that differs from the ancestral haplotype on each side).
+ * Samples with a missing allele on the target marker are ignored.
+ * The number of threads can be customized with call to java -Dthreads=N
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class EMPhasing {
+  /**
+   * The EM iterations stop when no haplotype frequency changes by more than this value
+   */
+  public static final double TOLERANCE = 1e-6;
+  /**
+   * The EM iterations also stop when the log-likelihood improves by less than this value
+   */
+  public static final double LIKELIHOOD_TOLERANCE = 1e-4;
+  public static final int MAX_ITERATIONS = 200;
+  /**
+   * Pairs of haplotypes with a lower posterior probability are pruned after each step
+   */
+  public static final double MIN_POSTERIOR = 1e-3;
+  /**
+   * Maximum number of pairs of haplotypes kept per sample after each step
+   */
+  public static final int MAX_PAIRS = 64;
+  /**
+   * Number of samples per task during the E step
+   */
+  private static final int CHUNK = 64;
+
+  private final Unphased unphased;
+  private final int S;
+  private final int targetColumn;
+  private final int threads;
+  /**
+   * the order in which the markers are added to the haplotypes (target, left1...leftN, right1...rightM)
+   */
+  private final int[] columns;
+  private final boolean[] included;
+  private int nbIncluded;
+  private int targetAllele;
+
+  /**
+   * the haplotype tree : parents[j][h] and alleles[j][h] are the parent (at step j-1) and the allele (at step j) of the haplotype h of step j
+   */
+  private final int[][] parents;
+  private final int[][] alleles;
+  private boolean[] carrier;
+  private double[] frequencies;
+
+  /**
+   * the pairs of haplotypes of each sample (first[s][k] <= second[s][k]) and their posterior probabilities
+   */
+  private final int[][] first;
+  private final int[][] second;
+  private final double[][] posteriors;
+  private final int[] nbPairs;
+  /**
+   * the log-likelihood of the genotype of each sample, at the last E step
+   */
+  private final double[] logLikelihoods;
+
+  /**
+   * the most likely carrier haplotype (allele codes for each marker, 0 for the alleles that were not observed), null for non carriers
+   */
+  private final int[][] haplotypes;
+  private final double[] posterior;
+
+  /**
+   * Phases unphased data around a target
+   * @param unphased the source unphased data
+   * @throws InterruptedException if the thread is interrupted while waiting for the E step
+   */
+  public EMPhasing(Unphased unphased) throws InterruptedException {
+    this.unphased = unphased;
+    this.S = unphased.S;
+    this.targetColumn = unphased.target - 1;
+    this.threads = Utils.getThreads();
+    final int C = unphased.C;
+
+    columns = new int[C];
+    int j = 0;
+    columns[j++] = targetColumn;
+    for(int c = targetColumn - 1; c >= 0; c--)
+      columns[j++] = c;
+    for(int c = targetColumn + 1; c < C; c++)
+      columns[j++] = c;
+
+    included = new boolean[S];
+    parents = new int[C][];
+    alleles = new int[C][];
+    first = new int[S][];
+    second = new int[S][];
+    posteriors = new double[S][];
+    nbPairs = new int[S];
+    logLikelihoods = new double[S];
+    haplotypes = new int[S][];
+    posterior = new double[S];
+    phase();
+  }
+
+  /**
+   * Grows the haplotypes from the target and selects the carrier haplotypes
+   * @throws InterruptedException if the thread is interrupted while waiting for the E step
+   */
+  private void phase() throws InterruptedException {
+    Log.info("EM phasing for Marker ["+unphased.markerNames[targetColumn]+"] with "+threads+" thread(s)");
+    ExecutorService workers = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+    try {
+      init();
+      for(int j = 1; j < columns.length && nbIncluded > 0; j++) {
+        extend(j);
+        int iterations = estimate(workers);
+        prune(j);
+        Log.info("Column "+columns[j]+" ["+unphased.markerNames[columns[j]]+"] : "+frequencies.length+" haplotypes after "+iterations+" iteration(s)");
+      }
+    } finally {
+      if(workers != null)
+        workers.shutdownNow();
+    }
+    selectCarrierHaplotypes();
+  }
+
+  /**
+   * Initializes the haplotypes with the alleles of the target marker (no ambiguity) and selects the target allele (the most frequent one)
+   */
+  private void init() {
+    final int[] geno = unphased.codes[targetColumn];
+    final int K = unphased.alleles[targetColumn].length;
+    Ranking ranking = new Ranking(K);
+    ranking.reset(K);
+    double[] counts = new double[K];
+    for(int s = 0; s < S; s++) {
+      int a = geno[2*s];
+      int b = geno[2*s + 1];
+      if(a == 0 || b == 0)
+        continue;
+      included[s] = true;
+      nbIncluded++;
+      ranking.add(a);
+      if(b != a)
+        ranking.add(b);
+      counts[a]++;
+      counts[b]++;
+      first[s] = new int[]{Math.min(a, b)};
+      second[s] = new int[]{Math.max(a, b)};
+      posteriors[s] = new double[]{1};
+      nbPairs[s] = 1;
+    }
+    ranking.rank();
+    targetAllele = ranking.isEmpty() ? 0 : ranking.getElement(0);
+    Log.info(nbIncluded+" samples out of "+S+" have a complete genotype on the target, the target allele is ["+unphased.alleles[targetColumn][targetAllele]+"]");
+
+    //at step 0, the haplotype h is the allele coded h
+    parents[0] = new int[K];
+    alleles[0] = new int[K];
+    carrier = new boolean[K];
+    frequencies = new double[K];
+    for(int h = 0; h < K; h++) {
+      parents[0][h] = -1;
+      alleles[0][h] = h;
+      carrier[h] = h != 0 && h == targetAllele;
+      frequencies[h] = nbIncluded == 0 ? 0 : counts[h] / (2 * nbIncluded);
+    }
+  }
+
+  /**
+   * Extends the pairs of haplotypes of each sample with the alleles of the marker added at step j, and initializes the frequencies
+   * of the new haplotypes (frequency of the parent x frequency of the allele)
+   * @param j the step
+   */
+  private void extend(int j) {
+    final int c = columns[j];
+    final int[] geno = unphased.codes[c];
+    final int K = unphased.alleles[c].length;
+
+    //observed alleles (candidates for the missing ones)
+    double[] alleleFrequencies = new double[K];
+    double total = 0;
+    for(int s = 0; s < S; s++)
+      if(included[s])
+        for(int h = 0; h < 2; h++)
+          if(geno[2*s + h] != 0) {
+            alleleFrequencies[geno[2*s + h]]++;
+            total++;
+          }
+    int nbCandidates = 0;
+    int[] candidates = new int[K];
+    for(int a = 1; a < K; a++)
+      if(alleleFrequencies[a] > 0)
+        candidates[nbCandidates++] = a;
+    if(nbCandidates == 0) //no observed allele, the haplotypes are extended with the missing allele
+      candidates[nbCandidates++] = 0;
+    candidates = Arrays.copyOf(candidates, nbCandidates);
+    for(int a = 0; a < K; a++)
+      alleleFrequencies[a] = total == 0 ? 1 : alleleFrequencies[a] / total;
+
+    //new haplotypes
+    HashMap<Long, Integer> ids = new HashMap<>();
+    IntList newParents = new IntList();
+    IntList newAlleles = new IntList();
+
+    for(int s = 0; s < S; s++) {
+      if(!included[s])
+        continue;
+      int x = geno[2*s];
+      int y = geno[2*s + 1];
+      int[] xs = x == 0 ? candidates : new int[]{x};
+      int[] ys = y == 0 ? candidates : new int[]{y};
+      long[] keys = new long[2 * nbPairs[s] * xs.length * ys.length];
+      int n = 0;
+      for(int k = 0; k < nbPairs[s]; k++) {
+        int p1 = first[s][k];
+        int p2 = second[s][k];
+        for(int u : xs)
+          for(int v : ys) {
+            keys[n++] = pair(child(ids, newParents, newAlleles, K, p1, u), child(ids, newParents, newAlleles, K, p2, v));
+            keys[n++] = pair(child(ids, newParents, newAlleles, K, p1, v), child(ids, newParents, newAlleles, K, p2, u));
+          }
+      }
+      //unique unordered pairs
+      Arrays.sort(keys, 0, n);
+      int m = 0;
+      for(int i = 0; i < n; i++)
+        if(m == 0 || keys[i] != keys[m - 1])
+          keys[m++] = keys[i];
+      first[s] = new int[m];
+      second[s] = new int[m];
+      posteriors[s] = new double[m];
+      nbPairs[s] = m;
+      for(int k = 0; k < m; k++) {
+        first[s][k] = (int)(keys[k] >>> 32);
+        second[s][k] = (int)keys[k];
+      }
+    }
+
+    final int H = newParents.size();
+    parents[j] = newParents.toArray();
+    alleles[j] = newAlleles.toArray();
+    boolean[] newCarrier = new boolean[H];
+    double[] newFrequencies = new double[H];
+    double sum = 0;
+    for(int h = 0; h < H; h++) {
+      newCarrier[h] = carrier[parents[j][h]];
+      newFrequencies[h] = frequencies[parents[j][h]] * alleleFrequencies[alleles[j][h]];
+      sum += newFrequencies[h];
+    }
+    for(int h = 0; h < H; h++)
+      newFrequencies[h] = sum > 0 ? newFrequencies[h] / sum : 1D / H;
+    carrier = newCarrier;
+    frequencies = newFrequencies;
+  }
+
+  /**
+   * Gets (or creates) the id of the haplotype made of a parent haplotype extended with an allele
+   */
+  private static int child(HashMap<Long, Integer> ids, IntList newParents, IntList newAlleles, int K, int parent, int allele) {
+    long key = (long)parent * K + allele;
+    Integer id = ids.get(key);
+    if(id == null) {
+      id = newParents.size();
+      newParents.add(parent);
+      newAlleles.add(allele);
+      ids.put(key, id);
+    }
+    return id;
+  }
+
+  /**
+   * @return the key of the unordered pair (h1, h2)
+   */
+  private static long pair(int h1, int h2) {
+    return ((long)Math.min(h1, h2) << 32) | Math.max(h1, h2);
+  }
+
+  /**
+   * Estimates the haplotype frequencies by EM, and the posterior probabilities of the pairs
+   * @param workers the thread pool for the E step, null to compute it in the current thread
+   * @return the number of iterations
+   * @throws InterruptedException if the thread is interrupted while waiting for the E step
+   */
+  private int estimate(ExecutorService workers) throws InterruptedException {
+    final int H = frequencies.length;
+    final int nbChunks = (S + CHUNK - 1) / CHUNK;
+    double[] counts = new double[H];
+    double logLikelihood = Double.NEGATIVE_INFINITY;
+    int iteration = 0;
+    while(iteration < MAX_ITERATIONS) {
+      iteration++;
+      //E step
+      if(workers == null) {
+        for(int chunk = 0; chunk < nbChunks; chunk++)
+          expectation(chunk);
+      } else {
+        ArrayList<Future<?>> tasks = new ArrayList<>(nbChunks);
+        for(int chunk = 0; chunk < nbChunks; chunk++) {
+          final int ch = chunk;
+          tasks.add(workers.submit(() -> expectation(ch)));
+        }
+        try {
+          for(Future<?> task : tasks)
+            task.get();
+        } catch(ExecutionException e) {
+          Throwable cause = e.getCause();
+          if(cause instanceof RuntimeException)
+            throw (RuntimeException) cause;
+          throw new RuntimeException(cause);
+        }
+      }
+
+      //M step : the expected counts are summed in the order of the samples, so the results do not depend on the number of threads
+      Arrays.fill(counts, 0);
+      double previous = logLikelihood;
+      logLikelihood = 0;
+      for(int s = 0; s < S; s++) {
+        logLikelihood += logLikelihoods[s];
+        for(int k = 0; k < nbPairs[s]; k++) {
+          counts[first[s][k]] += posteriors[s][k];
+          counts[second[s][k]] += posteriors[s][k];
+        }
+      }
+      double delta = 0;
+      for(int h = 0; h < H; h++) {
+        double f = counts[h] / (2 * nbIncluded);
+        delta = Math.max(delta, Math.abs(f - frequencies[h]));
+        frequencies[h] = f;
+      }
+      if(delta < TOLERANCE || logLikelihood - previous < LIKELIHOOD_TOLERANCE)
+        break;
+    }
+    return iteration;
+  }
+
+  /**
+   * E step for a chunk of samples : computes the posterior probability of each pair, and the log-likelihood of each sample
+   * @param chunk the index of the chunk
+   */
+  private void expectation(int chunk) {
+    final int end = Math.min(S, (chunk + 1) * CHUNK);
+    for(int s = chunk * CHUNK; s < end; s++) {
+      final int n = nbPairs[s];
+      final int[] h1 = first[s];
+      final int[] h2 = second[s];
+      final double[] post = posteriors[s];
+      double total = 0;
+      for(int k = 0; k < n; k++) {
+        double p = frequencies[h1[k]] * frequencies[h2[k]];
+        if(h1[k] != h2[k])
+          p *= 2;
+        post[k] = p;
+        total += p;
+      }
+      for(int k = 0; k < n; k++)
+        post[k] = total > 0 ? post[k] / total : 1D / n;
+      logLikelihoods[s] = total > 0 ? Math.log(total) : 0;
+    }
+  }
+
+  /**
+   * Removes the unlikely pairs (and the haplotypes that are not used anymore), the frequencies are updated from the remaining pairs
+   * @param j the current step
+   */
+  private void prune(int j) {
+    final int H = frequencies.length;
+    Integer[] order = new Integer[0];
+    for(int s = 0; s < S; s++) {
+      if(!included[s])
+        continue;
+      final int n = nbPairs[s];
+      if(order.length < n)
+        order = new Integer[n];
+      for(int k = 0; k < n; k++)
+        order[k] = k;
+      final double[] post = posteriors[s];
+      Arrays.sort(order, 0, n, (k1, k2) -> Double.compare(post[k2], post[k1]));
+      int m = 1; //the best pair is always kept
+      while(m < n && m < MAX_PAIRS && post[order[m]] >= MIN_POSTERIOR)
+        m++;
+      int[] h1 = new int[m];
+      int[] h2 = new int[m];
+      double[] p = new double[m];
+      double total = 0;
+      for(int k = 0; k < m; k++) {
+        h1[k] = first[s][order[k]];
+        h2[k] = second[s][order[k]];
+        p[k] = post[order[k]];
+        total += p[k];
+      }
+      for(int k = 0; k < m; k++)
+        p[k] = total > 0 ? p[k] / total : 1D / m;
+      first[s] = h1;
+      second[s] = h2;
+      posteriors[s] = p;
+      nbPairs[s] = m;
+    }
+
+    //renumbers the remaining haplotypes
+    int[] newId = new int[H];
+    Arrays.fill(newId, -1);
+    double[] counts = new double[H];
+    int nb = 0;
+    for(int s = 0; s < S; s++)
+      for(int k = 0; k < nbPairs[s]; k++) {
+        int[] pair = {first[s][k], second[s][k]};
+        for(int h : pair) {
+          if(newId[h] < 0)
+            newId[h] = nb++;
+          counts[h] += posteriors[s][k];
+        }
+      }
+    int[] newParents = new int[nb];
+    int[] newAlleles = new int[nb];
+    boolean[] newCarrier = new boolean[nb];
+    double[] newFrequencies = new double[nb];
+    for(int h = 0; h < H; h++)
+      if(newId[h] > -1) {
+        newParents[newId[h]] = parents[j][h];
+        newAlleles[newId[h]] = alleles[j][h];
+        newCarrier[newId[h]] = carrier[h];
+        newFrequencies[newId[h]] = counts[h] / (2 * nbIncluded);
+      }
+    for(int s = 0; s < S; s++)
+      for(int k = 0; k < nbPairs[s]; k++) {
+        first[s][k] = newId[first[s][k]];
+        second[s][k] = newId[second[s][k]];
+      }
+    parents[j] = newParents;
+    alleles[j] = newAlleles;
+    carrier = newCarrier;
+    frequencies = newFrequencies;
+  }
+
+  /**
+   * For each carrier of the target allele, selects the carrier haplotype with the highest posterior probability.
+   * The posterior probability that is kept is the one of the part of the haplotype used by estiage (see {@link #computePosteriors()})
+   */
+  private void selectCarrierHaplotypes() {
+    for(int s = 0; s < S; s++) {
+      if(!included[s])
+        continue;
+      int best = -1;
+      double bestPosterior = 0;
+      for(int k = 0; k < nbPairs[s]; k++)
+        for(int h : new int[]{first[s][k], second[s][k]}) {
+          if(!carrier[h] || h == best)
+            continue;
+          //probability that the sample carries h
+          double p = 0;
+          for(int l = 0; l < nbPairs[s]; l++)
+            if(first[s][l] == h || second[s][l] == h)
+              p += posteriors[s][l];
+          if(p > bestPosterior || (p == bestPosterior && h < best)) {
+            best = h;
+            bestPosterior = p;
+          }
+        }
+      if(best < 0)
+        continue;
+      //alleles that were not observed in the genotype of the sample (imputed missing alleles) are set to missing
+      haplotypes[s] = trace(best);
+      for(int c = 0; c < unphased.C; c++) {
+        int a = haplotypes[s][c];
+        if(a != unphased.codes[c][2*s] && a != unphased.codes[c][2*s + 1])
+          haplotypes[s][c] = 0;
+      }
+    }
+    computePosteriors();
+  }
+
+  /**
+   * Gets the alleles of a haplotype of the last step
+   * @param h the haplotype
+   * @return the allele codes, for each marker
+   */
+  private int[] trace(int h) {
+    int[] ret = new int[unphased.C];
+    for(int j = columns.length - 1; j >= 0; j--) {
+      ret[columns[j]] = alleles[j][h];
+      h = parents[j][h];
+    }
+    return ret;
+  }
+
+  /**
+   * Computes the posterior probability of the reconstruction of each carrier haplotype, restricted to the markers used by estiage :
+   * from the target to the first allele that differs from the ancestral haplotype (included), on each side.
+   * The ancestral alleles are the most frequent ones among the carrier haplotypes that have not diverged yet (as in {@link TSVFile}),
+   * and the posterior is the probability of the pairs that contain a carrier haplotype with the same alleles on these markers
+   */
+  private void computePosteriors() {
+    final int C = unphased.C;
+    int[] from = new int[S];
+    int[] to = new int[S];
+    for(int s = 0; s < S; s++) {
+      from[s] = 0;
+      to[s] = C - 1;
+    }
+    for(int side = -1; side <= 1; side += 2) {
+      boolean[] diverged = new boolean[S];
+      for(int c = targetColumn + side; c >= 0 && c < C; c += side) {
+        int[] counts = new int[unphased.alleles[c].length];
+        int ancestral = 0;
+        for(int s = 0; s < S; s++)
+          if(haplotypes[s] != null && !diverged[s] && haplotypes[s][c] != 0) {
+            int a = haplotypes[s][c];
+            counts[a]++;
+            if(counts[a] > counts[ancestral] || (counts[a] == counts[ancestral] && a < ancestral))
+              ancestral = a;
+          }
+        for(int s = 0; s < S; s++)
+          if(haplotypes[s] != null && !diverged[s] && (ancestral == 0 || (haplotypes[s][c] != 0 && haplotypes[s][c] != ancestral))) {
+            diverged[s] = true;
+            if(side < 0)
+              from[s] = c;
+            else
+              to[s] = c;
+          }
+      }
+    }
+
+    for(int s = 0; s < S; s++) {
+      if(haplotypes[s] == null)
+        continue;
+      double p = 0;
+      for(int k = 0; k < nbPairs[s]; k++)
+        if(matches(s, first[s][k], from[s], to[s]) || matches(s, second[s][k], from[s], to[s]))
+          p += posteriors[s][k];
+      posterior[s] = Math.min(1, p);
+    }
+  }
+
+  /**
+   * Checks if a haplotype is a carrier haplotype that gives the same reconstruction as the selected haplotype of a sample
+   * @param s the sample
+   * @param h the haplotype
+   * @param from the first marker of the reconstruction
+   * @param to the last marker of the reconstruction
+   * @return true if the haplotype is a carrier with the same (non missing) alleles as the selected haplotype on the markers
+   */
+  private boolean matches(int s, int h, int from, int to) {
+    if(!carrier[h])
+      return false;
+    int[] alleles = trace(h);
+    for(int c = from; c <= to; c++)
+      if(haplotypes[s][c] != 0 && haplotypes[s][c] != alleles[c])
+        return false;
+    return true;
+  }
+
+  /**
+   * Exports the carrier haplotypes and their posterior probabilities, in the RAW format.
+   * @param filename the name of the output file
+   * @throws IOException if the file can't be written
+   */
+  public void export(String filename) throws IOException {
+    final int C = unphased.C;
+    StringBuilder header1 = new StringBuilder(".");
+    StringBuilder header2 = new StringBuilder("Samples\\Markers");
+    StringBuilder pos = new StringBuilder("Positions");
+    for(int c = 0; c < C; c++) {
+      if(c < targetColumn)
+        header1.append(TSVFile.T).append("Left").append(targetColumn - c);
+      else if(c == targetColumn)
+        header1.append(TSVFile.T).append("Target");
+      else
+        header1.append(TSVFile.T).append("Right").append(c - targetColumn);
+      header2.append(TSVFile.T).append(unphased.markerNames[c]);
+      pos.append(TSVFile.T).append(c == targetColumn ? unphased.position : "???:???");
+    }
+    header1.append(TSVFile.T).append(TSVFile.POSTERIOR);
+    header2.append(TSVFile.T).append(TSVFile.POSTERIOR);
+    pos.append(TSVFile.T);
+
+    PrintWriter out = new PrintWriter(new FileWriter(filename));
+    out.println(header1);
+    out.println(header2);
+    StringBuilder line = new StringBuilder();
+    for(int s = 0; s < S; s++) {
+      if(haplotypes[s] == null)
+        continue;
+      line.setLength(0);
+      line.append(unphased.sampleNames[s]);
+      for(int c = 0; c < C; c++) {
+        line.append(TSVFile.T);
+        if(haplotypes[s][c] != 0)
+          line.append(unphased.alleles[c][haplotypes[s][c]]);
+      }
+      line.append(TSVFile.T).append(posterior[s]);
+      out.println(line);
+    }
+    out.print(pos);
+    out.flush();
+    out.close();
+  }
+
+  /**
+   * Gets the posterior probability of the carrier haplotype of a sample
+   * @param s the index of the sample
+   * @return the posterior probability, 0 if the sample does not carry the target allele
+   */
+  public double getPosterior(int s) {
+    return posterior[s];
+  }
+
+  /**
+   * Growable array of int
+   */
+  private static class IntList {
+    private int[] values = new int[256];
+    private int size = 0;
+
+    void add(int v) {
+      if(size == values.length)
+        values = Arrays.copyOf(values, 2 * size);
+      values[size++] = v;
+    }
+
+    int size() {
+      return size;
+    }
+
+    int[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+}
@@ -0,0 +1,260 @@
+package fr.inserm.u1078.estiage;
+
+import fr.inserm.u1078.estiage.ctranslation.Bootstrap;
+import fr.inserm.u1078.estiage.ctranslation.BootstrapResults;
+import fr.inserm.u1078.estiage.ctranslation.Influence;
+import fr.inserm.u1078.estiage.ctranslation.InfluenceResults;
+import fr.inserm.u1078.estiage.ctranslation.JointEstimation;
+import fr.inserm.u1078.estiage.ctranslation.JointResults;
+import fr.inserm.u1078.estiage.ctranslation.Estiage;
+import fr.inserm.u1078.estiage.ctranslation.EstiageException;
+import fr.inserm.u1078.estiage.ctranslation.InputData;
+import fr.inserm.u1078.estiage.ctranslation.Results;
+
+import java.io.IOException;
+
+/**
+ * API to embed Estiage in another program : each step of the pipeline takes and returns objects in memory, without intermediate files<ul>
+ *   <li>{@link #vcf2raw(String, String, VCFFile.Mode, VCFFile.Method)} : VCF file to RAW data</li>
+ *   <li>{@link #raw2complete(TSVFile, String, String)} : RAW data to COMPLETE data (frequencies and recombination rates)</li>
+ *   <li>{@link #complete2input(TSVFile, int, double)} : COMPLETE data to the data of the likelihood engine</li>
+ *   <li>{@link #estimate(InputData)} : estimation, with the likelihood curve</li>
+ *   <li>{@link #bootstrap(InputData, int, long)} : estimation, with bootstrap confidence intervals</li>
+ *   <li>{@link #influence(InputData)} : estimation, with the leave-one-out influence of each individual</li>
+ *   <li>{@link #joint(InputData[], String[])} : joint estimation over several cohorts</li>
+ * </ul>
+ * Errors are thrown as exceptions (nothing is printed on stdout, the process is never exited).<br/>
+ * A pipeline keeps its resources (genetic maps, gnomAD, VCF headers) open and is safe to use from concurrent threads, as long as each job works on its own objects
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class EstiagePipeline {
+  private final Resources resources;
+  private final AnnotationCache cache;
+
+  /**
+   * Creates a pipeline that keeps its resources open, with the default annotation cache
+   */
+  public EstiagePipeline() {
+    this(new Resources(), AnnotationCache.getDefault());
+  }
+
+  /**
+   * Creates a pipeline
+   * @param resources the registry of opened resources (can be shared by several pipelines)
+   * @param cache the annotation cache
+   */
+  public EstiagePipeline(Resources resources, AnnotationCache cache) {
+    this.resources = resources;
+    this.cache = cache;
+  }
+
+  /**
+   * @return the registry of opened resources
+   */
+  public Resources getResources() {
+    return resources;
+  }
+
+  /**
+   * @return the annotation cache
+   */
+  public AnnotationCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Reads a RAW or COMPLETE file
+   * @param filename the name of the file
+   * @param type the type of the file
+   * @return the content of the file
+   * @throws IOException if the file can't be read
+   * @throws EstiageFormatException if the file can't be parsed
+   */
+  public TSVFile read(String filename, TSVFile.Type type) throws IOException, EstiageFormatException {
+    return new TSVFile(filename, type);
+  }
+
+  /**
+   * Reads an input file (text or binary)
+   * @param filename the name of the file
+   * @return the data of the likelihood engine
+   * @throws IOException if the file can't be read
+   * @throws EstiageException if the file can't be parsed
+   */
+  public InputData readInput(String filename) throws IOException, EstiageException {
+    return InputData.load(filename);
+  }
+
+  /**
+   * Builds the RAW data from a VCF file
+   * @param vcf the name of the VCF file
+   * @param chrPosAllele the target (chr:pos:allele)
+   * @param mode the VCF mode
+   * @param method the method to build the haplotypes
+   * @return the RAW data
+   * @throws IOException if the VCF file can't be read
+   * @throws EstiageFormatException if the VCF file is invalid, or doesn't match the mode
+   * @throws InterruptedException if there is a problem with the thread calling tabix
+   */
+  public TSVFile vcf2raw(String vcf, String chrPosAllele, VCFFile.Mode mode, VCFFile.Method method) throws IOException, EstiageFormatException, InterruptedException {
+    VCFFile vcfFile = resources.getVCFFile(vcf, mode);
+    vcfFile.setVariant(chrPosAllele);
+    return vcfFile.buildRaw(method);
+  }
+
+  /**
+   * Annotates RAW data with the frequencies and recombination rates. The RAW data are left unchanged
+   * @param raw the RAW data
+   * @param gnomad the gnomAD file (or frequency store)
+   * @param hapmap the HapMap file (or genetic map store)
+   * @return the COMPLETE data
+   * @throws IOException if the resources can't be read
+   * @throws EstiageFormatException if there are missing data in the resources
+   */
+  public TSVFile raw2complete(TSVFile raw, String gnomad, String hapmap) throws IOException, EstiageFormatException {
+    TSVFile complete = TSVFile.fromMarkers(raw.getTarget(), raw.getLeftMarkers(), raw.getRightMarkers(), raw.getSamples());
+    complete.generateFrequenciesAndRecombinationFractions(gnomad, hapmap, cache, resources);
+    return complete;
+  }
+
+  /**
+   * Builds the input file (as a preinput file) from COMPLETE data
+   * @param complete the COMPLETE data
+   * @param mutationModel the mutation model (0:normal, 1:stepwise)
+   * @param mutationRate the mutation rate
+   * @return the input file, before the recoding of the alleles
+   * @throws EstiageFormatException if the mutation model is unknown
+   */
+  public InputFile complete2preinput(TSVFile complete, int mutationModel, double mutationRate) throws EstiageFormatException {
+    checkMutationModel(mutationModel);
+    return new InputFile(complete, mutationModel, mutationRate);
+  }
+
+  /**
+   * Builds the data of the likelihood engine from COMPLETE data
+   * @param complete the COMPLETE data
+   * @param mutationModel the mutation model (0:normal, 1:stepwise)
+   * @param mutationRate the mutation rate
+   * @return the data of the likelihood engine
+   * @throws EstiageFormatException if the mutation model is unknown
+   * @throws EstiageException if the data are inconsistent
+   */
+  public InputData complete2input(TSVFile complete, int mutationModel, double mutationRate) throws EstiageFormatException, EstiageException {
+    InputFile input = complete2preinput(complete, mutationModel, mutationRate);
+    input.fromPreInput2Input();
+    return input.toInputData();
+  }
+
+  /**
+   * Computes the maximum likelihood estimation
+   * @param input the data of the likelihood engine
+   * @return the results, with the likelihood curve
+   * @throws EstiageException if the maximum number of iterations is reached
+   */
+  public Results estimate(InputData input) throws EstiageException {
+    return Estiage.estimate(input);
+  }
+
+  /**
+   * Computes the maximum likelihood estimation, with a bootstrap over the individuals (the replicates are run on all the threads, see {@link Utils#getThreads()})
+   * @param input the data of the likelihood engine
+   * @param replicates the number of replicates
+   * @param seed the seed of the random streams (the results only depend on the seed)
+   * @return the results, with the percentile interval of the replicates
+   * @throws EstiageException if the estimation fails on the whole dataset
+   * @throws InterruptedException if the current thread is interrupted while waiting for the replicates
+   */
+  public BootstrapResults bootstrap(InputData input, int replicates, long seed) throws EstiageException, InterruptedException {
+    return new Bootstrap(input, replicates, seed, Utils.getThreads()).run();
+  }
+
+  /**
+   * Computes the maximum likelihood estimation, and the estimations without each individual
+   * @param input the data of the likelihood engine
+   * @return the results, with the results without each individual
+   * @throws EstiageException if the estimation fails on the whole dataset
+   */
+  public InfluenceResults influence(InputData input) throws EstiageException {
+    return new Influence(input).run();
+  }
+
+  /**
+   * Computes the joint maximum likelihood estimation over several cohorts (the cohorts are evaluated on all the threads, see {@link Utils#getThreads()})
+   * @param cohorts the data of the likelihood engine, for each cohort
+   * @param names the name of each cohort (null to number them)
+   * @return the joint results, with the contribution and the results of each cohort
+   * @throws EstiageException if the maximum number of iterations is reached
+   * @throws InterruptedException if the current thread is interrupted while waiting for the cohorts
+   */
+  public JointResults joint(InputData[] cohorts, String[] names) throws EstiageException, InterruptedException {
+    return new JointEstimation(cohorts, names, Utils.getThreads()).run();
+  }
+
+  /**
+   * Runs the whole pipeline in memory, from the VCF file to the estimation
+   * @param vcf the name of the VCF file
+   * @param chrPosAllele the target (chr:pos:allele)
+   * @param mode the VCF mode
+   * @param method the method to build the haplotypes
+   * @param gnomad the gnomAD file (or frequency store)
+   * @param hapmap the HapMap file (or genetic map store)
+   * @param mutationModel the mutation model (0:normal, 1:stepwise)
+   * @param mutationRate the mutation rate
+   * @return the results, with the likelihood curve
+   * @throws IOException if a file can't be read
+   * @throws EstiageFormatException if a file is invalid
+   * @throws InterruptedException if there is a problem with the thread calling tabix
+   * @throws EstiageException if the estimation fails
+   */
+  public Results vcf2run(String vcf, String chrPosAllele, VCFFile.Mode mode, VCFFile.Method method, String gnomad, String hapmap, int mutationModel, double mutationRate) throws IOException, EstiageFormatException, InterruptedException, EstiageException {
+    TSVFile raw = vcf2raw(vcf, chrPosAllele, mode, method);
+    TSVFile complete = raw2complete(raw, gnomad, hapmap);
+    return estimate(complete2input(complete, mutationModel, mutationRate));
+  }
+
+  /**
+   * Checks the mutation model
+   * @param mutationModel the mutation model
+   * @throws EstiageFormatException if the model is not 0 (normal) or 1 (stepwise)
+   */
+  private static void checkMutationModel(int mutationModel) throws EstiageFormatException {
+    if(mutationModel < 0 || mutationModel > 1)
+      throw new EstiageFormatException("Unexpected Mutation Model ["+mutationModel+"]. Should be 0 (normal) or 1 (stepwise)");
+  }
+
+  /**
+   * Parses the mutation model
+   * @param mutationModel the mutation model (0 or 1)
+   * @return the mutation model
+   * @throws EstiageFormatException if the model is unknown
+   */
+  public static int parseMutationModel(String mutationModel) throws EstiageFormatException {
+    int model = -1;
+    try {
+      model = Integer.parseInt(mutationModel);
+    } catch(NumberFormatException ignore) {
+      //Nothing
+    }
+    if(model < 0 || model > 1)
+      throw new EstiageFormatException("Unexpected Mutation Model ["+mutationModel+"]. Should be 0 (normal) or 1 (stepwise)");
+    return model;
+  }
+
+  /**
+   * Parses the mutation rate
+   * @param mutationRate the mutation rate
+   * @return the mutation rate
+   * @throws EstiageFormatException if the rate can't be parsed
+   */
+  public static double parseMutationRate(String mutationRate) throws EstiageFormatException {
+    try {
+      return Double.parseDouble(mutationRate);
+    } catch(NumberFormatException e) {
+      throw new EstiageFormatException("Could not parse mutation rate ["+mutationRate+"]");
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package fr.inserm.u1078.estiage;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JDK Flight Recorder events emitted by Estiage<ul>
+ *   <li>{@link Estimation} : a call to the likelihood engine (findMaxLike)</li>
+ *   <li>{@link Generation} : the computation of the likelihood for one generation, only recorded when above the threshold (1 ms by default)</li>
+ *   <li>{@link TabixQuery} : a tabix query (Utils, GnomAD, VCFFile)</li>
+ *   <li>{@link GeneticMapLoad} : the loading of a window of recombination rates (HapMap)</li>
+ *   <li>{@link ChromosomeLoad} : the loading of the variants of a chromosome (VCFFile)</li>
+ * </ul>
+ * The events are recorded with call to java -XX:StartFlightRecording=filename=estiage.jfr ... and can be read with jfr print --categories Estiage estiage.jfr<br/>
+ * The threshold of {@link Generation} can be lowered in a custom settings file (-XX:StartFlightRecording=settings=estiage.jfc,...) to record every generation<br/>
+ * When no recording is running, the events cost almost nothing
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class Events {
+  public static final String CATEGORY = "Estiage";
+
+  private Events() {
+  }
+
+  @Name("fr.inserm.u1078.estiage.Estimation")
+  @Label("Estimation")
+  @Category({CATEGORY, "Engine"})
+  @Description("Maximum likelihood estimation of the age of the variant")
+  @StackTrace(false)
+  public static class Estimation extends Event {
+    public static final String STOP_RATIO = "likelihood ratio";
+    public static final String STOP_MAX_GENERATIONS = "maximum generations";
+
+    @Label("Individuals")
+    public int individuals;
+
+    @Label("Markers Left")
+    public int markersLeft;
+
+    @Label("Markers Right")
+    public int markersRight;
+
+    @Label("Generations Evaluated")
+    public int generations;
+
+    @Label("Most Likely Age")
+    public int age;
+
+    @Label("Stop Reason")
+    public String stopReason;
+  }
+
+  @Name("fr.inserm.u1078.estiage.Generation")
+  @Label("Generation Likelihood")
+  @Category({CATEGORY, "Engine"})
+  @Description("Computation of the likelihood for one number of generations")
+  @StackTrace(false)
+  @Threshold("1 ms")
+  public static class Generation extends Event {
+    @Label("Generation")
+    public int generation;
+
+    @Label("Likelihood")
+    public double likelihood;
+  }
+
+  @Name("fr.inserm.u1078.estiage.TabixQuery")
+  @Label("Tabix Query")
+  @Category({CATEGORY, "I/O"})
+  @Description("Query of a tabixed file, from the start of the process to the last record read")
+  @StackTrace(false)
+  public static class TabixQuery extends Event {
+    @Label("File")
+    public String file;
+
+    @Label("Region")
+    @Description("The queried regions, or the number of regions for batch queries")
+    public String region;
+
+    @Label("Records")
+    public int records;
+  }
+
+  @Name("fr.inserm.u1078.estiage.GeneticMapLoad")
+  @Label("Genetic Map Load")
+  @Category({CATEGORY, "I/O"})
+  @Description("Loading of the recombination rates around the target")
+  @StackTrace(false)
+  public static class GeneticMapLoad extends Event {
+    @Label("Source")
+    @Description("The text file, or the genetic map store")
+    public String source;
+
+    @Label("Chromosome")
+    public String chromosome;
+
+    @Label("First Position")
+    public int first;
+
+    @Label("Last Position")
+    public int last;
+
+    @Label("Lines Read")
+    @Description("Lines read from the text file (0 for a store)")
+    public int lines;
+
+    @Label("Points Kept")
+    public int points;
+  }
+
+  @Name("fr.inserm.u1078.estiage.ChromosomeLoad")
+  @Label("Chromosome Load")
+  @Category({CATEGORY, "I/O"})
+  @Description("Loading of the variants of the target's chromosome from the VCF file")
+  @StackTrace(false)
+  public static class ChromosomeLoad extends Event {
+    @Label("File")
+    public String file;
+
+    @Label("Chromosome")
+    public String chromosome;
+
+    @Label("Tabixed")
+    public boolean tabix;
+
+    @Label("Variants Scanned")
+    @Description("Lines read from the VCF file (or from tabix)")
+    public int scanned;
+
+    @Label("Variants Kept")
+    public int kept;
+  }
+}
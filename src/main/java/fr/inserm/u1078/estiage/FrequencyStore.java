@@ -0,0 +1,363 @@
+package fr.inserm.u1078.estiage;
+
+import fr.inserm.u1078.tludwig.maok.UniversalReader;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Compact binary store of allele frequencies, built from a gnomAD sites VCF<br/>
+ * Format (big endian)<ul>
+ *   <li>header : magic, version, number of keys, keys (UTF)</li>
+ *   <li>records, sorted by chromosome then position, one per ALT allele : position (int), hash of ALT (int),
+ *   offset of ALT in the allele section (long), one float per key</li>
+ *   <li>allele section : each ALT allele, as length (int) and UTF-8 bytes</li>
+ *   <li>trailer : number of chromosomes, then for each chromosome : name (UTF), offset of the first record (long), number of records (long),
+ *   then offset and length of the allele section (long), size of the longest allele entry (int)</li>
+ *   <li>offset of the trailer (long)</li>
+ * </ul>
+ * The store is memory-mapped and each lookup is a binary search on the positions of the chromosome. The hash of ALT filters the records,
+ * and the allele itself is then compared, so that different alleles with the same hash are never confused
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class FrequencyStore {
+  public static final String EXTENSION = ".estiaf";
+  private static final int MAGIC = 0x45414621; //EAF!
+  private static final int VERSION = 3;
+  private static final int FIXED_SIZE = 16; //pos, altHash, altOffset
+
+  private final String filename;
+  private final String[] keys;
+  private final int recordSize;
+  private final HashMap<String, Section> sections;
+  private final Alleles alleles;
+
+  /**
+   * Opens and memory-maps an existing store
+   * @param filename the name of the store
+   * @throws IOException if the store can't be read
+   * @throws EstiageFormatException if the file is not a valid store
+   */
+  public FrequencyStore(String filename) throws IOException, EstiageFormatException {
+    this.filename = filename;
+    this.sections = new HashMap<>();
+    try(RandomAccessFile raf = new RandomAccessFile(filename, "r");
+         FileChannel channel = raf.getChannel();
+         DataInputStream header = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)))) {
+      if(header.readInt() != MAGIC)
+        throw new EstiageFormatException("File [" + filename + "] is not a frequency store");
+      int version = header.readInt();
+      if(version != VERSION)
+        throw new EstiageFormatException("Unsupported version [" + version + "] for frequency store [" + filename + "], the store must be built again");
+      keys = new String[header.readInt()];
+      for(int k = 0; k < keys.length; k++)
+        keys[k] = header.readUTF();
+      recordSize = FIXED_SIZE + 4 * keys.length;
+
+      raf.seek(raf.length() - 8);
+      raf.seek(raf.readLong());
+      int nbChromosomes = raf.readInt();
+      for(int c = 0; c < nbChromosomes; c++) {
+        String chr = raf.readUTF();
+        long offset = raf.readLong();
+        long count = raf.readLong();
+        sections.put(Utils.normalizeChromosome(chr), new Section(channel, offset, count, recordSize));
+      }
+      long allelesOffset = raf.readLong();
+      long allelesLength = raf.readLong();
+      alleles = new Alleles(channel, allelesOffset, allelesLength, raf.readInt());
+    }
+  }
+
+  /**
+   * Checks if a file name designates a frequency store
+   * @param filename the name of the file
+   * @return true if the file has the store extension
+   */
+  public static boolean isStore(String filename) {
+    return filename.toLowerCase().endsWith(EXTENSION);
+  }
+
+  /**
+   * Gets the keys of the frequencies in this store
+   * @return the keys (AF, AF_nfe, ...)
+   */
+  public String[] getKeys() {
+    return keys;
+  }
+
+  /**
+   * Gets the frequency of an allele, for the first key of the store
+   * @param chr the chromosome
+   * @param position the position
+   * @param allele the ALT allele
+   * @return the allele frequency, 0 if the allele is not in the store
+   */
+  public double getFrequency(String chr, int position, String allele) {
+    return getFrequency(chr, position, allele, 0);
+  }
+
+  /**
+   * Gets the frequency of an allele
+   * @param chr the chromosome
+   * @param position the position
+   * @param allele the ALT allele
+   * @param key the index of the key
+   * @return the allele frequency, 0 if the allele is not in the store
+   */
+  public double getFrequency(String chr, int position, String allele, int key) {
+    Section section = sections.get(Utils.normalizeChromosome(chr));
+    if(section == null)
+      return 0;
+    final int hash = allele.hashCode();
+    for(long i = section.lowerBound(position); i < section.count && section.getPosition(i) == position; i++) {
+      if(section.getInt(i, 4) == hash && alleles.equals(section.getLong(i, 8), allele)) {
+        float af = section.getFloat(i, FIXED_SIZE + 4 * key);
+        //NaN : the key was absent from this record, look at the next one, as when reading the VCF
+        if(!Float.isNaN(af))
+          return Double.parseDouble(Float.toString(af)); //keeps the decimal value read in the VCF (0.1f is not 0.1d)
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Converts a gnomAD sites VCF (or a region of it) into a store
+   * @param vcf the name of the gnomAD VCF file
+   * @param output the name of the store to create
+   * @param keys the INFO keys of the frequencies to keep (AF, AF_nfe, ...)
+   * @param region the region to convert (chr:start-end), or null for the whole file
+   * @throws IOException if the VCF can't be read or the store can't be written
+   * @throws EstiageFormatException if the VCF file is unsorted
+   * @throws InterruptedException if there is a problem with the thread calling tabix
+   */
+  public static void build(String vcf, String output, String[] keys, String region) throws IOException, EstiageFormatException, InterruptedException {
+    Utils.Tabix tabix = null;
+    VCFPipeline.LineSource in;
+    Closeable closeable;
+    if(region == null) {
+      UniversalReader reader = new UniversalReader(vcf);
+      in = reader::readLine;
+      closeable = reader::close;
+    } else {
+      tabix = Utils.startTabix(vcf, region);
+      BufferedReader reader = new BufferedReader(new InputStreamReader(tabix.getInputStream()));
+      in = reader::readLine;
+      closeable = reader;
+    }
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), 1 << 16));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(keys.length);
+    for(String key : keys)
+      out.writeUTF(key);
+    long written = out.size();
+    //the alleles are written in a temporary file, appended after the records
+    final File allelesFile = File.createTempFile("alleles", EXTENSION);
+    allelesFile.deleteOnExit();
+    final DataOutputStream allelesOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(allelesFile), 1 << 16));
+    int longestAllele = 0;
+
+    ArrayList<String> chromosomes = new ArrayList<>();
+    ArrayList<long[]> offsetCounts = new ArrayList<>();
+    String chr = null;
+    long first = written;
+    long count = 0;
+    int prevPos = -1;
+    long read = 0;
+    String line;
+    while((line = in.readLine()) != null) {
+      if(line.startsWith("#"))
+        continue;
+      read++;
+      if(read % 1000000 == 0)
+        Log.info(read + " lines read");
+      String[] f = line.split("\t", 9);
+      int pos = Integer.parseInt(f[1]);
+      if(!f[0].equals(chr)) {
+        if(chr != null) {
+          chromosomes.add(chr);
+          offsetCounts.add(new long[]{first, count});
+        }
+        if(chromosomes.contains(f[0]))
+          throw new EstiageFormatException("Chromosome [" + f[0] + "] is not contiguous in [" + vcf + "]");
+        chr = f[0];
+        first = written;
+        count = 0;
+        prevPos = -1;
+      }
+      if(pos < prevPos)
+        throw new EstiageFormatException("File [" + vcf + "] is unsorted at [" + chr + ":" + pos + "]");
+      prevPos = pos;
+
+      String[][] values = new String[keys.length][];
+      for(int k = 0; k < keys.length; k++) {
+        String value = GnomAD.getInfoValue(f[7], keys[k]);
+        values[k] = value == null ? null : value.split(",", -1);
+      }
+      String[] alts = f[4].split(",");
+      for(int a = 0; a < alts.length; a++) {
+        out.writeInt(pos);
+        out.writeInt(alts[a].hashCode());
+        out.writeLong(allelesOut.size());
+        byte[] bytes = alts[a].getBytes(StandardCharsets.UTF_8);
+        allelesOut.writeInt(bytes.length);
+        allelesOut.write(bytes);
+        longestAllele = Math.max(longestAllele, 4 + bytes.length);
+        for(String[] value : values)
+          out.writeFloat(value == null ? Float.NaN : a < value.length ? (float) GnomAD.parseAF(value[a]) : 0f);
+        written += FIXED_SIZE + 4 * keys.length;
+        count++;
+      }
+    }
+    if(chr != null) {
+      chromosomes.add(chr);
+      offsetCounts.add(new long[]{first, count});
+    }
+    closeable.close();
+    if(tabix != null)
+      Utils.waitFor(tabix);
+
+    allelesOut.close();
+    final long allelesOffset = written;
+    final long allelesLength = allelesFile.length();
+    Files.copy(allelesFile.toPath(), out);
+    Files.delete(allelesFile.toPath());
+    written += allelesLength;
+
+    //trailer
+    out.writeInt(chromosomes.size());
+    for(int c = 0; c < chromosomes.size(); c++) {
+      out.writeUTF(chromosomes.get(c));
+      out.writeLong(offsetCounts.get(c)[0]);
+      out.writeLong(offsetCounts.get(c)[1]);
+      Log.info("Chromosome [" + chromosomes.get(c) + "] : " + offsetCounts.get(c)[1] + " alleles");
+    }
+    out.writeLong(allelesOffset);
+    out.writeLong(allelesLength);
+    out.writeInt(longestAllele);
+    out.writeLong(written);
+    out.close();
+    Log.info("Frequency store [" + output + "] created from [" + vcf + "] : " + read + " records, keys " + String.join(",", keys));
+  }
+
+  @Override
+  public String toString() {
+    return filename;
+  }
+
+  /**
+   * The records of a chromosome.
+   * A chromosome can be larger than what a single MappedByteBuffer can hold, so it is mapped in several buffers
+   */
+  private static class Section {
+    private final ByteBuffer[] buffers;
+    private final long count;
+    private final int perBuffer;
+    private final int recordSize;
+
+    Section(FileChannel channel, long offset, long count, int recordSize) throws IOException {
+      this.count = count;
+      this.recordSize = recordSize;
+      this.perBuffer = Integer.MAX_VALUE / recordSize;
+      int nb = (int) ((count + perBuffer - 1) / perBuffer);
+      buffers = new ByteBuffer[nb];
+      for(int b = 0; b < nb; b++) {
+        long records = Math.min(perBuffer, count - (long) b * perBuffer);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset + (long) b * perBuffer * recordSize, records * recordSize);
+        buffers[b] = buffer;
+      }
+    }
+
+    /**
+     * Gets an int field of a record (absolute read, safe to call concurrently)
+     */
+    int getInt(long record, int field) {
+      return buffers[(int) (record / perBuffer)].getInt((int) (record % perBuffer) * recordSize + field);
+    }
+
+    /**
+     * Gets a long field of a record (absolute read, safe to call concurrently)
+     */
+    long getLong(long record, int field) {
+      return buffers[(int) (record / perBuffer)].getLong((int) (record % perBuffer) * recordSize + field);
+    }
+
+    /**
+     * Gets a float field of a record (absolute read, safe to call concurrently)
+     */
+    float getFloat(long record, int field) {
+      return buffers[(int) (record / perBuffer)].getFloat((int) (record % perBuffer) * recordSize + field);
+    }
+
+    int getPosition(long record) {
+      return getInt(record, 0);
+    }
+
+    /**
+     * Binary search
+     * @param position the position to look for
+     * @return the index of the first record with a position greater or equal to the given position
+     */
+    long lowerBound(int position) {
+      long lo = 0;
+      long hi = count;
+      while(lo < hi) {
+        long mid = (lo + hi) >>> 1;
+        if(getPosition(mid) < position)
+          lo = mid + 1;
+        else
+          hi = mid;
+      }
+      return lo;
+    }
+  }
+
+  /**
+   * The allele section.
+   * It is mapped in chunks of {@link #CHUNK} bytes, each chunk overlapping the next one by the size of the longest entry,
+   * so that every entry can be read from the chunk where it starts
+   */
+  private static class Alleles {
+    private static final long CHUNK = 1L << 30;
+    private final ByteBuffer[] buffers;
+
+    Alleles(FileChannel channel, long offset, long length, int longest) throws IOException {
+      int nb = (int) ((length + CHUNK - 1) / CHUNK);
+      buffers = new ByteBuffer[nb];
+      for(int b = 0; b < nb; b++) {
+        long start = b * CHUNK;
+        buffers[b] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start, Math.min(CHUNK + longest, length - start));
+      }
+    }
+
+    /**
+     * Compares an entry with an allele (absolute reads, safe to call concurrently)
+     * @param entry the offset of the entry in the allele section
+     * @param allele the allele
+     * @return true if the entry is the allele
+     */
+    boolean equals(long entry, String allele) {
+      final ByteBuffer buffer = buffers[(int) (entry / CHUNK)];
+      final int start = (int) (entry % CHUNK);
+      final byte[] bytes = allele.getBytes(StandardCharsets.UTF_8);
+      if(buffer.getInt(start) != bytes.length)
+        return false;
+      for(int i = 0; i < bytes.length; i++)
+        if(buffer.get(start + 4 + i) != bytes[i])
+          return false;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,321 @@
+package fr.inserm.u1078.estiage;
+
+import fr.inserm.u1078.tludwig.maok.UniversalReader;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Indexed binary store of genetic maps (one section per chromosome)<br/>
+ * Format (big endian)<ul>
+ *   <li>header : magic, version, number of chromosomes</li>
+ *   <li>index : for each chromosome, name (UTF), offset of the section (long), number of points (int)</li>
+ *   <li>sections : for each chromosome, the positions (int[]), the rates in cM/Mb (double[]) and the cumulative cM (double[])</li>
+ * </ul>
+ * The cumulative cM are the integral of the linearly interpolated rates, from the first point of the chromosome.<br/>
+ * The store is memory-mapped, and the points are found by binary search
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class GeneticMapStore {
+
+  /**
+   * Format of the source genetic maps<ul>
+   *   <li>HAPMAP : Chromosome Position(bp) Rate(cM/Mb) Map(cM), with a header</li>
+   *   <li>PLINK : chromosome snp cM position(bp), without header</li>
+   *   <li>DECODE : Chr Begin End cMperMb cM, with a header</li>
+   * </ul>
+   */
+  public enum Format {HAPMAP, PLINK, DECODE}
+
+  public static final String EXTENSION = ".estimap";
+  private static final int MAGIC = 0x45474d21; //EGM!
+  private static final int VERSION = 1;
+
+  private final String filename;
+  private final LinkedHashMap<String, Chromosome> chromosomes;
+
+  /**
+   * Opens and memory-maps an existing store
+   * @param filename the name of the store
+   * @throws IOException if the store can't be read
+   * @throws EstiageFormatException if the file is not a valid store
+   */
+  public GeneticMapStore(String filename) throws IOException, EstiageFormatException {
+    this.filename = filename;
+    this.chromosomes = new LinkedHashMap<>();
+    try(RandomAccessFile raf = new RandomAccessFile(filename, "r"); FileChannel channel = raf.getChannel()) {
+      if(raf.readInt() != MAGIC)
+        throw new EstiageFormatException("File [" + filename + "] is not a genetic map store");
+      int version = raf.readInt();
+      if(version != VERSION)
+        throw new EstiageFormatException("Unsupported version [" + version + "] for genetic map store [" + filename + "]");
+      int nb = raf.readInt();
+      for(int c = 0; c < nb; c++) {
+        String chr = raf.readUTF();
+        long offset = raf.readLong();
+        int size = raf.readInt();
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, 20L * size);
+        chromosomes.put(Utils.normalizeChromosome(chr), new Chromosome(chr, buffer, size));
+      }
+    }
+  }
+
+  /**
+   * Checks if a file name designates a genetic map store
+   * @param filename the name of the file
+   * @return true if the file has the store extension
+   */
+  public static boolean isStore(String filename) {
+    return filename.toLowerCase().endsWith(EXTENSION);
+  }
+
+  /**
+   * Gets the map of a chromosome
+   * @param chr the name of the chromosome, can be null if the store contains a single chromosome
+   * @return the map of the chromosome
+   * @throws EstiageFormatException if the chromosome is not in the store
+   */
+  public Chromosome getChromosome(String chr) throws EstiageFormatException {
+    if(chr == null) {
+      if(chromosomes.size() == 1)
+        return chromosomes.values().iterator().next();
+      throw new EstiageFormatException("Genetic map store [" + filename + "] contains " + chromosomes.size() + " chromosomes, the chromosome must be specified");
+    }
+    Chromosome map = chromosomes.get(Utils.normalizeChromosome(chr));
+    if(map == null)
+      throw new EstiageFormatException("Chromosome [" + chr + "] not found in genetic map store [" + filename + "]");
+    return map;
+  }
+
+  /**
+   * Converts a genetic map into a store
+   * @param input the name of the genetic map file
+   * @param output the name of the store to create
+   * @param format the format of the genetic map
+   * @throws IOException if the map can't be read or the store can't be written
+   * @throws EstiageFormatException if the map can't be parsed or is unsorted
+   */
+  public static void build(String input, String output, Format format) throws IOException, EstiageFormatException {
+    LinkedHashMap<String, ArrayList<double[]>> points = parse(input, format);
+
+    //index
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), 1 << 16));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(points.size());
+    long offset = 12;
+    for(String chr : points.keySet())
+      offset += 2 + chr.getBytes("UTF-8").length + 8 + 4;
+    for(String chr : points.keySet()) {
+      out.writeUTF(chr);
+      out.writeLong(offset);
+      out.writeInt(points.get(chr).size());
+      offset += 20L * points.get(chr).size();
+    }
+
+    //sections
+    for(String chr : points.keySet()) {
+      ArrayList<double[]> list = points.get(chr);
+      for(double[] p : list)
+        out.writeInt((int) p[0]);
+      for(double[] p : list)
+        out.writeDouble(p[1]);
+      for(double[] p : list)
+        out.writeDouble(p[2]);
+      Log.info("Chromosome [" + chr + "] : " + list.size() + " points");
+    }
+    out.close();
+    Log.info("Genetic map store [" + output + "] created from [" + input + "] (" + format + ")");
+  }
+
+  /**
+   * Loads a genetic map in memory, with the same layout as a store (so it can be kept and queried as a store)
+   * @param input the name of the genetic map file
+   * @param format the format of the genetic map
+   * @return the in-memory store
+   * @throws IOException if the map can't be read
+   * @throws EstiageFormatException if the map can't be parsed or is unsorted
+   */
+  public static GeneticMapStore load(String input, Format format) throws IOException, EstiageFormatException {
+    LinkedHashMap<String, ArrayList<double[]>> points = parse(input, format);
+    LinkedHashMap<String, Chromosome> chromosomes = new LinkedHashMap<>();
+    for(String chr : points.keySet()) {
+      ArrayList<double[]> list = points.get(chr);
+      final int n = list.size();
+      ByteBuffer buffer = ByteBuffer.allocate(20 * n);
+      for(int i = 0; i < n; i++) {
+        double[] p = list.get(i);
+        buffer.putInt(4 * i, (int) p[0]);
+        buffer.putDouble(4 * n + 8 * i, p[1]);
+        buffer.putDouble(12 * n + 8 * i, p[2]);
+      }
+      chromosomes.put(Utils.normalizeChromosome(chr), new Chromosome(chr, buffer, n));
+    }
+    Log.info("Genetic map [" + input + "] loaded in memory (" + chromosomes.size() + " chromosomes)");
+    return new GeneticMapStore(input, chromosomes);
+  }
+
+  private GeneticMapStore(String filename, LinkedHashMap<String, Chromosome> chromosomes) {
+    this.filename = filename;
+    this.chromosomes = chromosomes;
+  }
+
+  /**
+   * Parses a genetic map, and computes the missing rates (PLINK) and the cumulative cM
+   * @param input the name of the genetic map file
+   * @param format the format of the genetic map
+   * @return for each chromosome, the sorted points {pos, rate, cM}
+   * @throws IOException if the map can't be read
+   * @throws EstiageFormatException if the map can't be parsed or is unsorted
+   */
+  private static LinkedHashMap<String, ArrayList<double[]>> parse(String input, Format format) throws IOException, EstiageFormatException {
+    LinkedHashMap<String, ArrayList<double[]>> points = new LinkedHashMap<>(); //chr -> {pos, rate, cM}
+    UniversalReader in = new UniversalReader(input);
+    String line;
+    int nb = 0;
+    if(format != Format.PLINK)
+      in.readLine(); //skip header
+    while((line = in.readLine()) != null) {
+      nb++;
+      line = line.trim();
+      if(line.isEmpty() || line.startsWith("#"))
+        continue;
+      String[] f = line.split("\\s+");
+      try {
+        String chr = f[0];
+        double[] point;
+        switch(format) {
+          case PLINK:
+            point = new double[]{Integer.parseInt(f[3]), Double.NaN, Double.parseDouble(f[2])};
+            break;
+          case DECODE:
+            point = new double[]{Integer.parseInt(f[1]), Double.parseDouble(f[3]), Double.parseDouble(f[4])};
+            break;
+          default:
+            point = new double[]{Integer.parseInt(f[1]), Double.parseDouble(f[2]), Double.NaN};
+        }
+        ArrayList<double[]> list = points.get(chr);
+        if(list == null) {
+          list = new ArrayList<>();
+          points.put(chr, list);
+        }
+        if(!list.isEmpty() && list.get(list.size() - 1)[0] > point[0])
+          throw new EstiageFormatException("Genetic map [" + input + "] is unsorted on line [" + nb + "]");
+        list.add(point);
+      } catch(ArrayIndexOutOfBoundsException | NumberFormatException e) {
+        throw new EstiageFormatException("Unable to parse genetic map [" + input + "] on line [" + nb + "]", e);
+      }
+    }
+    in.close();
+
+    for(ArrayList<double[]> list : points.values()) {
+      final int n = list.size();
+      if(format == Format.PLINK) //rates from the cM : rate of a point is the rate to the next point
+        for(int i = 0; i < n; i++) {
+          double[] p = list.get(i);
+          if(i < n - 1) {
+            double[] next = list.get(i + 1);
+            double mb = (next[0] - p[0]) / 1000000D;
+            p[1] = mb > 0 ? (next[2] - p[2]) / mb : 0;
+          } else
+            p[1] = n > 1 ? list.get(i - 1)[1] : 0;
+        }
+      //cumulative cM, integral of the interpolated rates
+      double cumulative = 0;
+      for(int i = 0; i < n; i++) {
+        if(i > 0) {
+          double[] prev = list.get(i - 1);
+          double[] p = list.get(i);
+          cumulative += MathLib.getCentiMorgan(0.5 * (prev[1] + p[1]), (p[0] - prev[0]) / 1000000D);
+        }
+        list.get(i)[2] = cumulative;
+      }
+    }
+    return points;
+  }
+
+  @Override
+  public String toString() {
+    return filename;
+  }
+
+  /**
+   * The genetic map for a chromosome
+   */
+  public static class Chromosome {
+    private final String name;
+    private final IntBuffer positions;
+    private final DoubleBuffer rates;
+    private final DoubleBuffer centiMorgans;
+    private final int size;
+
+    Chromosome(String name, ByteBuffer buffer, int size) {
+      this.name = name;
+      this.size = size;
+      buffer.position(0);
+      this.positions = buffer.slice().asIntBuffer();
+      buffer.position(4 * size);
+      this.rates = buffer.slice().asDoubleBuffer();
+      buffer.position(12 * size);
+      this.centiMorgans = buffer.slice().asDoubleBuffer();
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return the number of points on this chromosome
+     */
+    public int size() {
+      return size;
+    }
+
+    public int getPosition(int i) {
+      return positions.get(i);
+    }
+
+    /**
+     * @param i the index of the point
+     * @return the rate (cM/Mb) at the ith point
+     */
+    public double getRate(int i) {
+      return rates.get(i);
+    }
+
+    /**
+     * @param i the index of the point
+     * @return the cumulative cM at the ith point
+     */
+    public double getCentiMorgan(int i) {
+      return centiMorgans.get(i);
+    }
+
+    /**
+     * Binary search
+     * @param position the position to look for
+     * @return the index of the first point with a position strictly greater than the given position (size if there is none)
+     */
+    public int upperBound(int position) {
+      int lo = 0;
+      int hi = size;
+      while(lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if(positions.get(mid) <= position)
+          lo = mid + 1;
+        else
+          hi = mid;
+      }
+      return lo;
+    }
+  }
+}
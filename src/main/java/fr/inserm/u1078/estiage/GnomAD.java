@@ -5,6 +5,12 @@ import fr.inserm.u1078.tludwig.maok.tools.Message;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Class used to request GnomAD frequencies
@@ -18,6 +24,19 @@ public class GnomAD {
   private final String filename;
   private final String tabixFilename;
   private final boolean hasChr;
+  /**
+   * memory-mapped frequencies, null if the frequencies are read from the VCF file with tabix
+   */
+  private final FrequencyStore store;
+
+  /**
+   * Key of the allele frequency in the INFO field
+   */
+  public static final String AF = "AF";
+  /**
+   * Maximum distance (in bp) between two positions queried in the same tabix window
+   */
+  public static final int WINDOW_GAP = 1000;
 
   //The name of the chromosomes without/with chr. Can't use numbers because of tabix
   public static final String[][] CHROMOSOMES = {
@@ -50,13 +69,20 @@ public class GnomAD {
 
   /**
    * Creates a new GnomAD object and checks if the provided file is valid
-   * @param filename the name of the GnomAD file
+   * @param filename the name of the GnomAD file (tabixed VCF or frequency store)
    * @throws IOException
+   * @throws EstiageFormatException if the frequency store is invalid
    */
-  public GnomAD(String filename) throws IOException {
+  public GnomAD(String filename) throws IOException, EstiageFormatException {
     this.filename = filename;
     this.tabixFilename = filename + ".tbi";
-    this.hasChr = this.check();
+    if(FrequencyStore.isStore(filename)) {
+      this.store = new FrequencyStore(filename);
+      this.hasChr = false;
+    } else {
+      this.store = null;
+      this.hasChr = this.check();
+    }
   }
 
   /**
@@ -107,42 +133,312 @@ public class GnomAD {
    * @throws EstiageFormatException
    */
   public double getFrequency(String chr, int position, String allele) throws IOException, EstiageFormatException {
+    if(store != null)
+      return store.getFrequency(chr, position, allele);
     try {
-      String tabixChr = findChromosomes(chr);
-      for (String line : Utils.getLinesFromTabixedVCF(this.filename, tabixChr, position)) {
-        String[] f = line.split("\t", -1);
-        //If position was found //TODO what of ACT->ACG in N-2 ?
-        if (position == Integer.parseInt(f[1])) {
-          //Search for the correct alt
-          int idx = -1;
-          String[] alleles = f[4].split(",");
-          for (int i = 0; i < alleles.length; i++)
-            if (alleles[i].equals(allele)) {
-              idx = i;
-              break;
-            }
+      Lookup lookup = lookup(findChromosomes(chr), position, allele);
+      if(!lookup.errors.isEmpty())
+        Message.error(lookup.errors);
+      return lookup.frequency;
+    }
+    catch(InterruptedException e){
+      Message.error("InterrupedException ["+e.getMessage()+"] while looking for frequency for ["+chr+":"+position+":"+allele+"]");
+    }
+    return 0;
+  }
 
-          //if alt was found, get its AF
-          if (idx > -1) {
-            String[] info = f[7].split(";", -1);
-            for (String inf : info) {
-              if (inf.startsWith("AF=")) {
-                String[] afs = inf.substring(3).split(",", -1);
-                try {
-                  return Double.parseDouble(afs[idx]);
-                } catch (NumberFormatException e) {
-                  return 0;
-                }
-              }
+  /**
+   * Get the allele frequencies of several variants from the GnomAD file, with one tabix call per variant.<br/>
+   * At most concurrency calls are running at the same time. The frequencies are assigned in the order of the variants,
+   * and the error stream of each call is reported separately, after all the calls have ended
+   * @param chr the chromosome
+   * @param positions the positions
+   * @param alleles the alleles
+   * @param concurrency the maximum number of simultaneous tabix calls
+   * @return the allele frequencies, in the same order as the positions (0 if not found)
+   * @throws IOException
+   * @throws EstiageFormatException
+   */
+  public double[] getFrequencies(String chr, int[] positions, String[] alleles, int concurrency) throws IOException, EstiageFormatException {
+    final int n = positions.length;
+    double[] frequencies = new double[n];
+    if(n == 0)
+      return frequencies;
+    if(store != null)
+      return getFrequencies(chr, positions, alleles);
+    final String tabixChr = findChromosomes(chr);
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(concurrency, n)));
+    try {
+      ArrayList<Future<Lookup>> lookups = new ArrayList<>(n);
+      for(int i = 0; i < n; i++) {
+        final int position = positions[i];
+        final String allele = alleles[i];
+        lookups.add(executor.submit(() -> lookup(tabixChr, position, allele)));
+      }
+      for(int i = 0; i < n; i++) {
+        Lookup lookup = lookups.get(i).get();
+        frequencies[i] = lookup.frequency;
+        if(!lookup.errors.isEmpty())
+          Message.error("tabix errors for ["+chr+":"+positions[i]+":"+alleles[i]+"] "+lookup.errors);
+      }
+    } catch(InterruptedException e) {
+      Message.error("InterrupedException ["+e.getMessage()+"] while looking for frequencies on ["+chr+"]");
+    } catch(ExecutionException e) {
+      Throwable cause = e.getCause();
+      if(cause instanceof IOException)
+        throw (IOException) cause;
+      if(cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      throw new IOException(cause);
+    } finally {
+      executor.shutdownNow();
+    }
+    Log.info("Looked up "+n+" variants with up to "+concurrency+" concurrent tabix calls");
+    return frequencies;
+  }
+
+  /**
+   * Gets the number of concurrent tabix calls to use when annotating, 0 to use a single batch query.
+   * It can be customized with call to java -DtabixConcurrency=N
+   * @return the number of concurrent tabix calls
+   */
+  public static int getConcurrency() {
+    String concurrency = System.getProperty("tabixConcurrency");
+    if(concurrency != null && !concurrency.isEmpty()) {
+      try {
+        return Math.max(0, Integer.parseInt(concurrency));
+      } catch(NumberFormatException e) {
+        Log.warning("Could not parse tabix concurrency ["+concurrency+"]");
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Looks for the frequency of a single variant with tabix
+   * @param tabixChr the chromosome name as known in the tabix file
+   * @param position the position
+   * @param allele the allele
+   * @return the frequency (0 if not found) and the error stream of tabix
+   * @throws IOException if tabix can't be run
+   * @throws InterruptedException if the current thread is interrupted while waiting for tabix
+   */
+  private Lookup lookup(String tabixChr, int position, String allele) throws IOException, InterruptedException {
+    Events.TabixQuery event = new Events.TabixQuery();
+    event.begin();
+    final String region = tabixChr+":"+position+"-"+position;
+    Utils.Tabix tabix = Utils.startTabix(this.filename, region);
+    BufferedReader in = new BufferedReader(new InputStreamReader(tabix.getInputStream()));
+    String line;
+    double frequency = 0;
+    boolean found = false;
+    int records = 0;
+    long chars = 0;
+    while((line = in.readLine()) != null) { //read everything, to let tabix end
+      records++;
+      chars += line.length() + 1;
+      if(found)
+        continue;
+      String[] f = line.split("\t", -1);
+      //If position was found //TODO what of ACT->ACG in N-2 ?
+      if (position == Integer.parseInt(f[1])) {
+        String af = getAF(f[4], f[7], allele);
+        if (af != null) {
+          frequency = parseAF(af);
+          found = true;
+        }
+      }
+    }
+    in.close();
+    Utils.commit(event, this.filename, region, records);
+    Report.read(this.filename, records, chars);
+    return new Lookup(frequency, Utils.readErrors(tabix));
+  }
+
+  /**
+   * Result of a single variant lookup
+   */
+  private static class Lookup {
+    private final double frequency;
+    private final String errors;
+
+    Lookup(double frequency, String errors) {
+      this.frequency = frequency;
+      this.errors = errors;
+    }
+  }
+
+  /**
+   * Get the allele frequencies of all the given markers (for their ancestral allele), with a single tabix call,
+   * or with concurrent tabix calls if {@link #getConcurrency()} is positive
+   * @param markers the markers, all on the same chromosome
+   * @return the allele frequencies, in the same order as the markers
+   * @throws IOException
+   * @throws EstiageFormatException
+   */
+  public double[] getFrequencies(Marker[] markers) throws IOException, EstiageFormatException {
+    int[] positions = new int[markers.length];
+    String[] alleles = new String[markers.length];
+    for(int i = 0; i < markers.length; i++) {
+      positions[i] = markers[i].getPosition();
+      alleles[i] = markers[i].getAncestral();
+    }
+    if(markers.length == 0)
+      return new double[0];
+    int concurrency = getConcurrency();
+    if(concurrency > 0)
+      return getFrequencies(markers[0].getChromosome(), positions, alleles, concurrency);
+    return getFrequencies(markers[0].getChromosome(), positions, alleles);
+  }
+
+  /**
+   * Get the allele frequencies of several variants from the GnomAD file.<br/>
+   * The positions are sorted and merged into a few windows, all queried by a single tabix process.
+   * The records are then matched to the variants in a single merge-join pass
+   * @param chr the chromosome
+   * @param positions the positions (not necessarily sorted)
+   * @param alleles the alleles
+   * @return the allele frequencies, in the same order as the positions (0 if not found)
+   * @throws IOException
+   * @throws EstiageFormatException
+   */
+  public double[] getFrequencies(String chr, int[] positions, String[] alleles) throws IOException, EstiageFormatException {
+    final int n = positions.length;
+    double[] frequencies = new double[n];
+    if(n == 0)
+      return frequencies;
+    if(store != null) {
+      for(int i = 0; i < n; i++)
+        frequencies[i] = store.getFrequency(chr, positions[i], alleles[i]);
+      return frequencies;
+    }
+    String tabixChr = findChromosomes(chr);
+
+    //sort the variants by position
+    Integer[] order = new Integer[n];
+    for(int i = 0; i < n; i++)
+      order[i] = i;
+    Arrays.sort(order, Comparator.comparingInt(i -> positions[i]));
+
+    //merge close positions into windows
+    ArrayList<String> windows = new ArrayList<>();
+    int start = positions[order[0]];
+    int end = start;
+    for(int i = 1; i < n; i++) {
+      int pos = positions[order[i]];
+      if(pos - end > WINDOW_GAP) {
+        windows.add(tabixChr + ":" + start + "-" + end);
+        start = pos;
+      }
+      end = pos;
+    }
+    windows.add(tabixChr + ":" + start + "-" + end);
+
+    //merge-join the sorted records with the sorted variants
+    boolean[] found = new boolean[n];
+    int records = 0;
+    long chars = 0;
+    try {
+      Events.TabixQuery event = new Events.TabixQuery();
+      event.begin();
+      Utils.Tabix tabix = Utils.startTabix(this.filename, windows.toArray(new String[0]));
+      BufferedReader in = new BufferedReader(new InputStreamReader(tabix.getInputStream()));
+      String line;
+      int current = 0;
+      while((line = in.readLine()) != null) {
+        records++;
+        chars += line.length() + 1;
+        int t1 = line.indexOf('\t');
+        int t2 = line.indexOf('\t', t1 + 1);
+        int pos = Integer.parseInt(line.substring(t1 + 1, t2));
+        //records starting before the window (overlapping deletions) have already been seen or are not needed
+        while(current < n && positions[order[current]] < pos)
+          current++;
+        if(current == n) //no need to read further, but consume the output to let tabix end
+          continue;
+        if(positions[order[current]] != pos)
+          continue;
+        String[] f = line.split("\t", 9);
+        for(int i = current; i < n && positions[order[i]] == pos; i++) {
+          int idx = order[i];
+          if(!found[idx]) {
+            String af = getAF(f[4], f[7], alleles[idx]);
+            if(af != null) {
+              found[idx] = true;
+              frequencies[idx] = parseAF(af);
             }
           }
         }
       }
+      in.close();
+      Utils.commit(event, this.filename, windows.size() == 1 ? windows.get(0) : windows.size()+" windows on "+tabixChr, records);
+      Report.read(this.filename, records, chars);
+      Utils.waitFor(tabix);
+    } catch(InterruptedException e) {
+      Message.error("InterrupedException ["+e.getMessage()+"] while looking for frequencies on ["+chr+"]");
     }
-    catch(InterruptedException e){
-      Message.error("InterrupedException ["+e.getMessage()+"] while looking for frequency for ["+chr+":"+position+":"+allele+"]");
+    Log.info("Found "+records+" records in "+windows.size()+" windows for "+n+" variants");
+    return frequencies;
+  }
+
+  /**
+   * Gets the AF value of the given allele, from the ALT and INFO fields of a VCF record
+   * @param alts the ALT field
+   * @param info the INFO field
+   * @param allele the allele to look for
+   * @return the AF value as a String, or null if the allele or the AF annotation was not found
+   */
+  private static String getAF(String alts, String info, String allele) {
+    //Search for the correct alt
+    int idx = -1;
+    String[] alleles = alts.split(",");
+    for (int i = 0; i < alleles.length; i++)
+      if (alleles[i].equals(allele)) {
+        idx = i;
+        break;
+      }
+    if (idx < 0)
+      return null;
+
+    //if alt was found, get its AF
+    String value = getInfoValue(info, AF);
+    if(value == null)
+      return null;
+    String[] afs = value.split(",", -1);
+    return idx < afs.length ? afs[idx] : "";
+  }
+
+  /**
+   * Gets the value of an annotation from an INFO field, without splitting the whole field
+   * @param info the INFO field
+   * @param key the annotation key
+   * @return the raw value (for all alleles), or null if the key is absent
+   */
+  static String getInfoValue(String info, String key) {
+    int start;
+    if(info.startsWith(key + "="))
+      start = key.length() + 1;
+    else {
+      start = info.indexOf(";" + key + "=");
+      if(start < 0)
+        return null;
+      start += key.length() + 2;
+    }
+    int end = info.indexOf(';', start);
+    return end < 0 ? info.substring(start) : info.substring(start, end);
+  }
+
+  /**
+   * Parses an AF value
+   * @param af the AF value
+   * @return the frequency, 0 if the value can't be parsed
+   */
+  static double parseAF(String af) {
+    try {
+      return Double.parseDouble(af);
+    } catch (NumberFormatException e) {
+      return 0;
     }
-    return 0;
   }
 
   /**
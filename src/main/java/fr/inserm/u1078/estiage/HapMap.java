@@ -7,7 +7,9 @@ import java.io.IOException;
 import java.util.*;
 
 /**
- * Class used to request mutation rates from HapMap
+ * Class used to request mutation rates from HapMap<br/>
+ * The loaded points are kept in immutable sorted arrays, with the prefix sums of the integral of the (linearly interpolated) rates,
+ * so the mean rate between any two positions costs two binary searches
  *
  * @author Thomas E. Ludwig (INSERM - U1078)
  * Started on             2022-01-11
@@ -15,7 +17,12 @@ import java.util.*;
  * Unit Test defined on   XXXX-XX-XX
  */
 public class HapMap {
-  private final TreeMap<Integer, Double> mutationRates;
+  private final int[] positions;
+  private final double[] rates;
+  /**
+   * cumulative[i] is the integral of the rates from positions[0] to positions[i] (in rate x bp)
+   */
+  private final double[] cumulative;
 
   /**
    * Creates an HapMap object and loads the data
@@ -25,23 +32,137 @@ public class HapMap {
    * @throws IOException
    */
   public HapMap(String filename, int first, int last) throws IOException {
-    this.mutationRates = HapMap.load(filename, first, last);
+    this(filename, null, first, last);
+  }
+
+  /**
+   * Creates an HapMap object and loads the data
+   * @param filename the name of the HapMap file, or of a genetic map store (.estimap)
+   * @param chr the chromosome to consider, null if the file contains a single chromosome
+   * @param first the first position to consider
+   * @param last the last position to consider
+   * @throws IOException
+   */
+  public HapMap(String filename, String chr, int first, int last) throws IOException {
+    this(GeneticMapStore.isStore(filename) ? HapMap.loadStore(filename, chr, first, last) : HapMap.load(filename, chr, first, last));
+  }
+
+  /**
+   * Creates an HapMap object from a genetic map store that is already opened
+   * @param store the genetic map store (memory-mapped or loaded in memory)
+   * @param chr the chromosome to consider, null if the store contains a single chromosome
+   * @param first the first position to consider
+   * @param last the last position to consider
+   * @throws IOException if the chromosome is not in the store
+   */
+  public HapMap(GeneticMapStore store, String chr, int first, int last) throws IOException {
+    this(HapMap.loadStore(store, chr, first, last));
+  }
+
+  /**
+   * Creates an HapMap object from the loaded points
+   * @param mutationRates the loaded TreeMap of mutation rates
+   */
+  private HapMap(TreeMap<Integer, Double> mutationRates) {
     if(mutationRates == null){
       Message.error("Mutation Rates is null after load");
+      mutationRates = new TreeMap<>();
+    }
+    final int n = mutationRates.size();
+    this.positions = new int[n];
+    this.rates = new double[n];
+    this.cumulative = new double[n];
+    int i = 0;
+    for(Map.Entry<Integer, Double> entry : mutationRates.entrySet()) {
+      positions[i] = entry.getKey();
+      rates[i] = entry.getValue();
+      if(i > 0)
+        cumulative[i] = cumulative[i-1] + (positions[i] - positions[i-1]) * 0.5 * (rates[i] + rates[i-1]);
+      i++;
+    }
+  }
+
+  /**
+   * Load the HapMap mutation rates from a genetic map store
+   * Only the window needed for [first;last] is read : the point before first, through the first point after last
+   * @param filename the name of the store
+   * @param chr the chromosome, null if the store contains a single chromosome
+   * @param first the position of the first marker
+   * @param last the position of the last marker
+   * @return the loaded TreeMap of mutation rates
+   * @throws IOException if the store can't be read
+   */
+  private static TreeMap<Integer, Double> loadStore(String filename, String chr, int first, int last) throws IOException {
+    try {
+      return loadStore(new GeneticMapStore(filename), chr, first, last);
+    } catch(EstiageFormatException e) {
+      throw new IOException(e.getMessage(), e);
     }
   }
 
+  /**
+   * Load the HapMap mutation rates from an opened genetic map store
+   * Only the window needed for [first;last] is read : the point before first, through the first point after last
+   * @param store the genetic map store
+   * @param chr the chromosome, null if the store contains a single chromosome
+   * @param first the position of the first marker
+   * @param last the position of the last marker
+   * @return the loaded TreeMap of mutation rates
+   * @throws IOException if the chromosome is not in the store
+   */
+  private static TreeMap<Integer, Double> loadStore(GeneticMapStore store, String chr, int first, int last) throws IOException {
+    Log.info("Looking in store ["+store+"] for chromosome ["+chr+"] between "+first+"-"+last);
+    Events.GeneticMapLoad event = new Events.GeneticMapLoad();
+    event.begin();
+    TreeMap<Integer, Double> mutationRates = new TreeMap<>();
+    GeneticMapStore.Chromosome map;
+    try {
+      map = store.getChromosome(chr);
+    } catch(EstiageFormatException e) {
+      throw new IOException(e.getMessage(), e);
+    }
+    final int size = map.size();
+    final int start = map.upperBound(first); //first point after first
+    if(start < size) {
+      //same window as the text loader : the point before first, then up to the first point after last (or the last point but one)
+      int end = map.upperBound(last);
+      if(end == size)
+        end = size - 1;
+      //the text loader keeps its initial (prevPos, prevRate) = (-1, -1) when the first point is already after first :
+      //the same point is kept here, so that both loaders give the same rates
+      if(start == 0)
+        mutationRates.put(-1, -1D);
+      for(int i = Math.max(0, start - 1); i <= end; i++)
+        if(i < size - 1 || map.getPosition(i) > last)
+          mutationRates.put(map.getPosition(i), map.getRate(i));
+    }
+    commit(event, store.toString(), chr, first, last, 0, mutationRates.size());
+
+    if(mutationRates.isEmpty())
+      Message.error("Empty rate list");
+    else {
+      int lowest = mutationRates.firstKey();
+      int highest = mutationRates.lastKey();
+      Log.info("First : ["+lowest+" / "+mutationRates.get(lowest)+"]");
+      Log.info("Last : ["+highest+" / "+mutationRates.get(highest)+"]");
+    }
+    return mutationRates;
+  }
+
   /**
    * Load the HapMap mutation rates
-   * The chromosome is not needed, as the files are expected to be split by chr
+   * When the chromosome is null, the file is expected to be split by chr
    * @param filename the name of the the hapmap file
+   * @param chr the chromosome, lines for other chromosomes are skipped (null to keep every line)
    * @param first the position of the first marker
    * @param last the position of the last marker
    * @return the loaded TreeMap of mutation rates
    * @throws IOException if the file can't be read
    */
-  private static TreeMap<Integer, Double> load(String filename, int first, int last) throws IOException {
-    Message.info("Looking in ["+filename+"] from "+filename+" between "+first+"-"+last);
+  private static TreeMap<Integer, Double> load(String filename, String chr, int first, int last) throws IOException {
+    Log.info("Looking in ["+filename+"] from "+filename+" between "+first+"-"+last);
+    Events.GeneticMapLoad event = new Events.GeneticMapLoad();
+    event.begin();
     UniversalReader in = new UniversalReader(filename);
     TreeMap<Integer, Double> mutationRates = new TreeMap<>();
     String line = in.readLine(); // skip header
@@ -66,29 +187,34 @@ public class HapMap {
     int prevPos = -1;
     double prevRate = -1D;
     int read = 0;
+    long chars = 0;
     long start = new Date().getTime();
     boolean hasF = false;
+    final String normalized = chr == null ? null : Utils.normalizeChromosome(chr);
     while((line = in.readLine()) != null) {
       read++;
+      chars += line.length() + 1;
       if(read%100000 == 0){
         double dur = (new Date().getTime() - start)/1000D;
         int speed = (int)(read/dur);
-        Message.info("Read : "+read+" lines in "+((int)dur)+" s. "+speed+" l/s");
+        Log.info("Read : "+read+" lines in "+((int)dur)+" s. "+speed+" l/s");
       }
       String[] f = line.split("\t", -1);
+      if(normalized != null && !normalized.equals(Utils.normalizeChromosome(f[0])))
+        continue;
       try {
         int pos = Integer.parseInt(f[1]);
         double rate = Double.parseDouble(f[2]);
         if (pos > first) { //everytime after first
           if(!hasF) {
-            Message.info("Start because " + pos + " > " + first);
+            Log.info("Start because " + pos + " > " + first);
             hasF = true;
           }
           mutationRates.put(prevPos, prevRate); //put previous
         }
         if (pos > last) { //on last value, override buffer
           mutationRates.put(pos, rate); //add last and quit
-          Message.info("Stop because "+pos+" > "+last);
+          Log.info("Stop because "+pos+" > "+last);
           break;
         }
         //update previous
@@ -100,74 +226,86 @@ public class HapMap {
     }
 
     //Loading done
+    commit(event, filename, chr, first, last, read, mutationRates.size());
+    Report.read(filename, read, chars);
     if(mutationRates.isEmpty())
       Message.error("Empty rate list");
     int lowest = mutationRates.firstKey();
     int highest = mutationRates.lastKey();
-    Message.info("First : ["+lowest+" / "+mutationRates.get(lowest)+"]");
-    Message.info("Last : ["+highest+" / "+mutationRates.get(highest)+"]");
+    Log.info("First : ["+lowest+" / "+mutationRates.get(lowest)+"]");
+    Log.info("Last : ["+highest+" / "+mutationRates.get(highest)+"]");
 
     return mutationRates;
   }
 
   /**
-   * Add a position for an existing marker. If the position already exist, nothing to do. Otherwise, compute the rate at the position
-   * @param pos
-   * @throws EstiageFormatException
+   * Commits the JFR event of the loading of the rates, if a recording is running
+   * @param event the event, started at the beginning of the loading
+   * @param source the text file or the store
+   * @param chr the chromosome
+   * @param first the position of the first marker
+   * @param last the position of the last marker
+   * @param lines the number of lines read
+   * @param points the number of points kept
    */
-  private void addMarker(int pos) throws EstiageFormatException {
-    if(mutationRates.isEmpty())
-      throw new EstiageFormatException("Hapmap data are empty");
-    if(mutationRates.keySet().contains(pos))//Value added
-      return;
-
-    int first = mutationRates.firstKey();
-    int last = mutationRates.lastKey();
-
-    if(pos < first) {
-      double v = mutationRates.get(first);
-      mutationRates.put(pos, v);
-      return ;
-    }
-
-    if(last < pos) {
-      double v = mutationRates.get(last);
-      mutationRates.put(pos, v);
-      return;
+  private static void commit(Events.GeneticMapLoad event, String source, String chr, int first, int last, int lines, int points) {
+    if(event.shouldCommit()) {
+      event.source = source;
+      event.chromosome = chr;
+      event.first = first;
+      event.last = last;
+      event.lines = lines;
+      event.points = points;
+      event.commit();
     }
+  }
 
-    Iterator<Integer> keys = mutationRates.navigableKeySet().iterator();
-
-    int left = keys.next();
-    while(keys.hasNext()){
-      int right = keys.next();
-      if(left < pos && pos < right) {
-        double leftValue = mutationRates.get(left);
-        double rightValue = mutationRates.get(right);
-        int interval = right - left; //can't be 0 since left < pos && pos < right, so left != right
-        double gradiant = (rightValue - leftValue) / interval;
-        double value = leftValue + gradiant * (pos - left);
-        mutationRates.put(pos, value);
-        return;
-      }
-      left = right;
+  /**
+   * Binary search
+   * @param pos the position to look for
+   * @return the index of the last point at or before pos (-1 if pos is before the first point)
+   */
+  private int floor(int pos) {
+    int lo = 0;
+    int hi = positions.length;
+    while(lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if(positions[mid] <= pos)
+        lo = mid + 1;
+      else
+        hi = mid;
     }
+    return lo - 1;
+  }
 
-    throw new EstiageFormatException("Could not add position ["+pos+"] in hapmap data ["+first+";"+last+"]");
+  /**
+   * Gets the rate at a position, interpolated between the surrounding points (the first/last rates are used outside the map).
+   * As in the original loader, the map may start with the point (-1, -1) when the first marker is before the first line of the file
+   * @param pos the position
+   * @param i the index of the last point at or before pos
+   * @return the rate at the position
+   */
+  private double rateAt(int pos, int i) {
+    if(i < 0)
+      return rates[0];
+    if(i == positions.length - 1 || positions[i] == pos)
+      return rates[i];
+    int left = positions[i];
+    int right = positions[i+1];
+    double gradiant = (rates[i+1] - rates[i]) / (right - left);
+    return rates[i] + gradiant * (pos - left);
   }
 
   /**
-   * Gets the list of available positions in [p1;p2]
-   * @param p1 the first position
-   * @param p2 the second position
-   * @return
+   * Gets the integral of the rates from the first point to a position (negative before the first point)
+   * @param pos the position
+   * @param i the index of the last point at or before pos
+   * @return the cumulative rate at the position
    */
-  private ArrayList<Integer> getPositions(int p1, int p2){
-    ArrayList<Integer> ret = new ArrayList<>();
-    for(Integer pos : mutationRates.navigableKeySet())
-      if(p1 <= pos && pos <= p2)
-        ret.add(pos);
-    return ret;
+  private double cumulativeAt(int pos, int i) {
+    if(i < 0)
+      return -(positions[0] - (double)pos) * rates[0];
+    return cumulative[i] + (pos - positions[i]) * 0.5 * (rates[i] + rateAt(pos, i));
   }
 
   /**
@@ -178,36 +316,61 @@ public class HapMap {
    * @throws EstiageFormatException
    */
   public double getRate(int p1, int p2) throws EstiageFormatException {
-    //Message.debug("From ["+p1+"] to ["+p2+"]");
-    //add points if missing
-    addMarker(p1);
-    addMarker(p2);
-    //Message.debug("At["+p1+"]>["+mutationRates.get(p1)+"], At["+p2+"]>["+mutationRates.get(p2)+"]");
-    //get all points in interval
+    if(positions.length == 0)
+      throw new EstiageFormatException("Hapmap data are empty");
     int first = Math.min(p1, p2);
     int last = Math.max(p1, p2);
-    ArrayList<Integer> points = getPositions(first, last);
+    if(first == last)
+      return 0;
+    int f = floor(first);
+    int l = floor(last);
+    return meanRate(first, cumulativeAt(first, f), last, cumulativeAt(last, l), rateAt(last, l));
+  }
 
-    double rateSum = 0;
+  /**
+   * Gets the mean recombination rate between a target and each of the given positions.
+   * The positions are annotated in a single sorted pass over the map
+   * @param target the position of the target
+   * @param others the positions of the markers (in any order)
+   * @return the rates, in the order of the positions
+   * @throws EstiageFormatException
+   */
+  public double[] getRates(int target, int[] others) throws EstiageFormatException {
+    if(positions.length == 0)
+      throw new EstiageFormatException("Hapmap data are empty");
+    final int n = others.length;
+    final int t = floor(target);
+    final double cumulativeTarget = cumulativeAt(target, t);
+    final double rateTarget = rateAt(target, t);
 
-    double rightValue = 0;
-    for(int i = 1; i < points.size(); i++){
-      int left = points.get(i-1);
-      int right = points.get(i);
-      int d = right - left; //d != 0 because right > left, as points are unique
-      double leftValue = mutationRates.get(left);
-      rightValue = mutationRates.get(right);
+    Integer[] order = new Integer[n];
+    for(int k = 0; k < n; k++)
+      order[k] = k;
+    Arrays.sort(order, Comparator.comparingInt(k -> others[k]));
 
-      double mean = 0.5 * (rightValue + leftValue);
-      //Message.debug("["+left+" ; "+right+"[ >  ["+mean+"]");
-      rateSum += d * mean; //here, add [left;right[, to avoid adding twice each middle point
+    double[] ret = new double[n];
+    int i = -1;
+    for(int k : order) {
+      int pos = others[k];
+      while(i + 1 < positions.length && positions[i+1] <= pos)
+        i++;
+      if(pos == target)
+        ret[k] = 0;
+      else if(pos < target)
+        ret[k] = meanRate(pos, cumulativeAt(pos, i), target, cumulativeTarget, rateTarget);
+      else
+        ret[k] = meanRate(target, cumulativeTarget, pos, cumulativeAt(pos, i), rateAt(pos, i));
     }
-    //here, add right
-    rateSum += rightValue;
+    return ret;
+  }
+
+  /**
+   * Mean rate on [first;last] : the integral on [first;last[ plus the rate at last, divided by the number of positions
+   */
+  private static double meanRate(int first, double cumulativeFirst, int last, double cumulativeLast, double rateLast) {
+    double rateSum = (cumulativeLast - cumulativeFirst) + rateLast;
     int distance = 1 + last - first;
-    //Message.debug("Mean["+(rateSum / distance)+"]=["+rateSum+"]/["+distance+"]");
     return rateSum / distance;
-
   }
 
   /**
@@ -1,5 +1,9 @@
 package fr.inserm.u1078.estiage;
 
+import fr.inserm.u1078.estiage.ctranslation.C;
+import fr.inserm.u1078.estiage.ctranslation.EstiageException;
+import fr.inserm.u1078.estiage.ctranslation.InputContent;
+import fr.inserm.u1078.estiage.ctranslation.InputData;
 import fr.inserm.u1078.tludwig.maok.UniversalReader;
 import fr.inserm.u1078.tludwig.maok.tools.Message;
 
@@ -24,6 +28,10 @@ public class InputFile {
 
   private final Side left;
   private final Side right;
+  /**
+   * Posterior probability of the haplotype reconstruction of each sample (5th column of the records), null if there are none
+   */
+  private final double[] postProbability;
 
   /**
    * Creates an InputFile object
@@ -38,6 +46,7 @@ public class InputFile {
 
     this.left = Side.build(raw.getLeftMarkers(), raw.getSamples());
     this.right = Side.build(raw.getRightMarkers(), raw.getSamples());
+    this.postProbability = raw.getPosteriors();
   }
 
   /**
@@ -47,68 +56,85 @@ public class InputFile {
    * @throws IOException if the preInputFile can't be read
    */
   public InputFile(String preInputFile) throws  EstiageFormatException, IOException {
-    UniversalReader in = new UniversalReader(preInputFile);
-    String[] f;
-    int line = 0;
+    Report.Stage stage = Report.start(Report.STAGE_READ);
     try {
-      //header
-      line++;
-      f = in.readLine().split(SEP, -1);
-      this.nbSamples = Integer.parseInt(f[0]);
-      int nbLeft = Integer.parseInt(f[1]);
-      int nbRight = Integer.parseInt(f[2]);
-
-      int[] positionsLeft = new int[nbSamples];
-      String[] endLeft = new String[nbSamples];
-      int[] positionsRight = new int[nbSamples];
-      String[] endRight = new String[nbSamples];
-
-      //fractions left
-      line++;
-      double[] fractionsLeft = parseDouble(in.readLine(), nbLeft);
-
-      //frequencies left
-      line++;
-      String[] frequenciesLeft = splitString(in.readLine(), nbLeft);
-
-      //fractions right
-      line++;
-      double[] fractionsRight = parseDouble(in.readLine(), nbRight);
-
-      //frequencies right
-      line++;
-      String[] frequenciesRight = splitString(in.readLine(), nbRight);
-
-      //mutation
-      line++;
-      f = in.readLine().split(SEP, -1);
-      this.mutationRate = Double.parseDouble(f[0]);
-      this.mutationModel = Integer.parseInt(f[1]);
-
-      //ancestral left
-      line++;
-      String[] ancestralLeft = splitString(in.readLine(), nbLeft);
-
-      //ancestral right
-      line++;
-      String[] ancestralRight = splitString(in.readLine(), nbRight);
-
-      // samples
-      for(int i = 0 ; i < nbSamples; i++) {
+      Report.readFile(preInputFile);
+      UniversalReader in = new UniversalReader(preInputFile);
+      String[] f;
+      int line = 0;
+      try {
+        //header
         line++;
         f = in.readLine().split(SEP, -1);
-        positionsLeft[i] = Integer.parseInt(f[0]);
-        positionsRight[i] = Integer.parseInt(f[1]);
-        endLeft[i] = f[2];
-        endRight[i] = f[3];
-      }
+        this.nbSamples = Integer.parseInt(f[0]);
+        int nbLeft = Integer.parseInt(f[1]);
+        int nbRight = Integer.parseInt(f[2]);
+
+        int[] positionsLeft = new int[nbSamples];
+        String[] endLeft = new String[nbSamples];
+        int[] positionsRight = new int[nbSamples];
+        String[] endRight = new String[nbSamples];
+
+        //fractions left
+        line++;
+        double[] fractionsLeft = parseDouble(in.readLine(), nbLeft);
+
+        //frequencies left
+        line++;
+        String[] frequenciesLeft = splitString(in.readLine(), nbLeft);
+
+        //fractions right
+        line++;
+        double[] fractionsRight = parseDouble(in.readLine(), nbRight);
+
+        //frequencies right
+        line++;
+        String[] frequenciesRight = splitString(in.readLine(), nbRight);
 
-      this.left = new Side(nbLeft, fractionsLeft, frequenciesLeft, ancestralLeft, positionsLeft, endLeft);
-      this.right = new Side(nbRight, fractionsRight, frequenciesRight, ancestralRight, positionsRight, endRight);
-    } catch(NullPointerException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
-      throw new EstiageFormatException("Unable to parse input file ["+preInputFile+"] on line ["+line+"]", e);
+        //mutation
+        line++;
+        f = in.readLine().split(SEP, -1);
+        this.mutationRate = Double.parseDouble(f[0]);
+        this.mutationModel = Integer.parseInt(f[1]);
+
+        //ancestral left
+        line++;
+        String[] ancestralLeft = splitString(in.readLine(), nbLeft);
+
+        //ancestral right
+        line++;
+        String[] ancestralRight = splitString(in.readLine(), nbRight);
+
+        // samples
+        double[] posteriors = null;
+        for(int i = 0 ; i < nbSamples; i++) {
+          line++;
+          f = in.readLine().split(SEP, -1);
+          positionsLeft[i] = Integer.parseInt(f[0]);
+          positionsRight[i] = Integer.parseInt(f[1]);
+          endLeft[i] = f[2];
+          endRight[i] = f[3];
+          if(f.length > 4) {
+            if(posteriors == null) {
+              posteriors = new double[nbSamples];
+              for(int j = 0; j < i; j++)
+                posteriors[j] = 1.0;
+            }
+            posteriors[i] = Double.parseDouble(f[4]);
+          } else if(posteriors != null)
+            posteriors[i] = 1.0;
+        }
+        this.postProbability = posteriors;
+
+        this.left = new Side(nbLeft, fractionsLeft, frequenciesLeft, ancestralLeft, positionsLeft, endLeft);
+        this.right = new Side(nbRight, fractionsRight, frequenciesRight, ancestralRight, positionsRight, endRight);
+      } catch(NullPointerException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+        throw new EstiageFormatException("Unable to parse input file ["+preInputFile+"] on line ["+line+"]", e);
+      }
+      in.close();
+    } finally {
+      stage.end();
     }
-    in.close();
   }
 
   /**
@@ -146,6 +172,52 @@ public class InputFile {
     right.fromPreInput2Input();
   }
 
+  /**
+   * Converts this InputFile (after fromPreInput2Input()) to the data of the likelihood engine, without writing/reading the input file
+   * @return the input data
+   * @throws EstiageException if the alleles are inconsistent
+   */
+  public InputData toInputData() throws EstiageException {
+    return toInputContent().toInputData();
+  }
+
+  /**
+   * Converts this InputFile (after fromPreInput2Input()) to the content of an input file
+   * @return the content of the input file
+   */
+  public InputContent toInputContent() {
+    Side[] sides = {left, right};
+    double[][] fractions = new double[2][];
+    double[][] frequencies = new double[2][];
+    String[][] ancestrals = new String[2][];
+    int[][] endPositions = new int[2][];
+    String[][] endAlleles = new String[2][];
+    for(int side : C.SIDES) {
+      Side s = sides[side];
+      fractions[side] = s.getFractions();
+      frequencies[side] = toDoubles(s.getFrequencies());
+      ancestrals[side] = s.getAncestral();
+      endPositions[side] = s.endPositions;
+      endAlleles[side] = s.endAlleles;
+    }
+    return new InputContent(nbSamples, fractions, frequencies, mutationRate, mutationModel != 0, ancestrals, endPositions, endAlleles, postProbability);
+  }
+
+  /**
+   * Converts the frequencies to double, trailing empty values are ignored (as when the input file is read)
+   * @param values the frequencies
+   * @return the frequencies as double
+   */
+  private static double[] toDoubles(String[] values) {
+    int n = values.length;
+    while(n > 0 && values[n - 1].isEmpty())
+      n--;
+    double[] ret = new double[n];
+    for(int i = 0; i < n; i++)
+      ret[i] = Double.parseDouble(values[i]);
+    return ret;
+  }
+
   /**
    * Check if a string contains no values
    * @param s the string to check
@@ -158,11 +230,29 @@ public class InputFile {
   }
 
   /**
-   * Exports an InputFile object to a file
+   * Exports an InputFile object to a file, in the binary format if the filename ends with .estibin
    * @param filename the name of the file
    * @throws IOException if the file can't be written
    */
   public void export(String filename) throws IOException {
+    Report.Stage stage = Report.start(Report.STAGE_EXPORT);
+    try {
+      if(filename.toLowerCase().endsWith(InputContent.BINARY_EXTENSION))
+        toInputContent().writeBinary(filename);
+      else
+        exportText(filename);
+    } finally {
+      stage.end();
+    }
+    Report.output(filename);
+  }
+
+  /**
+   * Exports an InputFile object to a text file
+   * @param filename the name of the file
+   * @throws IOException if the file can't be written
+   */
+  private void exportText(String filename) throws IOException {
     StringBuilder sb = new StringBuilder();
     append(sb, nbSamples, left.getNb(), right.getNb());
     append(sb, left.getFractions());
@@ -173,13 +263,17 @@ public class InputFile {
     append(sb, left.getAncestral());
     append(sb, right.getAncestral());
     //Record format:
-    //Lp Rp Lv Rv
+    //Lp Rp Lv Rv [Pp]
     // - Lp: 1-based Position of the first Left  Marker with an allele different from the ancestral allele
     // - Rp: 1-based Position of the first Right Marker with an allele different from the ancestral allele
     // - Lv: Allele value at Lp
     // - Rv: Allele value at Rp
+    // - Pp: (optional) posterior probability of the haplotype reconstruction
     for(int s = 0; s < nbSamples; s++)
-      append(sb, left.endPositions[s]+"", right.endPositions[s]+"", left.endAlleles[s], right.endAlleles[s]);
+      if(postProbability == null)
+        append(sb, left.endPositions[s]+"", right.endPositions[s]+"", left.endAlleles[s], right.endAlleles[s]);
+      else
+        append(sb, left.endPositions[s]+"", right.endPositions[s]+"", left.endAlleles[s], right.endAlleles[s], postProbability[s]+"");
 
     PrintWriter out = new PrintWriter(new FileWriter(filename));
     out.print(sb);
@@ -381,7 +475,7 @@ public class InputFile {
               else if(isMicrosatVariant(endAlleles[s])){
                 int v = new Integer(endAlleles[s]);
                 if(even != v%2)
-                  Message.warning("Parity problem on endAllele (position:"+i+", sample:"+s+", allele:"+endAlleles[s]+", ancestral:"+ancestral[i]+")");
+                  Log.warning("Parity problem on endAllele (position:"+i+", sample:"+s+", allele:"+endAlleles[s]+", ancestral:"+ancestral[i]+")");
                 int d = 1 + Math.abs(n - v) / 2;
                 endAlleles[s] = ""+d;
               } else
@@ -0,0 +1,299 @@
+package fr.inserm.u1078.estiage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal JSON reader/writer, for the messages exchanged with the {@link Server}<br/>
+ * Parsed values are : LinkedHashMap (objects), ArrayList (arrays), String, Long (integral numbers), Double (other numbers), Boolean and null
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class JSON {
+  private final String text;
+  private int pos;
+
+  private JSON(String text) {
+    this.text = text;
+    this.pos = 0;
+  }
+
+  /**
+   * Parses a JSON value
+   * @param text the JSON text
+   * @return the parsed value
+   * @throws EstiageFormatException if the text is not valid JSON
+   */
+  public static Object parse(String text) throws EstiageFormatException {
+    JSON json = new JSON(text);
+    Object value = json.readValue();
+    json.skipSpaces();
+    if(json.pos < text.length())
+      throw json.error("Unexpected trailing characters");
+    return value;
+  }
+
+  /**
+   * Converts a value to JSON. Supported values are Map, List, arrays of String/int/double, String, Number, Boolean and null
+   * @param value the value
+   * @return the JSON text
+   */
+  public static String toJSON(Object value) {
+    StringBuilder sb = new StringBuilder();
+    append(sb, value);
+    return sb.toString();
+  }
+
+  /**
+   * Appends a value in JSON to a StringBuilder
+   * @param sb the StringBuilder
+   * @param value the value
+   */
+  public static void append(StringBuilder sb, Object value) {
+    if(value == null)
+      sb.append("null");
+    else if(value instanceof String)
+      quote(sb, (String) value);
+    else if(value instanceof Double || value instanceof Float) {
+      double d = ((Number) value).doubleValue();
+      if(Double.isNaN(d) || Double.isInfinite(d))
+        sb.append("null");
+      else
+        sb.append(d);
+    } else if(value instanceof Number || value instanceof Boolean)
+      sb.append(value);
+    else if(value instanceof Map) {
+      sb.append('{');
+      boolean first = true;
+      for(Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+        if(!first)
+          sb.append(',');
+        first = false;
+        quote(sb, String.valueOf(entry.getKey()));
+        sb.append(':');
+        append(sb, entry.getValue());
+      }
+      sb.append('}');
+    } else if(value instanceof List) {
+      sb.append('[');
+      boolean first = true;
+      for(Object o : (List<?>) value) {
+        if(!first)
+          sb.append(',');
+        first = false;
+        append(sb, o);
+      }
+      sb.append(']');
+    } else if(value instanceof String[]) {
+      append(sb, Arrays.asList((String[]) value));
+    } else if(value instanceof int[]) {
+      sb.append('[');
+      int[] array = (int[]) value;
+      for(int i = 0; i < array.length; i++)
+        sb.append(i > 0 ? "," : "").append(array[i]);
+      sb.append(']');
+    } else if(value instanceof double[]) {
+      sb.append('[');
+      double[] array = (double[]) value;
+      for(int i = 0; i < array.length; i++) {
+        if(i > 0)
+          sb.append(',');
+        append(sb, array[i]);
+      }
+      sb.append(']');
+    } else
+      quote(sb, value.toString());
+  }
+
+  /**
+   * Appends a quoted and escaped string
+   * @param sb the StringBuilder
+   * @param s the string
+   */
+  private static void quote(StringBuilder sb, String s) {
+    sb.append('"');
+    for(int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch(c) {
+        case '"':
+          sb.append("\\\"");
+          break;
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        case '\t':
+          sb.append("\\t");
+          break;
+        default:
+          if(c < 0x20)
+            sb.append(String.format("\\u%04x", (int) c));
+          else
+            sb.append(c);
+      }
+    }
+    sb.append('"');
+  }
+
+  private EstiageFormatException error(String message) {
+    return new EstiageFormatException(message + " at character [" + pos + "] of JSON [" + text + "]");
+  }
+
+  private void skipSpaces() {
+    while(pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+      pos++;
+  }
+
+  private Object readValue() throws EstiageFormatException {
+    skipSpaces();
+    if(pos >= text.length())
+      throw error("Unexpected end");
+    char c = text.charAt(pos);
+    switch(c) {
+      case '{':
+        return readObject();
+      case '[':
+        return readArray();
+      case '"':
+        return readString();
+      case 't':
+        return readLiteral("true", Boolean.TRUE);
+      case 'f':
+        return readLiteral("false", Boolean.FALSE);
+      case 'n':
+        return readLiteral("null", null);
+      default:
+        return readNumber();
+    }
+  }
+
+  private Object readLiteral(String literal, Object value) throws EstiageFormatException {
+    if(!text.startsWith(literal, pos))
+      throw error("Unexpected value");
+    pos += literal.length();
+    return value;
+  }
+
+  private LinkedHashMap<String, Object> readObject() throws EstiageFormatException {
+    LinkedHashMap<String, Object> object = new LinkedHashMap<>();
+    pos++; //{
+    skipSpaces();
+    if(pos < text.length() && text.charAt(pos) == '}') {
+      pos++;
+      return object;
+    }
+    while(true) {
+      skipSpaces();
+      if(pos >= text.length() || text.charAt(pos) != '"')
+        throw error("Expected a key");
+      String key = readString();
+      skipSpaces();
+      if(pos >= text.length() || text.charAt(pos) != ':')
+        throw error("Expected ':'");
+      pos++;
+      object.put(key, readValue());
+      skipSpaces();
+      if(pos >= text.length())
+        throw error("Unexpected end");
+      char c = text.charAt(pos++);
+      if(c == '}')
+        return object;
+      if(c != ',')
+        throw error("Expected ',' or '}'");
+    }
+  }
+
+  private ArrayList<Object> readArray() throws EstiageFormatException {
+    ArrayList<Object> array = new ArrayList<>();
+    pos++; //[
+    skipSpaces();
+    if(pos < text.length() && text.charAt(pos) == ']') {
+      pos++;
+      return array;
+    }
+    while(true) {
+      array.add(readValue());
+      skipSpaces();
+      if(pos >= text.length())
+        throw error("Unexpected end");
+      char c = text.charAt(pos++);
+      if(c == ']')
+        return array;
+      if(c != ',')
+        throw error("Expected ',' or ']'");
+    }
+  }
+
+  private String readString() throws EstiageFormatException {
+    StringBuilder sb = new StringBuilder();
+    pos++; //"
+    while(pos < text.length()) {
+      char c = text.charAt(pos++);
+      if(c == '"')
+        return sb.toString();
+      if(c != '\\') {
+        sb.append(c);
+        continue;
+      }
+      if(pos >= text.length())
+        break;
+      char e = text.charAt(pos++);
+      switch(e) {
+        case 'n':
+          sb.append('\n');
+          break;
+        case 'r':
+          sb.append('\r');
+          break;
+        case 't':
+          sb.append('\t');
+          break;
+        case 'b':
+          sb.append('\b');
+          break;
+        case 'f':
+          sb.append('\f');
+          break;
+        case 'u':
+          if(pos + 4 > text.length())
+            throw error("Invalid unicode escape");
+          try {
+            sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+          } catch(NumberFormatException ex) {
+            throw error("Invalid unicode escape");
+          }
+          pos += 4;
+          break;
+        default: // " \ /
+          sb.append(e);
+      }
+    }
+    throw error("Unterminated string");
+  }
+
+  private Number readNumber() throws EstiageFormatException {
+    int start = pos;
+    while(pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) != -1)
+      pos++;
+    String number = text.substring(start, pos);
+    try {
+      if(number.indexOf('.') == -1 && number.indexOf('e') == -1 && number.indexOf('E') == -1)
+        return Long.parseLong(number);
+      return Double.parseDouble(number);
+    } catch(NumberFormatException e) {
+      pos = start;
+      throw error("Unexpected value");
+    }
+  }
+}
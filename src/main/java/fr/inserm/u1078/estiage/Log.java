@@ -0,0 +1,85 @@
+package fr.inserm.u1078.estiage;
+
+import fr.inserm.u1078.tludwig.maok.tools.Message;
+
+import java.util.function.Supplier;
+
+/**
+ * Logging with levels, on top of {@link Message}<br/>
+ * Messages below the current level are dropped. The Supplier variants only build the message if it is going to be printed.
+ * The level is set on the command line with --loglevel=[debug|info|warning|error] (default is info).<br/>
+ * The per-iteration tracing of the likelihood engine is also compiled out unless enabled with call to java -Dtrace=true
+ * (and printed only at the debug level)
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class Log {
+  public enum Level {DEBUG, INFO, WARNING, ERROR}
+
+  /**
+   * Is the per-iteration tracing of the likelihood engine enabled ? Being a constant, the tracing code is removed from the hot loops when false
+   */
+  public static final boolean TRACE = Boolean.parseBoolean(System.getProperty("trace"));
+
+  private static volatile Level level = Level.INFO;
+
+  /**
+   * Sets the level of the messages to print
+   * @param level the lowest level printed
+   */
+  public static void setLevel(Level level) {
+    Log.level = level;
+    Message.setDebugActive(level == Level.DEBUG);
+  }
+
+  /**
+   * @return the lowest level printed
+   */
+  public static Level getLevel() {
+    return level;
+  }
+
+  /**
+   * Checks if a message of a given level would be printed
+   * @param l the level of the message
+   * @return true if messages of this level are printed
+   */
+  public static boolean isEnabled(Level l) {
+    return l.compareTo(level) >= 0;
+  }
+
+  /**
+   * @return true if debug messages are printed
+   */
+  public static boolean isDebug() {
+    return level == Level.DEBUG;
+  }
+
+  public static void debug(String message) {
+    if(isDebug())
+      Message.debug(message);
+  }
+
+  public static void debug(Supplier<String> message) {
+    if(isDebug())
+      Message.debug(message.get());
+  }
+
+  public static void info(String message) {
+    if(isEnabled(Level.INFO))
+      Message.info(message);
+  }
+
+  public static void info(Supplier<String> message) {
+    if(isEnabled(Level.INFO))
+      Message.info(message.get());
+  }
+
+  public static void warning(String message) {
+    if(isEnabled(Level.WARNING))
+      Message.warning(message);
+  }
+}
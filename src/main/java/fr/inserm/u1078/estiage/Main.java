@@ -1,13 +1,23 @@
 package fr.inserm.u1078.estiage;
 
+import fr.inserm.u1078.estiage.ctranslation.AnalysisState;
+import fr.inserm.u1078.estiage.ctranslation.Bootstrap;
+import fr.inserm.u1078.estiage.ctranslation.Influence;
 import fr.inserm.u1078.estiage.ctranslation.Estiage;
 import fr.inserm.u1078.estiage.ctranslation.EstiageException;
+import fr.inserm.u1078.estiage.ctranslation.InputContent;
+import fr.inserm.u1078.estiage.ctranslation.InputData;
+import fr.inserm.u1078.estiage.ctranslation.JointEstimation;
 import fr.inserm.u1078.tludwig.maok.tools.Message;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Main Class for Estiage
@@ -21,6 +31,8 @@ public class Main {
 
   public static final String KEY_VCF2RAW = "vcf2raw";
   public static final String KEY_PHASE = "phase";
+  public static final String KEY_EMPHASE = "emphase";
+  public static final String KEY_MULTIPHASE = "multiphase";
   public static final String KEY_VCF2COMPLETE = "vcf2complete";
   public static final String KEY_VCF2PREINPUT = "vcf2preinput";
   public static final String KEY_VCF2INPUT = "vcf2input";
@@ -31,8 +43,21 @@ public class Main {
   public static final String KEY_COMPLETE2INPUT = "complete2input";
   public static final String KEY_PREINPUT2INPUT = "preinput2input";
   public static final String KEY_RUN = "run";
+  public static final String KEY_BOOTSTRAP = "bootstrap";
+  public static final String KEY_INFLUENCE = "influence";
+  public static final String KEY_STATE = "state";
+  public static final String KEY_APPEND = "append";
+  public static final String KEY_JOINT = "joint";
+  public static final String KEY_VCF2RUN = "vcf2run";
+  public static final String KEY_CONVERTINPUT = "convertinput";
   public static final String KEY_RATE = "rate";
+  public static final String KEY_RATES = "rates";
+  public static final String KEY_GNOMAD2STORE = "gnomad2store";
+  public static final String KEY_MAP2STORE = "map2store";
+  public static final String KEY_SERVE = "serve";
   public static final String KEY_NO_COLOR = "--nocolor";
+  public static final String KEY_LOG_LEVEL = "--loglevel=";
+  public static final String KEY_REPORT = "--report";
 
 
   public static final String EXT_PHASED = ".phased";
@@ -40,38 +65,82 @@ public class Main {
   public static final String EXT_FULL = ".estifull";
   public static final String EXT_PREINPUT = ".preinput";
   public static final String EXT_INPUT = ".estinput";
+  public static final String EXT_BINARY = InputContent.BINARY_EXTENSION;
+  public static final String EXT_STATE = AnalysisState.EXTENSION;
   public static final String EXT_VCF = ".vcf(.gz)";
+  public static final String EXT_STORE = FrequencyStore.EXTENSION;
+  public static final String EXT_MAP = GeneticMapStore.EXTENSION;
 
   public static final String POSITION1 = "Position1";
   public static final String POSITION2 = "Position2";
   public static final String COLUMN = "TargetMarkerColumn(1-based)";
   public static final String TARGET_POSITION = "TargetMarkerPosition";
+  public static final String COLUMNS = "TargetMarkerColumns(1-based,comma-separated)";
+  public static final String TARGET_POSITIONS = "TargetMarkerPositions(comma-separated)";
   public static final String STOP_ON_EX_AEQUO = "StopOnExAequo(false|true)";
   public static final String IGNORE_MISSING = "IgnoreMissing(false|true)";
 
 
   public static final String MODELS = "mutationModel[0:normal|1:stepwise]";
   public static final String RATE = "mutationRate";
-  public static final String GNOMAD = "Gnomad"+EXT_VCF;
-  public static final String HAPMAP = "hapmap.txt";
+  public static final String GNOMAD = "Gnomad["+EXT_VCF+"|"+EXT_STORE+"]";
+  public static final String KEYS = "keys(AF,AF_nfe,...)";
+  public static final String REGION = "[chr:start-end]";
+  public static final String HAPMAP = "hapmap[.txt|"+EXT_MAP+"]";
+  public static final String GENETIC_MAP = "geneticMap.txt";
+  public static final String MAP_FORMAT = "format["+GeneticMapStore.Format.HAPMAP+"|"+GeneticMapStore.Format.PLINK+"|"+GeneticMapStore.Format.DECODE+"]";
+  public static final String CHROMOSOME = "[chr]";
+  public static final String PAIRS = "pairs.txt([chr] pos1 pos2|[chr:]pos)";
+  public static final String TARGET = "[chr:pos(target)]";
   public static final String CHROMPOSALLELE = "chr:pos:allele(homoAltAllele)";
   public static final String INPUT = "input";
+  public static final String STATE = "state";
+  public static final String NEW_INDIVIDUALS = "newIndividuals";
+  public static final String COHORT = "cohort";
   public static final String OUTPUT = "output";
+  public static final String PREFIX = "[outputPrefix]";
+  public static final String LOG_LEVELS = "[debug|info|warning|error]";
+  public static final String REPORT_FILE = "report.json";
+  public static final String PORT = "[port(local TCP, stdin/stdout if absent)]";
+  public static final String REPLICATES = "[replicates(default "+Bootstrap.DEFAULT_REPLICATES+")]";
+  public static final String SEED = "[seed(default "+Bootstrap.DEFAULT_SEED+")]";
   public static final String ESTIAGE = "EstiAge";
   public static final String VCFMODE = "mode["+VCFFile.Mode.IGNORE+"|"+VCFFile.Mode.HETEROZYGOUS+"|"+VCFFile.Mode.HOMOZYGOUS+"]";
   public static final String METHOD = "method["+VCFFile.Method.CLASSICAL+"|"+VCFFile.Method.LONGEST_HAPLOTYPE+"]";
 
   public static void main(String[]args) throws IOException, EstiageFormatException, EstiageException, InterruptedException {
-    Message.setDebugActive(true);
-    for(String arg : args)
+    //options are removed from the arguments of the command
+    ArrayList<String> arguments = new ArrayList<>();
+    String report = null;
+    for(int i = 0; i < args.length; i++) {
+      String arg = args[i];
       if(KEY_NO_COLOR.equalsIgnoreCase(arg))
         Message.setWithColor(false);
+      else if(arg.toLowerCase().startsWith(KEY_LOG_LEVEL)) {
+        try {
+          Log.setLevel(Log.Level.valueOf(arg.substring(KEY_LOG_LEVEL.length()).toUpperCase()));
+        } catch(IllegalArgumentException e) {
+          Message.error("Unknown log level ["+arg+"], expected "+KEY_LOG_LEVEL+LOG_LEVELS);
+          usage();
+        }
+      } else if(KEY_REPORT.equalsIgnoreCase(arg)) {
+        if(++i == args.length) {
+          Message.error("Missing file name after "+KEY_REPORT);
+          usage();
+        }
+        report = args[i];
+      } else
+        arguments.add(arg);
+    }
+    args = arguments.toArray(new String[0]);
+    if(report != null)
+      Report.enable(report, args);
 
     StringBuilder message = new StringBuilder("Running with arguments:");
     for(String arg : args)
       message.append(" [").append(arg).append("]");
     message.append(".");
-    Message.info(message.toString());
+    Log.info(message.toString());
     if(args.length < 1)
       usage();
 
@@ -86,7 +155,30 @@ public class Main {
         String hapmapfile = args[1];
         String p1 = args[2];
         String p2 = args[3];
-        rate(hapmapfile, p1, p2);
+        rate(hapmapfile, p1, p2, args.length > 4 ? args[4] : null);
+        break;
+      case KEY_RATES:
+        if(args.length < 3)
+          usagerates(true);
+        rates(args[1], args[2], args.length > 3 ? args[3] : null);
+        break;
+      case KEY_GNOMAD2STORE:
+        if(args.length < 4)
+          usagegnomad2store(true);
+        gnomad2store(args[1], args[2], args[3], args.length > 4 ? args[4] : null);
+        break;
+      case KEY_MAP2STORE:
+        if(args.length < 3)
+          usagemap2store(true);
+        GeneticMapStore.Format format = GeneticMapStore.Format.HAPMAP;
+        if(args.length > 3) {
+          try {
+            format = GeneticMapStore.Format.valueOf(args[3].toUpperCase());
+          } catch(IllegalArgumentException e) {
+            usagemap2store(true);
+          }
+        }
+        map2store(args[1], args[2], format);
         break;
       case KEY_PHASE:
         if(args.length < 7)
@@ -105,6 +197,30 @@ public class Main {
         }
         phase(inputFile, outputFile, colnum, position, stopOnExAequo, ignoreMissing);
         break;
+      case KEY_MULTIPHASE:
+        if(args.length < 7)
+          usagemultiphase(true);
+        String[] cols = args[3].split(",");
+        int[] colnums = new int[cols.length];
+        try{
+          for(int i = 0; i < cols.length; i++)
+            colnums[i] = Integer.parseInt(cols[i]);
+        } catch(NumberFormatException e){
+          usagemultiphase(true);
+        }
+        multiphase(args[1], args[2], colnums, args[4].split(","), "true".equalsIgnoreCase(args[5]) || "1".equals(args[5]), "true".equalsIgnoreCase(args[6]) || "1".equals(args[6]));
+        break;
+      case KEY_EMPHASE:
+        if(args.length < 5)
+          usageemphase(true);
+        int emColumn = -1;
+        try{
+          emColumn = Integer.parseInt(args[3]);
+        } catch(NumberFormatException e){
+          usageemphase(true);
+        }
+        emphase(args[1], args[2], emColumn, args[4]);
+        break;
       case KEY_VCF2RAW:
         if(args.length < 6)
           usagevcf2raw(true);
@@ -211,12 +327,76 @@ public class Main {
         input = args[2];
         preinput2input(preinput, input);
         break;
+      case KEY_VCF2RUN:
+        if(args.length < 9)
+          usagevcf2run(true);
+        vcf = args[1];
+        chrPosAllele = args[2];
+        mode = VCFFile.Mode.valueOf(args[3]);
+        method = VCFFile.Method.valueOf(args[4].toUpperCase());
+        gnomad = args[5];
+        hapmap = args[6];
+        mutationModel = args[7];
+        mutationRate = args[8];
+        vcf2run(vcf, chrPosAllele, mode, method, gnomad, hapmap, mutationModel, mutationRate, args.length > 9 ? args[9] : null);
+        break;
+      case KEY_CONVERTINPUT:
+        if(args.length < 3)
+          usageconvertinput(true);
+        convertInput(args[1], args[2]);
+        break;
+      case KEY_SERVE:
+        int port = -1;
+        if(args.length > 1) {
+          try {
+            port = Integer.parseInt(args[1]);
+          } catch(NumberFormatException e) {
+            usageserve(true);
+          }
+        }
+        serve(port);
+        break;
       case KEY_RUN:
         if(args.length < 2)
           usagerun(true);
         String filename = args[1];
         run(filename);
         break;
+      case KEY_BOOTSTRAP:
+        if(args.length < 2)
+          usagebootstrap(true);
+        int replicates = Bootstrap.DEFAULT_REPLICATES;
+        long seed = Bootstrap.DEFAULT_SEED;
+        try {
+          if(args.length > 2)
+            replicates = Integer.parseInt(args[2]);
+          if(args.length > 3)
+            seed = Long.parseLong(args[3]);
+        } catch(NumberFormatException e) {
+          usagebootstrap(true);
+        }
+        bootstrap(args[1], replicates, seed);
+        break;
+      case KEY_INFLUENCE:
+        if(args.length < 2)
+          usageinfluence(true);
+        influence(args[1]);
+        break;
+      case KEY_STATE:
+        if(args.length < 3)
+          usagestate(true);
+        state(args[1], args[2]);
+        break;
+      case KEY_APPEND:
+        if(args.length < 3)
+          usageappend(true);
+        append(args[1], args[2]);
+        break;
+      case KEY_JOINT:
+        if(args.length < 3)
+          usagejoint(true);
+        joint(Arrays.copyOfRange(args, 1, args.length));
+        break;
       default :
         Message.error("Unknown Option ["+args[0]+"]");
         usage();
@@ -225,6 +405,7 @@ public class Main {
 
   public static void title(){
     System.err.println(ESTIAGE+" "+getVersion()+"\nUsage :");
+    System.err.println("\tOptions : "+KEY_NO_COLOR+" "+KEY_LOG_LEVEL+LOG_LEVELS+"(default info) "+KEY_REPORT+" "+REPORT_FILE);
   }
 
   /**
@@ -233,7 +414,12 @@ public class Main {
   private static void usage(){
     title();
     usagephase(false);
+    usagemultiphase(false);
+    usageemphase(false);
     usagerate(false);
+    usagerates(false);
+    usagegnomad2store(false);
+    usagemap2store(false);
     usagevcf2raw(false);
     usageraw2complete(false);
     usagevcf2complete(false);
@@ -245,6 +431,14 @@ public class Main {
     usagevcf2preinput(false);
     usagepreinput2input(false);
     usagerun(false);
+    usagebootstrap(false);
+    usageinfluence(false);
+    usagestate(false);
+    usageappend(false);
+    usagejoint(false);
+    usagevcf2run(false);
+    usageconvertinput(false);
+    usageserve(false);
 
     System.exit(1);
   }
@@ -280,13 +474,33 @@ public class Main {
   }
 
   private static void usagerate(boolean printPrefix){
-    printUsage(printPrefix, KEY_RATE, HAPMAP, POSITION1, POSITION2);
+    printUsage(printPrefix, KEY_RATE, HAPMAP, POSITION1, POSITION2, CHROMOSOME);
+  }
+
+  private static void usagerates(boolean printPrefix){
+    printUsage(printPrefix, KEY_RATES, HAPMAP, PAIRS, TARGET);
+  }
+
+  private static void usagegnomad2store(boolean printPrefix){
+    printUsage(printPrefix, KEY_GNOMAD2STORE, INPUT+EXT_VCF, OUTPUT+EXT_STORE, KEYS, REGION);
+  }
+
+  private static void usagemap2store(boolean printPrefix){
+    printUsage(printPrefix, KEY_MAP2STORE, GENETIC_MAP, OUTPUT+EXT_MAP, MAP_FORMAT);
   }
 
   private static void usagephase(boolean printPrefix){
     printUsage(printPrefix, KEY_PHASE, INPUT, INPUT+EXT_PHASED, COLUMN, TARGET_POSITION, STOP_ON_EX_AEQUO, IGNORE_MISSING);
   }
 
+  private static void usagemultiphase(boolean printPrefix){
+    printUsage(printPrefix, KEY_MULTIPHASE, INPUT, OUTPUT+"(prefix)", COLUMNS, TARGET_POSITIONS, STOP_ON_EX_AEQUO, IGNORE_MISSING);
+  }
+
+  private static void usageemphase(boolean printPrefix){
+    printUsage(printPrefix, KEY_EMPHASE, INPUT, INPUT+EXT_PHASED, COLUMN, TARGET_POSITION);
+  }
+
   private static void usagevcf2raw(boolean printPrefix){
     printUsage(printPrefix, KEY_VCF2RAW, INPUT+EXT_VCF, OUTPUT+EXT_RAW, CHROMPOSALLELE, VCFMODE, METHOD);
   }
@@ -327,8 +541,40 @@ public class Main {
     printUsage(printPrefix, KEY_PREINPUT2INPUT, INPUT+EXT_PREINPUT, OUTPUT+EXT_INPUT);
   }
 
+  private static void usagevcf2run(boolean printPrefix){
+    printUsage(printPrefix, KEY_VCF2RUN, INPUT+EXT_VCF, CHROMPOSALLELE, VCFMODE, METHOD, GNOMAD, HAPMAP, MODELS, RATE, PREFIX);
+  }
+
+  private static void usageconvertinput(boolean printPrefix){
+    printUsage(printPrefix, KEY_CONVERTINPUT, INPUT+"["+EXT_INPUT+"|"+EXT_BINARY+"]", OUTPUT+"["+EXT_INPUT+"|"+EXT_BINARY+"]");
+  }
+
   private static void usagerun(boolean printPrefix){
-    printUsage(printPrefix, KEY_RUN, INPUT+EXT_INPUT);
+    printUsage(printPrefix, KEY_RUN, INPUT+"["+EXT_INPUT+"|"+EXT_BINARY+"]");
+  }
+
+  private static void usagebootstrap(boolean printPrefix){
+    printUsage(printPrefix, KEY_BOOTSTRAP, INPUT+"["+EXT_INPUT+"|"+EXT_BINARY+"]", REPLICATES, SEED);
+  }
+
+  private static void usageinfluence(boolean printPrefix){
+    printUsage(printPrefix, KEY_INFLUENCE, INPUT+"["+EXT_INPUT+"|"+EXT_BINARY+"]");
+  }
+
+  private static void usagestate(boolean printPrefix){
+    printUsage(printPrefix, KEY_STATE, INPUT+"["+EXT_INPUT+"|"+EXT_BINARY+"]", STATE+EXT_STATE);
+  }
+
+  private static void usageappend(boolean printPrefix){
+    printUsage(printPrefix, KEY_APPEND, STATE+EXT_STATE, NEW_INDIVIDUALS+"["+EXT_INPUT+"|"+EXT_BINARY+"]");
+  }
+
+  private static void usagejoint(boolean printPrefix){
+    printUsage(printPrefix, KEY_JOINT, COHORT+"1["+EXT_INPUT+"|"+EXT_BINARY+"]", COHORT+"2["+EXT_INPUT+"|"+EXT_BINARY+"]", "["+COHORT+"3...]");
+  }
+
+  private static void usageserve(boolean printPrefix){
+    printUsage(printPrefix, KEY_SERVE, PORT);
   }
 
   public static void vcf2raw(String vcf, String raw, String chrPosAllele, VCFFile.Mode mode, VCFFile.Method method) throws InterruptedException, EstiageFormatException, IOException {
@@ -337,12 +583,12 @@ public class Main {
     vcfFile.exportAsRaw(raw, method);
   }
 
-  public static void rate(String hapMapFilename, String pos1, String pos2) throws IOException, EstiageFormatException {
+  public static void rate(String hapMapFilename, String pos1, String pos2, String chr) throws IOException, EstiageFormatException {
     int p1 = Integer.parseInt(pos1);
     int p2 = Integer.parseInt(pos2);
-    int distance = 1 + p2 - p1;
+    int distance = RateBatch.getDistance(p1, p2);
     double mb = distance*0.000001;
-    HapMap hapMap = new HapMap(hapMapFilename, p1, p2);
+    HapMap hapMap = new HapMap(hapMapFilename, chr, Math.min(p1, p2), Math.max(p1, p2));
     System.out.println("Measuring recombination fraction between ["+p1+"] and ["+p2+"] from file : "+hapMapFilename);
 
     double rate = hapMap.getRate(p1, p2);
@@ -357,12 +603,39 @@ public class Main {
     System.out.println("theta : "+recombinationFraction);
   }
 
+  public static void rates(String hapMapFilename, String pairs, String target) throws IOException, EstiageFormatException {
+    RateBatch batch = new RateBatch(hapMapFilename);
+    batch.read(pairs, target);
+    PrintStream out = new PrintStream(new BufferedOutputStream(System.out, 1 << 16), false);
+    batch.export(out);
+  }
+
+  public static void gnomad2store(String gnomad, String store, String keys, String region) throws IOException, EstiageFormatException, InterruptedException {
+    FrequencyStore.build(gnomad, store, keys.split(","), region);
+  }
+
+  public static void map2store(String map, String store, GeneticMapStore.Format format) throws IOException, EstiageFormatException {
+    GeneticMapStore.build(map, store, format);
+  }
+
   public static void phase(String inputFile, String outputFile, int col, String position, boolean stopOnExAequo, boolean ignoreMissing) throws EstiageFormatException, IOException {
     Unphased unphased = new Unphased(inputFile, col, position);
     Unphased.Phased phased = new Unphased.Phased(unphased, stopOnExAequo, ignoreMissing);
     phased.export(outputFile);
   }
 
+  public static void multiphase(String inputFile, String outputPrefix, int[] cols, String[] positions, boolean stopOnExAequo, boolean ignoreMissing) throws EstiageFormatException, IOException, InterruptedException {
+    Unphased unphased = new Unphased(inputFile);
+    for(String output : unphased.phase(cols, positions, stopOnExAequo, ignoreMissing, outputPrefix))
+      Log.info("Phased data exported to ["+output+"]");
+  }
+
+  public static void emphase(String inputFile, String outputFile, int col, String position) throws EstiageFormatException, IOException, InterruptedException {
+    Unphased unphased = new Unphased(inputFile, col, position);
+    EMPhasing phased = new EMPhasing(unphased);
+    phased.export(outputFile);
+  }
+
   public static void raw2complete(String raw, String complete, String gnomad, String hapmap) throws IOException, EstiageFormatException {
     TSVFile rawfile = new TSVFile(raw, TSVFile.Type.RAW);
     rawfile.printSummary();
@@ -371,34 +644,60 @@ public class Main {
     rawfile.export(complete);
   }
 
-  public static void complete2preinput(String complete, String preinput, String mutationModel, String mutationRate) throws IOException, EstiageFormatException {
-    int model = -1;
-    double rate = 0;
+  /**
+   * Parses the mutation model, exits if the model is unknown
+   * @param mutationModel the mutation model (0 or 1)
+   * @return the mutation model
+   */
+  private static int parseMutationModel(String mutationModel) {
     try {
-      model = Integer.parseInt(mutationModel);
-    } catch(NumberFormatException ignore) {
-      //Nothing
-    }
-    if(model < 0 || model > 1) {
-      System.err.println("Unexpected Mutation Model ["+mutationModel+"]. Should be 0 (normal) or 1 (stepwise)");
+      return EstiagePipeline.parseMutationModel(mutationModel);
+    } catch(EstiageFormatException e) {
+      System.err.println(e.getMessage());
       System.exit(1);
     }
-    try{
-      rate = Double.parseDouble(mutationRate);
-    } catch(NumberFormatException e){
-      System.err.println("Could not parse mutation rate ["+mutationRate+"]");
+    return -1;
+  }
+
+  /**
+   * Parses the mutation rate, exits if the rate can't be parsed
+   * @param mutationRate the mutation rate
+   * @return the mutation rate
+   */
+  private static double parseMutationRate(String mutationRate) {
+    try {
+      return EstiagePipeline.parseMutationRate(mutationRate);
+    } catch(EstiageFormatException e) {
+      System.err.println(e.getMessage());
       System.exit(1);
     }
-    Message.info("Opening complete file");
+    return 0;
+  }
+
+  public static void complete2preinput(String complete, String preinput, String mutationModel, String mutationRate) throws IOException, EstiageFormatException {
+    int model = parseMutationModel(mutationModel);
+    double rate = parseMutationRate(mutationRate);
+    Log.info("Opening complete file");
     TSVFile completeFile = new TSVFile(complete, TSVFile.Type.COMPLETE);
-    Message.info("Building Estiage input file");
+    Log.info("Building Estiage input file");
     InputFile estiageInput = new InputFile(completeFile, model, rate);
-    Message.info("Writing filename");
+    Log.info("Writing filename");
     estiageInput.export(preinput);
   }
 
+  /**
+   * Gets the name of the preinput file associated to an input file (text or binary)
+   * @param input the name of the input file
+   * @return the name of the preinput file
+   */
+  static String getPreInputName(String input) {
+    if(input.endsWith(EXT_BINARY))
+      return input.substring(0, input.length() - EXT_BINARY.length()) + EXT_PREINPUT;
+    return input.replace(EXT_INPUT, EXT_PREINPUT);
+  }
+
   public static void complete2input(String complete, String input, String mutationModel, String mutationRate) throws IOException, EstiageFormatException {
-    String preinput = input.replace(EXT_INPUT, EXT_PREINPUT);
+    String preinput = getPreInputName(input);
     complete2preinput(complete, preinput, mutationModel, mutationRate);
     preinput2input(preinput, input);
   }
@@ -422,7 +721,7 @@ public class Main {
   }
 
   public static void raw2input(String raw, String input, String gnomad, String hapmap, String mutationModel, String mutationRate) throws IOException, EstiageFormatException {
-    String preinput = input.replace(EXT_INPUT, EXT_PREINPUT);
+    String preinput = getPreInputName(input);
     raw2preinput(raw, preinput, gnomad, hapmap, mutationModel, mutationRate);
     preinput2input(preinput, input);
   }
@@ -434,12 +733,132 @@ public class Main {
   }
 
   public static void vcf2input(String vcf, String input, String chrPosAllele, VCFFile.Mode mode, VCFFile.Method method, String gnomad, String hapmap, String mutationModel, String mutationRate) throws IOException, EstiageFormatException, InterruptedException {
-    String preinput = input.replace(EXT_INPUT, EXT_PREINPUT);
+    String preinput = getPreInputName(input);
     vcf2preinput(vcf, preinput, chrPosAllele, mode, method, gnomad, hapmap, mutationModel, mutationRate);
     preinput2input(preinput, input);
   }
 
+  /**
+   * Runs the whole pipeline in memory : from the VCF file to the estimation, without reading intermediate files
+   * @param vcf the VCF file
+   * @param chrPosAllele the target
+   * @param mode the VCF mode
+   * @param method the method to build the haplotypes
+   * @param gnomad the gnomAD file (or frequency store)
+   * @param hapmap the HapMap file (or genetic map store)
+   * @param mutationModel the mutation model
+   * @param mutationRate the mutation rate
+   * @param prefix if not null, the intermediate files are also written (prefix.estiraw, prefix.estifull, prefix.preinput and prefix.estinput)
+   */
+  public static void vcf2run(String vcf, String chrPosAllele, VCFFile.Mode mode, VCFFile.Method method, String gnomad, String hapmap, String mutationModel, String mutationRate, String prefix) throws IOException, EstiageFormatException, InterruptedException, EstiageException {
+    int model = parseMutationModel(mutationModel);
+    double rate = parseMutationRate(mutationRate);
+    VCFFile vcfFile = new VCFFile(vcf, mode);
+    vcfFile.setVariant(chrPosAllele);
+    TSVFile raw = vcfFile.buildRaw(method);
+    if(prefix != null)
+      raw.export(prefix+EXT_RAW);
+    TSVFile complete = TSVFile.fromMarkers(raw.getTarget(), raw.getLeftMarkers(), raw.getRightMarkers(), raw.getSamples());
+    complete.printSummary();
+    complete.generateFrequenciesAndRecombinationFractions(gnomad, hapmap);
+    if(prefix != null)
+      complete.export(prefix+EXT_FULL);
+    Log.info("Building Estiage input");
+    InputFile estiageInput = new InputFile(complete, model, rate);
+    if(prefix != null)
+      estiageInput.export(prefix+EXT_PREINPUT);
+    estiageInput.fromPreInput2Input();
+    if(prefix != null)
+      estiageInput.export(prefix+EXT_INPUT);
+    Estiage.run(estiageInput.toInputData());
+  }
+
+  public static void convertInput(String input, String output) throws IOException, EstiageException {
+    InputContent.convert(input, output);
+  }
+
   public static void run(String filename) throws IOException, EstiageException {
     Estiage.run(filename);
   }
+
+  /**
+   * Runs the estimation, with bootstrap confidence intervals, the replicates are run on several threads (java -Dthreads=N)
+   * @param filename the name of the input file (text or binary)
+   * @param replicates the number of replicates
+   * @param seed the seed of the random streams
+   */
+  public static void bootstrap(String filename, int replicates, long seed) throws IOException, EstiageException, InterruptedException {
+    new Bootstrap(InputData.load(filename), replicates, seed, Utils.getThreads()).run().print();
+  }
+
+  /**
+   * Runs the estimation, then the leave-one-out estimations, and prints the influence of each individual
+   * @param filename the name of the input file (text or binary)
+   */
+  public static void influence(String filename) throws IOException, EstiageException {
+    new Influence(InputData.load(filename)).run().print();
+  }
+
+  /**
+   * Runs the estimation, and saves the state of the analysis, so that new individuals can be appended later
+   * @param filename the name of the input file (text or binary)
+   * @param state the name of the state file
+   */
+  public static void state(String filename, String state) throws IOException, EstiageException {
+    Report.Stage stage = Report.start(Report.STAGE_READ);
+    final InputContent content;
+    try {
+      Report.readFile(filename);
+      content = InputContent.read(filename);
+    } finally {
+      stage.end();
+    }
+    AnalysisState analysis = AnalysisState.create(content);
+    analysis.write(state);
+    analysis.getResults().print();
+  }
+
+  /**
+   * Appends new individuals to the dataset of a state file, updates the estimation and the state file
+   * @param state the name of the state file
+   * @param filename the name of the input file (text or binary) with the new individuals, described on the same markers
+   */
+  public static void append(String state, String filename) throws IOException, EstiageException {
+    AnalysisState analysis = AnalysisState.read(state);
+    Report.Stage stage = Report.start(Report.STAGE_READ);
+    final InputContent added;
+    try {
+      Report.readFile(filename);
+      added = InputContent.read(filename);
+    } finally {
+      stage.end();
+    }
+    analysis = analysis.append(added);
+    analysis.write(state);
+    Log.info(added.getNIndividuals()+" individuals appended, "+analysis.getNIndividuals()+" individuals in the dataset");
+    analysis.getResults().print();
+  }
+
+  /**
+   * Runs the joint estimation of the age over several cohorts, the cohorts are evaluated on several threads (java -Dthreads=N)
+   * @param filenames the name of the input file (text or binary) of each cohort
+   */
+  public static void joint(String[] filenames) throws IOException, EstiageException, InterruptedException {
+    InputData[] cohorts = new InputData[filenames.length];
+    for(int c = 0; c < filenames.length; c++)
+      cohorts[c] = InputData.load(filenames[c]);
+    new JointEstimation(cohorts, filenames, Utils.getThreads()).run().print();
+  }
+
+  /**
+   * Starts a server, keeping the resources open between jobs
+   * @param port the local TCP port to listen to, negative to read the jobs from stdin
+   */
+  public static void serve(int port) throws IOException, InterruptedException {
+    Server server = new Server();
+    if(port < 0)
+      server.serve();
+    else
+      server.listen(port);
+  }
 }
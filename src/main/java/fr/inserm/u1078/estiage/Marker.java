@@ -2,11 +2,14 @@ package fr.inserm.u1078.estiage;
 
 import fr.inserm.u1078.tludwig.maok.tools.Message;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 
 /**
- * Representation of a Marker within a TSVFile
+ * Representation of a Marker within a TSVFile<br/>
+ * The alleles are integer-coded : one code per sample (indexed by a SampleIndex shared by the markers of a file), and a dictionary of the alleles of this marker
  *
  * @author Thomas E. Ludwig (INSERM - U1078)
  * Started on             2021-03-18
@@ -15,6 +18,14 @@ import java.util.HashMap;
  */
 public class Marker {
   public static final String MISSING = "";
+  /**
+   * Code of the MISSING allele
+   */
+  public static final short CODE_MISSING = 0;
+  /**
+   * Code for samples without allele
+   */
+  public static final short CODE_UNSET = -1;
 
   private final String name;
   private String chr;
@@ -25,7 +36,10 @@ public class Marker {
   private double recombinationFraction;
   private double rate;
   private double frequency;
-  private final HashMap<String, String> alleles;
+  private final SampleIndex sampleIndex;
+  private short[] codes;
+  private final ArrayList<String> dictionary;
+  private final HashMap<String, Short> dictionaryCodes;
   private String ancestral = "";
 
   /**
@@ -33,8 +47,23 @@ public class Marker {
    * @param name the name of the marker
    */
   public Marker(String name) {
+    this(name, new SampleIndex());
+  }
+
+  /**
+   * Creates an empty Marker with the given name
+   * @param name the name of the marker
+   * @param sampleIndex the index of the samples
+   */
+  public Marker(String name, SampleIndex sampleIndex) {
     this.name = name;
-    this.alleles = new HashMap<>();
+    this.sampleIndex = sampleIndex;
+    this.codes = new short[sampleIndex.size()];
+    Arrays.fill(codes, CODE_UNSET);
+    this.dictionary = new ArrayList<>();
+    this.dictionaryCodes = new HashMap<>();
+    this.dictionary.add(MISSING);
+    this.dictionaryCodes.put(MISSING, CODE_MISSING);
   }
 
   /**
@@ -43,12 +72,21 @@ public class Marker {
    * @param samples the samples
    */
   public Marker(VCFVariant variant, String[] samples){
-    this.name = variant.getId();
+    this(variant, new SampleIndex(samples));
+  }
+
+  /**
+   * Creates a Marker for the given variant and samples
+   * @param variant the variant
+   * @param sampleIndex the index of the samples, in the order of the genotypes
+   */
+  public Marker(VCFVariant variant, SampleIndex sampleIndex){
+    this(variant.getId(), sampleIndex);
     this.chr = variant.getChr();
     this.position = variant.getPos();
-    alleles = new HashMap<>();
-    for(int i = 0 ; i < samples.length; i++)
-      alleles.put(samples[i], variant.getGenotypes()[i]);
+    String[] genotypes = variant.getGenotypes();
+    for(int i = 0 ; i < sampleIndex.size(); i++)
+      setAllele(i, genotypes[i]);
   }
 
   /**
@@ -57,13 +95,11 @@ public class Marker {
    * @param samples the samples
    */
   public Marker(String chrposallele, String[] samples){
+    this(chrposallele, new SampleIndex(samples));
     String[] f = chrposallele.split(":");
-    this.name = chrposallele;
     this.chr = f[0];
     this.position = Integer.parseInt(f[1]);
-    alleles = new HashMap<>();
-    for(int i = 0 ; i < samples.length; i++)
-      alleles.put(samples[i], f[2]);
+    Arrays.fill(codes, encode(f[2]));
   }
 
   /**
@@ -109,34 +145,30 @@ public class Marker {
    * Compute the ancestral allele. If None is found, ancestral allele is set to the default missing value ""
    */
   public void setAncestral(){
-    //Counts frequency
-    HashMap<String, Integer> counts = new HashMap<>();
-    for(String val : alleles.values()){
-      if(val != MISSING) {
-        Integer nb = counts.get(val);
-        if (nb == null)
-          nb = 0;
-        counts.put(val, nb + 1);
-      }
-    }
+    //Counts frequency, per code
+    int[] counts = new int[dictionary.size()];
+    for(short code : codes)
+      if(code > CODE_MISSING)
+        counts[code]++;
     //get most frequent counts
     int max = 0;
-    for(Integer count : counts.values())
+    for(int count : counts)
       if(count > max)
         max = count;
     //get most frequent alleles, if unique return
     String allele = "-1";
-    for(String a : counts.keySet()){
-      if(counts.get(a) == max){
-        if("-1".equals(allele)) {
-          allele = a;
-        } else {
-          //if ex aequo
-          allele = "-1";
-          break;
+    if(max > 0)
+      for(int c = 0; c < counts.length; c++){
+        if(counts[c] == max){
+          if("-1".equals(allele)) {
+            allele = dictionary.get(c);
+          } else {
+            //if ex aequo
+            allele = "-1";
+            break;
+          }
         }
       }
-    }
     this.ancestral = allele;
   }
 
@@ -153,8 +185,8 @@ public class Marker {
    * @return
    */
   public boolean isEmpty(){
-    for(String val : alleles.values())
-      if(val != null)
+    for(short code : codes)
+      if(code != CODE_UNSET)
         return false;
     return true;
   }
@@ -274,7 +306,36 @@ public class Marker {
    * @return
    */
   public String getAllele(String sample) {
-    return alleles.get(sample);
+    return getAllele(sampleIndex.get(sample));
+  }
+
+  /**
+   * Gets the allele for the given sample
+   * @param sample the index of the sample
+   * @return the allele, null if there is none
+   */
+  public String getAllele(int sample) {
+    short code = getCode(sample);
+    return code == CODE_UNSET ? null : dictionary.get(code);
+  }
+
+  /**
+   * Gets the code of the allele for the given sample
+   * @param sample the index of the sample
+   * @return the code of the allele, CODE_UNSET if there is none
+   */
+  public short getCode(int sample) {
+    return sample < 0 || sample >= codes.length ? CODE_UNSET : codes[sample];
+  }
+
+  /**
+   * Gets the code of an allele of this marker
+   * @param allele the allele
+   * @return the code of the allele, CODE_UNSET if this marker doesn't have this allele
+   */
+  public short getCode(String allele) {
+    Short code = dictionaryCodes.get(allele);
+    return code == null ? CODE_UNSET : code;
   }
 
   /**
@@ -283,14 +344,58 @@ public class Marker {
    * @param allele the allele
    */
   public void setAllele(String sample, String allele) {
-    this.alleles.put(sample, allele);
+    setAllele(sampleIndex.add(sample), allele);
+  }
+
+  /**
+   * Sets the allele for the given sample
+   * @param sample the index of the sample
+   * @param allele the allele
+   */
+  public void setAllele(int sample, String allele) {
+    setCode(sample, allele == null ? CODE_UNSET : encode(allele));
+  }
+
+  /**
+   * Sets the code of the allele for the given sample
+   * @param sample the index of the sample
+   * @param code the code of the allele (from this marker's dictionary)
+   */
+  public void setCode(int sample, short code) {
+    if(sample >= codes.length) {
+      int size = codes.length;
+      codes = Arrays.copyOf(codes, Math.max(sample + 1, sampleIndex.size()));
+      Arrays.fill(codes, size, codes.length, CODE_UNSET);
+    }
+    codes[sample] = code;
+  }
+
+  /**
+   * Gets the code of an allele, adding the allele to the dictionary if needed
+   * @param allele the allele
+   * @return the code of the allele
+   */
+  private short encode(String allele) {
+    Short code = dictionaryCodes.get(allele);
+    if(code == null) {
+      if(dictionary.size() > Short.MAX_VALUE)
+        throw new IllegalStateException("Too many distinct alleles for marker ["+name+"]");
+      code = (short)dictionary.size();
+      dictionary.add(allele);
+      dictionaryCodes.put(allele, code);
+    }
+    return code;
   }
 
   /**
    * Gets allele alleles for this marker
-   * @return unsorted collection of allele
+   * @return collection of allele, in the order of the samples
    */
   public Collection<String> getAllAlleles(){
-    return this.alleles.values();
+    ArrayList<String> ret = new ArrayList<>(codes.length);
+    for(short code : codes)
+      if(code != CODE_UNSET)
+        ret.add(dictionary.get(code));
+    return ret;
   }
-}
\ No newline at end of file
+}
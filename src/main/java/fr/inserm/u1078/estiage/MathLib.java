@@ -39,6 +39,16 @@ public class MathLib {
     return theta;
   }
 
+  /**
+   * Uses the Kosambi formula to compute theta from tau, for a batch of values
+   * @param taus the frequencies of genetic recombination
+   * @param thetas the array receiving the recombination fractions (can be taus itself)
+   */
+  public static final void kosambiTheta(double[] taus, double[] thetas){
+    for(int i = 0; i < taus.length; i++)
+      thetas[i] = kosambiTheta(taus[i]);
+  }
+
   /**
    * Uses the Kosambi formula to compute Tau from theta
    * @param theta the recombination fraction theta
@@ -1,56 +1,78 @@
 package fr.inserm.u1078.estiage;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 
 /**
- * Ranks elements (sorted be number of occurrences DESC)
+ * Ranks integer-coded elements (sorted be number of occurrences DESC, then by code ASC)<br/>
+ * The elements are coded from 0 to n-1, and counted with {@link #add(int)}.
+ * The ranking is reusable (see {@link #reset(int)}) and does not allocate once its capacity is reached
  *
  * @author Thomas E. Ludwig (INSERM - U1078)
  * Started on             2023-11-23
  * Checked for release on XXXX-XX-XX
  * Unit Test defined on   XXXX-XX-XX
  */
-public class Ranking<T> {
-  //TODO generalize sorting order and put in a lib
+public class Ranking {
+  private int[] counts;
+  private long[] keys;
+  private int n;
+  private int size;
+  private int top;
 
-  private final Object[] rankedElements;
-  private final int[] occurrences;
+  /**
+   * Builds an empty Ranking
+   * @param capacity the expected number of distinct elements
+   */
+  public Ranking(int capacity) {
+    counts = new int[Math.max(1, capacity)];
+    keys = new long[counts.length];
+  }
 
   /**
-   * Builds a Ranking from a HashMap(Element, Number of occurrences)
-   * @param counts keys are elements, values are number of occurrences for each element
+   * Clears the counts
+   * @param n the number of distinct elements (coded from 0 to n-1)
    */
-  public Ranking(HashMap<T, Integer> counts) {
-    int size = counts.size();
-    rankedElements = new Object[size];
-    occurrences = new int[size];
+  public void reset(int n) {
+    if(n > counts.length) {
+      counts = new int[n];
+      keys = new long[n];
+    } else
+      Arrays.fill(counts, 0, n, 0);
+    this.n = n;
+    this.size = 0;
+    this.top = 0;
+  }
 
-    //rank the values by count DESC
-    for (int i = 0; i < size; i++) {
-      int maxOccurrence = 0;
-      T top = null;
-      for (T element : counts.keySet()) {
-        int occurrence = counts.get(element);
-        if (occurrence > maxOccurrence) {
-          maxOccurrence = occurrence;
-          top = element;
-        }
-      }
-      occurrences[i] = maxOccurrence;
-      rankedElements[i] = top;
-      counts.remove(top);
-    }
+  /**
+   * Counts one occurrence of an element
+   * @param element the code of the element
+   */
+  public void add(int element) {
+    counts[element]++;
+  }
+
+  /**
+   * Ranks the elements with at least one occurrence
+   */
+  public void rank() {
+    size = 0;
+    //key : occurrences DESC in the high bits, code ASC in the low bits
+    for(int e = 0; e < n; e++)
+      if(counts[e] > 0)
+        keys[size++] = ((long)(Integer.MAX_VALUE - counts[e]) << 32) | e;
+    Arrays.sort(keys, 0, size);
+    top = 0;
+    while(top < size && getOccurrence(top) == getOccurrence(0))
+      top++;
   }
 
   /**
-   * Gets the value of the ith element
+   * Gets the code of the ith element
    * @param i the index (rank) of the element
    * @return the element
    */
-  @SuppressWarnings("unchecked")
-  public T getElement(int i) {
-    return (T) rankedElements[i];
+  public int getElement(int i) {
+    return (int)keys[i];
   }
 
   /**
@@ -59,7 +81,16 @@ public class Ranking<T> {
    * @return the number of occurrences
    */
   public int getOccurrence(int i) {
-    return occurrences[i];
+    return Integer.MAX_VALUE - (int)(keys[i] >>> 32);
+  }
+
+  /**
+   * Gets the number of occurrences of an element
+   * @param element the code of the element
+   * @return the number of occurrences (0 if the element was not seen)
+   */
+  public int getCount(int element) {
+    return counts[element];
   }
 
   /**
@@ -67,24 +98,24 @@ public class Ranking<T> {
    * @return the number of ranked elements
    */
   public int size(){
-    return rankedElements.length;
+    return size;
+  }
+
+  /**
+   * Gets the number of elements with top occurrences (the top elements are the first ones of the ranking)
+   * @return the number of ex aequo elements at the top of the ranking
+   */
+  public int getTopSize(){
+    return top;
   }
 
   /**
-   * Gets all elements with top occurrences
-   * @return an ArrayList with all the top elements
+   * Checks if an element has top occurrences
+   * @param element the code of the element
+   * @return true if the element has top occurrences
    */
-  public ArrayList<T> getTopElements(){
-    ArrayList<T> ret = new ArrayList<>();
-    if(!isEmpty()) {
-      ret.add(getElement(0));
-      for(int i = 1 ; i < size(); i++)
-        if(getOccurrence(i) == getOccurrence(0))
-          ret.add(getElement(i));
-        else
-          break;
-    }
-    return ret;
+  public boolean isTop(int element){
+    return !isEmpty() && counts[element] == getOccurrence(0);
   }
 
   /**
@@ -92,9 +123,7 @@ public class Ranking<T> {
    * @return true if there is more than 1 element with max occurrences
    */
   public boolean hasTopExAequo(){
-    if(size() < 2)
-      return false;
-    return occurrences[0] == occurrences[1];
+    return top > 1;
   }
 
   /**
@@ -102,6 +131,6 @@ public class Ranking<T> {
    * @return true if the ranking is empty
    */
   public boolean isEmpty(){
-    return size() < 1;
+    return size < 1;
   }
 }
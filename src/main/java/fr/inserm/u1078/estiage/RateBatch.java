@@ -0,0 +1,184 @@
+package fr.inserm.u1078.estiage;
+
+import fr.inserm.u1078.tludwig.maok.UniversalReader;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * Recombination fractions for many pairs of positions<br/>
+ * Input lines (whitespace separated, # for comments)<ul>
+ *   <li>without target : [chr] position1 position2</li>
+ *   <li>with a target (chr:pos) : [chr:]position, measured against the target</li>
+ * </ul>
+ * The genetic map is loaded once per chromosome, for the union of all the spans, and the results are written as TSV, in the order of the input
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class RateBatch {
+  private static final String T = "\t";
+  public static final String HEADER = String.join(T, "#chr", "position1", "position2", "distance(b)", "distance(Mb)", "rate", "cM", "Morgans", "theta");
+
+  private final String hapmapFilename;
+  private final ArrayList<String> chromosomes = new ArrayList<>();
+  private final LinkedHashMap<String, Integer> chromosomeIndex = new LinkedHashMap<>();
+  private int size = 0;
+  private int[] chr = new int[1024];
+  private int[] p1 = new int[1024];
+  private int[] p2 = new int[1024];
+
+  /**
+   * Creates an empty batch
+   * @param hapmapFilename the name of the genetic map (text or store)
+   */
+  public RateBatch(String hapmapFilename) {
+    this.hapmapFilename = hapmapFilename;
+  }
+
+  /**
+   * Reads the pairs from a file
+   * @param filename the name of the file
+   * @param target the target (chr:pos), or null if the file contains pairs of positions
+   * @throws IOException if the file can't be read
+   * @throws EstiageFormatException if a line can't be parsed
+   */
+  public void read(String filename, String target) throws IOException, EstiageFormatException {
+    String targetChr = null;
+    int targetPos = 0;
+    if(target != null) {
+      String[] f = target.split(":");
+      try {
+        targetChr = f[0];
+        targetPos = Integer.parseInt(f[1]);
+      } catch(ArrayIndexOutOfBoundsException | NumberFormatException e) {
+        throw new EstiageFormatException("Unexpected format for target ["+target+"], should be chr:pos", e);
+      }
+    }
+
+    UniversalReader in = new UniversalReader(filename);
+    String line;
+    int nb = 0;
+    while((line = in.readLine()) != null) {
+      nb++;
+      line = line.trim();
+      if(line.isEmpty() || line.startsWith("#"))
+        continue;
+      String[] f = line.split("\\s+");
+      try {
+        if(target != null) {
+          int idx = f[0].lastIndexOf(':');
+          if(idx > -1 && !Utils.normalizeChromosome(f[0].substring(0, idx)).equals(Utils.normalizeChromosome(targetChr)))
+            throw new EstiageFormatException("Chromosome of ["+f[0]+"] differs from the target ["+target+"] on line ["+nb+"]");
+          add(targetChr, Integer.parseInt(f[0].substring(idx + 1)), targetPos);
+        } else if(f.length > 2)
+          add(f[0], Integer.parseInt(f[1]), Integer.parseInt(f[2]));
+        else
+          add(null, Integer.parseInt(f[0]), Integer.parseInt(f[1]));
+      } catch(ArrayIndexOutOfBoundsException | NumberFormatException e) {
+        throw new EstiageFormatException("Unable to parse line ["+nb+"] of ["+filename+"] : ["+line+"]", e);
+      }
+    }
+    in.close();
+    Log.info(size+" pairs read from ["+filename+"] on "+chromosomes.size()+" chromosome(s)");
+  }
+
+  /**
+   * Adds a pair of positions
+   * @param chromosome the chromosome (null if the genetic map contains a single chromosome)
+   * @param position1 the first position
+   * @param position2 the second position
+   */
+  public void add(String chromosome, int position1, int position2) {
+    Integer c = chromosomeIndex.get(chromosome);
+    if(c == null) {
+      c = chromosomes.size();
+      chromosomes.add(chromosome);
+      chromosomeIndex.put(chromosome, c);
+    }
+    if(size == p1.length) {
+      chr = Arrays.copyOf(chr, 2 * size);
+      p1 = Arrays.copyOf(p1, 2 * size);
+      p2 = Arrays.copyOf(p2, 2 * size);
+    }
+    chr[size] = c;
+    p1[size] = position1;
+    p2[size] = position2;
+    size++;
+  }
+
+  /**
+   * Computes the recombination fractions and writes them as TSV
+   * @param out where to write the results
+   * @throws IOException if the genetic map can't be read
+   * @throws EstiageFormatException if the genetic map is empty
+   */
+  public void export(PrintStream out) throws IOException, EstiageFormatException {
+    double[] rates = new double[size];
+    double[] mb = new double[size];
+    double[] cM = new double[size];
+    double[] morgans = new double[size];
+    double[] thetas = new double[size];
+
+    //one map per chromosome, covering all the spans
+    for(int c = 0; c < chromosomes.size(); c++) {
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      for(int i = 0; i < size; i++)
+        if(chr[i] == c) {
+          min = Math.min(min, Math.min(p1[i], p2[i]));
+          max = Math.max(max, Math.max(p1[i], p2[i]));
+        }
+      HapMap hapMap = new HapMap(hapmapFilename, chromosomes.get(c), min, max);
+      for(int i = 0; i < size; i++)
+        if(chr[i] == c)
+          rates[i] = hapMap.getRate(p1[i], p2[i]);
+    }
+
+    for(int i = 0; i < size; i++) {
+      mb[i] = getDistance(p1[i], p2[i]) * 0.000001;
+      cM[i] = MathLib.getCentiMorgan(rates[i], mb[i]);
+      morgans[i] = cM[i] / 100; //from cMorgans to Morgans
+    }
+    MathLib.kosambiTheta(morgans, thetas);
+
+    out.println(HEADER);
+    StringBuilder sb = new StringBuilder();
+    for(int i = 0; i < size; i++) {
+      String chromosome = chromosomes.get(chr[i]);
+      sb.setLength(0);
+      sb.append(chromosome == null ? "." : chromosome)
+          .append(T).append(p1[i])
+          .append(T).append(p2[i])
+          .append(T).append(getDistance(p1[i], p2[i]))
+          .append(T).append(mb[i])
+          .append(T).append(rates[i])
+          .append(T).append(cM[i])
+          .append(T).append(morgans[i])
+          .append(T).append(thetas[i]);
+      out.println(sb);
+    }
+    out.flush();
+  }
+
+  /**
+   * Distance in bases between two positions, both included, in either order (used by rate and rates)
+   * @param position1 the first position
+   * @param position2 the second position
+   * @return the distance in bases
+   */
+  static int getDistance(int position1, int position2) {
+    return 1 + Math.abs(position2 - position1);
+  }
+
+  /**
+   * @return the number of pairs in the batch
+   */
+  public int size() {
+    return size;
+  }
+}
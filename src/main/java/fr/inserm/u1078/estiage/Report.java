@@ -0,0 +1,314 @@
+package fr.inserm.u1078.estiage;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * Machine-readable report of a run, written as JSON with the option --report report.json<ul>
+ *   <li>stages : number of calls, wall time and process CPU time (the CPU time of the whole process while the stage runs, so including the worker threads and any concurrent stage)</li>
+ *   <li>reads : per source, lines and characters of text read (from the decompressed text, one terminator per line), and bytes of the files read at once (their size)</li>
+ *   <li>processes : number of external processes launched</li>
+ *   <li>counters : annotation cache hits and misses</li>
+ *   <li>results : size of the outputs (bytes written, markers, samples) and of the estimations (generations evaluated)</li>
+ *   <li>peak heap : sum of the peak usages of the heap memory pools</li>
+ * </ul>
+ * The report is written when the JVM exits, so it is also written when a command fails.
+ * When no report is requested, all the methods return immediately
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class Report {
+  public static final String STAGE_READ = "input reading";
+  public static final String STAGE_VCF = "vcf parsing";
+  public static final String STAGE_HAPLOTYPES = "haplotype extension";
+  public static final String STAGE_GNOMAD = "gnomad lookup";
+  public static final String STAGE_MAP = "map interpolation";
+  public static final String STAGE_ESTIMATION = "estimation";
+  public static final String STAGE_EXPORT = "export";
+
+  public static final String CACHE_HITS = "cache hits";
+  public static final String CACHE_MISSES = "cache misses";
+  public static final String RESULT_BYTES = "bytes";
+  public static final String RESULT_MARKERS_LEFT = "markers left";
+  public static final String RESULT_MARKERS_RIGHT = "markers right";
+  public static final String RESULT_SAMPLES = "samples";
+  public static final String RESULT_GENERATIONS = "generations";
+
+  private static final Stage NONE = new Stage(null, null);
+  private static volatile Report current = null;
+
+  private final String filename;
+  private final String[] arguments;
+  private final long startWall;
+  private final long startCPU;
+  private final LinkedHashMap<String, long[]> stages;
+  private final LinkedHashMap<String, long[]> reads;
+  private final LinkedHashMap<String, Long> processes;
+  private final LinkedHashMap<String, Long> counters;
+  private final LinkedHashMap<String, LinkedHashMap<String, Long>> results;
+
+  private Report(String filename, String[] arguments) {
+    this.filename = filename;
+    this.arguments = arguments;
+    this.stages = new LinkedHashMap<>();
+    this.reads = new LinkedHashMap<>();
+    this.processes = new LinkedHashMap<>();
+    this.counters = new LinkedHashMap<>();
+    this.results = new LinkedHashMap<>();
+    for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+      if(pool.getType() == MemoryType.HEAP)
+        pool.resetPeakUsage();
+    this.startWall = System.nanoTime();
+    this.startCPU = getProcessCPUTime();
+  }
+
+  /**
+   * Starts recording the report of the run. The report is written to the file when the JVM exits
+   * @param filename the name of the JSON file
+   * @param arguments the arguments of the command
+   */
+  public static synchronized void enable(String filename, String[] arguments) {
+    if(current != null)
+      return;
+    final Report report = new Report(filename, arguments);
+    current = report;
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        report.write();
+      } catch(IOException e) {
+        System.err.println("Could not write report ["+report.filename+"] : "+e.getMessage());
+      }
+    }, "Report-writer"));
+  }
+
+  /**
+   * @return true if a report is being recorded
+   */
+  public static boolean isEnabled() {
+    return current != null;
+  }
+
+  /**
+   * Starts a stage. The returned stage must be ended with {@link Stage#end()}
+   * @param name the name of the stage, the times of the stages with the same name are added
+   * @return the running stage
+   */
+  public static Stage start(String name) {
+    Report report = current;
+    return report == null ? NONE : new Stage(report, name);
+  }
+
+  /**
+   * Records text read from a source
+   * @param source the name of the source
+   * @param lines the number of lines read
+   * @param chars the number of characters read, counting one terminator per line
+   */
+  public static void read(String source, long lines, long chars) {
+    read(source, lines, chars, 0);
+  }
+
+  /**
+   * Records a file read at once (only its size is counted)
+   * @param filename the name of the file
+   */
+  public static void readFile(String filename) {
+    if(current != null)
+      read(filename, 0, 0, new File(filename).length());
+  }
+
+  private static void read(String source, long lines, long chars, long bytes) {
+    Report report = current;
+    if(report == null)
+      return;
+    synchronized(report) {
+      long[] read = report.reads.computeIfAbsent(source, k -> new long[4]);
+      read[0]++;
+      read[1] += lines;
+      read[2] += chars;
+      read[3] += bytes;
+    }
+  }
+
+  /**
+   * Records the launch of an external process
+   * @param command the name of the program
+   */
+  public static void launch(String command) {
+    Report report = current;
+    if(report != null)
+      report.add(report.processes, command, 1);
+  }
+
+  /**
+   * Adds a value to a counter
+   * @param counter the name of the counter
+   * @param value the value to add
+   */
+  public static void count(String counter, long value) {
+    Report report = current;
+    if(report != null)
+      report.add(report.counters, counter, value);
+  }
+
+  /**
+   * Records the size of a result
+   * @param result the name of the result (output file, estimation...)
+   * @param size the name of the size
+   * @param value the size, the values with the same name are added
+   */
+  public static void result(String result, String size, long value) {
+    Report report = current;
+    if(report == null)
+      return;
+    synchronized(report) {
+      report.add(report.results.computeIfAbsent(result, k -> new LinkedHashMap<>()), size, value);
+    }
+  }
+
+  /**
+   * Records the size of a written file
+   * @param filename the name of the file
+   */
+  public static void output(String filename) {
+    if(current != null)
+      result(filename, RESULT_BYTES, new File(filename).length());
+  }
+
+  private synchronized void add(LinkedHashMap<String, Long> map, String key, long value) {
+    map.merge(key, value, Long::sum);
+  }
+
+  /**
+   * @return the CPU time used by the process, in nanoseconds (-1 if not available)
+   */
+  private static long getProcessCPUTime() {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if(os instanceof com.sun.management.OperatingSystemMXBean)
+      return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+    return -1;
+  }
+
+  /**
+   * @return the sum of the peak usages of the heap memory pools, in bytes
+   */
+  private static long getPeakHeap() {
+    long peak = 0;
+    for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+      if(pool.getType() == MemoryType.HEAP)
+        peak += pool.getPeakUsage().getUsed();
+    return peak;
+  }
+
+  private static double millis(long nanos) {
+    return nanos < 0 ? -1 : nanos / 1000000D;
+  }
+
+  /**
+   * Builds the content of the report
+   * @return the report, as a JSON object
+   */
+  public synchronized LinkedHashMap<String, Object> toMap() {
+    long cpu = getProcessCPUTime();
+    LinkedHashMap<String, Object> map = new LinkedHashMap<>();
+    map.put("version", Main.getVersion());
+    map.put("command", arguments.length > 0 ? arguments[0] : null);
+    map.put("arguments", new ArrayList<>(Arrays.asList(arguments)));
+    map.put("threads", Utils.getThreads());
+    map.put("wallMs", millis(System.nanoTime() - startWall));
+    map.put("cpuMs", cpu < 0 || startCPU < 0 ? -1D : millis(cpu - startCPU));
+    map.put("peakHeapBytes", getPeakHeap());
+    LinkedHashMap<String, Object> stageMap = new LinkedHashMap<>();
+    for(String name : stages.keySet()) {
+      long[] stage = stages.get(name);
+      LinkedHashMap<String, Object> s = new LinkedHashMap<>();
+      s.put("calls", stage[0]);
+      s.put("wallMs", millis(stage[1]));
+      s.put("processCpuMs", stage[2] < 0 ? -1D : millis(stage[2]));
+      stageMap.put(name, s);
+    }
+    map.put("stages", stageMap);
+    LinkedHashMap<String, Object> readMap = new LinkedHashMap<>();
+    long lines = 0;
+    long chars = 0;
+    long bytes = 0;
+    for(String source : reads.keySet()) {
+      long[] read = reads.get(source);
+      LinkedHashMap<String, Object> r = new LinkedHashMap<>();
+      r.put("reads", read[0]);
+      r.put("lines", read[1]);
+      r.put("chars", read[2]);
+      r.put("bytes", read[3]);
+      readMap.put(source, r);
+      lines += read[1];
+      chars += read[2];
+      bytes += read[3];
+    }
+    map.put("linesRead", lines);
+    map.put("charsRead", chars);
+    map.put("bytesRead", bytes);
+    map.put("reads", readMap);
+    map.put("processes", new LinkedHashMap<>(processes));
+    map.put("counters", new LinkedHashMap<>(counters));
+    LinkedHashMap<String, Object> resultMap = new LinkedHashMap<>();
+    for(String result : results.keySet())
+      resultMap.put(result, new LinkedHashMap<>(results.get(result)));
+    map.put("results", resultMap);
+    return map;
+  }
+
+  /**
+   * Writes the report to its file
+   * @throws IOException if the file can't be written
+   */
+  public void write() throws IOException {
+    PrintWriter out = new PrintWriter(new FileWriter(filename));
+    out.println(JSON.toJSON(toMap()));
+    out.close();
+  }
+
+  /**
+   * A running stage
+   */
+  public static class Stage {
+    private final Report report;
+    private final String name;
+    private final long wall;
+    private final long cpu;
+
+    private Stage(Report report, String name) {
+      this.report = report;
+      this.name = name;
+      this.wall = report == null ? 0 : System.nanoTime();
+      this.cpu = report == null ? 0 : getProcessCPUTime();
+    }
+
+    /**
+     * Ends the stage, and adds its times to the report. Must be called in a finally block, so that failed stages are also counted
+     */
+    public void end() {
+      if(report == null)
+        return;
+      long w = System.nanoTime() - wall;
+      long c = cpu < 0 ? -1 : getProcessCPUTime() - cpu;
+      synchronized(report) {
+        long[] stage = report.stages.computeIfAbsent(name, k -> new long[3]);
+        stage[0]++;
+        stage[1] += w;
+        stage[2] = stage[2] < 0 || c < 0 ? -1 : stage[2] + c;
+      }
+    }
+  }
+}
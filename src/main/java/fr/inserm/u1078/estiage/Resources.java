@@ -0,0 +1,160 @@
+package fr.inserm.u1078.estiage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the opened resources (genetic maps, frequency files, VCF headers)<br/>
+ * Without the registry, each command opens its resources. A long-running process (see {@link Server}) keeps them open between jobs :<ul>
+ *   <li>genetic maps : stores stay memory-mapped, text maps (HapMap format) are loaded once in memory</li>
+ *   <li>gnomAD : frequency stores stay memory-mapped, tabixed VCF files are checked once</li>
+ *   <li>VCF files : the header (samples) is read once</li>
+ * </ul>
+ * Each resource is kept with the identity of its file (path, size and modification date, see {@link AnnotationCache#identity(String)}) :
+ * a modified file is opened again, and replaces the older version, so that only the latest version of each file is kept.
+ * The registry is safe to use from concurrent jobs
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class Resources {
+  private static final Resources NONE = new Resources(false);
+
+  private final boolean keepOpen;
+  /* Resources, by canonical path (and mode for VCF files) */
+  private final ConcurrentHashMap<String, Entry<GeneticMapStore>> maps;
+  private final ConcurrentHashMap<String, Entry<GnomAD>> gnomads;
+  private final ConcurrentHashMap<String, Entry<VCFFile>> vcfs;
+
+  /**
+   * Creates a registry that keeps the resources open
+   */
+  public Resources() {
+    this(true);
+  }
+
+  private Resources(boolean keepOpen) {
+    this.keepOpen = keepOpen;
+    this.maps = new ConcurrentHashMap<>();
+    this.gnomads = new ConcurrentHashMap<>();
+    this.vcfs = new ConcurrentHashMap<>();
+  }
+
+  /**
+   * Gets the registry that opens the resources each time they are requested (behaviour of single commands)
+   * @return the registry that keeps nothing open
+   */
+  public static Resources none() {
+    return NONE;
+  }
+
+  /**
+   * Gets the recombination rates for a window
+   * @param filename the name of the HapMap file, or of a genetic map store (.estimap)
+   * @param chr the chromosome to consider, null if the file contains a single chromosome
+   * @param first the first position to consider
+   * @param last the last position to consider
+   * @return the HapMap object for the window
+   * @throws IOException if the genetic map can't be read
+   */
+  public HapMap getHapMap(String filename, String chr, int first, int last) throws IOException {
+    if(!keepOpen)
+      return new HapMap(filename, chr, first, last);
+    GeneticMapStore store;
+    try {
+      store = get(maps, path(filename), filename,
+          () -> GeneticMapStore.isStore(filename) ? new GeneticMapStore(filename) : GeneticMapStore.load(filename, GeneticMapStore.Format.HAPMAP));
+    } catch(EstiageFormatException e) {
+      Log.warning("Genetic map ["+filename+"] can't be kept open ("+e.getMessage()+"), it will be read for each request");
+      return new HapMap(filename, chr, first, last);
+    }
+    return new HapMap(store, chr, first, last);
+  }
+
+  /**
+   * Gets a gnomAD resource
+   * @param filename the name of the GnomAD file (tabixed VCF or frequency store)
+   * @return the GnomAD object
+   * @throws IOException if the file can't be read
+   * @throws EstiageFormatException if the frequency store is invalid
+   */
+  public GnomAD getGnomAD(String filename) throws IOException, EstiageFormatException {
+    if(!keepOpen)
+      return new GnomAD(filename);
+    return get(gnomads, path(filename), filename, () -> new GnomAD(filename));
+  }
+
+  /**
+   * Gets a VCF file. The returned object is not shared, and its variant can be set
+   * @param filename the name of the VCF file
+   * @param mode the mode to use
+   * @return a VCFFile object
+   * @throws IOException the VCF file can't be read
+   * @throws EstiageFormatException the VCF file has no header or not enough columns
+   */
+  public VCFFile getVCFFile(String filename, VCFFile.Mode mode) throws IOException, EstiageFormatException {
+    if(!keepOpen)
+      return new VCFFile(filename, mode);
+    return new VCFFile(get(vcfs, path(filename) + "|" + mode, filename, () -> new VCFFile(filename, mode)), mode);
+  }
+
+  /**
+   * Gets a summary of the opened resources
+   * @return a printable summary
+   */
+  public String getSummary() {
+    return "Opened resources : "+maps.size()+" genetic maps, "+gnomads.size()+" gnomAD files, "+vcfs.size()+" VCF files";
+  }
+
+  /**
+   * Gets a resource, opening it if it is absent or if its file has changed since it was opened (the older version is then dropped)
+   * @param resources the opened resources
+   * @param key the key of the resource
+   * @param filename the name of the file of the resource
+   * @param opener opens the resource
+   * @return the resource
+   * @throws IOException if the file can't be read
+   * @throws EstiageFormatException if the file is invalid
+   */
+  private static <T> T get(ConcurrentHashMap<String, Entry<T>> resources, String key, String filename, Opener<T> opener) throws IOException, EstiageFormatException {
+    final String identity = AnnotationCache.identity(filename);
+    Entry<T> entry = resources.get(key);
+    if(entry != null && entry.identity.equals(identity))
+      return entry.value;
+    final Entry<T> opened = new Entry<>(identity, opener.open());
+    //keeps the entry of a concurrent job that opened the same version, replaces any other version
+    return resources.merge(key, opened, (previous, current) -> previous.identity.equals(current.identity) ? previous : current).value;
+  }
+
+  /**
+   * @param filename the name of a file
+   * @return the canonical path of the file
+   * @throws IOException if the canonical path can't be resolved
+   */
+  private static String path(String filename) throws IOException {
+    return new File(filename).getCanonicalPath();
+  }
+
+  /**
+   * Opens a resource
+   */
+  private interface Opener<T> {
+    T open() throws IOException, EstiageFormatException;
+  }
+
+  /**
+   * An opened resource, with the identity of its file when it was opened
+   */
+  private static class Entry<T> {
+    private final String identity;
+    private final T value;
+
+    Entry(String identity, T value) {
+      this.identity = identity;
+      this.value = value;
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package fr.inserm.u1078.estiage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Index of the samples, shared by all the Markers of a file, so that alleles can be stored in arrays (one cell per sample)
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class SampleIndex {
+  private final HashMap<String, Integer> indices;
+  private final ArrayList<String> samples;
+
+  /**
+   * Creates an empty index
+   */
+  public SampleIndex() {
+    this.indices = new HashMap<>();
+    this.samples = new ArrayList<>();
+  }
+
+  /**
+   * Creates an index for the given samples
+   * @param samples the sample names, in the order of the columns
+   */
+  public SampleIndex(String[] samples) {
+    this.indices = new HashMap<>(2 * samples.length);
+    this.samples = new ArrayList<>(samples.length);
+    for(String sample : samples)
+      add(sample);
+  }
+
+  /**
+   * Gets the index of a sample
+   * @param sample the name of the sample
+   * @return the index of the sample, -1 if the sample is unknown
+   */
+  public int get(String sample) {
+    Integer idx = indices.get(sample);
+    return idx == null ? -1 : idx;
+  }
+
+  /**
+   * Gets the index of a sample, adding the sample if it is unknown
+   * @param sample the name of the sample
+   * @return the index of the sample
+   */
+  public synchronized int add(String sample) {
+    Integer idx = indices.get(sample);
+    if(idx == null) {
+      idx = samples.size();
+      samples.add(sample);
+      indices.put(sample, idx);
+    }
+    return idx;
+  }
+
+  /**
+   * @param idx the index of the sample
+   * @return the name of the sample
+   */
+  public String getSample(int idx) {
+    return samples.get(idx);
+  }
+
+  /**
+   * @return the number of samples
+   */
+  public int size() {
+    return samples.size();
+  }
+}
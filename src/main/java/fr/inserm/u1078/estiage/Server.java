@@ -0,0 +1,455 @@
+package fr.inserm.u1078.estiage;
+
+import fr.inserm.u1078.estiage.ctranslation.AnalysisState;
+import fr.inserm.u1078.estiage.ctranslation.Bootstrap;
+import fr.inserm.u1078.estiage.ctranslation.EstiageException;
+import fr.inserm.u1078.estiage.ctranslation.InputContent;
+import fr.inserm.u1078.estiage.ctranslation.InputData;
+import fr.inserm.u1078.tludwig.maok.tools.Message;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Long-running process that keeps the resources open (see {@link Resources}) and runs jobs on a pool of workers<br/>
+ * Jobs are read as JSON lines, from stdin or from connections on a local TCP port :
+ * <pre>{"id":"job1","command":"vcf2raw","args":["cohort.vcf","cohort.estiraw","chr7:500000:C","IGNORE","CLASSICAL"]}</pre>
+ * The commands and their arguments are the same as on the command line. Each job gets a JSON line as response, as soon as it is done (responses can be in a different order than the jobs) :
+ * <pre>{"id":"job1","command":"vcf2raw","status":"ok","result":"cohort.estiraw","time":123}</pre>
+ * <pre>{"id":"job2","command":"run","status":"error","error":"...","type":"EstiageException","time":4}</pre>
+ * Special commands : "status" (opened resources and annotation cache) and "shutdown" (stops reading jobs, pending jobs are completed).<br/>
+ * Only the responses are written on stdout, logs go to stderr.
+ * The number of workers can be customized with call to java -Dthreads=N
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class Server {
+  public static final String ID = "id";
+  public static final String COMMAND = "command";
+  public static final String ARGS = "args";
+  public static final String STATUS = "status";
+  public static final String RESULT = "result";
+  public static final String ERROR = "error";
+  public static final String TYPE = "type";
+  public static final String TIME = "time";
+  public static final String OK = "ok";
+  public static final String KEY_STATUS = "status";
+  public static final String KEY_SHUTDOWN = "shutdown";
+
+  private final EstiagePipeline pipeline;
+  private final ExecutorService workers;
+  /* One lock per state file, so that concurrent appends to the same state are not lost */
+  private final ConcurrentHashMap<String, Object> stateLocks = new ConcurrentHashMap<>();
+  private volatile boolean shutdown = false;
+  private ServerSocket serverSocket;
+
+  /**
+   * Creates a new Server, with {@link Utils#getThreads()} workers
+   */
+  public Server() {
+    this.pipeline = new EstiagePipeline();
+    this.workers = Executors.newFixedThreadPool(Utils.getThreads());
+  }
+
+  /**
+   * Reads jobs from stdin, writes responses on stdout, until the end of stdin or a shutdown command
+   * @throws IOException if stdin can't be read
+   * @throws InterruptedException if the server is interrupted while waiting for the pending jobs
+   */
+  public void serve() throws IOException, InterruptedException {
+    Log.info("Reading jobs from stdin with "+Utils.getThreads()+" workers");
+    try {
+      serve(System.in, System.out);
+    } finally {
+      close();
+    }
+  }
+
+  /**
+   * Listens on a local TCP port (loopback only). Each connection sends jobs and receives the responses, until the connection is closed or a shutdown command is received
+   * @param port the port
+   * @throws IOException if the port can't be opened
+   */
+  public void listen(int port) throws IOException {
+    serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    Log.info("Listening on ["+serverSocket.getLocalSocketAddress()+"] with "+Utils.getThreads()+" workers");
+    try {
+      while(!shutdown) {
+        final Socket socket;
+        try {
+          socket = serverSocket.accept();
+        } catch(IOException e) {
+          if(shutdown)
+            break;
+          throw e;
+        }
+        Thread connection = new Thread(() -> {
+          try(Socket s = socket) {
+            serve(s.getInputStream(), s.getOutputStream());
+          } catch(IOException | InterruptedException e) {
+            Message.error("Connection ["+socket.getRemoteSocketAddress()+"] ended with an error : "+e.getMessage());
+          }
+        });
+        connection.setDaemon(true);
+        connection.start();
+      }
+    } finally {
+      close();
+    }
+  }
+
+  /**
+   * Reads jobs from a stream and writes the responses to another, until the end of the input stream or a shutdown command.
+   * Returns once all the jobs read have been completed
+   * @param input the stream of jobs
+   * @param output the stream of responses
+   * @throws IOException if the jobs can't be read
+   * @throws InterruptedException if the server is interrupted while waiting for the pending jobs
+   */
+  public void serve(InputStream input, OutputStream output) throws IOException, InterruptedException {
+    BufferedReader in = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+    PrintStream out = new PrintStream(new BufferedOutputStream(output), false, "UTF-8");
+    ArrayList<Future<?>> pending = new ArrayList<>();
+    String line;
+    while(!shutdown && (line = in.readLine()) != null) {
+      line = line.trim();
+      if(line.isEmpty() || line.startsWith("#"))
+        continue;
+      final Job job;
+      try {
+        job = new Job(line);
+      } catch(EstiageFormatException e) {
+        respond(out, error(null, null, e, 0));
+        continue;
+      }
+      switch(job.command) {
+        case KEY_SHUTDOWN:
+          shutdown = true;
+          if(serverSocket != null)
+            serverSocket.close();
+          respond(out, job.response(OK, RESULT, "shutting down", 0));
+          break;
+        case KEY_STATUS:
+          respond(out, job.response(OK, RESULT, pipeline.getResources().getSummary()+". "+pipeline.getCache().getSummary(), 0));
+          break;
+        default:
+          pending.add(workers.submit(() -> respond(out, run(job))));
+      }
+      pending.removeIf(Future::isDone);
+    }
+    for(Future<?> future : pending) {
+      try {
+        future.get();
+      } catch(ExecutionException e) {
+        Message.error("Unexpected error while running a job : "+e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Stops the workers once the submitted jobs are done
+   */
+  public void close() {
+    workers.shutdown();
+  }
+
+  /**
+   * Writes a response
+   * @param out the stream of responses
+   * @param response the response (a JSON line)
+   */
+  private static void respond(PrintStream out, String response) {
+    synchronized(out) {
+      out.println(response);
+      out.flush();
+    }
+  }
+
+  /**
+   * Runs a job and builds its response
+   * @param job the job
+   * @return the response (a JSON line)
+   */
+  private String run(Job job) {
+    long start = System.currentTimeMillis();
+    try {
+      Object result = execute(job.command, job.args);
+      return job.response(OK, RESULT, result, System.currentTimeMillis() - start);
+    } catch(Throwable t) {
+      Message.error("Job ["+job.id+"] ("+job.command+") failed : "+t.getMessage());
+      return error(job.id, job.command, t, System.currentTimeMillis() - start);
+    }
+  }
+
+  /**
+   * Builds an error response
+   */
+  private static String error(Object id, String command, Throwable t, long time) {
+    LinkedHashMap<String, Object> response = new LinkedHashMap<>();
+    response.put(ID, id);
+    response.put(COMMAND, command);
+    response.put(STATUS, ERROR);
+    response.put(ERROR, t.getMessage() == null ? t.toString() : t.getMessage());
+    response.put(TYPE, t.getClass().getSimpleName());
+    response.put(TIME, time);
+    return JSON.toJSON(response);
+  }
+
+  /**
+   * Executes a command, with the opened resources
+   * @param command the command (same as on the command line)
+   * @param args the arguments of the command (without the command itself)
+   * @return the result of the command : the estimation for run/vcf2run, the files created otherwise
+   * @throws Exception if the command fails
+   */
+  public Object execute(String command, String[] args) throws Exception {
+    switch(command) {
+      case Main.KEY_VCF2RAW:
+        check(args, Main.KEY_VCF2RAW, Main.INPUT+Main.EXT_VCF, Main.OUTPUT+Main.EXT_RAW, Main.CHROMPOSALLELE, Main.VCFMODE, Main.METHOD);
+        return vcf2raw(args[0], args[1], args[2], mode(args[3]), method(args[4]));
+      case Main.KEY_RAW2COMPLETE:
+        check(args, Main.KEY_RAW2COMPLETE, Main.INPUT+Main.EXT_RAW, Main.OUTPUT+Main.EXT_FULL, Main.GNOMAD, Main.HAPMAP);
+        return raw2complete(args[0], args[1], args[2], args[3]);
+      case Main.KEY_VCF2COMPLETE:
+        check(args, Main.KEY_VCF2COMPLETE, Main.INPUT+Main.EXT_VCF, Main.OUTPUT+Main.EXT_FULL, Main.CHROMPOSALLELE, Main.VCFMODE, Main.METHOD, Main.GNOMAD, Main.HAPMAP);
+        return files(vcf2raw(args[0], args[0]+Main.EXT_RAW, args[2], mode(args[3]), method(args[4])),
+            raw2complete(args[0]+Main.EXT_RAW, args[1], args[5], args[6]));
+      case Main.KEY_COMPLETE2PREINPUT:
+        check(args, Main.KEY_COMPLETE2PREINPUT, Main.INPUT+Main.EXT_FULL, Main.OUTPUT+Main.EXT_PREINPUT, Main.MODELS, Main.RATE);
+        return complete2preinput(args[0], args[1], args[2], args[3]);
+      case Main.KEY_COMPLETE2INPUT:
+        check(args, Main.KEY_COMPLETE2INPUT, Main.INPUT+Main.EXT_FULL, Main.OUTPUT+Main.EXT_INPUT, Main.MODELS, Main.RATE);
+        return files(complete2preinput(args[0], Main.getPreInputName(args[1]), args[2], args[3]),
+            preinput2input(Main.getPreInputName(args[1]), args[1]));
+      case Main.KEY_PREINPUT2INPUT:
+        check(args, Main.KEY_PREINPUT2INPUT, Main.INPUT+Main.EXT_PREINPUT, Main.OUTPUT+Main.EXT_INPUT);
+        return preinput2input(args[0], args[1]);
+      case Main.KEY_RAW2PREINPUT:
+        check(args, Main.KEY_RAW2PREINPUT, Main.INPUT+Main.EXT_RAW, Main.OUTPUT+Main.EXT_PREINPUT, Main.GNOMAD, Main.HAPMAP, Main.MODELS, Main.RATE);
+        return files(raw2complete(args[0], args[0]+Main.EXT_FULL, args[2], args[3]),
+            complete2preinput(args[0]+Main.EXT_FULL, args[1], args[4], args[5]));
+      case Main.KEY_RAW2INPUT:
+        check(args, Main.KEY_RAW2INPUT, Main.INPUT+Main.EXT_RAW, Main.OUTPUT+Main.EXT_INPUT, Main.GNOMAD, Main.HAPMAP, Main.MODELS, Main.RATE);
+        return files(raw2complete(args[0], args[0]+Main.EXT_FULL, args[2], args[3]),
+            complete2preinput(args[0]+Main.EXT_FULL, Main.getPreInputName(args[1]), args[4], args[5]),
+            preinput2input(Main.getPreInputName(args[1]), args[1]));
+      case Main.KEY_VCF2PREINPUT:
+        check(args, Main.KEY_VCF2PREINPUT, Main.INPUT+Main.EXT_VCF, Main.OUTPUT+Main.EXT_PREINPUT, Main.CHROMPOSALLELE, Main.VCFMODE, Main.METHOD, Main.GNOMAD, Main.HAPMAP, Main.MODELS, Main.RATE);
+        return files(vcf2raw(args[0], args[0]+Main.EXT_RAW, args[2], mode(args[3]), method(args[4])),
+            raw2complete(args[0]+Main.EXT_RAW, args[0]+Main.EXT_RAW+Main.EXT_FULL, args[5], args[6]),
+            complete2preinput(args[0]+Main.EXT_RAW+Main.EXT_FULL, args[1], args[7], args[8]));
+      case Main.KEY_VCF2INPUT:
+        check(args, Main.KEY_VCF2INPUT, Main.INPUT+Main.EXT_VCF, Main.OUTPUT+Main.EXT_INPUT, Main.CHROMPOSALLELE, Main.VCFMODE, Main.METHOD, Main.GNOMAD, Main.HAPMAP, Main.MODELS, Main.RATE);
+        return files(vcf2raw(args[0], args[0]+Main.EXT_RAW, args[2], mode(args[3]), method(args[4])),
+            raw2complete(args[0]+Main.EXT_RAW, args[0]+Main.EXT_RAW+Main.EXT_FULL, args[5], args[6]),
+            complete2preinput(args[0]+Main.EXT_RAW+Main.EXT_FULL, Main.getPreInputName(args[1]), args[7], args[8]),
+            preinput2input(Main.getPreInputName(args[1]), args[1]));
+      case Main.KEY_VCF2RUN:
+        check(args, Main.KEY_VCF2RUN, Main.INPUT+Main.EXT_VCF, Main.CHROMPOSALLELE, Main.VCFMODE, Main.METHOD, Main.GNOMAD, Main.HAPMAP, Main.MODELS, Main.RATE);
+        return vcf2run(args[0], args[1], mode(args[2]), method(args[3]), args[4], args[5], args[6], args[7], args.length > 8 ? args[8] : null);
+      case Main.KEY_RUN:
+        check(args, Main.KEY_RUN, Main.INPUT+"["+Main.EXT_INPUT+"|"+Main.EXT_BINARY+"]");
+        return pipeline.estimate(pipeline.readInput(args[0])).toString();
+      case Main.KEY_BOOTSTRAP:
+        check(args, Main.KEY_BOOTSTRAP, Main.INPUT+"["+Main.EXT_INPUT+"|"+Main.EXT_BINARY+"]");
+        return pipeline.bootstrap(pipeline.readInput(args[0]),
+            args.length > 1 ? integer(args[1]) : Bootstrap.DEFAULT_REPLICATES,
+            args.length > 2 ? Long.parseLong(args[2]) : Bootstrap.DEFAULT_SEED).toString();
+      case Main.KEY_INFLUENCE:
+        check(args, Main.KEY_INFLUENCE, Main.INPUT+"["+Main.EXT_INPUT+"|"+Main.EXT_BINARY+"]");
+        return pipeline.influence(pipeline.readInput(args[0])).toString();
+      case Main.KEY_STATE:
+        check(args, Main.KEY_STATE, Main.INPUT+"["+Main.EXT_INPUT+"|"+Main.EXT_BINARY+"]", Main.STATE+Main.EXT_STATE);
+        return state(args[0], args[1]);
+      case Main.KEY_APPEND:
+        check(args, Main.KEY_APPEND, Main.STATE+Main.EXT_STATE, Main.NEW_INDIVIDUALS+"["+Main.EXT_INPUT+"|"+Main.EXT_BINARY+"]");
+        return append(args[0], args[1]);
+      case Main.KEY_JOINT:
+        check(args, Main.KEY_JOINT, Main.COHORT+"1["+Main.EXT_INPUT+"|"+Main.EXT_BINARY+"]", Main.COHORT+"2["+Main.EXT_INPUT+"|"+Main.EXT_BINARY+"]");
+        InputData[] cohorts = new InputData[args.length];
+        for(int c = 0; c < args.length; c++)
+          cohorts[c] = pipeline.readInput(args[c]);
+        return pipeline.joint(cohorts, args).toString();
+      case Main.KEY_CONVERTINPUT:
+        check(args, Main.KEY_CONVERTINPUT, Main.INPUT+"["+Main.EXT_INPUT+"|"+Main.EXT_BINARY+"]", Main.OUTPUT+"["+Main.EXT_INPUT+"|"+Main.EXT_BINARY+"]");
+        Main.convertInput(args[0], args[1]);
+        return args[1];
+      case Main.KEY_PHASE:
+        check(args, Main.KEY_PHASE, Main.INPUT, Main.INPUT+Main.EXT_PHASED, Main.COLUMN, Main.TARGET_POSITION, Main.STOP_ON_EX_AEQUO, Main.IGNORE_MISSING);
+        Main.phase(args[0], args[1], integer(args[2]), args[3], bool(args[4]), bool(args[5]));
+        return args[1];
+      case Main.KEY_EMPHASE:
+        check(args, Main.KEY_EMPHASE, Main.INPUT, Main.INPUT+Main.EXT_PHASED, Main.COLUMN, Main.TARGET_POSITION);
+        Main.emphase(args[0], args[1], integer(args[2]), args[3]);
+        return args[1];
+      default:
+        throw new EstiageFormatException("Unknown or unsupported command ["+command+"]");
+    }
+  }
+
+  private String vcf2raw(String vcf, String raw, String chrPosAllele, VCFFile.Mode mode, VCFFile.Method method) throws IOException, EstiageFormatException, InterruptedException {
+    pipeline.vcf2raw(vcf, chrPosAllele, mode, method).export(raw);
+    return raw;
+  }
+
+  private String raw2complete(String raw, String complete, String gnomad, String hapmap) throws IOException, EstiageFormatException {
+    pipeline.raw2complete(pipeline.read(raw, TSVFile.Type.RAW), gnomad, hapmap).export(complete);
+    return complete;
+  }
+
+  private String complete2preinput(String complete, String preinput, String mutationModel, String mutationRate) throws IOException, EstiageFormatException {
+    int model = EstiagePipeline.parseMutationModel(mutationModel);
+    double rate = EstiagePipeline.parseMutationRate(mutationRate);
+    pipeline.complete2preinput(pipeline.read(complete, TSVFile.Type.COMPLETE), model, rate).export(preinput);
+    return preinput;
+  }
+
+  private String preinput2input(String preinput, String input) throws IOException, EstiageFormatException {
+    Main.preinput2input(preinput, input);
+    return input;
+  }
+
+  private String vcf2run(String vcf, String chrPosAllele, VCFFile.Mode mode, VCFFile.Method method, String gnomad, String hapmap, String mutationModel, String mutationRate, String prefix) throws IOException, EstiageFormatException, InterruptedException, EstiageException {
+    int model = EstiagePipeline.parseMutationModel(mutationModel);
+    double rate = EstiagePipeline.parseMutationRate(mutationRate);
+    TSVFile raw = pipeline.vcf2raw(vcf, chrPosAllele, mode, method);
+    if(prefix != null)
+      raw.export(prefix+Main.EXT_RAW);
+    TSVFile complete = pipeline.raw2complete(raw, gnomad, hapmap);
+    if(prefix != null)
+      complete.export(prefix+Main.EXT_FULL);
+    InputFile estiageInput = pipeline.complete2preinput(complete, model, rate);
+    if(prefix != null)
+      estiageInput.export(prefix+Main.EXT_PREINPUT);
+    estiageInput.fromPreInput2Input();
+    if(prefix != null)
+      estiageInput.export(prefix+Main.EXT_INPUT);
+    return pipeline.estimate(estiageInput.toInputData()).toString();
+  }
+
+  private String state(String input, String state) throws IOException, EstiageException {
+    AnalysisState analysis = AnalysisState.create(InputContent.read(input));
+    synchronized(stateLock(state)) {
+      analysis.write(state);
+    }
+    return analysis.getResults().toString();
+  }
+
+  private String append(String state, String input) throws IOException, EstiageException {
+    InputContent added = InputContent.read(input);
+    synchronized(stateLock(state)) {
+      AnalysisState analysis = AnalysisState.read(state).append(added);
+      analysis.write(state);
+      return analysis.getResults().toString();
+    }
+  }
+
+  private Object stateLock(String state) throws IOException {
+    return stateLocks.computeIfAbsent(new File(state).getCanonicalPath(), k -> new Object());
+  }
+
+  /**
+   * Checks the number of arguments of a command
+   * @param args the arguments
+   * @param names the command and the names of the expected arguments
+   * @throws EstiageFormatException if there are missing arguments
+   */
+  private static void check(String[] args, String... names) throws EstiageFormatException {
+    if(args.length < names.length - 1)
+      throw new EstiageFormatException("Missing arguments, expected : "+String.join(" ", names));
+  }
+
+  private static List<String> files(String... files) {
+    List<String> list = new ArrayList<>();
+    for(String file : files)
+      list.add(file);
+    return list;
+  }
+
+  private static VCFFile.Mode mode(String mode) throws EstiageFormatException {
+    try {
+      return VCFFile.Mode.valueOf(mode.toUpperCase());
+    } catch(IllegalArgumentException e) {
+      throw new EstiageFormatException("Unknown mode ["+mode+"], expected "+Main.VCFMODE);
+    }
+  }
+
+  private static VCFFile.Method method(String method) throws EstiageFormatException {
+    try {
+      return VCFFile.Method.valueOf(method.toUpperCase());
+    } catch(IllegalArgumentException e) {
+      throw new EstiageFormatException("Unknown method ["+method+"], expected "+Main.METHOD);
+    }
+  }
+
+  private static int integer(String value) throws EstiageFormatException {
+    try {
+      return Integer.parseInt(value);
+    } catch(NumberFormatException e) {
+      throw new EstiageFormatException("Could not parse integer ["+value+"]");
+    }
+  }
+
+  private static boolean bool(String value) {
+    return "true".equalsIgnoreCase(value) || "1".equals(value);
+  }
+
+  /**
+   * A job read from a JSON line
+   */
+  private static class Job {
+    private final Object id;
+    private final String command;
+    private final String[] args;
+
+    Job(String line) throws EstiageFormatException {
+      Object json = JSON.parse(line);
+      if(!(json instanceof Map))
+        throw new EstiageFormatException("A job must be a JSON object ["+line+"]");
+      Map<?, ?> map = (Map<?, ?>) json;
+      this.id = map.get(ID);
+      Object c = map.get(COMMAND);
+      if(!(c instanceof String))
+        throw new EstiageFormatException("Missing command in job ["+line+"]");
+      this.command = ((String) c).toLowerCase();
+      Object a = map.get(ARGS);
+      if(a == null)
+        this.args = new String[0];
+      else if(a instanceof List) {
+        List<?> list = (List<?>) a;
+        this.args = new String[list.size()];
+        for(int i = 0; i < args.length; i++)
+          args[i] = String.valueOf(list.get(i));
+      } else
+        throw new EstiageFormatException("The arguments of a job must be a JSON array ["+line+"]");
+    }
+
+    /**
+     * Builds a response for this job
+     */
+    String response(String status, String key, Object value, long time) {
+      LinkedHashMap<String, Object> response = new LinkedHashMap<>();
+      response.put(ID, id);
+      response.put(COMMAND, command);
+      response.put(STATUS, status);
+      response.put(key, value);
+      response.put(TIME, time);
+      return JSON.toJSON(response);
+    }
+  }
+}
@@ -1,18 +1,18 @@
 package fr.inserm.u1078.estiage;
 
 import fr.inserm.u1078.tludwig.maok.UniversalReader;
-import fr.inserm.u1078.tludwig.maok.tools.Message;
 
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.*;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.BitSet;
 
 /**
  * Class representing the human legible input file
  * 2 Versions:
  * RAW (just positions and genotypes)
  * COMPLETE (with recombination fractions and frequencies)
+ * Both versions can have a last column {@link #POSTERIOR}, with the posterior probability of the haplotype of each sample (see {@link EMPhasing})
  *
  * @author Thomas E. Ludwig (INSERM - U1078)
  * Started on             2021-03-18
@@ -47,11 +47,21 @@ public class TSVFile {
    */
   private final String[] samples;
 
+  /**
+   * Posterior probability of the haplotype of each sample, null if there are none
+   */
+  private double[] posteriors;
+
   /**
    * Is format complete ? (Freq, theta mb)
    */
   private Type type;
 
+  /**
+   * Header of the optional column holding the posterior probability of the haplotypes
+   */
+  public static final String POSTERIOR = "Posterior";
+
   /**
    * Creates a new TSVFile from a file
    * @param filename the name of the TSV file
@@ -61,102 +71,119 @@ public class TSVFile {
    */
   public TSVFile(String filename, Type type) throws IOException, EstiageFormatException {
     this.type = type;
+    Report.Stage stage = Report.start(Report.STAGE_READ);
+    try {
 
-    //read the whole file into an array
-    ArrayList<String[]> tmp = new ArrayList<>();
-    UniversalReader in = new UniversalReader(filename);
-    String line = in.readLine();
-    String[] f = line.split("\t", -1);
-    int nbCols = f.length;
-    tmp.add(f);
-    int nbLines = 1;
-    while ((line = in.readLine()) != null) {
-      if(!line.isEmpty()) {
-        nbLines++;
-        f = line.split("\t", -1);
-        if (f.length == nbCols)
-          tmp.add(f);
-        else
-          throw new EstiageFormatException("Line [" + nbLines + "] has [" + f.length + "] columns, expected number [" + nbCols + "]");
+      //read the whole file into an array
+      ArrayList<String[]> tmp = new ArrayList<>();
+      UniversalReader in = new UniversalReader(filename);
+      String line = in.readLine();
+      String[] f = line.split("\t", -1);
+      int nbCols = f.length;
+      tmp.add(f);
+      int nbLines = 1;
+      long chars = line.length() + 1;
+      while ((line = in.readLine()) != null) {
+        chars += line.length() + 1;
+        if(!line.isEmpty()) {
+          nbLines++;
+          f = line.split("\t", -1);
+          if (f.length == nbCols)
+            tmp.add(f);
+          else
+            throw new EstiageFormatException("Line [" + nbLines + "] has [" + f.length + "] columns, expected number [" + nbCols + "]");
+        }
+      }
+      in.close();
+      Report.read(filename, nbLines, chars);
+
+      String[][] lines = tmp.toArray(new String[0][]);
+
+      //the whole file is in memory in a String[][]
+      final int nbSamples = (type == Type.COMPLETE) ?
+              nbLines - 10 :
+              nbLines - 3;
+      Log.info("Samples : "+nbSamples);
+      final int lName = 1;
+      final int lPos = 1 + nbSamples + 1;
+      final int lAncestral = lPos + 1;
+      final int lMb = lAncestral + 1;
+      final int lDistance = lMb + 1;
+      final int lMeanRate = lDistance + 1;
+      final int lcM = lMeanRate + 1;
+      final int lTheta = lcM + 1;
+      final int lFreq = lTheta + 1;
+
+      final int nbLeft;
+      final int nbRight;
+      final boolean hasPosterior = POSTERIOR.equalsIgnoreCase(lines[0][nbCols - 1]);
+      final int nbMarkerCols = hasPosterior ? nbCols - 1 : nbCols;
+
+      try {
+        nbLeft = Integer.parseInt(lines[0][1].toLowerCase().replace("left", ""));
+      } catch(ArrayIndexOutOfBoundsException | NumberFormatException e){
+        throw new EstiageFormatException("Cell [0][1] should contain \"LeftX\" where X is the number of markers to the left of the target", e);
+      }
+      try{
+        nbRight = Integer.parseInt(lines[0][nbMarkerCols - 1].toLowerCase().replace("right", ""));
+      } catch(ArrayIndexOutOfBoundsException | NumberFormatException e){
+        throw new EstiageFormatException("Cell [0][COL-1] should contain \"RightX\" where X is the number of markers to the right of the target", e);
       }
-    }
-    in.close();
-
-    String[][] lines = new String[nbLines][nbCols];
-    for(int i = 0 ; i < nbLines; i++) {
-      String[] tt = tmp.get(i);
-      System.arraycopy(tt, 0, lines[i], 0, nbCols);
-    }
 
-    //the whole file is in memory in a String[][]
-    final int nbSamples = (type == Type.COMPLETE) ?
-            nbLines - 10 :
-            nbLines - 3;
-    Message.info("Samples : "+nbSamples);
-    final int lName = 1;
-    final int lPos = 1 + nbSamples + 1;
-    final int lAncestral = lPos + 1;
-    final int lMb = lAncestral + 1;
-    final int lDistance = lMb + 1;
-    final int lMeanRate = lDistance + 1;
-    final int lcM = lMeanRate + 1;
-    final int lTheta = lcM + 1;
-    final int lFreq = lTheta + 1;
-
-    int nbLeft = 0;
-    int nbRight = 0;
+      final int cTarget = nbLeft + 1;
 
-    try {
-      nbLeft = Integer.parseInt(lines[0][1].toLowerCase().replace("left", ""));
-    } catch(ArrayIndexOutOfBoundsException | NumberFormatException e){
-      Message.fatal("Cell [0][1] should contain \"LeftX\" where X is the number of markers to the left of the target");
-    }
-    try{
-      nbRight = Integer.parseInt(lines[0][nbCols - 1].toLowerCase().replace("right", ""));
-    } catch(ArrayIndexOutOfBoundsException | NumberFormatException e){
-      Message.fatal("Cell [0][COL-1] should contain \"RightX\" where X is the number of markers to the right of the target");
-    }
+      leftMarkers = new Marker[nbLeft];
+      rightMarkers = new Marker[nbRight];
+      samples = new String[nbSamples];
 
-    final int cTarget = nbLeft + 1;
-
-    leftMarkers = new Marker[nbLeft];
-    rightMarkers = new Marker[nbRight];
-    samples = new String[nbSamples];
-
-    for(int s = 0; s < nbSamples; s++)
-      samples[s] = lines[s + 2][0];
-
-    target = new Marker(lines[1][cTarget]);
-    target.setChromosomeAndPosition(lines[lPos][cTarget]);
-    if(type == Type.COMPLETE)
-      target.setMegaBases(Double.parseDouble(lines[lMb][cTarget]));
-
-    for(int c = 1 ; c < nbCols; c++){
-      if(c == cTarget)
-        continue;
-      Marker m = new Marker(lines[lName][c]);
-      m.setChromosomeAndPosition(lines[lPos][c]);
-      if(type == Type.COMPLETE){
-        m.setMegaBases(Double.parseDouble(lines[lMb][c]));
-        m.setRecombinationFraction(Double.parseDouble(lines[lTheta][c]));
-        m.setFrequency(Double.parseDouble(lines[lFreq][c]));
-      }
       for(int s = 0; s < nbSamples; s++)
-        m.setAllele(samples[s], lines[2 + s][c]);
+        samples[s] = lines[s + 2][0];
+      if(hasPosterior) {
+        posteriors = new double[nbSamples];
+        for(int s = 0; s < nbSamples; s++)
+          try {
+            posteriors[s] = Double.parseDouble(lines[s + 2][nbCols - 1]);
+          } catch(NumberFormatException e) {
+            throw new EstiageFormatException("Unable to parse the posterior probability ["+lines[s + 2][nbCols - 1]+"] of sample ["+samples[s]+"]", e);
+          }
+      }
+      //all the markers share the same index : sample s has index s
+      final SampleIndex sampleIndex = new SampleIndex(samples);
+
+      target = new Marker(lines[1][cTarget], sampleIndex);
+      target.setChromosomeAndPosition(lines[lPos][cTarget]);
+      if(type == Type.COMPLETE)
+        target.setMegaBases(Double.parseDouble(lines[lMb][cTarget]));
+
+      for(int c = 1 ; c < nbMarkerCols; c++){
+        if(c == cTarget)
+          continue;
+        Marker m = new Marker(lines[lName][c], sampleIndex);
+        m.setChromosomeAndPosition(lines[lPos][c]);
+        if(type == Type.COMPLETE){
+          m.setMegaBases(Double.parseDouble(lines[lMb][c]));
+          m.setRecombinationFraction(Double.parseDouble(lines[lTheta][c]));
+          m.setFrequency(Double.parseDouble(lines[lFreq][c]));
+        }
+        for(int s = 0; s < nbSamples; s++)
+          m.setAllele(s, lines[2 + s][c]);
 
-      m.setDistanceMb(target);
+        m.setDistanceMb(target);
 
-      if(c < cTarget)
-        leftMarkers[nbLeft - c] = m;
-      else
-        rightMarkers[c - (cTarget + 1)] = m;
-    }
+        if(c < cTarget)
+          leftMarkers[nbLeft - c] = m;
+        else
+          rightMarkers[c - (cTarget + 1)] = m;
+      }
 
-    //here set Ancestral Allele
-    Message.info("Compute left ancestral");
-    this.leftMarkers = this.computeAncestralAlleles(this.leftMarkers);
-    Message.info("Compute right ancestral");
-    this.rightMarkers = this.computeAncestralAlleles(this.rightMarkers);
+      //here set Ancestral Allele
+      Log.info("Compute left ancestral");
+      this.leftMarkers = this.computeAncestralAlleles(this.leftMarkers);
+      Log.info("Compute right ancestral");
+      this.rightMarkers = this.computeAncestralAlleles(this.rightMarkers);
+    } finally {
+      stage.end();
+    }
   }
 
   /**
@@ -173,6 +200,55 @@ public class TSVFile {
     this.samples = samples;
   }
 
+  /**
+   * Creates a RAW TSVFile from data, as if the data had been exported then read again : the markers are copied (name, position, alleles),
+   * their distances to the target and their ancestral alleles are computed
+   * @param target the target Marker
+   * @param leftMarkers the array of left Markers
+   * @param rightMarkers the array of right Markers
+   * @param samples the array of sample names
+   * @return the RAW TSVFile
+   */
+  public static TSVFile fromMarkers(Marker target, Marker[] leftMarkers, Marker[] rightMarkers, String[] samples) {
+    final SampleIndex sampleIndex = new SampleIndex(samples);
+    Marker t = copy(target, samples, sampleIndex, false); //the alleles of the target are not exported
+    Marker[] left = new Marker[leftMarkers.length];
+    Marker[] right = new Marker[rightMarkers.length];
+    for(int i = 0; i < left.length; i++) {
+      left[i] = copy(leftMarkers[i], samples, sampleIndex, true);
+      left[i].setDistanceMb(t);
+    }
+    for(int i = 0; i < right.length; i++) {
+      right[i] = copy(rightMarkers[i], samples, sampleIndex, true);
+      right[i].setDistanceMb(t);
+    }
+    TSVFile raw = new TSVFile(t, left, right, samples);
+    raw.type = Type.RAW;
+    Log.info("Compute left ancestral");
+    raw.leftMarkers = raw.computeAncestralAlleles(raw.leftMarkers);
+    Log.info("Compute right ancestral");
+    raw.rightMarkers = raw.computeAncestralAlleles(raw.rightMarkers);
+    return raw;
+  }
+
+  /**
+   * Copies a Marker, as it would be read from a RAW file
+   * @param m the marker
+   * @param samples the array of sample names
+   * @param sampleIndex the index of the samples for the copy
+   * @param withAlleles true to copy the alleles
+   * @return the copy
+   */
+  private static Marker copy(Marker m, String[] samples, SampleIndex sampleIndex, boolean withAlleles) {
+    Marker copy = new Marker(m.getName(), sampleIndex);
+    copy.setChromosome(m.getChromosome());
+    copy.setPosition(m.getPosition());
+    if(withAlleles)
+      for(int s = 0; s < samples.length; s++)
+        copy.setAllele(s, String.valueOf(m.getAllele(samples[s])));
+    return copy;
+  }
+
   public static final String T = "\t";
 
   private Marker[] computeAncestralAlleles(Marker[] markers){
@@ -198,18 +274,18 @@ public class TSVFile {
 
     //compute ancestral allele A for marker m
     //For each sample that differs from A, set all further markers to missing
+    //The samples that have diverged are kept in a BitSet, and are set to missing on each marker before its ancestral allele is computed
+    //The markers must share the index of the samples (sample s has index s)
+    final BitSet diverged = new BitSet(samples.length);
     for(int i = 0; i < markers.length; i++){
       Marker m = markers[i];
+      for(int s = diverged.nextSetBit(0); s >= 0; s = diverged.nextSetBit(s + 1))
+        m.setCode(s, Marker.CODE_MISSING);
       m.setAncestral();
       String ancestral = m.getAncestral();
-      StringBuilder alleles = new StringBuilder();
-      for(String val : m.getAllAlleles())
-        alleles.append(",").append(val);
-      if(alleles.length() > 0)
-        alleles = new StringBuilder(alleles.substring(1));
-      Message.info("["+i+"] : ["+ancestral+"] {"+ alleles+"}");
+      Log.info("["+i+"] : ["+ancestral+"] {"+ String.join(",", m.getAllAlleles())+"}");
       if("-1".equals(ancestral)) {
-        Message.info("Last Marker ("+i+")");
+        Log.info("Last Marker ("+i+")");
         if(i == markers.length - 1)
           return markers;
         //Here we copy following markers if haplotypes have begun to diverge
@@ -217,32 +293,54 @@ public class TSVFile {
         System.arraycopy(markers, 0, ret, 0, i + 1);
         return ret;
       } else {
-        ArrayList<String> diff = new ArrayList<>();
+        final short code = m.getCode(ancestral);
         StringBuilder skip = new StringBuilder("Skip :");
-        for (String sample : samples) {
-          String haplotype = m.getAllele(sample);
-          if (!haplotype.isEmpty() && !haplotype.equals(ancestral)) {
-            diff.add(sample);
-            skip.append(" ").append(sample);
+        for (int s = diverged.nextClearBit(0); s < samples.length; s = diverged.nextClearBit(s + 1)) {
+          short haplotype = m.getCode(s);
+          if (haplotype != Marker.CODE_MISSING && haplotype != code) {
+            diverged.set(s);
+            skip.append(" ").append(samples[s]);
           }
         }
-        Message.info(skip.toString());
-        for (int j = i + 1; j < markers.length; j++)
-          for (String sample : diff)
-            markers[j].setAllele(sample, Marker.MISSING);
+        Log.info(skip.toString());
       }
     }
     return markers;
   }
 
   /**
-   * Assigns Frequencies to all markers
+   * Assigns Frequencies to all markers, using the default annotation cache
    * @param gnomadFilename the VCF file containing the frequencies (in the INFO:AF annotation)
    * @param hapmapFilename the TSV file containing the mutation rate (in the 3rd column)
    * @throws IOException if there is a problem reading the files
    * @throws EstiageFormatException if there are missing data in the mutation rate Map
    */
   public void generateFrequenciesAndRecombinationFractions(String gnomadFilename, String hapmapFilename) throws IOException, EstiageFormatException {
+    generateFrequenciesAndRecombinationFractions(gnomadFilename, hapmapFilename, AnnotationCache.getDefault());
+  }
+
+  /**
+   * Assigns Frequencies to all markers. Values found in the cache are used first, the resources are only read for the missing values
+   * @param gnomadFilename the VCF file containing the frequencies (in the INFO:AF annotation)
+   * @param hapmapFilename the TSV file containing the mutation rate (in the 3rd column)
+   * @param cache the annotation cache
+   * @throws IOException if there is a problem reading the files
+   * @throws EstiageFormatException if there are missing data in the mutation rate Map
+   */
+  public void generateFrequenciesAndRecombinationFractions(String gnomadFilename, String hapmapFilename, AnnotationCache cache) throws IOException, EstiageFormatException {
+    generateFrequenciesAndRecombinationFractions(gnomadFilename, hapmapFilename, cache, Resources.none());
+  }
+
+  /**
+   * Assigns Frequencies to all markers. Values found in the cache are used first, the resources are only read for the missing values
+   * @param gnomadFilename the VCF file containing the frequencies (in the INFO:AF annotation)
+   * @param hapmapFilename the TSV file containing the mutation rate (in the 3rd column)
+   * @param cache the annotation cache
+   * @param resources the registry of opened resources
+   * @throws IOException if there is a problem reading the files
+   * @throws EstiageFormatException if there are missing data in the mutation rate Map
+   */
+  public void generateFrequenciesAndRecombinationFractions(String gnomadFilename, String hapmapFilename, AnnotationCache cache, Resources resources) throws IOException, EstiageFormatException {
     Marker first = target;
     Marker last = target;
     if(leftMarkers.length > 0)
@@ -250,22 +348,89 @@ public class TSVFile {
     if(rightMarkers.length > 0)
       last = rightMarkers[rightMarkers.length - 1];
     if(first != null && last != null){
-      GnomAD gnomad = new GnomAD(gnomadFilename);
-      Message.info("Reading mutation rates");
-      HapMap hapmap = new HapMap(hapmapFilename, first.getPosition(), last.getPosition());
-      Message.info("Applying");
-      for(Marker m : leftMarkers) {
-        m.setFrequency(gnomad.getFrequency(m.getChromosome(), m.getPosition(), m.getAncestral()));
-        m.setRate(hapmap.getRate(m, target));
+      Marker[] markers = new Marker[leftMarkers.length + rightMarkers.length];
+      System.arraycopy(leftMarkers, 0, markers, 0, leftMarkers.length);
+      System.arraycopy(rightMarkers, 0, markers, leftMarkers.length, rightMarkers.length);
+
+      //Look in the cache first
+      final String gnomadId = AnnotationCache.identity(gnomadFilename);
+      final String hapmapId = AnnotationCache.identity(hapmapFilename);
+      final String rateKey = "@" + target.getPosition(); //the rate is measured between the marker and the target
+      double[] frequencies = new double[markers.length];
+      double[] rates = new double[markers.length];
+      ArrayList<Integer> missingFrequencies = new ArrayList<>();
+      ArrayList<Integer> missingRates = new ArrayList<>();
+      for(int i = 0; i < markers.length; i++) {
+        Marker m = markers[i];
+        Double frequency = cache.get(gnomadId, m.getChromosome(), m.getPosition(), m.getAncestral());
+        if(frequency == null)
+          missingFrequencies.add(i);
+        else
+          frequencies[i] = frequency;
+        Double rate = cache.get(hapmapId, m.getChromosome(), m.getPosition(), rateKey);
+        if(rate == null)
+          missingRates.add(i);
+        else
+          rates[i] = rate;
+      }
+      Report.count(Report.CACHE_MISSES, missingFrequencies.size() + missingRates.size());
+      Report.count(Report.CACHE_HITS, 2L * markers.length - missingFrequencies.size() - missingRates.size());
+
+      if(!missingFrequencies.isEmpty()) {
+        Report.Stage stage = Report.start(Report.STAGE_GNOMAD);
+        try {
+          GnomAD gnomad = resources.getGnomAD(gnomadFilename);
+          //a single gnomAD query for the missing markers on both sides
+          Marker[] missing = new Marker[missingFrequencies.size()];
+          for(int j = 0; j < missing.length; j++)
+            missing[j] = markers[missingFrequencies.get(j)];
+          double[] found = gnomad.getFrequencies(missing);
+          for(int j = 0; j < missing.length; j++) {
+            frequencies[missingFrequencies.get(j)] = found[j];
+            cache.put(gnomadId, missing[j].getChromosome(), missing[j].getPosition(), missing[j].getAncestral(), found[j]);
+          }
+        } finally {
+          stage.end();
+        }
       }
-      for(Marker m : rightMarkers) {
-        m.setFrequency(gnomad.getFrequency(m.getChromosome(), m.getPosition(), m.getAncestral()));
-        m.setRate(hapmap.getRate(m, target));
+      if(!missingRates.isEmpty()) {
+        Report.Stage stage = Report.start(Report.STAGE_MAP);
+        try {
+          Log.info("Reading mutation rates");
+          HapMap hapmap = resources.getHapMap(hapmapFilename, target.getChromosome(), first.getPosition(), last.getPosition());
+          int[] positions = new int[missingRates.size()];
+          for(int j = 0; j < positions.length; j++)
+            positions[j] = markers[missingRates.get(j)].getPosition();
+          double[] found = hapmap.getRates(target.getPosition(), positions);
+          for(int j = 0; j < positions.length; j++) {
+            int i = missingRates.get(j);
+            rates[i] = found[j];
+            cache.put(hapmapId, markers[i].getChromosome(), markers[i].getPosition(), rateKey, rates[i]);
+          }
+        } finally {
+          stage.end();
+        }
       }
+
+      Log.info("Applying");
+      for(int i = 0; i < markers.length; i++) {
+        markers[i].setFrequency(frequencies[i]);
+        markers[i].setRate(rates[i]);
+      }
+      Log.info(cache.getSummary());
+      cache.save();
     }
     type = Type.COMPLETE;
   }
 
+  /**
+   * Gets the target marker from the TSVFile
+   * @return the target marker
+   */
+  public Marker getTarget() {
+    return target;
+  }
+
   /**
    * Gets the left markers from the TSVFile
    * @return the left markers
@@ -280,6 +445,14 @@ public class TSVFile {
     return rightMarkers;
   }
 
+  /**
+   * Gets the posterior probability of the haplotype of each sample
+   * @return the posterior probabilities, null if the file has none
+   */
+  public double[] getPosteriors() {
+    return posteriors;
+  }
+
   /**
    * Gets the array of Samples
    * @return the array of samples
@@ -289,15 +462,35 @@ public class TSVFile {
   }
 
   /**
-   * Exports the data to a file
+   * Exports the data to a file. If the filename ends with .gz, the file is bgzipped
    * @param filename the name of the output file
    * @throws IOException if the file can't be written
    */
   public void export(String filename) throws IOException {
-    PrintWriter out = new PrintWriter(new FileWriter(filename));
+    Report.Stage stage = Report.start(Report.STAGE_EXPORT);
+    try {
+      OutputStream os = new FileOutputStream(filename);
+      if(filename.toLowerCase().endsWith(".gz"))
+        os = new BGZFOutputStream(os);
+      export(os);
+    } finally {
+      stage.end();
+    }
+    Report.output(filename);
+    Report.result(filename, Report.RESULT_MARKERS_LEFT, leftMarkers.length);
+    Report.result(filename, Report.RESULT_MARKERS_RIGHT, rightMarkers.length);
+    Report.result(filename, Report.RESULT_SAMPLES, samples.length);
+  }
+
+  /**
+   * Exports the data to a stream. The rows are written as soon as they are built, the stream is closed at the end
+   * @param os the output stream
+   * @throws IOException if the data can't be written
+   */
+  public void export(OutputStream os) throws IOException {
+    PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(os, Charset.defaultCharset()), 1 << 16));
     StringBuilder header  = new StringBuilder(".");
     StringBuilder nameLine = new StringBuilder("Samples\\Markers");
-    String[] samplesLines =samples.clone();
     StringBuilder positionLine= new StringBuilder("Position");
     StringBuilder ancestralLine= new StringBuilder("Ancestral");
     StringBuilder mbLine= new StringBuilder("mb");
@@ -306,65 +499,69 @@ public class TSVFile {
     StringBuilder cMLine= new StringBuilder("cM");
     StringBuilder thetaLine= new StringBuilder("θ Recombination Fraction");
     StringBuilder freqLine= new StringBuilder("Freq");
-    Marker m;
 
-    for(int i = leftMarkers.length-1; i >= 0; i--) {
-      header.append(T + "Left").append(i + 1);
-      m = leftMarkers[i];
+    //columns from left to right
+    Marker[] columns = new Marker[leftMarkers.length + 1 + rightMarkers.length];
+    for(int i = 0; i < leftMarkers.length; i++)
+      columns[leftMarkers.length - 1 - i] = leftMarkers[i];
+    columns[leftMarkers.length] = target;
+    System.arraycopy(rightMarkers, 0, columns, leftMarkers.length + 1, rightMarkers.length);
+
+    for(int c = 0; c < columns.length; c++) {
+      Marker m = columns[c];
+      if(m == target)
+        header.append(T + "Target");
+      else if(c < leftMarkers.length)
+        header.append(T + "Left").append(leftMarkers.length - c);
+      else
+        header.append(T + "Right").append(c - leftMarkers.length);
       nameLine.append(T).append(m.getName());
-
-      for(int s = 0; s < samples.length; s++)
-        samplesLines[s] += T + m.getAllele(samples[s]);
       positionLine.append(T).append(m.getChromosome()).append(":").append(m.getPosition());
       if (type == Type.COMPLETE) {
-        ancestralLine.append(T).append(m.getAncestral());
-        mbLine.append(T).append(m.getMegaBases());
-        distanceLine.append(T).append(m.getDistanceMb());
-        rateLine.append(T).append(m.getRate());
-        cMLine.append(T).append(m.getcM());
-        thetaLine.append(T).append(m.getRecombinationFraction());
-        freqLine.append(T).append(m.getFrequency());
+        if(m == target) {
+          ancestralLine.append(T);
+          mbLine.append(T).append(m.getMegaBases());
+          distanceLine.append(T);
+          rateLine.append(T);
+          cMLine.append(T);
+          thetaLine.append(T);
+          freqLine.append(T);
+        } else {
+          ancestralLine.append(T).append(m.getAncestral());
+          mbLine.append(T).append(m.getMegaBases());
+          distanceLine.append(T).append(m.getDistanceMb());
+          rateLine.append(T).append(m.getRate());
+          cMLine.append(T).append(m.getcM());
+          thetaLine.append(T).append(m.getRecombinationFraction());
+          freqLine.append(T).append(m.getFrequency());
+        }
       }
     }
 
-    m = target;
-    header.append(T + "Target");
-    nameLine.append(T).append(m.getName());
-    for(int s = 0; s < samples.length; s++)
-      samplesLines[s] += T;
-    positionLine.append(T).append(m.getChromosome()).append(":").append(m.getPosition());
-    if(type == Type.COMPLETE) {
-      ancestralLine.append(T);
-      mbLine.append(T).append(m.getMegaBases());
-      distanceLine.append(T);
-      rateLine.append(T);
-      cMLine.append(T);
-      thetaLine.append(T);
-      freqLine.append(T);
-    }
-
-    for(int i = 0; i < rightMarkers.length; i++){
-      header.append(T + "Right").append(i + 1);
-      m = rightMarkers[i];
-      nameLine.append(T).append(m.getName());
-      for(int s = 0; s < samples.length; s++)
-        samplesLines[s] += T + m.getAllele(samples[s]);
-      positionLine.append(T).append(m.getChromosome()).append(":").append(m.getPosition());
-      if(type == Type.COMPLETE){
-        ancestralLine.append(T).append(m.getAncestral());
-        mbLine.append(T).append(m.getMegaBases());
-        distanceLine.append(T).append(m.getDistanceMb());
-        rateLine.append(T).append(m.getRate());
-        cMLine.append(T).append(m.getcM());
-        thetaLine.append(T).append(m.getRecombinationFraction());
-        freqLine.append(T).append(m.getFrequency());
-      }
+    if(posteriors != null) {
+      header.append(T).append(POSTERIOR);
+      nameLine.append(T).append(POSTERIOR);
+      for(StringBuilder line : new StringBuilder[]{positionLine, ancestralLine, mbLine, distanceLine, rateLine, cMLine, thetaLine, freqLine})
+        line.append(T);
     }
 
     out.println(header);
     out.println(nameLine);
-    for(String sampleLine : samplesLines)
+    //one row per sample, written directly
+    StringBuilder sampleLine = new StringBuilder();
+    for(int s = 0; s < samples.length; s++) {
+      String sample = samples[s];
+      sampleLine.setLength(0);
+      sampleLine.append(sample);
+      for(Marker m : columns) {
+        sampleLine.append(T);
+        if(m != target)
+          sampleLine.append(m.getAllele(sample));
+      }
+      if(posteriors != null)
+        sampleLine.append(T).append(posteriors[s]);
       out.println(sampleLine);
+    }
     out.println(positionLine);
 
     if(type == Type.COMPLETE){
@@ -377,6 +574,8 @@ public class TSVFile {
       out.println(freqLine);
     }
     out.close();
+    if(out.checkError())
+      throw new IOException("Could not write TSV file");
   }
 
   /**
@@ -388,6 +587,6 @@ public class TSVFile {
     Marker right = rightMarkers[rightMarkers.length-1];
     message += "\nLeft("+leftMarkers.length+") "+left.getName()+" ("+left.getChromosome()+":"+left.getPosition()+")";
     message += "\nRight("+rightMarkers.length+") "+right.getName()+" ("+right.getChromosome()+":"+right.getPosition()+")";
-    Message.info(message);
+    Log.info(message);
   }
 }
\ No newline at end of file
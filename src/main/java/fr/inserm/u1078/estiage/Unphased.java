@@ -1,7 +1,6 @@
 package fr.inserm.u1078.estiage;
 
 import fr.inserm.u1078.tludwig.maok.UniversalReader;
-import fr.inserm.u1078.tludwig.maok.tools.Message;
 
 import java.io.FileWriter;
 import java.io.IOException;
@@ -10,13 +9,18 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Phase input data<br/>
  * 2 columns per marker (1 per chromosome)<br/>
  * 1 header line "m1a m1b m2a m2b ... T1a T2b ... mNa mNb" (where T is the Target Marker)
  * 1 line per sample <br/>
- * no additional lines
+ * no additional lines<br/>
+ * The alleles are coded as integers, per marker : 0 for the empty allele, then 1..n in the lexicographic order of the alleles
  *
  * @author Thomas E. Ludwig (INSERM - U1078)
  * Started on             2023-05-25
@@ -32,7 +36,14 @@ public class Unphased {
   final int target;
   final String[] markerNames;
   final String[] sampleNames;
-  final String[][][] inputData;
+  /**
+   * alleles[c][code] : the allele of marker c with the given code
+   */
+  final String[][] alleles;
+  /**
+   * codes[c][2*s + h] : the code of the allele of sample s, on chromosome h, for marker c
+   */
+  final int[][] codes;
 
   final int S;
   final int C;
@@ -47,8 +58,35 @@ public class Unphased {
    * @throws EstiageFormatException if the input file can't be parsed
    */
   public Unphased(String filename, int target, String position) throws IOException, EstiageFormatException {
+    this(new Unphased(filename), target, position);
+  }
+
+  /**
+   * Shares the data of an Unphased object, for another target
+   * @param unphased the loaded data
+   * @param target the index of the column containing the target marker
+   * @param position the position of the target marker (chr:pos)
+   */
+  private Unphased(Unphased unphased, int target, String position) {
     this.target = target;
     this.position = position;
+    this.markerNames = unphased.markerNames;
+    this.sampleNames = unphased.sampleNames;
+    this.alleles = unphased.alleles;
+    this.codes = unphased.codes;
+    this.S = unphased.S;
+    this.C = unphased.C;
+  }
+
+  /**
+   * Loads an Unphased input file, without target (see {@link #forTarget(int, String)})
+   * @param filename the name of the input file
+   * @throws IOException if the input file can't be read
+   * @throws EstiageFormatException if the input file can't be parsed
+   */
+  public Unphased(String filename) throws IOException, EstiageFormatException {
+    this.target = 0;
+    this.position = null;
 
     //Load all the lines
     UniversalReader in = new UniversalReader(filename);
@@ -61,7 +99,7 @@ public class Unphased {
 
     //Split first line and ignore first column
     String[] tmp = lines.get(0);
-    Message.debug("There are "+tmp.length+" columns in the input file");
+    Log.debug("There are "+tmp.length+" columns in the input file");
     String[] header = Arrays.copyOfRange(tmp, 1, tmp.length);
 
     //Get the number of samples (number of lines minus header)
@@ -69,7 +107,7 @@ public class Unphased {
     //Get the number of position/markers (number of non header column / 2)
     final int N = header.length;
     C = N  / 2;
-    Message.debug("There are "+C+" markers and "+S+" samples");
+    Log.debug("There are "+C+" markers and "+S+" samples");
     sampleNames = new String[S];
 
     //check parity
@@ -85,20 +123,111 @@ public class Unphased {
         throw new EstiageFormatException("Marker name mismatch for column ["+i+"]");
     }
 
-    //create input
-    inputData = new String[S][C][2];
     for(int s = 0; s < S; s++){
       String[] l = lines.get(s+1);
       //check length of the line
       if(l.length != N+1)
         throw new EstiageFormatException("For line ["+(s+1)+"] the number of columns found ["+l.length+"] differs from the number of columns expected ["+(N+1)+"]");
-      //populate input
       sampleNames[s] = l[0];
-      for(int i = 0 ; i < C; i++){
-        inputData[s][i][0] = l[i*2 + 1];
-        inputData[s][i][1] = l[i*2 + 2];
+    }
+
+    //code the alleles of each marker
+    alleles = new String[C][];
+    codes = new int[C][2*S];
+    for(int i = 0 ; i < C; i++){
+      HashMap<String, Integer> dictionary = new HashMap<>();
+      for(int s = 0; s < S; s++)
+        for(int h = 0; h < 2; h++) {
+          String allele = lines.get(s+1)[i*2 + 1 + h];
+          if(!isEmpty(allele))
+            dictionary.put(allele, 0);
+        }
+      alleles[i] = new String[dictionary.size() + 1];
+      alleles[i][0] = EMPTY;
+      int code = 1;
+      for(String allele : dictionary.keySet())
+        alleles[i][code++] = allele;
+      Arrays.sort(alleles[i], 1, alleles[i].length);
+      for(code = 1; code < alleles[i].length; code++)
+        dictionary.put(alleles[i][code], code);
+      for(int s = 0; s < S; s++)
+        for(int h = 0; h < 2; h++) {
+          String allele = lines.get(s+1)[i*2 + 1 + h];
+          codes[i][2*s + h] = isEmpty(allele) ? 0 : dictionary.get(allele);
+        }
+    }
+  }
+
+  /**
+   * Gets a view of the data for a given target (the data are shared, not copied)
+   * @param target the index of the column containing the target marker (1-based)
+   * @param position the position of the target marker (chr:pos)
+   * @return the data, with the given target
+   * @throws EstiageFormatException if there is no such column
+   */
+  public Unphased forTarget(int target, String position) throws EstiageFormatException {
+    if(target < 1 || target > C)
+      throw new EstiageFormatException("Target marker column ["+target+"] is out of bounds [1-"+C+"]");
+    return new Unphased(this, target, position);
+  }
+
+  /**
+   * Phases the data for several targets concurrently (at most java -Dthreads=N targets at once), one phased file per target,
+   * named outputPrefix.markerName.phased. Each target is phased by a single thread (both sides), so at most N threads are used
+   * @param targets the indices of the columns containing the target markers (1-based)
+   * @param positions the positions of the target markers (chr:pos)
+   * @param stopOnExAequo stop when the top alleles are ex aequo
+   * @param ignoreMissing keep the samples with missing genotypes
+   * @param outputPrefix the prefix of the output files
+   * @return the names of the output files
+   * @throws EstiageFormatException if a target is out of bounds, or if two targets have the same output file
+   * @throws IOException if a file can't be written
+   * @throws InterruptedException if the thread is interrupted while waiting for the phasing
+   */
+  public String[] phase(int[] targets, String[] positions, boolean stopOnExAequo, boolean ignoreMissing, String outputPrefix) throws EstiageFormatException, IOException, InterruptedException {
+    if(targets.length != positions.length)
+      throw new EstiageFormatException("The number of targets ["+targets.length+"] differs from the number of positions ["+positions.length+"]");
+    final Unphased[] views = new Unphased[targets.length];
+    final String[] outputs = new String[targets.length];
+    final HashSet<String> distinct = new HashSet<>();
+    for(int i = 0; i < targets.length; i++) {
+      views[i] = forTarget(targets[i], positions[i]);
+      outputs[i] = outputPrefix + "." + markerNames[targets[i] - 1] + ".phased";
+      if(!distinct.add(outputs[i]))
+        throw new EstiageFormatException("Target marker ["+markerNames[targets[i] - 1]+"] (column "+targets[i]+") is requested more than once, its output file ["+outputs[i]+"] would be overwritten");
+    }
+
+    ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, Math.min(targets.length, Utils.getThreads())));
+    try {
+      ArrayList<Future<?>> tasks = new ArrayList<>();
+      for(int i = 0; i < targets.length; i++) {
+        final int t = i;
+        tasks.add(workers.submit(() -> {
+          new Phased(views[t], stopOnExAequo, ignoreMissing, false).export(outputs[t]);
+          return null;
+        }));
       }
+      for(Future<?> task : tasks)
+        task.get();
+    } catch(ExecutionException e) {
+      Throwable cause = e.getCause();
+      if(cause instanceof IOException)
+        throw (IOException) cause;
+      if(cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      throw new IOException(cause);
+    } finally {
+      workers.shutdownNow();
     }
+    return outputs;
+  }
+
+  /**
+   * @param allele the allele
+   * @return true if the allele is missing ("0" or empty string)
+   */
+  private static boolean isEmpty(String allele) {
+    return allele.isEmpty() || EMPTY.equals(allele);
   }
 
   /**
@@ -107,7 +236,9 @@ public class Unphased {
   static class Phased {
     private final String[] sampleNames;
     private final String[] markerNames;
-    private final String[][][] input;
+    private final String[][] alleles;
+    private final int[][] codes;
+    private final int maxAlleles;
     private final String[][] data;
     private final int target;
     private final String position;
@@ -116,54 +247,111 @@ public class Unphased {
     private final int C;
     private final boolean stopOnExAequo;
     private final boolean ignoreMissing;
+    private final boolean splitSides;
 
     /**
-     * Build phased data from unphased ones
+     * Build phased data from unphased ones.
+     * If more than one thread is allowed (java -Dthreads=N), the left side is phased in its own thread
      * @param unphased the source unphased data
      */
     public Phased(Unphased unphased, boolean stopOnExAequo, boolean ignoreMissing){
+      this(unphased, stopOnExAequo, ignoreMissing, Utils.getThreads() > 1);
+    }
+
+    /**
+     * Build phased data from unphased ones
+     * @param unphased the source unphased data
+     * @param splitSides if true, the left side is phased in its own thread
+     */
+    Phased(Unphased unphased, boolean stopOnExAequo, boolean ignoreMissing, boolean splitSides){
       this.sampleNames = unphased.sampleNames.clone();
       this.markerNames = unphased.markerNames.clone();
-      this.input = unphased.inputData.clone();
+      this.alleles = unphased.alleles;
+      this.codes = unphased.codes;
       this.position = unphased.position;
       this.targetMarkerAllele = UNDEFINED_ALLELE;
       this.target = unphased.target;
-      S = input.length;
-      C = input[0].length;
+      S = unphased.S;
+      C = unphased.C;
+      int max = 1;
+      for(String[] a : alleles)
+        max = Math.max(max, a.length);
+      maxAlleles = max;
       data = new String[S][C];
       this.stopOnExAequo = stopOnExAequo;
       this.ignoreMissing = ignoreMissing;
+      this.splitSides = splitSides;
       phase();
     }
 
     /**
-     * Creates phased data out of the unphased ones
+     * Creates phased data out of the unphased ones.
+     * The left and right walks are independent (distinct columns, own ranking), if the sides are split the left walk runs in its own thread
      */
     public void phase() {
-      Message.info("Phasing for Marker ["+markerNames[target - 1]+"]");
+      Log.info("Phasing for Marker ["+markerNames[target - 1]+"]");
       //init keep is regard to target
       //kept samples on the left
       boolean[] keepLeft = new boolean[S];
       for(int s = 0; s < S; s++)
         keepLeft[s] = true;
-      rank(keepLeft, target-1);
+      rank(new Ranking(maxAlleles), keepLeft, target-1);
       //kept samples on the right
       boolean[] keepRight = keepLeft.clone();
 
-      //left
-      Message.info("Left");
+      if(splitSides) {
+        final RuntimeException[] error = new RuntimeException[1];
+        Thread left = new Thread(() -> {
+          try {
+            walkLeft(keepLeft);
+          } catch(RuntimeException e) {
+            error[0] = e;
+          }
+        }, "Phased-left");
+        left.start();
+        walkRight(keepRight);
+        try {
+          left.join();
+        } catch(InterruptedException e) {
+          left.interrupt();
+          Thread.currentThread().interrupt();
+          throw new RuntimeException("Interrupted while phasing the left side", e);
+        }
+        if(error[0] != null)
+          throw error[0];
+      } else {
+        walkLeft(keepLeft);
+        walkRight(keepRight);
+      }
+    }
+
+    /**
+     * Phases the markers on the left of the target, from the closest to the farthest
+     * @param keep the list of individual to keep(true)/remove(false)
+     */
+    private void walkLeft(boolean[] keep) {
+      Log.info("Left");
+      Ranking ranking = new Ranking(maxAlleles);
       boolean stop = false;
       int last = target - 1;
       for(int c = target - 2; c >= 0 && !stop; c--) {
-        stop = phasePosition(c, keepLeft, LEFT);
+        stop = phasePosition(ranking, c, keep, LEFT);
         last = c;
       }
       trackBackExAequo(last, target - 1);
-      //right
-      Message.info("Right");
-      stop = false;
+    }
+
+    /**
+     * Phases the markers on the right of the target, from the closest to the farthest
+     * @param keep the list of individual to keep(true)/remove(false)
+     */
+    private void walkRight(boolean[] keep) {
+      Log.info("Right");
+      Ranking ranking = new Ranking(maxAlleles);
+      boolean stop = false;
+      int last = target - 1;
       for(int c = target; c < C && !stop; c++) {
-        stop = phasePosition(c, keepRight, RIGHT);
+        stop = phasePosition(ranking, c, keep, RIGHT);
         last = c;
       }
       trackBackExAequo(last, target - 1);
@@ -171,103 +359,113 @@ public class Unphased {
 
     /**
      *
+     * @param ranking the ranking used for this side
      * @param c the current marker index (column)
      * @param keep the list of individual to keep(true)/remove(false)
      * @param side the current side's name
      * @return false if the algorithm needs to stop for this side
      */
-    private boolean phasePosition(int c, boolean[] keep, String side){
-      Message.info("Column "+c);
+    private boolean phasePosition(Ranking ranking, int c, boolean[] keep, String side){
+      Log.info("Column "+c);
       for (int s = 0; s < S; s++)
         if (!keep[s])
           data[s][c] = "";
-      boolean stop = rank(keep, c);
+      boolean stop = rank(ranking, keep, c);
       if(stop)
-        Message.info(c + " is the last column on the "+side);
+        Log.info(c + " is the last column on the "+side);
       return stop;
     }
 
-    /**
-     * Replace default "empty" value with an empty string and check if at list one chromosome is empty
-     * @param val the genotype to consider
-     * @return true is at least one allele is empty
-     */
-    private static boolean isEmpty(String[] val) {
-      for(int i = 0 ; i < 2 ; i++)
-        if(EMPTY.equals(val[i]))
-          val[i] = "";
-      if(val[0].isEmpty() != val[1].isEmpty())
-        Message.warning("Only one genotype is empty and not the other");
-
-      return val[0].isEmpty() && val[1].isEmpty() ;
-    }
-
     /**
      *  1. Remove samples that do not carry the top allele
      *  2. affect top allele to phased data if the sample carries it
      *  3. Reset the target market value if needed
      *  4. check if unique value or ex aequo
+     * @param ranking the ranking to fill (one per side, as the sides can be phased concurrently)
      * @param keep the samples to keep (array of bool. true at ith index means the ith individual is kept)
      * @param col the column (index of marker) to consider
      * @return true if algorithm needs to stop for this side
      */
-    private boolean rank(boolean[] keep, int col) {
-      HashMap<String, Integer> counts = new HashMap<>();
+    private boolean rank(Ranking ranking, boolean[] keep, int col) {
+      final int[] geno = codes[col];
+      final String[] names = alleles[col];
       int dropped = 0;
       int empty = 0;
 
       //for each sample, count each genotype (only once for homozygous)
-      for (int s = 0; s < input.length; s++) {
+      ranking.reset(names.length);
+      for (int s = 0; s < S; s++) {
         //if the sample is still kept
         if (keep[s]) {
+          int a = geno[2*s];
+          int b = geno[2*s + 1];
           //if there is an empty value on either chromosome per the current sample/marker
-          if (isEmpty(input[s][col])) {
+          if (a == 0 && b == 0) {
             empty++;
           } else {
+            if (a == 0 || b == 0)
+              Log.warning("Only one genotype is empty and not the other");
             //increment count for distinct alleles
-            HashSet<String> distinctAlleles = new HashSet<>();
-            for(String allele: input[s][col])
-              if(!allele.isEmpty())
-                distinctAlleles.add(allele);
-            for(String allele : distinctAlleles)
-              counts.merge(allele, 1, Integer::sum);
+            if (a != 0)
+              ranking.add(a);
+            if (b != 0 && b != a)
+              ranking.add(b);
           }
         } else
           dropped++;
       }
+      ranking.rank();
 
-      Message.info("dropped / empty : "+dropped+" / "+empty);
-      Ranking<String> ranking = new Ranking<>(counts);
-      String ancestral = ranking.getElement(0);
-
-      Message.debug("For Marker (" + (col + 1) + ") [" + markerNames[col] + "]");
-      for(int i = 0; i < ranking.size(); i++)
-        Message.debug("("+ranking.getOccurrence(i)+") -> "+ranking.getElement(i));
+      Log.info("dropped / empty : "+dropped+" / "+empty);
+      if(Log.isDebug()) {
+        Log.debug("For Marker (" + (col + 1) + ") [" + markerNames[col] + "]");
+        for(int i = 0; i < ranking.size(); i++)
+          Log.debug("("+ranking.getOccurrence(i)+") -> "+names[ranking.getElement(i)]);
+      }
 
+      boolean topExAequo = ranking.hasTopExAequo();
       boolean stop = true;
       // for each kept sample
       for(int s = 0; s < S; s++) {
         if (keep[s]) {
-          //Apply allele to the previous position
-          Genotype geno = new Genotype(ranking, input[s][col], stopOnExAequo, ignoreMissing);
-          data[s][col] = geno.toString();
-          keep[s] = geno.isKept();
-          if(!keep[s])
-            Message.debug("Remove " + sampleNames[s] + " [" + geno + "]");
+          //Apply allele to the previous position : keep the most frequent allele, or both if they are ex aequo
+          int a = geno[2*s];
+          int b = geno[2*s + 1];
+          int oa = a == 0 ? -1 : ranking.getCount(a);
+          int ob = b == 0 ? -1 : ranking.getCount(b);
+          int allele1, allele2;
+          if(oa > ob)
+            allele1 = allele2 = a;
+          else if(ob > oa)
+            allele1 = allele2 = b;
+          else {
+            allele1 = Math.min(a, b);
+            allele2 = Math.max(a, b);
+          }
+          data[s][col] = allele1 == allele2 ? names[allele1] : names[allele1] + "/" + names[allele2];
+
+          if (stopOnExAequo && topExAequo)
+            keep[s] = false;
+          else if (ignoreMissing && allele1 == 0 && allele2 == 0)
+            keep[s] = true;
+          else
+            keep[s] = allele1 != 0 && ranking.isTop(allele1);
+          if(!keep[s] && Log.isDebug())
+            Log.debug("Remove " + sampleNames[s] + " [" + data[s][col] + "]");
         }
         if(keep[s])
           stop = false;
       }
 
-      if(targetMarkerAllele.equals(UNDEFINED_ALLELE))
-        targetMarkerAllele = ancestral;
+      if(col == target - 1 && !ranking.isEmpty())
+        targetMarkerAllele = names[ranking.getElement(0)];
 
       if(stop)
         return true;
 
       if(ignoreMissing)
         return ranking.size() < 2;
-      return (ranking.size() < 2 || ranking.hasTopExAequo());
+      return (ranking.size() < 2 || topExAequo);
     }
 
     private void trackBackExAequo(int from, int to){
@@ -345,78 +543,4 @@ public class Unphased {
       out.close();
     }
   }
-
-  private static class Genotype {
-    private final String allele1;
-    private final String allele2;
-    private final boolean keep;
-    private final boolean stopOnExAequo;
-    private final boolean ignoreMissing;
-
-    public Genotype(Ranking<String> ranking, String[] geno, boolean stopOnExAequo, boolean ignoreMissing){
-      this.stopOnExAequo = stopOnExAequo;
-      this.ignoreMissing = ignoreMissing;
-      String[] a = {EMPTY, EMPTY};
-      int[] o = {-1,-1};
-
-      for(int i = 0 ; i < ranking.size(); i++) {
-        for(int g = 0 ; g < 2; g++)
-          if(geno[g].equals(ranking.getElement(i))){
-            a[g] = geno[g];
-            o[g] = ranking.getOccurrence(i);
-          }
-      }
-
-      if(o[0] > o[1]){
-        this.allele1 = a[0];
-        this.allele2 = this.allele1;
-      } else if(o[1] > o[0]) {
-        this.allele1 = a[1];
-        this.allele2 = this.allele1;
-      } else {
-        this.allele1 = min(a[0], a[1]);
-        this.allele2 = max(a[0], a[1]);
-      }
-      this.keep = this.computeKeep(ranking);
-    }
-
-    private static String min(String s1, String s2){
-      if(s1.compareTo(s2) <= 0)
-        return s1;
-      return s2;
-    }
-
-    private static String max(String s1, String s2){
-      if(s1.compareTo(s2) <= 0)
-        return s2;
-      return s1;
-    }
-
-    public boolean isEmpty(){
-      return EMPTY.equals(allele1) && EMPTY.equals(allele2);
-    }
-
-    public boolean isKept(){
-      return this.keep;
-    }
-
-    private boolean computeKeep(Ranking<String> ranking){
-      if (stopOnExAequo){
-        if (ranking.hasTopExAequo())
-          return false;
-      }
-      if (ignoreMissing){
-        if(isEmpty())
-          return true;
-      }
-      return ranking.getTopElements().contains(this.allele1);
-    }
-
-    @Override
-    public String toString() {
-      if(this.allele1.equals(allele2))
-        return allele1;
-      return allele1+"/"+allele2;
-    }
-  }
 }
@@ -4,6 +4,7 @@ import fr.inserm.u1078.tludwig.maok.tools.Message;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 
@@ -22,6 +23,104 @@ public class Utils {
    */
   public static final String DEFAULT_TABIX = "tabix";
 
+  /**
+   * Gets the tabix command. Default location can be customized with call to java -Dtabix=/PATH/TO/tabix
+   * @return the tabix command
+   */
+  public static String getTabix() {
+    String overridetabix = System.getProperty("tabix");
+    if(overridetabix != null && !overridetabix.isEmpty())
+      return overridetabix;
+    return DEFAULT_TABIX;
+  }
+
+  /**
+   * Normalizes a chromosome name (1/chr1, MT/chrM...)
+   * @param chr the chromosome name
+   * @return the name without "chr" as used in GRCh
+   */
+  public static String normalizeChromosome(String chr) {
+    for (String[] chrs : GnomAD.CHROMOSOMES)
+      if (chrs[0].equalsIgnoreCase(chr) || chrs[1].equalsIgnoreCase(chr))
+        return chrs[0];
+    return chr;
+  }
+
+  /**
+   * Gets the number of worker threads. Default is the number of available processors, it can be customized with call to java -Dthreads=N
+   * @return the number of threads to use
+   */
+  public static int getThreads() {
+    String threads = System.getProperty("threads");
+    if(threads != null && !threads.isEmpty()) {
+      try {
+        return Math.max(1, Integer.parseInt(threads));
+      } catch(NumberFormatException e) {
+        Log.warning("Could not parse number of threads ["+threads+"]");
+      }
+    }
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Starts tabix on a VCF file. The caller reads the records from the process' output and then calls {@link #waitFor(Tabix)}
+   * @param vcfFilename the name of the VCF file
+   * @param patterns the query patterns ("chr", "chr:start-end"), records are output in the order of the patterns
+   * @return the tabix process
+   * @throws IOException if tabix can't be started
+   */
+  public static Tabix startTabix(String vcfFilename, String... patterns) throws IOException {
+    String[] command = new String[2 + patterns.length];
+    command[0] = getTabix();
+    command[1] = vcfFilename;
+    System.arraycopy(patterns, 0, command, 2, patterns.length);
+    Report.launch(command[0]);
+    return new Tabix(new ProcessBuilder(command).start());
+  }
+
+  /**
+   * Commits the JFR event of a tabix query, if a recording is running
+   * @param event the event, started before launching tabix
+   * @param filename the name of the queried file
+   * @param region the queried region(s)
+   * @param records the number of records read
+   */
+  public static void commit(Events.TabixQuery event, String filename, String region, int records) {
+    if(event.shouldCommit()) {
+      event.file = filename;
+      event.region = region;
+      event.records = records;
+      event.commit();
+    }
+  }
+
+  /**
+   * Waits for a tabix process to end, and prints its error stream if any
+   * @param process the tabix process
+   * @throws IOException if the error stream can't be read
+   * @throws InterruptedException if the current thread is interrupted while waiting
+   */
+  public static void waitFor(Tabix process) throws IOException, InterruptedException {
+    String message = readErrors(process);
+    if(!message.isEmpty())
+      Message.error(message);
+  }
+
+  /**
+   * Waits for a tabix process to end, and gets its error stream
+   * @param process the tabix process
+   * @return the content of the error stream (lines are separated by tabulations), empty if there were no errors
+   * @throws IOException if the error stream can't be read
+   * @throws InterruptedException if the current thread is interrupted while waiting
+   */
+  public static String readErrors(Tabix process) throws IOException, InterruptedException {
+    process.process.waitFor();
+    process.errors.join();
+    if(process.error != null)
+      throw process.error;
+    return process.message.toString();
+  }
+
   /**
    * Gets all the lines that cover a position from a tabixed VCF file
    * @param vcfFilename the name of the VCF file
@@ -59,20 +158,24 @@ public class Utils {
    */
   public static ArrayList<String> getLinesFromTabixedVCF(String vcfFilename, String pattern) throws IOException, InterruptedException {
     ArrayList<String> ret = new ArrayList<>();
+    Events.TabixQuery event = new Events.TabixQuery();
+    event.begin();
 
-    String tabix = DEFAULT_TABIX;
-    String overridetabix = System.getProperty("tabix");
-    if(overridetabix != null && !overridetabix.isEmpty())
-      tabix = overridetabix;
-    String[] command = {tabix, vcfFilename, pattern};
+    String[] command = {getTabix(), vcfFilename, pattern};
 
     ProcessBuilder pb = new ProcessBuilder(command);
     pb.redirectErrorStream(true);
+    Report.launch(command[0]);
     Process process = pb.start();
     BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()));
     String line;
-    while((line = in.readLine()) != null)
+    long chars = 0;
+    while((line = in.readLine()) != null) {
       ret.add(line);
+      chars += line.length() + 1;
+    }
+    commit(event, vcfFilename, pattern, ret.size());
+    Report.read(vcfFilename, ret.size(), chars);
     BufferedReader err = new BufferedReader(new InputStreamReader(process.getErrorStream()));
     String errline;
     String message = "";
@@ -84,7 +187,48 @@ public class Utils {
     err.close();
     if(!message.isEmpty())
       Message.error(message);
-    Message.info("Found "+ret.size());
+    Log.info("Found "+ret.size());
     return ret;
   }
+
+  /**
+   * A running tabix process. Its error stream is read by a separate thread while the caller reads the records,
+   * so that tabix can't block on a full error pipe
+   */
+  public static class Tabix {
+    private final Process process;
+    private final Thread errors;
+    private final StringBuilder message;
+    private IOException error;
+
+    private Tabix(Process process) {
+      this.process = process;
+      this.message = new StringBuilder();
+      this.errors = new Thread(() -> {
+        try(BufferedReader err = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
+          String errline;
+          while((errline = err.readLine()) != null)
+            message.append(errline).append("\t");
+        } catch(IOException e) {
+          error = e;
+        }
+      }, "tabix-stderr");
+      this.errors.setDaemon(true);
+      this.errors.start();
+    }
+
+    /**
+     * @return the stream of the records output by tabix
+     */
+    public InputStream getInputStream() {
+      return process.getInputStream();
+    }
+
+    /**
+     * Kills tabix if it is still running
+     */
+    public void destroy() {
+      process.destroy();
+    }
+  }
 }
@@ -43,6 +43,18 @@ public class VCFFile {
     this.samples = readSamples();
   }
 
+  /**
+   * Creates a VCFFile Object from an already opened VCF file, without reading its header again
+   * @param vcf the opened VCF file
+   * @param mode the mode to use
+   */
+  public VCFFile(VCFFile vcf, Mode mode) {
+    this.filename = vcf.filename;
+    this.mode = mode;
+    this.isTabix = vcf.isTabix;
+    this.samples = vcf.samples;
+  }
+
   /**
    * Does the tabix file exist ?
    * @return true, if the tabix file exists
@@ -151,57 +163,78 @@ public class VCFFile {
    * @throws InterruptedException if there is a problem with the thread calling tabix
    */
   public void exportAsRaw(String raw, Method method) throws IOException, EstiageFormatException, InterruptedException {
-    ArrayList<VCFVariant> variants = loadChromosome();
-    Message.info(variants.size() + " valid variants found in [" + this.filename + "] on chromosome [" + this.chr + "]");
-    int[] leftRight = getLeftRight(variants);
-    int left = leftRight[0];
-    int right = leftRight[1];
-    //Message.info("Looking for ["+pos+"] and found here ["+left+","+right+"] ["+variants.get(left).pos+";"+variants.get(right).pos+"]");
-    if (left > right)
-      throw new EstiageFormatException("Something went wrong. Is you VCF file unsorted?");
-    Marker target;
-    if (left + 2 == right) {
-      VCFVariant targetVariant = variants.get(left + 1);
-      //Message.info("Target is "+targetVariant.pos);
-      if (!targetVariant.has(chr, pos, allele, mode))
-        throw new EstiageFormatException("The genotypes for the variant at [" + chr + ":" + pos + ":" + allele + "] do not match the selected mode [" + mode + "]");
-      target = new Marker(targetVariant, samples);
-    } else {
-      target = new Marker(chr + ":" + pos + ":" + allele, samples);
-      //Message.info("Target is default");
-    }
+    buildRaw(method).export(raw);
+  }
 
-    //Here we have the Target Variant, and the index of the first lefT/right variants
-    Message.info("Target Variant is between  [" + (left + 1) + ";" + (right + 1) + "]/" + variants.size());
-    //List of samples not yet excluded
-    ArrayList<Integer> leftSamples = new ArrayList<>();
-    ArrayList<Integer> rightSamples = new ArrayList<>();
-    for (int s = 0; s < samples.length; s++) {
-      leftSamples.add(s);
-      rightSamples.add(s);
+  /**
+   * Builds the data of the RAW file (target, markers on each side, samples), without writing it
+   * @param method Method='CLASSICAL' or 'LONGEST_HAPLOTYPE'
+   * @return the data, as a TSVFile
+   * @throws IOException if the VCF file can't be read
+   * @throws EstiageFormatException the VCF file has no header or not enough columns, if the VCF File is unsorted, if the genotype for a variant doesn't match the selected mode
+   * @throws InterruptedException if there is a problem with the thread calling tabix
+   */
+  public TSVFile buildRaw(Method method) throws IOException, EstiageFormatException, InterruptedException {
+    Report.Stage stage = Report.start(Report.STAGE_VCF);
+    final ArrayList<VCFVariant> variants;
+    try {
+      variants = loadChromosome();
+    } finally {
+      stage.end();
     }
+    stage = Report.start(Report.STAGE_HAPLOTYPES);
+    try {
+      Log.info(variants.size() + " valid variants found in [" + this.filename + "] on chromosome [" + this.chr + "]");
+      int[] leftRight = getLeftRight(variants);
+      int left = leftRight[0];
+      int right = leftRight[1];
+      //Message.info("Looking for ["+pos+"] and found here ["+left+","+right+"] ["+variants.get(left).pos+";"+variants.get(right).pos+"]");
+      if (left > right)
+        throw new EstiageFormatException("Something went wrong. Is you VCF file unsorted?");
+      Marker target;
+      if (left + 2 == right) {
+        VCFVariant targetVariant = variants.get(left + 1);
+        //Message.info("Target is "+targetVariant.pos);
+        if (!targetVariant.has(chr, pos, allele, mode))
+          throw new EstiageFormatException("The genotypes for the variant at [" + chr + ":" + pos + ":" + allele + "] do not match the selected mode [" + mode + "]");
+        target = new Marker(targetVariant, samples);
+      } else {
+        target = new Marker(chr + ":" + pos + ":" + allele, samples);
+        //Message.info("Target is default");
+      }
+
+      //Here we have the Target Variant, and the index of the first lefT/right variants
+      Log.info("Target Variant is between  [" + (left + 1) + ";" + (right + 1) + "]/" + variants.size());
+      //List of samples not yet excluded
+      ArrayList<Integer> leftSamples = new ArrayList<>();
+      ArrayList<Integer> rightSamples = new ArrayList<>();
+      for (int s = 0; s < samples.length; s++) {
+        leftSamples.add(s);
+        rightSamples.add(s);
+      }
 
-    //Left
-    //Rebuilding the longest left side possible for the haplotype
-    TreeMap<Integer, VCFVariant> leftVariants = new TreeMap<>();
-    for(int i = left; i >= 0 && !leftSamples.isEmpty(); i--)
-      processVariant(variants.get(i), leftSamples, leftVariants, method);
-    //Builds Markers from LeftVariant + Samples
-    ArrayList<Marker> leftMarkers = buildMarkers(leftVariants);
-    Message.info("Variants kept on the left side : "+leftMarkers.size());
+      //Left
+      //Rebuilding the longest left side possible for the haplotype
+      TreeMap<Integer, VCFVariant> leftVariants = new TreeMap<>();
+      for(int i = left; i >= 0 && !leftSamples.isEmpty(); i--)
+        processVariant(variants.get(i), leftSamples, leftVariants, method);
+      //Builds Markers from LeftVariant + Samples
+      ArrayList<Marker> leftMarkers = buildMarkers(leftVariants);
+      Log.info("Variants kept on the left side : "+leftMarkers.size());
 
-    //Right
-    //Rebuilding the longest right side possible for the haplotype
-    TreeMap<Integer, VCFVariant> rightVariants = new TreeMap<>();
-    for(int i = right ; i < variants.size() && !rightSamples.isEmpty(); i++)
-      processVariant(variants.get(i), rightSamples, rightVariants, method);
-    //Builds Markers from RightVariant + Samples
-    ArrayList<Marker> rightMarkers = buildMarkers(rightVariants);
-    Message.info("Variants kept on the right side : "+rightMarkers.size());
+      //Right
+      //Rebuilding the longest right side possible for the haplotype
+      TreeMap<Integer, VCFVariant> rightVariants = new TreeMap<>();
+      for(int i = right ; i < variants.size() && !rightSamples.isEmpty(); i++)
+        processVariant(variants.get(i), rightSamples, rightVariants, method);
+      //Builds Markers from RightVariant + Samples
+      ArrayList<Marker> rightMarkers = buildMarkers(rightVariants);
+      Log.info("Variants kept on the right side : "+rightMarkers.size());
 
-    //Export TSV
-    TSVFile tsvFile = new TSVFile(target, leftMarkers.toArray(new Marker[0]), rightMarkers.toArray(new Marker[0]), samples);
-    tsvFile.export(raw);
+      return new TSVFile(target, leftMarkers.toArray(new Marker[0]), rightMarkers.toArray(new Marker[0]), samples);
+    } finally {
+      stage.end();
+    }
   }
 
   /**
@@ -225,7 +258,7 @@ public class VCFFile {
      */
     boolean drop = topAlleles.length > 2 && Integer.parseInt(topAlleles[0]) > 1;
     if(drop && method == Method.LONGEST_HAPLOTYPE){
-      Message.debug("Drop the variant ["+v.getChr()+":"+v.getPos()+"] number of topAllele ("+(topAlleles.length-1)+") for {"+topAlleles[0]+"} samples");
+      Log.debug(() -> "Drop the variant ["+v.getChr()+":"+v.getPos()+"] number of topAllele ("+(topAlleles.length-1)+") for {"+topAlleles[0]+"} samples");
     } else {
       //Update the list of remaining samples
       v.removeNonAncestral(remainingSamples, topAlleles);
@@ -250,8 +283,9 @@ public class VCFFile {
    */
   private ArrayList<Marker> buildMarkers(TreeMap<Integer, VCFVariant> variants) {
     ArrayList<Marker> markers = new ArrayList<>();
+    SampleIndex sampleIndex = new SampleIndex(samples);
     for(int key : variants.descendingKeySet())
-      markers.add(new Marker(variants.get(key), samples));
+      markers.add(new Marker(variants.get(key), sampleIndex));
 
     return markers;
   }
@@ -284,7 +318,7 @@ public class VCFFile {
     if(this.mode == Mode.IGNORE)
       return;
     if(!this.isTabix) {
-      Message.warning("As the file is not tabixed, no check will be performed on the target variant's genotypes");
+      Log.warning("As the file is not tabixed, no check will be performed on the target variant's genotypes");
       return;
     }
 
@@ -307,26 +341,64 @@ public class VCFFile {
    */
   private ArrayList<VCFVariant> loadChromosome() throws IOException, EstiageFormatException, InterruptedException {
     this.checkHasVariant();
+    Events.ChromosomeLoad event = new Events.ChromosomeLoad();
+    event.begin();
+    VCFPipeline pipeline = new VCFPipeline(Utils.getThreads());
+    final long[] scanned = {0, 0}; //lines, chars
+    ArrayList<VCFVariant> variants;
     if(this.isTabix){
-      return this.getVariants(Utils.getLinesFromTabixedVCF(filename, chr), true);
+      Events.TabixQuery query = new Events.TabixQuery();
+      query.begin();
+      Utils.Tabix tabix = Utils.startTabix(filename, chr);
+      try {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(tabix.getInputStream()))) {
+          variants = pipeline.parse(() -> count(in.readLine(), scanned), line -> true, true);
+        }
+        Utils.commit(query, filename, chr, (int)scanned[0]);
+        Utils.waitFor(tabix);
+      } finally {
+        tabix.destroy(); //no effect if tabix has ended, kills it if parsing failed
+      }
     } else {
-      ArrayList<VCFVariant> variants = new ArrayList<>();
-      Message.warning("File ["+filename+"] is not tabixed, this will be slow");
+      Log.warning("File ["+filename+"] is not tabixed, this will be slow");
       UniversalReader in = new UniversalReader(this.filename);
-      String line;
-      int read = 0;
-      while((line = in.readLine()) != null){
-        if(line.startsWith(chr)){
-          read++;
-          if(read%10000 == 0)
-            Message.info(read+ " lines read");
-          VCFVariant v = new VCFVariant(line);
-          if(v.isValid())
-            variants.add(v);
-        }
+      final int[] read = {0};
+      try {
+        variants = pipeline.parse(() -> count(in.readLine(), scanned), line -> {
+          if(!line.startsWith(chr))
+            return false;
+          read[0]++;
+          if(read[0]%10000 == 0)
+            Log.info(read[0]+ " lines read");
+          return true;
+        }, true);
+      } finally {
+        in.close();
       }
-      in.close();
-      return variants;
     }
+    if(event.shouldCommit()) {
+      event.file = filename;
+      event.chromosome = chr;
+      event.tabix = isTabix;
+      event.scanned = (int)scanned[0];
+      event.kept = variants.size();
+      event.commit();
+    }
+    Report.read(filename, scanned[0], scanned[1]);
+    return variants;
+  }
+
+  /**
+   * Counts the lines read
+   * @param line the line read (null at the end of the file)
+   * @param count the counters (lines, chars) to increment if a line was read
+   * @return the line
+   */
+  private static String count(String line, long[] count) {
+    if(line != null) {
+      count[0]++;
+      count[1] += line.length() + 1;
+    }
+    return line;
   }
 }
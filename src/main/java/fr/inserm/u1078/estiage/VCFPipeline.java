@@ -0,0 +1,162 @@
+package fr.inserm.u1078.estiage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.*;
+
+/**
+ * Multi-threaded VCF parser<br/>
+ * <ul>
+ *   <li>one I/O thread reads the lines and groups them into batches</li>
+ *   <li>a pool of workers parses each batch into VCFVariants</li>
+ *   <li>the parsed batches are emitted in the order they were read (so in position order for a sorted VCF)</li>
+ * </ul>
+ * The number of batches in flight is bounded, so memory stays flat whatever the size of the VCF file
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class VCFPipeline {
+
+  /**
+   * Number of VCF lines per batch
+   */
+  public static final int BATCH_SIZE = 1000;
+
+  /**
+   * Source of lines (UniversalReader, BufferedReader...)
+   */
+  public interface LineSource {
+    /**
+     * @return the next line, or null at the end of the source
+     * @throws IOException if the source can't be read
+     */
+    String readLine() throws IOException;
+  }
+
+  /**
+   * Filter applied by the I/O thread, before the line is sent to the workers
+   */
+  public interface LineFilter {
+    /**
+     * @param line the raw VCF line
+     * @return true if the line must be parsed
+     */
+    boolean accept(String line);
+  }
+
+  private final int threads;
+  private final int batchSize;
+
+  /**
+   * Creates a new Pipeline
+   * @param threads the number of parsing threads
+   */
+  public VCFPipeline(int threads) {
+    this(threads, BATCH_SIZE);
+  }
+
+  /**
+   * Creates a new Pipeline
+   * @param threads the number of parsing threads
+   * @param batchSize the number of lines per batch
+   */
+  public VCFPipeline(int threads, int batchSize) {
+    this.threads = Math.max(1, threads);
+    this.batchSize = Math.max(1, batchSize);
+  }
+
+  /**
+   * Reads all the lines from the source, and parses the accepted ones
+   * @param source the source of VCF lines
+   * @param filter the filter to apply on each line, before parsing
+   * @param onlyValid if true, only valid variants are kept
+   * @return the list of variants, in the order of the source
+   * @throws IOException if the source can't be read
+   * @throws InterruptedException if the calling thread is interrupted while waiting for the workers
+   */
+  public ArrayList<VCFVariant> parse(LineSource source, LineFilter filter, boolean onlyValid) throws IOException, InterruptedException {
+    final ExecutorService workers = Executors.newFixedThreadPool(threads);
+    //Bounded reorder buffer : futures are queued in reading order and consumed in the same order
+    final BlockingQueue<Future<ArrayList<VCFVariant>>> pending = new ArrayBlockingQueue<>(2 * threads);
+    final Future<ArrayList<VCFVariant>> end = CompletableFuture.completedFuture(null);
+    //Error of the I/O thread, rethrown by the consumer
+    final Throwable[] readError = new Throwable[1];
+
+    Thread reader = new Thread(() -> {
+      try {
+        ArrayList<String> batch = new ArrayList<>(batchSize);
+        String line;
+        while((line = source.readLine()) != null) {
+          if(filter.accept(line)) {
+            batch.add(line);
+            if(batch.size() == batchSize) {
+              pending.put(submit(workers, batch, onlyValid));
+              batch = new ArrayList<>(batchSize);
+            }
+          }
+        }
+        if(!batch.isEmpty())
+          pending.put(submit(workers, batch, onlyValid));
+      } catch(InterruptedException e) {
+        return; //the consumer gave up
+      } catch(Throwable e) {
+        readError[0] = e; //reading or filtering failed, the end is still signaled so that the consumer doesn't wait forever
+      }
+      try {
+        pending.put(end);
+      } catch(InterruptedException ignore) {
+        //the consumer gave up
+      }
+    }, "VCFPipeline-reader");
+    reader.setDaemon(true);
+    reader.start();
+
+    ArrayList<VCFVariant> variants = new ArrayList<>();
+    try {
+      Future<ArrayList<VCFVariant>> next;
+      while((next = pending.take()) != end)
+        variants.addAll(next.get());
+      reader.join();
+    } catch(ExecutionException e) {
+      Throwable cause = e.getCause();
+      if(cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if(cause instanceof Error)
+        throw (Error) cause;
+      throw new IOException(cause);
+    } finally {
+      reader.interrupt();
+      workers.shutdownNow();
+    }
+    final Throwable error = readError[0];
+    if(error instanceof IOException)
+      throw (IOException) error;
+    if(error instanceof RuntimeException)
+      throw (RuntimeException) error;
+    if(error instanceof Error)
+      throw (Error) error;
+    return variants;
+  }
+
+  /**
+   * Sends a batch to the workers
+   * @param workers the thread pool
+   * @param batch the batch of lines
+   * @param onlyValid if true, only valid variants are kept
+   * @return the future parsed variants
+   */
+  private static Future<ArrayList<VCFVariant>> submit(ExecutorService workers, ArrayList<String> batch, boolean onlyValid) {
+    return workers.submit(() -> {
+      ArrayList<VCFVariant> variants = new ArrayList<>(batch.size());
+      for(String line : batch) {
+        VCFVariant v = new VCFVariant(line);
+        if(!onlyValid || v.isValid())
+          variants.add(v);
+      }
+      return variants;
+    });
+  }
+}
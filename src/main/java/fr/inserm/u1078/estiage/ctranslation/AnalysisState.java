@@ -0,0 +1,299 @@
+package fr.inserm.u1078.estiage.ctranslation;
+
+import fr.inserm.u1078.estiage.Log;
+import fr.inserm.u1078.estiage.Report;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Persistent state of an analysis, to update the estimation when new individuals are added to the dataset<br/>
+ * For each side and each number of generations (up to the end of the process), the state keeps the likelihood of the G1 group
+ * (likeA + likeB) and of the G2 group (likeC), so that the likelihood curve is their product.
+ * When individuals are appended<ul>
+ *   <li>if the group sharing the longest haplotype stays on the same marker, the G2 likelihood of each stored generation is multiplied by the
+ *   terms of the new individuals of G2, the G1 likelihood is only recomputed on the sides where the new individuals change the G1 group,
+ *   and the curve is only extended if the stop condition is not met within the stored generations</li>
+ *   <li>otherwise every individual is recoded, and the state is computed again</li>
+ * </ul>
+ * The terms are combined in the same order as in Estiage, so the results are identical to an estimation on the whole dataset.<br/>
+ * State files (.estistate) are binary, big endian : magic, version, the input content (as in the binary input files, without magic and version),
+ * the number of generations, then for each side the G1 and G2 likelihoods (count + doubles, index 0 unused)
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class AnalysisState {
+  public static final String EXTENSION = ".estistate";
+  private static final int MAGIC = 0x45535421; //EST!
+  private static final int VERSION = 1;
+
+  private final InputContent content;
+  private final InputData input;
+  /* Likelihood of the G1 and of the G2 group, for each side and number of generations (index 0 is unused) */
+  private final double[][] g1;
+  private final double[][] g2;
+  private final Results results;
+
+  /**
+   * Builds the state, completing the stored likelihoods until the end of the process
+   * @param content the content of the input file
+   * @param input the input data
+   * @param g1 the stored likelihoods of the G1 group
+   * @param g2 the stored likelihoods of the G2 group
+   * @param tables the per-generation tables
+   * @throws EstiageException if the maximum number of iterations is reached
+   */
+  private AnalysisState(InputContent content, InputData input, double[][] g1, double[][] g2, GenerationTables.Cache tables) throws EstiageException {
+    this.content = content;
+    this.input = input;
+    this.g1 = g1;
+    this.g2 = g2;
+    this.results = curve(tables).toResults();
+  }
+
+  /**
+   * Computes the state of a dataset
+   * @param content the content of the input file
+   * @return the state
+   * @throws EstiageException if the content can't be converted or if the maximum number of iterations is reached
+   */
+  public static AnalysisState create(InputContent content) throws EstiageException {
+    return create(content, content.toInputData());
+  }
+
+  private static AnalysisState create(InputContent content, InputData input) throws EstiageException {
+    Report.Stage stage = Report.start(Report.STAGE_ESTIMATION);
+    try {
+      AnalysisState state = new AnalysisState(content, input, new double[][]{new double[1], new double[1]}, new double[][]{new double[1], new double[1]}, new GenerationTables.Cache(input));
+      return state;
+    } finally {
+      stage.end();
+    }
+  }
+
+  /**
+   * Appends individuals to the dataset, and updates the estimation
+   * @param added the content of an input file with the new individuals, on the same markers
+   * @return the new state (this state is unchanged)
+   * @throws EstiageException if the markers differ, or if the maximum number of iterations is reached
+   */
+  public AnalysisState append(InputContent added) throws EstiageException {
+    final InputContent newContent = content.append(added);
+    final InputData newInput = newContent.toInputData();
+    if (!isIncremental(newInput)) {
+      Log.info("The longest shared haplotype changed, the state is computed again");
+      return create(newContent, newInput);
+    }
+
+    Report.Stage stage = Report.start(Report.STAGE_ESTIMATION);
+    try {
+      final int first = input.getNIndividuals();
+      final int last = newInput.getNIndividuals() - 1;
+      final int nGen = getGenerations();
+      final GenerationTables.Cache tables = new GenerationTables.Cache(newInput);
+      final double[][] newG1 = {g1[C.LEFT].clone(), g1[C.RIGHT].clone()};
+      final double[][] newG2 = {g2[C.LEFT].clone(), g2[C.RIGHT].clone()};
+      for (int side : C.SIDES) {
+        if (!hasSide(newInput, side))
+          continue;
+        final SideFactors factors = new SideFactors(newInput, side);
+        //the G1 likelihood changes if a new individual belongs to G1, or is used in the inner loops of likeA/likeB, or if the former last individual was
+        boolean changedG1 = factors.isQ(first - 1);
+        for (int j = first; j <= last; j++)
+          changedG1 |= factors.isG1(j) || factors.isQ(j);
+        for (int gen = 1; gen <= nGen; gen++) {
+          final GenerationTables t = tables.get(gen);
+          if (changedG1) {
+            factors.computeG1(t);
+            newG1[side][gen] = factors.g1Like(-1);
+          }
+          for (int j = first; j <= last; j++)
+            if (!factors.isG1(j))
+              newG2[side][gen] *= factors.g2Factor(t, j);
+        }
+        Log.debug((side == C.LEFT ? "Left" : "Right") + " side : G1 likelihood " + (changedG1 ? "recomputed" : "kept") + " for " + nGen + " generations");
+      }
+      AnalysisState state = new AnalysisState(newContent, newInput, newG1, newG2, tables);
+      return state;
+    } finally {
+      stage.end();
+    }
+  }
+
+  /**
+   * Checks if the stored likelihoods can be updated for a dataset with appended individuals :
+   * the sides with data and the marker of the group sharing the longest haplotype must be the same
+   * @param newInput the dataset with the appended individuals
+   * @return true if the stored likelihoods can be updated
+   */
+  private boolean isIncremental(InputData newInput) {
+    for (int side : C.SIDES) {
+      if (hasSide(input, side) != hasSide(newInput, side))
+        return false;
+      if (hasSide(input, side) && input.getNMarker(side) != newInput.getNMarker(side))
+        return false;
+    }
+    return true;
+  }
+
+  private static boolean hasSide(InputData input, int side) {
+    return side == C.LEFT ? input.hasLeft : input.hasRight;
+  }
+
+  /**
+   * @param side the side
+   * @param gen the number of generations
+   * @return the stored likelihood of the side, 1 if the side has no data
+   */
+  private double like(int side, int gen) {
+    return hasSide(input, side) ? g1[side][gen] * g2[side][gen] : 1;
+  }
+
+  /**
+   * Builds the likelihood curve from the stored likelihoods, and extends the stored likelihoods while the stop condition is not met.
+   * The generations after the end of the process are removed
+   * @param tables the per-generation tables
+   * @return the curve
+   * @throws EstiageException if the maximum number of iterations is reached
+   */
+  private LikelihoodCurve curve(GenerationTables.Cache tables) throws EstiageException {
+    final int stored = g1[C.LEFT].length - 1;
+    final SideFactors[] factors = new SideFactors[2];
+    final LikelihoodCurve curve = new LikelihoodCurve();
+    int nGen = 1;
+    while (true) {
+      if (nGen > stored) {
+        if (nGen > C.MAX_GENERATIONS)
+          throw new EstiageException("Maximum number of iterations ["+nGen+"] reached");
+        extend(nGen, factors, tables);
+      }
+      if (!curve.add(like(C.LEFT, nGen) * like(C.RIGHT, nGen)))
+        break;
+      nGen++;
+    }
+    for (int side : C.SIDES) {
+      g1[side] = Arrays.copyOf(g1[side], nGen + 1);
+      g2[side] = Arrays.copyOf(g2[side], nGen + 1);
+    }
+    if (nGen > stored)
+      Log.debug((nGen - stored) + " generations computed, " + stored + " generations reused");
+    return curve;
+  }
+
+  /**
+   * Computes the likelihoods of each side for a new number of generations
+   * @param gen the number of generations
+   * @param factors the factors of each side (created when first needed)
+   * @param tables the per-generation tables
+   */
+  private void extend(int gen, SideFactors[] factors, GenerationTables.Cache tables) {
+    final GenerationTables t = tables.get(gen);
+    for (int side : C.SIDES) {
+      if (g1[side].length <= gen) {
+        g1[side] = Arrays.copyOf(g1[side], 2 * gen);
+        g2[side] = Arrays.copyOf(g2[side], 2 * gen);
+      }
+      if (!hasSide(input, side))
+        continue;
+      if (factors[side] == null)
+        factors[side] = new SideFactors(input, side);
+      factors[side].compute(t);
+      g1[side][gen] = factors[side].g1Like(-1);
+      g2[side][gen] = factors[side].g2Like(-1);
+    }
+  }
+
+  /**
+   * @return the number of generations stored (the end of the process)
+   */
+  public int getGenerations() {
+    return g1[C.LEFT].length - 1;
+  }
+
+  /**
+   * @return the number of individuals of the dataset
+   */
+  public int getNIndividuals() {
+    return input.getNIndividuals();
+  }
+
+  /**
+   * @return the content of the dataset
+   */
+  public InputContent getContent() {
+    return content;
+  }
+
+  /**
+   * @return the results of the estimation
+   */
+  public Results getResults() {
+    return results;
+  }
+
+  /**
+   * Reads a state file
+   * @param filename the name of the file
+   * @return the state
+   * @throws IOException if the file can't be read
+   * @throws EstiageException if the file is not a state file
+   */
+  public static AnalysisState read(String filename) throws IOException, EstiageException {
+    Report.Stage stage = Report.start(Report.STAGE_READ);
+    Report.readFile(filename);
+    try (RandomAccessFile raf = new RandomAccessFile(filename, "r"); FileChannel channel = raf.getChannel()) {
+      ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (in.getInt() != MAGIC)
+        throw new EstiageException("File [" + filename + "] is not a state file");
+      int version = in.getInt();
+      if (version != VERSION)
+        throw new EstiageException("Unsupported version [" + version + "] for state file [" + filename + "]");
+      InputContent content = InputContent.read(in);
+      int generations = in.getInt();
+      double[][] g1 = new double[2][];
+      double[][] g2 = new double[2][];
+      for (int side : C.SIDES) {
+        g1[side] = InputContent.getDoubles(in);
+        g2[side] = InputContent.getDoubles(in);
+        if (g1[side].length != generations + 1 || g2[side].length != generations + 1)
+          throw new EstiageException("State file [" + filename + "] is corrupted");
+      }
+      InputData input = content.toInputData();
+      return new AnalysisState(content, input, g1, g2, new GenerationTables.Cache(input));
+    } catch (BufferUnderflowException e) {
+      throw new EstiageException("State file [" + filename + "] is truncated");
+    } finally {
+      stage.end();
+    }
+  }
+
+  /**
+   * Writes the state to a file
+   * @param filename the name of the file
+   * @throws IOException if the file can't be written
+   */
+  public void write(String filename) throws IOException {
+    Report.Stage stage = Report.start(Report.STAGE_EXPORT);
+    try {
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        content.write(out);
+        out.writeInt(getGenerations());
+        for (int side : C.SIDES) {
+          InputContent.putDoubles(out, g1[side]);
+          InputContent.putDoubles(out, g2[side]);
+        }
+      }
+    } finally {
+      stage.end();
+    }
+    Report.output(filename);
+  }
+}
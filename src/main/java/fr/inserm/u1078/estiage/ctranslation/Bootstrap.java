@@ -0,0 +1,126 @@
+package fr.inserm.u1078.estiage.ctranslation;
+
+import fr.inserm.u1078.estiage.Log;
+import fr.inserm.u1078.estiage.Report;
+
+import java.util.ArrayList;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Nonparametric bootstrap over the individuals<br/>
+ * Each replicate draws nIndividuals rows (end markers, end alleles and posterior probability) with replacement, and estimates the age of the sample.
+ * The replicates are run on several threads, sharing the per-generation tables (see {@link GenerationTables.Cache}).
+ * Each replicate has its own random stream, split from the seed in the order of the replicates,
+ * so the results only depend on the seed and not on the number of threads
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class Bootstrap {
+  public static final int DEFAULT_REPLICATES = 1000;
+  public static final long DEFAULT_SEED = 1078;
+
+  private final InputData input;
+  private final int replicates;
+  private final long seed;
+  private final int threads;
+
+  /**
+   * Creates a new bootstrap
+   * @param input the whole dataset
+   * @param replicates the number of replicates
+   * @param seed the seed of the random streams
+   * @param threads the number of threads
+   */
+  public Bootstrap(InputData input, int replicates, long seed, int threads) {
+    this.input = input;
+    this.replicates = replicates;
+    this.seed = seed;
+    this.threads = Math.max(1, threads);
+  }
+
+  /**
+   * Runs the estimation on the whole dataset, then on each replicate
+   * @return the results of the whole dataset and the percentile interval of the replicates
+   * @throws EstiageException if the estimation fails on the whole dataset
+   * @throws InterruptedException if the current thread is interrupted while waiting for the replicates
+   */
+  public BootstrapResults run() throws EstiageException, InterruptedException {
+    Report.Stage stage = Report.start(Report.STAGE_ESTIMATION);
+    try {
+      return replicates();
+    } finally {
+      stage.end();
+    }
+  }
+
+  /**
+   * Runs the estimations, reported as a single stage by {@link #run()}
+   */
+  private BootstrapResults replicates() throws EstiageException, InterruptedException {
+    final GenerationTables.Cache tables = new GenerationTables.Cache(input);
+    final Results results = Estiage.estimate(input, tables);
+    Report.result(Report.STAGE_ESTIMATION, Report.RESULT_GENERATIONS, results.getEnd());
+
+    final SplittableRandom root = new SplittableRandom(seed);
+    final SplittableRandom[] streams = new SplittableRandom[replicates];
+    for (int r = 0; r < replicates; r++)
+      streams[r] = root.split();
+
+    final int[] ages = new int[replicates];
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicInteger done = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      ArrayList<Future<?>> workers = new ArrayList<>();
+      for (int w = 0; w < threads; w++)
+        workers.add(executor.submit(() -> {
+          int r;
+          while ((r = next.getAndIncrement()) < replicates) {
+            ages[r] = replicate(streams[r], tables);
+            int d = done.incrementAndGet();
+            if (d % 100 == 0)
+              Log.info(d + "/" + replicates + " replicates done");
+          }
+        }));
+      for (Future<?> worker : workers)
+        worker.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new EstiageException("Bootstrap failed : " + cause.getMessage());
+    } finally {
+      executor.shutdownNow();
+    }
+    return new BootstrapResults(results, ages);
+  }
+
+  /**
+   * Runs one replicate
+   * @param random the random stream of the replicate
+   * @param tables the per-generation tables
+   * @return the most likely age of the replicate, -1 if the estimation failed
+   */
+  private int replicate(SplittableRandom random, GenerationTables.Cache tables) {
+    final int n = input.getNIndividuals();
+    final int[] individuals = new int[n];
+    for (int i = 0; i < n; i++)
+      individuals[i] = random.nextInt(n);
+    try {
+      return Estiage.estimate(new InputData(input, individuals), tables).getMax();
+    } catch (EstiageException e) {
+      Log.debug("Replicate failed : " + e.getMessage());
+      return -1;
+    }
+  }
+}
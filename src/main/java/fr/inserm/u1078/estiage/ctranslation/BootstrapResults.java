@@ -0,0 +1,110 @@
+package fr.inserm.u1078.estiage.ctranslation;
+
+import java.util.Arrays;
+
+/**
+ * Results of a {@link Bootstrap} : the results of the whole dataset, and the percentile interval of the most likely age of the replicates
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class BootstrapResults {
+  /* Bounds of the 95% percentile interval */
+  public static final double LOWER = 0.025;
+  public static final double UPPER = 0.975;
+
+  private final Results results;
+  /* Most likely age of each successful replicate, sorted */
+  private final int[] ages;
+  private final int failed;
+
+  /**
+   * @param results the results of the whole dataset
+   * @param ages the most likely age of each replicate (-1 for failed replicates)
+   */
+  public BootstrapResults(Results results, int[] ages) {
+    this.results = results;
+    this.ages = Arrays.stream(ages).filter(age -> age >= 0).sorted().toArray();
+    this.failed = ages.length - this.ages.length;
+  }
+
+  /**
+   * @return the results of the whole dataset
+   */
+  public Results getResults() {
+    return results;
+  }
+
+  /**
+   * @return the number of successful replicates
+   */
+  public int getReplicates() {
+    return ages.length;
+  }
+
+  /**
+   * @return the number of replicates where the estimation failed
+   */
+  public int getFailed() {
+    return failed;
+  }
+
+  /**
+   * @return the sorted most likely ages of the successful replicates
+   */
+  public int[] getAges() {
+    return ages.clone();
+  }
+
+  /**
+   * Gets a percentile of the ages of the replicates (nearest rank)
+   * @param p the percentile (between 0 and 1)
+   * @return the percentile, -1 if there are no successful replicates
+   */
+  public int getPercentile(double p) {
+    if (ages.length == 0)
+      return -1;
+    int rank = (int) Math.ceil(p * ages.length) - 1;
+    return ages[Math.max(0, Math.min(ages.length - 1, rank))];
+  }
+
+  /**
+   * @return the lower limit of the 95% percentile interval
+   */
+  public int getInf() {
+    return getPercentile(LOWER);
+  }
+
+  /**
+   * @return the upper limit of the 95% percentile interval
+   */
+  public int getSup() {
+    return getPercentile(UPPER);
+  }
+
+  /**
+   * @return the median age of the replicates
+   */
+  public int getMedian() {
+    return getPercentile(0.5);
+  }
+
+  /**
+   * Prints results on StdOut
+   */
+  public void print() {
+    System.out.println(this);
+  }
+
+  @Override
+  public String toString() {
+    return results + "\n" +
+            "bootstrap replicates = " + ages.length + ", " +
+            "failed = " + failed + ", " +
+            "median = " + getMedian() + ", " +
+            "ninf = " + getInf() + ", " +
+            "nsup = " + getSup();
+  }
+}
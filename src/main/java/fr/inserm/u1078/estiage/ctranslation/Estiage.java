@@ -1,6 +1,8 @@
 package fr.inserm.u1078.estiage.ctranslation;
 
-import fr.inserm.u1078.tludwig.maok.tools.Message;
+import fr.inserm.u1078.estiage.Events;
+import fr.inserm.u1078.estiage.Log;
+import fr.inserm.u1078.estiage.Report;
 
 import java.io.IOException;
 
@@ -15,44 +17,102 @@ import java.io.IOException;
  * Unit Test defined on   XXXX-XX-XX
  */
 public class Estiage {
+  /**
+   * Per-iteration tracing of the likelihood computation (see {@link Log#TRACE}). As a constant, the tracing is compiled out of the loops when disabled
+   */
+  private static final boolean TRACE = Log.TRACE;
+  /**
+   * Is likeC computed by the {@link LikeCKernel} ? The original loop is used with java -DlikeCKernel=false
+   */
+  private static final boolean KERNEL = !"false".equalsIgnoreCase(System.getProperty("likeCKernel"));
 
   /**
    * Runs the EstiAge algorithm on the input file
-   * @param filename the name of the input file
+   * @param filename the name of the input file (text or binary)
    * @throws IOException if the file can't be read
    * @throws EstiageException if the file can't be parsed
    */
   public static void run(String filename) throws IOException, EstiageException {
-    final InputData input = new InputData(filename);
-    int[] nLongest = input.getNLongest();
+    run(InputData.load(filename));
+  }
+
+  /**
+   * Runs the EstiAge algorithm on data already in memory
+   * @param input the input data
+   */
+  public static void run(InputData input) {
     /* Final Maximum Log Likelihood */
     try {
-      Results res = findMaxLike(input, nLongest);
+      Results res = estimate(input);
       res.print();
     } catch (EstiageException e) {
       System.err.println(e.getMessage());
     }
   }
 
+  /**
+   * Computes the maximum likelihood estimation
+   * @param input the input data
+   * @return results of Estiage
+   * @throws EstiageException if the maximum number of iterations is reached
+   */
+  public static Results estimate(InputData input) throws EstiageException {
+    Report.Stage stage = Report.start(Report.STAGE_ESTIMATION);
+    try {
+      Results results = estimate(input, new GenerationTables.Cache(input));
+      Report.result(Report.STAGE_ESTIMATION, Report.RESULT_GENERATIONS, results.getEnd());
+      return results;
+    } finally {
+      stage.end();
+    }
+  }
+
+  /**
+   * Computes the maximum likelihood estimation, with tables that can be shared between datasets built on the same markers.
+   * Nothing is reported : the callers (bootstrap, influence) report their whole computation as a single stage
+   * @param input the input data
+   * @param tables the tables for each number of generations
+   * @return results of Estiage
+   * @throws EstiageException if the maximum number of iterations is reached
+   * @throws IllegalArgumentException if the tables were built for other markers
+   */
+  static Results estimate(InputData input, GenerationTables.Cache tables) throws EstiageException {
+    if (!tables.accepts(input))
+      throw new IllegalArgumentException("The tables were built for other markers, mutation rate or model");
+    return findMaxLike(input, input.getNLongest(), tables);
+  }
+
+  /**
+   * Computes the likelihood of the whole sample for one number of generations
+   * @param input the input data
+   * @param t the tables for the number of generations
+   * @return the likelihood
+   */
+  public static double likelihood(InputData input, GenerationTables t) {
+    return totLike(input, t, input.getNLongest());
+  }
+
   /**
    * Computation of the likelihood over the whole sample.
    * @param input       the input data
    * @param side        LEFT:0 RIGHT:1
-   * @param nGeneration number of Generation
+   * @param t           the tables for the number of generations
    * @param n           number of individuals belonging to the G1 group
    * @return the likelihood
    */
-  private static double like(InputData input, int side, int nGeneration, int n) {
+  private static double like(InputData input, int side, GenerationTables t, int n) {
     /* no individual carries the ancestral haplotype */
-    final double likA = likeA(input, side, nGeneration, n);
+    final double likA = likeA(input, side, t, n);
     /* Computations for individuals belonging to the G1 group (carriers) */
-    final double likB = likeB(input, side, nGeneration, n);
+    final double likB = likeB(input, side, t, n);
     /* Computations for individuals belonging to the G2 group (non carriers) */
-    final double likC = likeC(input, side, nGeneration);
-    Message.debug("a="+likA);
-    Message.debug("b="+likB);
-    Message.debug("c="+likC);
-    Message.debug("like="+(likA + likB) * likC);
+    final double likC = likeC(input, side, t);
+    if (TRACE && Log.isDebug()) {
+      Log.debug("a="+likA);
+      Log.debug("b="+likB);
+      Log.debug("c="+likC);
+      Log.debug("like="+(likA + likB) * likC);
+    }
     return (likA + likB) * likC;
   }
 
@@ -60,11 +120,11 @@ public class Estiage {
    * No individual Carries the ancestral haplotype
    * @param input       the input data
    * @param side        LEFT:0 RIGHT:1
-   * @param nGeneration number of Generation
+   * @param t           the tables for the number of generations
    * @param n          number of individuals belonging to the G1 group
    * @return the likelihood
    */
-  private static double likeA(InputData input, int side, int nGeneration, int n) {
+  private static double likeA(InputData input, int side, GenerationTables t, int n) {
     /* Second case: no individual carries the ancestral haplotype */
     int nMarker = input.getNMarker(side);
     double likTmp1 = 1.0;
@@ -80,25 +140,27 @@ public class Estiage {
         double likTmp3 = 0;
         final double p1 = (endMarkerJ > 2) ? input.getFrequencies(side, endMarkerJ) : 0.0;
         final double p2 = (endMarkerJ > 2) ? input.getFrequencies(side, endMarkerJ - 1) : 0.0;
-        final double u = C.U(input.getMutationRate(), endMarkerJ - 1, nGeneration);
-        final double hj = C.H(input.getMutationRate(), endMarkerJ, nGeneration, input.getFractions(side), C.MISSING, input.getEndAlleles(side, j), input.isUseStepWiseModel());
+        final double u = t.u(endMarkerJ - 1);
+        final double hj = t.h(side, endMarkerJ, C.MISSING, input.getEndAlleles(side, j));
         likTmp1 *= Math.pow(u * hj, input.getPostProbability(j));
 
         //If more than 1 G1
         if (n > 1) {
-          final double f1 = C.F(endMarkerJ - 1, nGeneration, input.getFractions(side));
-          final double f2 = C.F(endMarkerJ - 2, nGeneration, input.getFractions(side));
+          final double f1 = t.f(side, endMarkerJ - 1);
+          final double f2 = t.f(side, endMarkerJ - 2);
           //only last value wil be kept
           likTmp2 = Math.pow(u * p1 * f1, input.getPostProbability(j));
           likTmp3 = Math.pow(u * p1 * p2 * f2, input.getPostProbability(j));
-          Message.debug("j=" + j + " t2=" + likTmp2 + " t3=" + likTmp3);
+          if (TRACE && Log.isDebug())
+            Log.debug("j=" + j + " t2=" + likTmp2 + " t3=" + likTmp3);
           for (int k = 0; k < input.getNIndividuals(); k++) {
             if (input.getEndMarker(side, k) == nMarker && k != j) {
-              final double hk = C.H(input.getMutationRate(), endMarkerJ, nGeneration, input.getFractions(side), C.MISSING, input.getEndAlleles(side, k), input.isUseStepWiseModel());
+              final double hk = t.h(side, endMarkerJ, C.MISSING, input.getEndAlleles(side, k));
               final double contrib = Math.pow(u * hk, input.getPostProbability(k));
               likTmp2 *= contrib;
               likTmp3 *= contrib;
-              Message.debug("j=" + j + " k=" + k + " t2=" + likTmp2 + " t3=" + likTmp3);
+              if (TRACE && Log.isDebug())
+                Log.debug("j=" + j + " k=" + k + " t2=" + likTmp2 + " t3=" + likTmp3);
             }
           }
 
@@ -111,7 +173,7 @@ public class Estiage {
                 double likTmp4 = Math.pow(tmpCF, input.getPostProbability(l));
                 for (int m = 0; m < input.getNIndividuals(); m++)
                   if (input.getEndAlleles(side, m) == nMarker && (m != l) && (m != input.getNIndividuals() - 1) && (m != j)) { //m != i-1, here i is always nind, from the end of top level loop
-                    final double hm = C.H(input.getMutationRate(), endMarkerJ, nGeneration, input.getFractions(side), C.MISSING, input.getEndAlleles(side, m), input.isUseStepWiseModel());
+                    final double hm = t.h(side, endMarkerJ, C.MISSING, input.getEndAlleles(side, m));
                     final double contrib = Math.pow(u * hm, input.getPostProbability(m));
                     likTmp4 *= contrib;
                   }
@@ -122,15 +184,18 @@ public class Estiage {
         }
         totLikTmp2 += likTmp2;
         totLikTmp3 += likTmp3;
-        Message.debug("tot2="+totLikTmp2+" tot3="+totLikTmp3);
+        if (TRACE && Log.isDebug())
+          Log.debug("tot2="+totLikTmp2+" tot3="+totLikTmp3);
         totTotLikTmp4 += totLikTmp4;
       }
     }
-    Message.debug("likTmp1="+likTmp1);
-    Message.debug("totLikTmp2="+totLikTmp2);
-    Message.debug("totLikTmp3="+totLikTmp3);
-    Message.debug("totTotLikTmp4="+totTotLikTmp4);
-    Message.debug("lik3a="+(likTmp1 + totLikTmp2 + totLikTmp3 + totTotLikTmp4));
+    if (TRACE && Log.isDebug()) {
+      Log.debug("likTmp1="+likTmp1);
+      Log.debug("totLikTmp2="+totLikTmp2);
+      Log.debug("totLikTmp3="+totLikTmp3);
+      Log.debug("totTotLikTmp4="+totTotLikTmp4);
+      Log.debug("lik3a="+(likTmp1 + totLikTmp2 + totLikTmp3 + totTotLikTmp4));
+    }
     return likTmp1 + totLikTmp2 + totLikTmp3 + totTotLikTmp4;
   }
 
@@ -138,11 +203,11 @@ public class Estiage {
    * Computation for the carriers (of the ancestral haplotype): Group1
    * @param input       the input data
    * @param side        LEFT:0 RIGHT:1
-   * @param nGeneration number of Generation
+   * @param t           the tables for the number of generations
    * @param n          number of individuals belonging to the G1 group
    * @return the likelihood
    */
-  private static double likeB(InputData input, int side, int nGeneration, int n) {
+  private static double likeB(InputData input, int side, GenerationTables t, int n) {
     int nMarker = input.getNMarker(side);
     double likB = 0;
 
@@ -151,8 +216,8 @@ public class Estiage {
       final int endMarkerI = input.getEndMarker(side,i);
       //last marker of individual I is the last marker of the side
       if (endMarkerI == nMarker) {
-        final double ui = C.U(input.getMutationRate(), endMarkerI, nGeneration);
-        final double si = C.S(endMarkerI, nGeneration, input.getFractions(side));
+        final double ui = t.u(endMarkerI);
+        final double si = t.s(side, endMarkerI);
         final double contribAnc = Math.pow(ui * si, input.getPostProbability(i));
 
         double likTmp1 = 1;
@@ -170,22 +235,22 @@ public class Estiage {
           if ((endMarkerJ == nMarker) && (j != i)) {
             final double p1 = (endMarkerJ > 2) ? input.getFrequencies(side, endMarkerJ) : 0.0;
             final double p2 = (endMarkerJ > 2) ? input.getFrequencies(side, endMarkerJ - 1) : 0.0;
-            final double u = C.U(input.getMutationRate(), endMarkerJ - 1, nGeneration);
-            final double hj = C.H(input.getMutationRate(), endMarkerJ, nGeneration, input.getFractions(side), input.getEndAlleles(side,i), input.getEndAlleles(side,j), input.isUseStepWiseModel());
+            final double u = t.u(endMarkerJ - 1);
+            final double hj = t.h(side, endMarkerJ, input.getEndAlleles(side,i), input.getEndAlleles(side,j));
             final double contrib = Math.pow(u * hj, input.getPostProbability(j));
             likTmp1 *= contrib;
 
             //If more than 1 G1
             if (n > 1) {
 
-              final double f1 = C.F(endMarkerJ - 1, nGeneration, input.getFractions(side));
-              final double f2 = C.F(endMarkerJ - 2, nGeneration, input.getFractions(side));
+              final double f1 = t.f(side, endMarkerJ - 1);
+              final double f2 = t.f(side, endMarkerJ - 2);
               //only last value will be kept
               likTmp2 = Math.pow(u * p1      * f1, input.getPostProbability(j));
               likTmp3 = Math.pow(u * p1 * p2 * f2, input.getPostProbability(j));
               for (int k = 0; k < input.getNIndividuals(); k++) {
                 if ((input.getEndAlleles(side, k) == nMarker) && (k != i) && (k != j)) {
-                  final double hk = C.H(input.getMutationRate(), endMarkerJ, nGeneration, input.getFractions(side), input.getEndAlleles(side, i), input.getEndAlleles(side, k), input.isUseStepWiseModel());
+                  final double hk = t.h(side, endMarkerJ, input.getEndAlleles(side, i), input.getEndAlleles(side, k));
                   final double tmpPow = Math.pow(u * hk, input.getPostProbability(k));
                   likTmp2 *= tmpPow;
                   likTmp3 *= tmpPow;
@@ -199,7 +264,7 @@ public class Estiage {
                     double likTmp4 = Math.pow(tmpCF, input.getPostProbability(l) * input.getPostProbability(j));
                     for (int m = 0; m < input.getNIndividuals(); m++)
                       if ((input.getEndAlleles(side, m) == nMarker) && (m != l) && (m != i) && (m != j)) {
-                        final double hm = C.H(input.getMutationRate(), endMarkerJ, nGeneration, input.getFractions(side), input.getEndAlleles(side, i), input.getEndAlleles(side, m), input.isUseStepWiseModel());
+                        final double hm = t.h(side, endMarkerJ, input.getEndAlleles(side, i), input.getEndAlleles(side, m));
                         final double tmpPow = Math.pow(u * hm, input.getPostProbability(m));
                         likTmp4 *= tmpPow;
                       }
@@ -224,28 +289,11 @@ public class Estiage {
    * Computation for the non carrier (of the ancestral haplotype) : Group 2
    * @param input       the input data
    * @param side        LEFT:0 RIGHT:1
-   * @param nGeneration number of Generation
+   * @param t           the tables for the number of generations
    * @return the likelihood
    */
-  private static double likeC(InputData input, int side, int nGeneration) {
-    int nMarker = input.getNMarker(side);
-    /* Computations for individuals belonging to the G2 group */
-    double likC = 1;
-    for (int j = 0; j < input.getNIndividuals(); j++) {
-      final int endMarkerJ = input.getEndMarker(side, j);
-      //end marker of individual J is not the last marker of the side
-      if (endMarkerJ != nMarker) {
-        final double p1 = (endMarkerJ > 2) ? input.getFrequencies(side, endMarkerJ): 0.0;
-        final double p2 = (endMarkerJ > 2) ? input.getFrequencies(side, endMarkerJ - 1) : 0.0;
-        final double u = C.U(input.getMutationRate(), endMarkerJ - 1, nGeneration);
-        final double h = C.H(input.getMutationRate(), endMarkerJ, nGeneration, input.getFractions(side), input.getAncestralAlleles(side,endMarkerJ), input.getEndAlleles(side,j), input.isUseStepWiseModel());
-        final double f1 = C.F(endMarkerJ - 1, nGeneration, input.getFractions(side));
-        final double f2 = C.F(endMarkerJ - 2, nGeneration, input.getFractions(side));
-        final double contrib = u * h;
-        likC *= Math.pow(contrib + p1 * f1 + p1 * p2 * f2, input.getPostProbability(j));
-      }
-    }
-    return likC;
+  private static double likeC(InputData input, int side, GenerationTables t) {
+    return KERNEL ? input.getLikeCKernel(side).like(t) : LikeCKernel.scalar(input, side, t);
   }
 
 
@@ -253,15 +301,24 @@ public class Estiage {
   /**
    * Computation for subjects sharing the longest haplotype
    * @param input the input data
-   * @param ng number of generation
+   * @param t the tables for the number of generations
    * @param nLongest number of individual in G1[left,right]
    * @return
    */
-  private static double totLike(InputData input, int ng, final int[] nLongest) {
-    double likeLeft  = input.hasLeft  ? like(input, C.LEFT,  ng, nLongest[C.LEFT])  : 1;
-    double likeRight = input.hasRight ? like(input, C.RIGHT, ng, nLongest[C.RIGHT]) : 1;
-    Message.debug("Left likelihood: "+likeLeft);
-    Message.debug("Right likelihood: "+likeRight);
+  private static double totLike(InputData input, GenerationTables t, final int[] nLongest) {
+    Events.Generation event = new Events.Generation();
+    event.begin();
+    double likeLeft  = input.hasLeft  ? like(input, C.LEFT,  t, nLongest[C.LEFT])  : 1;
+    double likeRight = input.hasRight ? like(input, C.RIGHT, t, nLongest[C.RIGHT]) : 1;
+    if (TRACE && Log.isDebug()) {
+      Log.debug("Left likelihood: "+likeLeft);
+      Log.debug("Right likelihood: "+likeRight);
+    }
+    if (event.shouldCommit()) {
+      event.generation = t.getNGenerations();
+      event.likelihood = likeLeft * likeRight;
+      event.commit();
+    }
     return likeLeft * likeRight;
   }
 
@@ -269,57 +326,50 @@ public class Estiage {
    * Main computation
    * @param input the input data
    * @param nLongest number of individual in G1[left,right]
+   * @param tables the tables for each number of generations
    * @return results of Estiage
    * @throws EstiageException if the maximum number of iterations is reached
    */
-  private static Results findMaxLike(InputData input, final int[] nLongest) throws EstiageException {
+  private static Results findMaxLike(InputData input, final int[] nLongest, GenerationTables.Cache tables) throws EstiageException {
+    Events.Estimation event = new Events.Estimation();
+    event.begin();
     // Number of generations from common ancestor
     int nGen = 1;
-    // Sum of the likelihood over nGen
-    double pTot = 0;
-    // Temporary variable to compute 95% CI
-    double pTic = 0;
-    // Keep the maximum likelihood at each incrementation of nGen
-    double pMax = totLike(input, nGen, nLongest);
-    // Array to keep the likelihood of n
-    double[] pGenTot = new double[C.MAX_GENERATIONS + 1];
-    int nMax = nGen;
-    for (int gen = 1; gen <= C.MAX_GENERATIONS; gen++)
-      pGenTot[gen] = 0.0;
-    // Computation of the maximum likelihood<
-    pGenTot[nGen] = totLike(input, nGen, nLongest);
-    while (pMax / pGenTot[nGen] < C.LIKELIHOOD_STOP_RATIO) {
-      if (pGenTot[nGen] >= pMax) {
-        pMax = pGenTot[nGen];
-        nMax = nGen;
-      }
+    // Likelihood of each number of generations, and maximum likelihood
+    LikelihoodCurve curve = new LikelihoodCurve();
+    // Computation of the maximum likelihood
+    while (curve.add(totLike(input, tables.get(nGen), nLongest))) {
       nGen++;
       if (nGen > C.MAX_GENERATIONS) {
         String message = "Maximum number of iterations ["+nGen+"] reached";
         for (int i = 0; i < input.getNIndividuals(); i++)
           message += "\n" + i + " " + input.getEndMarker(C.LEFT,i) + " " + input.getEndMarker(C.RIGHT,i);
+        commit(event, input, C.MAX_GENERATIONS, curve.getMax(), Events.Estimation.STOP_MAX_GENERATIONS);
         throw new EstiageException(message);
       }
-      pGenTot[nGen] = totLike(input, nGen, nLongest);
     }
+    Results results = curve.toResults();
+    commit(event, input, results.getEnd(), results.getMax(), Events.Estimation.STOP_RATIO);
+    return results;
+  }
 
-    int nEnd = nGen;
-    int nInf = 0;
-    int nSup = 0;
-    for (int gen = 1; gen <= nEnd; gen++)
-      pTot += pGenTot[gen];
-    for (int gen = 1; gen <= nEnd; gen++) {
-      pTic += pGenTot[gen] / pTot;
-      if ((pTic > 0.025) && (nInf <= 0))
-        nInf = gen;
-      if (pTic > 0.975) {
-        nSup = gen;
-        break;
-      }
+  /**
+   * Commits the JFR event of an estimation, if a recording is running
+   * @param event the event, started at the beginning of the estimation
+   * @param input the input data
+   * @param generations the number of generations evaluated
+   * @param nMax the most likely number of generations
+   * @param stopReason the reason why the iterations stopped
+   */
+  private static void commit(Events.Estimation event, InputData input, int generations, int nMax, String stopReason) {
+    if (event.shouldCommit()) {
+      event.individuals = input.getNIndividuals();
+      event.markersLeft = input.hasLeft ? input.getNMarker(C.LEFT) : 0;
+      event.markersRight = input.hasRight ? input.getNMarker(C.RIGHT) : 0;
+      event.generations = generations;
+      event.age = nMax;
+      event.stopReason = stopReason;
+      event.commit();
     }
-    double lnTotLike = Math.log(pMax);
-
-    return new Results(nMax, nEnd, nInf, nSup, lnTotLike);
   }
 }
-
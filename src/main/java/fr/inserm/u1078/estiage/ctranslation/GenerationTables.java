@@ -0,0 +1,160 @@
+package fr.inserm.u1078.estiage.ctranslation;
+
+import fr.inserm.u1078.estiage.MathLib;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Values of {@link C#S}, {@link C#F}, {@link C#U} and {@link C#H} for one number of generations, precomputed for every marker rank<br/>
+ * The values only depend on the recombination fractions, the mutation rate and the model, and not on the individuals,
+ * so they are computed once per generation instead of once per individual (or pair of individuals), and can be shared
+ * by all the datasets built on the same markers (see {@link Cache}).
+ * The values are computed with the same expressions as in {@link C}, so the results are identical
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class GenerationTables {
+  private final int nGenerations;
+  private final double mutationRate;
+  private final boolean stepWise;
+  /* S(rank), for each side */
+  private final double[][] s;
+  /* F(rank), for each side */
+  private final double[][] f;
+  /* U(rank) */
+  private final double[] u;
+  /* Probability of mutation, for the non stepwise model */
+  private final double pMut;
+
+  /**
+   * Computes the tables
+   * @param input the input data (only the recombination fractions, the number of markers, the mutation rate and the model are used)
+   * @param nGenerations the number of generations
+   */
+  public GenerationTables(InputData input, int nGenerations) {
+    this.nGenerations = nGenerations;
+    this.mutationRate = input.getMutationRate();
+    this.stepWise = input.isUseStepWiseModel();
+    final int size = input.maxMarkers + 1;
+    this.s = new double[2][size];
+    this.f = new double[2][size];
+    this.u = new double[size];
+    for (int side : C.SIDES) {
+      final double[] fractions = input.getFractions(side);
+      for (int rank = 0; rank < size; rank++)
+        s[side][rank] = C.S(rank, nGenerations, fractions);
+      for (int rank = 2; rank < size; rank++)
+        f[side][rank] = s[side][rank - 1] - s[side][rank];
+    }
+    for (int rank = 0; rank < size; rank++)
+      u[rank] = C.U(mutationRate, rank, nGenerations);
+    this.pMut = 1.0 - Math.pow(1.0 - mutationRate, nGenerations);
+  }
+
+  /**
+   * @return the number of generations
+   */
+  public int getNGenerations() {
+    return nGenerations;
+  }
+
+  /**
+   * @param side the side
+   * @param rank the rank of the marker
+   * @return C.S(rank, nGenerations, fractions[side])
+   */
+  public double s(int side, int rank) {
+    return rank <= 0 ? 0 : s[side][rank];
+  }
+
+  /**
+   * @param side the side
+   * @param rank the rank of the marker
+   * @return C.F(rank, nGenerations, fractions[side])
+   */
+  public double f(int side, int rank) {
+    return rank <= 1 ? 0 : f[side][rank];
+  }
+
+  /**
+   * @param rank the rank of the marker
+   * @return C.U(mutationRate, rank, nGenerations)
+   */
+  public double u(int rank) {
+    return rank >= 0 && rank < u.length ? u[rank] : C.U(mutationRate, rank, nGenerations);
+  }
+
+  /**
+   * @param side the side
+   * @param rank the rank of the marker
+   * @param endAllele1 the first end allele
+   * @param endAllele2 the second end allele
+   * @return C.H(mutationRate, rank, nGenerations, fractions[side], endAllele1, endAllele2, stepWise)
+   */
+  public double h(int side, int rank, int endAllele1, int endAllele2) {
+    return f(side, rank) + pMut(endAllele1, endAllele2) * s(side, rank);
+  }
+
+  /**
+   * @param endAllele1 the first end allele
+   * @param endAllele2 the second end allele
+   * @return the probability of a mutation between the two alleles
+   */
+  private double pMut(int endAllele1, int endAllele2) {
+    if ((endAllele2 < 0) || (endAllele1 < 0))
+      return 0.0;
+    if (!stepWise)
+      return pMut;
+    double lambda = mutationRate * nGenerations;
+    if (lambda <= 0)
+      return 0.0;
+    int obsStep = Math.abs(endAllele2 - endAllele1);
+    return Math.pow(lambda, obsStep) * Math.exp(-lambda) / MathLib.fact(obsStep);
+  }
+
+  /**
+   * Tables for each number of generations, computed when first needed.
+   * The cache can be used by concurrent estimations on datasets sharing the same markers (recombination fractions, mutation rate and model)
+   */
+  public static class Cache {
+    private final InputData input;
+    private final AtomicReferenceArray<GenerationTables> tables;
+
+    /**
+     * Creates an empty cache
+     * @param input the input data defining the markers
+     */
+    public Cache(InputData input) {
+      this.input = input;
+      this.tables = new AtomicReferenceArray<>(C.MAX_GENERATIONS + 1);
+    }
+
+    /**
+     * Gets the tables for a number of generations
+     * @param nGenerations the number of generations
+     * @return the tables
+     */
+    public GenerationTables get(int nGenerations) {
+      GenerationTables t = tables.get(nGenerations);
+      if (t == null) {
+        t = new GenerationTables(input, nGenerations);
+        if (!tables.compareAndSet(nGenerations, null, t))
+          t = tables.get(nGenerations);
+      }
+      return t;
+    }
+
+    /**
+     * Checks if a dataset can use this cache
+     * @param other the other dataset
+     * @return true if the other dataset shares the markers of this cache
+     */
+    public boolean accepts(InputData other) {
+      return other.fractions == input.fractions && other.maxMarkers == input.maxMarkers
+              && other.mutationRate == input.mutationRate && other.useStepWiseModel == input.useStepWiseModel;
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package fr.inserm.u1078.estiage.ctranslation;
+
+import fr.inserm.u1078.estiage.Log;
+import fr.inserm.u1078.estiage.Report;
+
+/**
+ * Leave-one-out influence of each individual on the estimation (jackknife)<br/>
+ * Instead of running the estimation once per individual, the likelihood of every leave-one-out dataset is computed from the same
+ * per-generation terms (see {@link SideFactors}) : each generation computes the power terms once, then combines them for the whole
+ * dataset and for each dataset without one individual, until the stop condition of every curve is met.
+ * The results are identical to estimations on datasets without the individual.<br/>
+ * When leaving an individual out changes the group sharing the longest haplotype (the G1 group only had 2 individuals, or the individual
+ * was the only one without marker on a side), the terms can't be reused, and the estimation is run on the dataset without the individual
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class Influence {
+  private final InputData input;
+
+  /**
+   * @param input the whole dataset
+   */
+  public Influence(InputData input) {
+    this.input = input;
+  }
+
+  /**
+   * Runs the estimation on the whole dataset and on each leave-one-out dataset
+   * @return the results of the whole dataset and of each leave-one-out dataset
+   * @throws EstiageException if the estimation fails on the whole dataset
+   */
+  public InfluenceResults run() throws EstiageException {
+    Report.Stage stage = Report.start(Report.STAGE_ESTIMATION);
+    try {
+      return influence();
+    } finally {
+      stage.end();
+    }
+  }
+
+  /**
+   * Runs the estimations, reported as a single stage by {@link #run()}
+   */
+  private InfluenceResults influence() throws EstiageException {
+    final int n = input.getNIndividuals();
+    final GenerationTables.Cache tables = new GenerationTables.Cache(input);
+    final SideFactors[] factors = new SideFactors[2];
+    if (input.hasLeft)
+      factors[C.LEFT] = new SideFactors(input, C.LEFT);
+    if (input.hasRight)
+      factors[C.RIGHT] = new SideFactors(input, C.RIGHT);
+
+    /* curves[n] is the curve of the whole dataset, curves[r] the curve without individual r (null if the terms can't be reused) */
+    final LikelihoodCurve[] curves = new LikelihoodCurve[n + 1];
+    int running = 0;
+    for (int r = 0; r <= n; r++)
+      if (r == n || isIncremental(r, factors)) {
+        curves[r] = new LikelihoodCurve();
+        running++;
+      }
+
+    for (int nGen = 1; running > 0; nGen++) {
+      if (nGen > C.MAX_GENERATIONS) {
+        if (!curves[n].isStopped())
+          throw new EstiageException("Maximum number of iterations ["+nGen+"] reached");
+        break;
+      }
+      final GenerationTables t = tables.get(nGen);
+      for (SideFactors side : factors)
+        if (side != null)
+          side.compute(t);
+      for (int r = 0; r <= n; r++) {
+        final LikelihoodCurve curve = curves[r];
+        if (curve != null && !curve.isStopped()) {
+          final int excluded = r == n ? -1 : r;
+          final double likeLeft  = factors[C.LEFT]  != null ? factors[C.LEFT].like(excluded)  : 1;
+          final double likeRight = factors[C.RIGHT] != null ? factors[C.RIGHT].like(excluded) : 1;
+          if (!curve.add(likeLeft * likeRight))
+            running--;
+        }
+      }
+    }
+
+    final Results whole = curves[n].toResults();
+    Report.result(Report.STAGE_ESTIMATION, Report.RESULT_GENERATIONS, whole.getEnd());
+
+    final Results[] results = new Results[n];
+    final boolean[] recomputed = new boolean[n];
+    for (int r = 0; r < n; r++) {
+      if (curves[r] == null) {
+        recomputed[r] = true;
+        results[r] = estimateWithout(r, tables);
+      } else if (curves[r].isStopped())
+        results[r] = curves[r].toResults();
+      else
+        Log.debug("Estimation without individual " + (r + 1) + " failed : maximum number of iterations reached");
+    }
+    return new InfluenceResults(whole, results, recomputed);
+  }
+
+  /**
+   * Checks if the likelihood without an individual can be computed from the terms of the whole dataset :
+   * leaving the individual out must not change the sides with data, nor the marker of the group sharing the longest haplotype
+   * @param r the individual
+   * @param factors the terms of each side (null for sides without data)
+   * @return true if the terms can be reused
+   */
+  private boolean isIncremental(int r, SideFactors[] factors) {
+    if (input.getNIndividuals() < 3)
+      return false;
+    for (int side : C.SIDES) {
+      if (factors[side] == null) {
+        if (input.getInputEndMarker(side, r) <= 0 && countWithoutMarker(side) == 1)
+          return false;
+      } else if (factors[side].isG1(r) && factors[side].getNG1() <= 2)
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * @param side the side
+   * @return the number of individuals without marker on this side
+   */
+  private int countWithoutMarker(int side) {
+    int count = 0;
+    for (int i = 0; i < input.getNIndividuals(); i++)
+      if (input.getInputEndMarker(side, i) <= 0)
+        count++;
+    return count;
+  }
+
+  /**
+   * Runs the estimation on the dataset without an individual
+   * @param r the individual
+   * @param tables the per-generation tables
+   * @return the results, null if the estimation failed
+   */
+  private Results estimateWithout(int r, GenerationTables.Cache tables) {
+    final int[] individuals = new int[input.getNIndividuals() - 1];
+    for (int i = 0; i < individuals.length; i++)
+      individuals[i] = i < r ? i : i + 1;
+    try {
+      return Estiage.estimate(new InputData(input, individuals), tables);
+    } catch (EstiageException e) {
+      Log.debug("Estimation without individual " + (r + 1) + " failed : " + e.getMessage());
+      return null;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package fr.inserm.u1078.estiage.ctranslation;
+
+/**
+ * Results of an {@link Influence} : the results of the whole dataset, and the results without each individual
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class InfluenceResults {
+  public static final String NA = "NA";
+  public static final String HEADER = "#individual\tn\tninf\tnsup\tlikelihood\tdelta_n\tdelta_ninf\tdelta_nsup\tdelta_likelihood\trecomputed";
+
+  private final Results results;
+  /* Results without each individual (null if the estimation failed) */
+  private final Results[] individuals;
+  /* true if the estimation without the individual could not reuse the terms of the whole dataset */
+  private final boolean[] recomputed;
+
+  /**
+   * @param results the results of the whole dataset
+   * @param individuals the results without each individual (null if the estimation failed)
+   * @param recomputed for each individual, true if the estimation was run on the dataset without the individual
+   */
+  public InfluenceResults(Results results, Results[] individuals, boolean[] recomputed) {
+    this.results = results;
+    this.individuals = individuals;
+    this.recomputed = recomputed;
+  }
+
+  /**
+   * @return the results of the whole dataset
+   */
+  public Results getResults() {
+    return results;
+  }
+
+  /**
+   * @return the number of individuals
+   */
+  public int getNIndividuals() {
+    return individuals.length;
+  }
+
+  /**
+   * @param individual the index of the individual (0-based, in the order of the input file)
+   * @return the results without this individual, null if the estimation failed
+   */
+  public Results getResults(int individual) {
+    return individuals[individual];
+  }
+
+  /**
+   * @param individual the index of the individual (0-based, in the order of the input file)
+   * @return true if the estimation without this individual was run on its own (instead of reusing the terms of the whole dataset)
+   */
+  public boolean isRecomputed(int individual) {
+    return recomputed[individual];
+  }
+
+  /**
+   * Jackknife standard error of the most likely age : sqrt((k-1)/k * sum((n_i - mean)^2)) over the k successful leave-one-out estimations
+   * @return the standard error, NaN if less than 2 estimations succeeded
+   */
+  public double getStandardError() {
+    int k = 0;
+    double sum = 0;
+    for (Results r : individuals)
+      if (r != null) {
+        k++;
+        sum += r.getMax();
+      }
+    if (k < 2)
+      return Double.NaN;
+    final double mean = sum / k;
+    double squares = 0;
+    for (Results r : individuals)
+      if (r != null)
+        squares += (r.getMax() - mean) * (r.getMax() - mean);
+    return Math.sqrt((k - 1) * squares / k);
+  }
+
+  /**
+   * Prints results on StdOut
+   */
+  public void print() {
+    System.out.println(this);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(results).append("\n");
+    sb.append("jackknife standard error = ").append(getStandardError()).append("\n");
+    sb.append(HEADER);
+    for (int i = 0; i < individuals.length; i++) {
+      sb.append("\n").append(i + 1);
+      Results r = individuals[i];
+      if (r == null)
+        sb.append(("\t" + NA).repeat(8));
+      else
+        sb.append("\t").append(r.getMax())
+                .append("\t").append(r.getInf())
+                .append("\t").append(r.getSup())
+                .append("\t").append(r.getLnTotLike())
+                .append("\t").append(r.getMax() - results.getMax())
+                .append("\t").append(r.getInf() - results.getInf())
+                .append("\t").append(r.getSup() - results.getSup())
+                .append("\t").append(r.getLnTotLike() - results.getLnTotLike());
+      sb.append("\t").append(recomputed[i]);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,411 @@
+package fr.inserm.u1078.estiage.ctranslation;
+
+import fr.inserm.u1078.estiage.Report;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Content of an EstiAge input file, as written in the file (before any recoding by InputData)<br/>
+ * Two encodings are supported<ul>
+ *   <li>text (.estinput) : the original EstiAge format</li>
+ *   <li>binary (.estibin) : the same content, big endian, loaded through a memory-mapped buffer without any tokenizing :
+ *   magic, version, nIndividuals, then for each side the fractions and frequencies (count + doubles), the mutation rate, the model,
+ *   for each side the ancestral alleles (count + strings), a flag for the posterior probabilities,
+ *   then for each individual the end markers, the end alleles and the posterior probability</li>
+ * </ul>
+ * Strings are encoded as their length (short) followed by their UTF-8 bytes
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class InputContent {
+  public static final String BINARY_EXTENSION = ".estibin";
+  private static final int MAGIC = 0x45424921; //EBI!
+  private static final int VERSION = 1;
+  private static final String SEP = " ";
+  private static final String NL = "\n";
+
+  private final int nIndividuals;
+  private final double[][] fractions;
+  private final double[][] frequencies;
+  private final double mutationRate;
+  private final boolean useStepWiseModel;
+  private final String[][] ancestralAlleles;
+  private final int[][] endMarkers;
+  private final String[][] endAlleles;
+  private final double[] postProbability;
+
+  /**
+   * Creates a new content. All arrays are indexed by side first (C.LEFT, C.RIGHT)
+   * @param nIndividuals the number of individuals
+   * @param fractions the recombination fractions of the markers
+   * @param frequencies the frequencies of the shared alleles
+   * @param mutationRate the mutation rate
+   * @param useStepWiseModel true to use the stepwise mutation model
+   * @param ancestralAlleles the ancestral alleles
+   * @param endMarkers the 1-based position of the first marker with a different allele, for each individual
+   * @param endAlleles the allele at this position, for each individual
+   * @param postProbability the posterior probability of each haplotype reconstruction, null if there are none
+   */
+  public InputContent(int nIndividuals, double[][] fractions, double[][] frequencies, double mutationRate, boolean useStepWiseModel, String[][] ancestralAlleles, int[][] endMarkers, String[][] endAlleles, double[] postProbability) {
+    this.nIndividuals = nIndividuals;
+    this.fractions = fractions;
+    this.frequencies = frequencies;
+    this.mutationRate = mutationRate;
+    this.useStepWiseModel = useStepWiseModel;
+    this.ancestralAlleles = ancestralAlleles;
+    this.endMarkers = endMarkers;
+    this.endAlleles = endAlleles;
+    this.postProbability = postProbability;
+  }
+
+  /**
+   * Checks if a file is a binary input file (by its magic number)
+   * @param filename the name of the file
+   * @return true if the file starts with the magic number of the binary format
+   * @throws IOException if the file can't be read
+   */
+  public static boolean isBinary(String filename) throws IOException {
+    try (DataInputStream in = new DataInputStream(new FileInputStream(filename))) {
+      return in.readInt() == MAGIC;
+    } catch (EOFException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Converts the content to the data of the likelihood engine
+   * @return the input data
+   * @throws EstiageException if the alleles are inconsistent
+   */
+  public InputData toInputData() throws EstiageException {
+    return new InputData(nIndividuals, fractions, frequencies, mutationRate, useStepWiseModel, ancestralAlleles, endMarkers, endAlleles, postProbability);
+  }
+
+  /**
+   * @return the number of individuals
+   */
+  public int getNIndividuals() {
+    return nIndividuals;
+  }
+
+  /**
+   * Checks if another content is built on the same markers (fractions, frequencies, mutation rate, model and ancestral alleles)
+   * @param other the other content
+   * @return true if the markers are the same
+   */
+  public boolean hasSameMarkers(InputContent other) {
+    for (int side : C.SIDES)
+      if (!Arrays.equals(fractions[side], other.fractions[side]) || !Arrays.equals(frequencies[side], other.frequencies[side])
+              || !Arrays.equals(ancestralAlleles[side], other.ancestralAlleles[side]))
+        return false;
+    return mutationRate == other.mutationRate && useStepWiseModel == other.useStepWiseModel;
+  }
+
+  /**
+   * Appends the individuals of another content, built on the same markers, after the individuals of this content
+   * @param other the other content
+   * @return a new content, with the individuals of both contents
+   * @throws EstiageException if the markers of the contents are not the same
+   */
+  public InputContent append(InputContent other) throws EstiageException {
+    if (!hasSameMarkers(other))
+      throw new EstiageException("The new individuals are not described on the same markers (fractions, frequencies, mutation rate, model or ancestral alleles differ)");
+    final int n = nIndividuals + other.nIndividuals;
+    int[][] markers = new int[2][];
+    String[][] alleles = new String[2][];
+    for (int side : C.SIDES) {
+      markers[side] = Arrays.copyOf(endMarkers[side], n);
+      System.arraycopy(other.endMarkers[side], 0, markers[side], nIndividuals, other.nIndividuals);
+      alleles[side] = Arrays.copyOf(endAlleles[side], n);
+      System.arraycopy(other.endAlleles[side], 0, alleles[side], nIndividuals, other.nIndividuals);
+    }
+    double[] post = null;
+    if (postProbability != null || other.postProbability != null) {
+      post = new double[n];
+      for (int i = 0; i < nIndividuals; i++)
+        post[i] = postProbability == null ? 1.0 : postProbability[i];
+      for (int i = 0; i < other.nIndividuals; i++)
+        post[nIndividuals + i] = other.postProbability == null ? 1.0 : other.postProbability[i];
+    }
+    return new InputContent(n, fractions, frequencies, mutationRate, useStepWiseModel, ancestralAlleles, markers, alleles, post);
+  }
+
+  /**
+   * Reads an input file, text or binary
+   * @param filename the name of the file
+   * @return the content of the file
+   * @throws IOException if the file can't be read
+   * @throws EstiageException if the file can't be parsed
+   */
+  public static InputContent read(String filename) throws IOException, EstiageException {
+    return isBinary(filename) ? readBinary(filename) : readText(filename);
+  }
+
+  /**
+   * Reads a text input file
+   * @param filename the name of the file
+   * @return the content of the file
+   * @throws IOException if the file can't be read
+   * @throws EstiageException if the file can't be parsed
+   */
+  public static InputContent readText(String filename) throws IOException, EstiageException {
+    int l = 0;
+    try (BufferedReader in = new BufferedReader(new FileReader(filename))) {
+      l++;
+      String[] line = in.readLine().split("\\s");
+      int nIndividuals = Integer.parseInt(line[0]);
+      int[] nMarkers = {Integer.parseInt(line[1]), Integer.parseInt(line[2])};
+      double[][] fractions = new double[2][];
+      double[][] frequencies = new double[2][];
+      for (int side : C.SIDES) {
+        l++;
+        //the number of markers is given by the header, missing fractions are 0
+        fractions[side] = Arrays.copyOf(parseDoubles(in.readLine()), nMarkers[side]);
+        l++;
+        frequencies[side] = parseDoubles(in.readLine());
+      }
+      l++;
+      line = in.readLine().split("\\s");
+      double mutationRate = Double.parseDouble(line[0]);
+      boolean useStepWiseModel = !"0".equals(line[1]);
+      String[][] ancestralAlleles = new String[2][];
+      for (int side : C.SIDES) {
+        l++;
+        ancestralAlleles[side] = in.readLine().split("\\s");
+      }
+      int[][] endMarkers = new int[2][nIndividuals];
+      String[][] endAlleles = new String[2][nIndividuals];
+      double[] postProbability = null;
+      for (int i = 0; i < nIndividuals; i++) {
+        l++;
+        line = in.readLine().split("\\s");
+        endMarkers[C.LEFT][i] = Integer.parseInt(line[0]);
+        endMarkers[C.RIGHT][i] = Integer.parseInt(line[1]);
+        endAlleles[C.LEFT][i] = line[2];
+        endAlleles[C.RIGHT][i] = line[3];
+        if (line.length > 4) {
+          if (postProbability == null) {
+            postProbability = new double[nIndividuals];
+            for (int j = 0; j < i; j++)
+              postProbability[j] = 1.0;
+          }
+          postProbability[i] = Double.parseDouble(line[4]);
+        } else if (postProbability != null)
+          postProbability[i] = 1.0;
+      }
+      return new InputContent(nIndividuals, fractions, frequencies, mutationRate, useStepWiseModel, ancestralAlleles, endMarkers, endAlleles, postProbability);
+    } catch (NullPointerException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+      throw new EstiageException("Unable to parse input file [" + filename + "] on line [" + l + "]");
+    }
+  }
+
+  private static double[] parseDoubles(String line) {
+    String[] f = line.split("\\s");
+    double[] ret = new double[f.length];
+    for (int c = 0; c < f.length; c++)
+      ret[c] = Double.parseDouble(f[c]);
+    return ret;
+  }
+
+  /**
+   * Writes the content as a text input file
+   * @param filename the name of the file
+   * @throws IOException if the file can't be written
+   */
+  public void writeText(String filename) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    sb.append(nIndividuals).append(SEP).append(fractions[C.LEFT].length).append(SEP).append(fractions[C.RIGHT].length).append(NL);
+    for (int side : C.SIDES) {
+      append(sb, fractions[side]);
+      append(sb, frequencies[side]);
+    }
+    sb.append(mutationRate).append(SEP).append(useStepWiseModel ? 1 : 0).append(NL);
+    for (int side : C.SIDES)
+      sb.append(String.join(SEP, ancestralAlleles[side])).append(NL);
+    for (int i = 0; i < nIndividuals; i++) {
+      sb.append(endMarkers[C.LEFT][i]).append(SEP).append(endMarkers[C.RIGHT][i]).append(SEP)
+          .append(endAlleles[C.LEFT][i]).append(SEP).append(endAlleles[C.RIGHT][i]);
+      if (postProbability != null)
+        sb.append(SEP).append(postProbability[i]);
+      sb.append(NL);
+    }
+    try (PrintWriter out = new PrintWriter(new FileWriter(filename))) {
+      out.print(sb);
+    }
+  }
+
+  private static void append(StringBuilder sb, double[] values) {
+    for (int i = 0; i < values.length; i++) {
+      if (i > 0)
+        sb.append(SEP);
+      sb.append(values[i]);
+    }
+    sb.append(NL);
+  }
+
+  /**
+   * Reads a binary input file
+   * @param filename the name of the file
+   * @return the content of the file
+   * @throws IOException if the file can't be read
+   * @throws EstiageException if the file is not a binary input file
+   */
+  public static InputContent readBinary(String filename) throws IOException, EstiageException {
+    try (RandomAccessFile raf = new RandomAccessFile(filename, "r"); FileChannel channel = raf.getChannel()) {
+      ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (in.getInt() != MAGIC)
+        throw new EstiageException("File [" + filename + "] is not a binary input file");
+      int version = in.getInt();
+      if (version != VERSION)
+        throw new EstiageException("Unsupported version [" + version + "] for binary input file [" + filename + "]");
+      return read(in);
+    } catch (BufferUnderflowException e) {
+      throw new EstiageException("Binary input file [" + filename + "] is truncated");
+    }
+  }
+
+  /**
+   * Reads the content from a buffer, after the magic number and the version
+   * @param in the buffer
+   * @return the content
+   * @throws BufferUnderflowException if the buffer is truncated
+   */
+  static InputContent read(ByteBuffer in) {
+    int nIndividuals = in.getInt();
+    double[][] fractions = new double[2][];
+    double[][] frequencies = new double[2][];
+    for (int side : C.SIDES) {
+      fractions[side] = getDoubles(in);
+      frequencies[side] = getDoubles(in);
+    }
+    double mutationRate = in.getDouble();
+    boolean useStepWiseModel = in.get() != 0;
+    String[][] ancestralAlleles = new String[2][];
+    for (int side : C.SIDES) {
+      ancestralAlleles[side] = new String[in.getInt()];
+      for (int c = 0; c < ancestralAlleles[side].length; c++)
+        ancestralAlleles[side][c] = getString(in);
+    }
+    boolean hasPost = in.get() != 0;
+    int[][] endMarkers = new int[2][nIndividuals];
+    String[][] endAlleles = new String[2][nIndividuals];
+    double[] postProbability = hasPost ? new double[nIndividuals] : null;
+    for (int i = 0; i < nIndividuals; i++) {
+      endMarkers[C.LEFT][i] = in.getInt();
+      endMarkers[C.RIGHT][i] = in.getInt();
+      endAlleles[C.LEFT][i] = getString(in);
+      endAlleles[C.RIGHT][i] = getString(in);
+      if (hasPost)
+        postProbability[i] = in.getDouble();
+    }
+    return new InputContent(nIndividuals, fractions, frequencies, mutationRate, useStepWiseModel, ancestralAlleles, endMarkers, endAlleles, postProbability);
+  }
+
+  static double[] getDoubles(ByteBuffer in) {
+    double[] ret = new double[in.getInt()];
+    in.asDoubleBuffer().get(ret);
+    in.position(in.position() + 8 * ret.length);
+    return ret;
+  }
+
+  private static String getString(ByteBuffer in) {
+    int length = in.getShort() & 0xffff;
+    if (length == 0)
+      return "";
+    byte[] bytes = new byte[length];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Writes the content as a binary input file
+   * @param filename the name of the file
+   * @throws IOException if the file can't be written
+   */
+  public void writeBinary(String filename) throws IOException {
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      write(out);
+    }
+  }
+
+  /**
+   * Writes the content to a stream, without the magic number and the version
+   * @param out the stream
+   * @throws IOException if the content can't be written
+   */
+  void write(DataOutputStream out) throws IOException {
+    out.writeInt(nIndividuals);
+    for (int side : C.SIDES) {
+      putDoubles(out, fractions[side]);
+      putDoubles(out, frequencies[side]);
+    }
+    out.writeDouble(mutationRate);
+    out.writeByte(useStepWiseModel ? 1 : 0);
+    for (int side : C.SIDES) {
+      out.writeInt(ancestralAlleles[side].length);
+      for (String allele : ancestralAlleles[side])
+        putString(out, allele);
+    }
+    out.writeByte(postProbability == null ? 0 : 1);
+    for (int i = 0; i < nIndividuals; i++) {
+      out.writeInt(endMarkers[C.LEFT][i]);
+      out.writeInt(endMarkers[C.RIGHT][i]);
+      putString(out, endAlleles[C.LEFT][i]);
+      putString(out, endAlleles[C.RIGHT][i]);
+      if (postProbability != null)
+        out.writeDouble(postProbability[i]);
+    }
+  }
+
+  static void putDoubles(DataOutputStream out, double[] values) throws IOException {
+    out.writeInt(values.length);
+    for (double v : values)
+      out.writeDouble(v);
+  }
+
+  private static void putString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > 0xffff)
+      throw new IOException("Allele too long [" + s.substring(0, 20) + "...]");
+    out.writeShort(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Converts a text input file to a binary one, or a binary file to text, depending on the extension of the output
+   * @param input the input file (text or binary)
+   * @param output the output file (binary if it ends with .estibin, text otherwise)
+   * @throws IOException if a file can't be read or written
+   * @throws EstiageException if the input can't be parsed
+   */
+  public static void convert(String input, String output) throws IOException, EstiageException {
+    Report.Stage stage = Report.start(Report.STAGE_READ);
+    final InputContent content;
+    try {
+      Report.readFile(input);
+      content = isBinary(input) ? readBinary(input) : readText(input);
+    } finally {
+      stage.end();
+    }
+    stage = Report.start(Report.STAGE_EXPORT);
+    try {
+      if (output.toLowerCase().endsWith(BINARY_EXTENSION))
+        content.writeBinary(output);
+      else
+        content.writeText(output);
+    } finally {
+      stage.end();
+    }
+    Report.output(output);
+  }
+}
@@ -1,5 +1,7 @@
 package fr.inserm.u1078.estiage.ctranslation;
 
+import fr.inserm.u1078.estiage.Report;
+
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
@@ -56,6 +58,12 @@ public class InputData {
   //* true: alleles are micro sat repetition count, false: alleles are SNP,INDELS
   public boolean isMicrosat = true;
 
+  // Number of markers on each side and position of the 1st discordant marker, as read (before the recoding by findLongest)
+  private final int[] inputMarkers = new int[2];
+  private int[][] inputEndMarkers;
+  // Kernel of likeC for each side, built when first needed
+  private final LikeCKernel[] likeCKernels = new LikeCKernel[2];
+
   /**
    * Procedure to read the data from input file
    * July 2001, if markers are available on one side only, the user should
@@ -135,6 +143,144 @@ public class InputData {
     this.nLongest = this.findLongest();
   }
 
+  /**
+   * Builds the data from values already in memory, in the same order and with the same meaning as the lines of an input file
+   * (so that the result is identical to writing then reading the file)
+   *
+   * @param nIndividuals the number of individuals
+   * @param fractions the recombination fractions of the markers, for each side
+   * @param frequencies the frequencies of the shared alleles, for each side
+   * @param mutationRate the mutation rate
+   * @param useStepWiseModel true to use the stepwise mutation model
+   * @param ancestralAlleles the ancestral alleles, for each side
+   * @param endMarkers the 1-based position of the first marker with a different allele, for each side and individual
+   * @param endAlleles the allele at this position, for each side and individual
+   * @throws EstiageException if the alleles are inconsistent (mixing microsat and non microsat, stepwise model with non microsat)
+   */
+  public InputData(int nIndividuals, double[][] fractions, double[][] frequencies, double mutationRate, boolean useStepWiseModel, String[][] ancestralAlleles, int[][] endMarkers, String[][] endAlleles) throws EstiageException {
+    this(nIndividuals, fractions, frequencies, mutationRate, useStepWiseModel, ancestralAlleles, endMarkers, endAlleles, null);
+  }
+
+  /**
+   * Builds the data from values already in memory, in the same order and with the same meaning as the lines of an input file
+   * (so that the result is identical to writing then reading the file)
+   *
+   * @param nIndividuals the number of individuals
+   * @param fractions the recombination fractions of the markers, for each side
+   * @param frequencies the frequencies of the shared alleles, for each side
+   * @param mutationRate the mutation rate
+   * @param useStepWiseModel true to use the stepwise mutation model
+   * @param ancestralAlleles the ancestral alleles, for each side
+   * @param endMarkers the 1-based position of the first marker with a different allele, for each side and individual
+   * @param endAlleles the allele at this position, for each side and individual
+   * @param postProbability the posterior probability of each haplotype reconstruction, null for 1.0
+   * @throws EstiageException if the alleles are inconsistent (mixing microsat and non microsat, stepwise model with non microsat)
+   */
+  public InputData(int nIndividuals, double[][] fractions, double[][] frequencies, double mutationRate, boolean useStepWiseModel, String[][] ancestralAlleles, int[][] endMarkers, String[][] endAlleles, double[] postProbability) throws EstiageException {
+    boolean tmpLeft = true;
+    boolean tmpRight = true;
+
+    this.nIndividuals = nIndividuals;
+    nMarkers[C.LEFT] = fractions[C.LEFT].length + 2;
+    nMarkers[C.RIGHT] = fractions[C.RIGHT].length + 2;
+
+    maxMarkers = Math.max(nMarkers[0], nMarkers[1]);
+    this.fractions = new double[2][maxMarkers+1];
+    this.endMarkers = new int[2][nIndividuals];
+    this.endAlleles = new int[2][nIndividuals];
+    this.postProbability = new double[nIndividuals];
+    this.ancestralAlleles = new int[2][maxMarkers+1];
+    this.frequencies = new double[2][maxMarkers+1];
+
+    for (int side : C.SIDES) {
+      System.arraycopy(fractions[side], 0, this.fractions[side], 2, fractions[side].length);
+      System.arraycopy(frequencies[side], 0, this.frequencies[side], 3, frequencies[side].length);
+    }
+    this.mutationRate = mutationRate;
+    this.useStepWiseModel = useStepWiseModel;
+    for (int side : C.SIDES)
+      for (int c = 0; c < ancestralAlleles[side].length; c++)
+        this.ancestralAlleles[side][c + 1] = readAllele(ancestralAlleles[side][c]);
+
+    for (int i = 0; i < nIndividuals; i++) {
+      this.endMarkers[C.LEFT][i] = endMarkers[C.LEFT][i] + 1;
+      this.endMarkers[C.RIGHT][i] = endMarkers[C.RIGHT][i] + 1;
+      if (this.endMarkers[C.LEFT][i] <= 0)
+        tmpLeft = false;
+      if (this.endMarkers[C.RIGHT][i] <= 0)
+        tmpRight = false;
+      this.endAlleles[C.LEFT][i] = readAllele(endAlleles[C.LEFT][i]);
+      this.endAlleles[C.RIGHT][i] = readAllele(endAlleles[C.RIGHT][i]);
+      this.postProbability[i] = postProbability == null ? 1.0 : postProbability[i];
+    }
+    hasLeft = tmpLeft;
+    hasRight = tmpRight;
+
+    this.nLongest = this.findLongest();
+  }
+
+  /**
+   * Builds a sample of the individuals of another dataset, as if the input file only had the lines of these individuals.
+   * The markers (fractions, frequencies, ancestral alleles) are shared with the other dataset, and an individual can be drawn several times
+   *
+   * @param data the whole dataset
+   * @param individuals the indices of the individuals of the sample
+   */
+  public InputData(InputData data, int[] individuals) {
+    boolean tmpLeft = true;
+    boolean tmpRight = true;
+
+    this.nIndividuals = individuals.length;
+    nMarkers[C.LEFT] = data.inputMarkers[C.LEFT];
+    nMarkers[C.RIGHT] = data.inputMarkers[C.RIGHT];
+
+    maxMarkers = data.maxMarkers;
+    fractions = data.fractions;
+    frequencies = data.frequencies;
+    ancestralAlleles = data.ancestralAlleles;
+    mutationRate = data.mutationRate;
+    useStepWiseModel = data.useStepWiseModel;
+    isMicrosat = data.isMicrosat;
+    endMarkers = new int[2][nIndividuals];
+    endAlleles = new int[2][nIndividuals];
+    postProbability = new double[nIndividuals];
+
+    for (int i = 0; i < nIndividuals; i++) {
+      final int individual = individuals[i];
+      for (int side : C.SIDES) {
+        endMarkers[side][i] = data.inputEndMarkers[side][individual];
+        endAlleles[side][i] = data.endAlleles[side][individual];
+      }
+      if (endMarkers[C.LEFT][i] <= 0)
+        tmpLeft = false;
+      if (endMarkers[C.RIGHT][i] <= 0)
+        tmpRight = false;
+      postProbability[i] = data.postProbability[individual];
+    }
+    hasLeft = tmpLeft;
+    hasRight = tmpRight;
+
+    this.nLongest = this.findLongest();
+  }
+
+  /**
+   * Loads an input file, text or binary
+   * @param filename the name of the file
+   * @return the input data
+   * @throws IOException if the input file can't be read
+   * @throws EstiageException if the input file can't be parsed
+   */
+  public static InputData load(String filename) throws IOException, EstiageException {
+    Report.Stage stage = Report.start(Report.STAGE_READ);
+    try {
+      Report.readFile(filename);
+      InputData input = InputContent.isBinary(filename) ? InputContent.readBinary(filename).toInputData() : new InputData(filename);
+      return input;
+    } finally {
+      stage.end();
+    }
+  }
+
   private int readAllele(String s) throws EstiageException {
     if ("-1".equals(s) || s.isEmpty())
       return C.MISSING;
@@ -166,6 +312,7 @@ public class InputData {
   private int[] findLongest() {
     int[][] count = new int[2][maxMarkers+1];
     int nLongest[] = new int[2];
+    inputEndMarkers = new int[][]{endMarkers[C.LEFT].clone(), endMarkers[C.RIGHT].clone()};
 
     for (int side : C.SIDES) {
       for (int j = 1; j <= nMarkers[side]; j++)
@@ -179,6 +326,7 @@ public class InputData {
         if (count[side][j] > 1 )
           tmp = j;
 
+      inputMarkers[side] = nMarkers[side];
       nMarkers[side] = tmp;
       nLongest[side] = count[side][tmp];
       /* Individual markers are recoded */
@@ -209,6 +357,15 @@ public class InputData {
     return endMarkers[side][pos];
   }
 
+  /**
+   * @param side the side
+   * @param pos the individual
+   * @return the position of the first discordant marker, as read (before the recoding by findLongest)
+   */
+  int getInputEndMarker(int side, int pos) {
+    return inputEndMarkers[side][pos];
+  }
+
   public int getEndAlleles(int side, int pos) {
     return endAlleles[side][pos];
   }
@@ -224,4 +381,17 @@ public class InputData {
   public double getFrequencies(int side, int pos) {
     return frequencies[side][pos];
   }
+
+  /**
+   * @param side the side
+   * @return the kernel computing likeC on this side (the kernel is immutable, concurrent calls may build it twice)
+   */
+  LikeCKernel getLikeCKernel(int side) {
+    LikeCKernel kernel = likeCKernels[side];
+    if (kernel == null) {
+      kernel = new LikeCKernel(this, side);
+      likeCKernels[side] = kernel;
+    }
+    return kernel;
+  }
 }
\ No newline at end of file
@@ -0,0 +1,145 @@
+package fr.inserm.u1078.estiage.ctranslation;
+
+import fr.inserm.u1078.estiage.Report;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Joint estimation of the age of a mutation observed in several cohorts<br/>
+ * Each cohort has its own data (markers, frequencies, recombination fractions), the joint likelihood for a number of generations
+ * is the product of the likelihoods of the cohorts. The maximum, the end of the process and the 95% CI are computed on the joint
+ * likelihood, as for a single cohort.<br/>
+ * The cohorts are evaluated concurrently, by blocks of generations, until the end of the joint process. To also give the estimation
+ * of each cohort alone, the cohorts whose own process has not ended are then evaluated further, up to {@link #EXTENSION} times the
+ * number of generations of the joint process : a cohort whose own process has not ended by then has no results of its own
+ * (it can still be estimated alone)
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class JointEstimation {
+  /* Number of generations evaluated by each task */
+  private static final int BLOCK = 64;
+  /* The cohorts alone are evaluated up to EXTENSION times the number of generations of the joint process */
+  public static final int EXTENSION = 2;
+
+  private final InputData[] cohorts;
+  private final String[] names;
+  private final int threads;
+
+  /**
+   * Creates a new joint estimation
+   * @param cohorts the data of each cohort
+   * @param names the name of each cohort (null to number the cohorts)
+   * @param threads the number of threads
+   */
+  public JointEstimation(InputData[] cohorts, String[] names, int threads) {
+    this.cohorts = cohorts;
+    this.names = names;
+    this.threads = Math.max(1, Math.min(threads, cohorts.length));
+  }
+
+  /**
+   * Runs the joint estimation
+   * @return the joint results, and the results of each cohort
+   * @throws EstiageException if the maximum number of iterations is reached by the joint likelihood
+   * @throws InterruptedException if the current thread is interrupted while waiting for the cohorts
+   */
+  public JointResults run() throws EstiageException, InterruptedException {
+    Report.Stage stage = Report.start(Report.STAGE_ESTIMATION);
+    try {
+      final int n = cohorts.length;
+      final GenerationTables.Cache[] tables = new GenerationTables.Cache[n];
+      final LikelihoodCurve[] curves = new LikelihoodCurve[n];
+      /* Likelihood of each cohort, for each generation of the current block */
+      final double[][] block = new double[n][BLOCK];
+      for (int c = 0; c < n; c++) {
+        tables[c] = new GenerationTables.Cache(cohorts[c]);
+        curves[c] = new LikelihoodCurve();
+      }
+      final LikelihoodCurve joint = new LikelihoodCurve();
+      /* Likelihood of each cohort at each generation, as long as the joint process runs */
+      final ArrayList<double[]> values = new ArrayList<>();
+
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try {
+        /* Last number of generations to evaluate */
+        int limit = C.MAX_GENERATIONS;
+        for (int first = 1; first <= limit && (!joint.isStopped() || !allStopped(curves)); first += BLOCK) {
+          final int start = first;
+          final int end = Math.min(first + BLOCK, limit + 1);
+          final boolean jointRunning = !joint.isStopped();
+          ArrayList<Future<?>> tasks = new ArrayList<>();
+          for (int c = 0; c < n; c++) {
+            final int cohort = c;
+            if (jointRunning || !curves[c].isStopped())
+              tasks.add(executor.submit(() -> {
+                for (int gen = start; gen < end; gen++)
+                  block[cohort][gen - start] = Estiage.likelihood(cohorts[cohort], tables[cohort].get(gen));
+              }));
+          }
+          for (Future<?> task : tasks)
+            task.get();
+
+          //the cohorts that are not stopped were evaluated in this block, and all of them if the joint process is running
+          for (int i = 0; i < end - start; i++) {
+            if (jointRunning && !joint.isStopped()) {
+              double like = 1;
+              for (int c = 0; c < n; c++)
+                like *= block[c][i];
+              double[] value = new double[n];
+              for (int c = 0; c < n; c++)
+                value[c] = block[c][i];
+              values.add(value);
+              joint.add(like);
+            }
+            for (int c = 0; c < n; c++)
+              if (!curves[c].isStopped())
+                curves[c].add(block[c][i]);
+          }
+          if (jointRunning && joint.isStopped())
+            limit = Math.min(C.MAX_GENERATIONS, EXTENSION * joint.getGenerations());
+        }
+        if (!joint.isStopped())
+          throw new EstiageException("Maximum number of iterations ["+(C.MAX_GENERATIONS + 1)+"] reached");
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException)
+          throw (RuntimeException) cause;
+        if (cause instanceof Error)
+          throw (Error) cause;
+        throw new EstiageException("Joint estimation failed : " + cause.getMessage());
+      } finally {
+        executor.shutdownNow();
+      }
+
+      final Results results = joint.toResults();
+      final Results[] cohortResults = new Results[n];
+      final double[] contributions = new double[n];
+      for (int c = 0; c < n; c++) {
+        cohortResults[c] = curves[c].isStopped() ? curves[c].toResults() : null;
+        contributions[c] = Math.log(values.get(results.getMax() - 1)[c]);
+      }
+      Report.result(Report.STAGE_ESTIMATION, Report.RESULT_GENERATIONS, results.getEnd());
+      final String[] cohortNames = new String[n];
+      for (int c = 0; c < n; c++)
+        cohortNames[c] = names == null ? Integer.toString(c + 1) : names[c];
+      return new JointResults(results, cohortNames, cohortResults, contributions);
+    } finally {
+      stage.end();
+    }
+  }
+
+  private static boolean allStopped(LikelihoodCurve[] curves) {
+    for (LikelihoodCurve curve : curves)
+      if (!curve.isStopped())
+        return false;
+    return true;
+  }
+}
@@ -0,0 +1,98 @@
+package fr.inserm.u1078.estiage.ctranslation;
+
+/**
+ * Results of a {@link JointEstimation} : the joint results, and for each cohort its log-likelihood at the joint age and its own results
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class JointResults {
+  public static final String NA = "NA";
+  public static final String HEADER = "#cohort\tlikelihood_at_joint_n\tn\tninf\tnsup\tlikelihood";
+
+  private final Results results;
+  private final String[] names;
+  /* Results of each cohort alone (null if its process did not end, see JointEstimation.EXTENSION) */
+  private final Results[] cohorts;
+  /* Log-likelihood of each cohort at the joint age */
+  private final double[] contributions;
+
+  /**
+   * @param results the joint results
+   * @param names the name of each cohort
+   * @param cohorts the results of each cohort alone (null if its process did not end)
+   * @param contributions the log-likelihood of each cohort at the joint age
+   */
+  public JointResults(Results results, String[] names, Results[] cohorts, double[] contributions) {
+    this.results = results;
+    this.names = names;
+    this.cohorts = cohorts;
+    this.contributions = contributions;
+  }
+
+  /**
+   * @return the joint results
+   */
+  public Results getResults() {
+    return results;
+  }
+
+  /**
+   * @return the number of cohorts
+   */
+  public int getNCohorts() {
+    return cohorts.length;
+  }
+
+  /**
+   * @param cohort the index of the cohort
+   * @return the name of the cohort
+   */
+  public String getName(int cohort) {
+    return names[cohort];
+  }
+
+  /**
+   * @param cohort the index of the cohort
+   * @return the results of the cohort alone, null if its process did not end within {@link JointEstimation#EXTENSION} times the generations of the joint process
+   */
+  public Results getResults(int cohort) {
+    return cohorts[cohort];
+  }
+
+  /**
+   * @param cohort the index of the cohort
+   * @return the log-likelihood of the cohort at the joint age (the joint log-likelihood is the sum over the cohorts)
+   */
+  public double getContribution(int cohort) {
+    return contributions[cohort];
+  }
+
+  /**
+   * Prints results on StdOut
+   */
+  public void print() {
+    System.out.println(this);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(results).append("\n");
+    sb.append(HEADER);
+    for (int c = 0; c < cohorts.length; c++) {
+      sb.append("\n").append(names[c]).append("\t").append(contributions[c]);
+      Results r = cohorts[c];
+      if (r == null)
+        sb.append(("\t" + NA).repeat(4));
+      else
+        sb.append("\t").append(r.getMax())
+                .append("\t").append(r.getInf())
+                .append("\t").append(r.getSup())
+                .append("\t").append(r.getLnTotLike());
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,170 @@
+package fr.inserm.u1078.estiage.ctranslation;
+
+/**
+ * Kernel computing likeC (the likelihood of the G2 group of one side) over primitive arrays<br/>
+ * The data of the individuals of G2 are gathered once in struct-of-arrays form. Each term u * h + p1 * f1 + p1 * p2 * f2 only depends on the
+ * end marker and on the end allele of the individual, so it is computed once per distinct (end marker, end allele) pair, in a loop over
+ * plain double arrays that the JIT can unroll and vectorize. Each individual then only raises its term to its posterior probability
+ * (Math.pow is skipped when the probability is 1, as pow(x, 1) == x).<br/>
+ * The terms are computed with the same expressions and multiplied in the same order as in {@link #scalar(InputData, int, GenerationTables)},
+ * so the results are identical
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class LikeCKernel {
+  private final int side;
+  /* For each individual of G2 (in the order of the input) : its posterior probability and the index of its (end marker, end allele) pair */
+  private final double[] postProbability;
+  private final int[] pair;
+  /* For each distinct (end marker, end allele) pair */
+  private final int[] endMarker;
+  private final int[] ancestralAllele;
+  private final int[] endAllele;
+  private final double[] p1;
+  private final double[] p1p2;
+
+  /**
+   * Gathers the data of the individuals of the G2 group of a side
+   * @param input the input data
+   * @param side the side
+   */
+  public LikeCKernel(InputData input, int side) {
+    this.side = side;
+    final int nMarker = input.getNMarker(side);
+    int n = 0;
+    for (int j = 0; j < input.getNIndividuals(); j++)
+      if (input.getEndMarker(side, j) != nMarker)
+        n++;
+    postProbability = new double[n];
+    pair = new int[n];
+    final int[] markers = new int[n];
+    final int[] alleles = new int[n];
+    int nPairs = 0;
+    int k = 0;
+    for (int j = 0; j < input.getNIndividuals(); j++) {
+      final int endMarkerJ = input.getEndMarker(side, j);
+      if (endMarkerJ != nMarker) {
+        final int endAlleleJ = input.getEndAlleles(side, j);
+        int p = 0;
+        while (p < nPairs && (markers[p] != endMarkerJ || alleles[p] != endAlleleJ))
+          p++;
+        if (p == nPairs) {
+          markers[p] = endMarkerJ;
+          alleles[p] = endAlleleJ;
+          nPairs++;
+        }
+        postProbability[k] = input.getPostProbability(j);
+        pair[k++] = p;
+      }
+    }
+    endMarker = new int[nPairs];
+    ancestralAllele = new int[nPairs];
+    endAllele = new int[nPairs];
+    p1 = new double[nPairs];
+    p1p2 = new double[nPairs];
+    for (int p = 0; p < nPairs; p++) {
+      endMarker[p] = markers[p];
+      endAllele[p] = alleles[p];
+      ancestralAllele[p] = input.getAncestralAlleles(side, markers[p]);
+      //p1 * p2 * f2 is evaluated as (p1 * p2) * f2
+      p1[p] = (markers[p] > 2) ? input.getFrequencies(side, markers[p]) : 0.0;
+      p1p2[p] = p1[p] * ((markers[p] > 2) ? input.getFrequencies(side, markers[p] - 1) : 0.0);
+    }
+  }
+
+  /**
+   * @return the number of individuals in the G2 group
+   */
+  public int getNIndividuals() {
+    return pair.length;
+  }
+
+  /**
+   * @return the number of distinct (end marker, end allele) pairs in the G2 group
+   */
+  public int getNPairs() {
+    return endMarker.length;
+  }
+
+  /**
+   * Computes likeC for a number of generations
+   * @param t the tables for the number of generations
+   * @return the product over the individuals of G2 of pow(u * h + p1 * f1 + p1 * p2 * f2, pp[j])
+   */
+  public double like(GenerationTables t) {
+    final double[] term = terms(t);
+    double likC = 1;
+    for (int k = 0; k < pair.length; k++)
+      likC *= pow(term[pair[k]], postProbability[k]);
+    return likC;
+  }
+
+  /**
+   * Computes the factor of each individual of G2 for a number of generations
+   * @param t the tables for the number of generations
+   * @param factors the factor of the k-th individual of G2 is stored at factors[k]
+   */
+  public void factors(GenerationTables t, double[] factors) {
+    final double[] term = terms(t);
+    for (int k = 0; k < pair.length; k++)
+      factors[k] = pow(term[pair[k]], postProbability[k]);
+  }
+
+  /**
+   * Computes u * h + p1 * f1 + p1 * p2 * f2 for each (end marker, end allele) pair
+   * @param t the tables for the number of generations
+   * @return the term of each pair
+   */
+  private double[] terms(GenerationTables t) {
+    final int n = endMarker.length;
+    final double[] uh = new double[n];
+    final double[] f1 = new double[n];
+    final double[] f2 = new double[n];
+    //gather from the tables
+    for (int p = 0; p < n; p++) {
+      final int m = endMarker[p];
+      uh[p] = t.u(m - 1) * t.h(side, m, ancestralAllele[p], endAllele[p]);
+      f1[p] = t.f(side, m - 1);
+      f2[p] = t.f(side, m - 2);
+    }
+    //straight arithmetic over the arrays
+    for (int p = 0; p < n; p++)
+      uh[p] = uh[p] + p1[p] * f1[p] + p1p2[p] * f2[p];
+    return uh;
+  }
+
+  private static double pow(double term, double postProbability) {
+    return postProbability == 1 ? term : Math.pow(term, postProbability);
+  }
+
+  /**
+   * Computes likeC with the original loop over the individuals (the reference for the kernel)
+   * @param input the input data
+   * @param side the side
+   * @param t the tables for the number of generations
+   * @return the product over the individuals of G2 of pow(u * h + p1 * f1 + p1 * p2 * f2, pp[j])
+   */
+  public static double scalar(InputData input, int side, GenerationTables t) {
+    int nMarker = input.getNMarker(side);
+    /* Computations for individuals belonging to the G2 group */
+    double likC = 1;
+    for (int j = 0; j < input.getNIndividuals(); j++) {
+      final int endMarkerJ = input.getEndMarker(side, j);
+      //end marker of individual J is not the last marker of the side
+      if (endMarkerJ != nMarker) {
+        final double p1 = (endMarkerJ > 2) ? input.getFrequencies(side, endMarkerJ): 0.0;
+        final double p2 = (endMarkerJ > 2) ? input.getFrequencies(side, endMarkerJ - 1) : 0.0;
+        final double u = t.u(endMarkerJ - 1);
+        final double h = t.h(side, endMarkerJ, input.getAncestralAlleles(side,endMarkerJ), input.getEndAlleles(side,j));
+        final double f1 = t.f(side, endMarkerJ - 1);
+        final double f2 = t.f(side, endMarkerJ - 2);
+        final double contrib = u * h;
+        likC *= Math.pow(contrib + p1 * f1 + p1 * p2 * f2, input.getPostProbability(j));
+      }
+    }
+    return likC;
+  }
+}
@@ -0,0 +1,97 @@
+package fr.inserm.u1078.estiage.ctranslation;
+
+import java.util.Arrays;
+
+/**
+ * Likelihood for each number of generations, filled one generation at a time until the stop condition of the estimation is met
+ * (the likelihood falls below the maximum likelihood divided by {@link C#LIKELIHOOD_STOP_RATIO}).
+ * The maximum and the 95% confidence interval are computed as in the original EstiAge
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+class LikelihoodCurve {
+  /* Likelihood for each number of generations (index 0 is unused) */
+  private double[] pGenTot = new double[257];
+  /* Number of generations added */
+  private int nGen = 0;
+  /* Maximum likelihood, and its number of generations */
+  private double pMax = 0;
+  private int nMax = 0;
+  private boolean stopped = false;
+
+  /**
+   * Adds the likelihood of the next number of generations
+   * @param likelihood the likelihood for {@link #getGenerations()} + 1 generations
+   * @return true if the likelihood of the next number of generations is needed, false if the stop condition is met
+   */
+  boolean add(double likelihood) {
+    nGen++;
+    if (nGen == pGenTot.length)
+      pGenTot = Arrays.copyOf(pGenTot, 2 * pGenTot.length - 1);
+    pGenTot[nGen] = likelihood;
+    if (nGen == 1) {
+      pMax = likelihood;
+      nMax = nGen;
+    }
+    if (!(pMax / likelihood < C.LIKELIHOOD_STOP_RATIO)) {
+      stopped = true;
+      return false;
+    }
+    if (likelihood >= pMax) {
+      pMax = likelihood;
+      nMax = nGen;
+    }
+    return true;
+  }
+
+  /**
+   * @return the number of generations added
+   */
+  int getGenerations() {
+    return nGen;
+  }
+
+  /**
+   * @return the number of generations with the maximum likelihood so far
+   */
+  int getMax() {
+    return nMax;
+  }
+
+  /**
+   * @return true if the stop condition is met
+   */
+  boolean isStopped() {
+    return stopped;
+  }
+
+  /**
+   * Computes the results from the curve
+   * @return the maximum likelihood, the end of the process, the 95% CI and the curve
+   */
+  Results toResults() {
+    final int nEnd = nGen;
+    // Sum of the likelihood over nGen
+    double pTot = 0;
+    // Temporary variable to compute 95% CI
+    double pTic = 0;
+    int nInf = 0;
+    int nSup = 0;
+    for (int gen = 1; gen <= nEnd; gen++)
+      pTot += pGenTot[gen];
+    for (int gen = 1; gen <= nEnd; gen++) {
+      pTic += pGenTot[gen] / pTot;
+      if ((pTic > 0.025) && (nInf <= 0))
+        nInf = gen;
+      if (pTic > 0.975) {
+        nSup = gen;
+        break;
+      }
+    }
+    double lnTotLike = Math.log(pMax);
+    return new Results(nMax, nEnd, nInf, nSup, lnTotLike, Arrays.copyOf(pGenTot, nEnd + 1));
+  }
+}
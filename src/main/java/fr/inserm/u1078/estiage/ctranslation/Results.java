@@ -12,23 +12,78 @@ public class Results {
   /* Number of generations:maxlike,end of process,95% CI smaller limit, 95% CI upper limit */
   private final int max, end, inf, sup;
   private final double lnTotLike;
+  /* Likelihood for each number of generations (from 1 to end, index 0 is unused) */
+  private final double[] likelihoods;
 
   public Results(int max, int end, int inf, int sup, double lntotlike) {
+    this(max, end, inf, sup, lntotlike, new double[0]);
+  }
+
+  public Results(int max, int end, int inf, int sup, double lntotlike, double[] likelihoods) {
     this.max = max;
     this.end = end;
     this.inf = inf;
     this.sup = sup;
     this.lnTotLike = lntotlike;
+    this.likelihoods = likelihoods;
+  }
+
+  /**
+   * @return the number of generations with the maximum likelihood
+   */
+  public int getMax() {
+    return max;
+  }
+
+  /**
+   * @return the number of generations where the computation stopped
+   */
+  public int getEnd() {
+    return end;
+  }
+
+  /**
+   * @return the lower limit of the 95% confidence interval
+   */
+  public int getInf() {
+    return inf;
+  }
+
+  /**
+   * @return the upper limit of the 95% confidence interval
+   */
+  public int getSup() {
+    return sup;
+  }
+
+  /**
+   * @return the log of the maximum likelihood
+   */
+  public double getLnTotLike() {
+    return lnTotLike;
+  }
+
+  /**
+   * Gets the likelihood curve
+   * @return the likelihood for each number of generations, from 1 to {@link #getEnd()} (index 0 is unused), empty if the curve was not kept
+   */
+  public double[] getLikelihoods() {
+    return likelihoods.clone();
   }
 
   /**
    * Prints results on StdOut
    */
   public void print() {
-    System.out.println("n = " + max + ", " +
+    System.out.println(this);
+  }
+
+  @Override
+  public String toString() {
+    return "n = " + max + ", " +
             "nend = " + end + ", " +
             "ninf = " + inf + ", " +
             "nsup = " + sup + ", " +
-            "likelihood = " + lnTotLike);
+            "likelihood = " + lnTotLike;
   }
 }
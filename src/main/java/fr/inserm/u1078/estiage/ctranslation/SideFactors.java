@@ -0,0 +1,303 @@
+package fr.inserm.u1078.estiage.ctranslation;
+
+/**
+ * Likelihood of one side, factorized per individual<br/>
+ * For a number of generations, every power term of the likelihood (see Estiage.likeA, likeB and likeC) only depends on one individual,
+ * or on the pair (ancestor, individual), so it is computed once and stored. The likelihood of any subset of the individuals, where the
+ * group sharing the longest haplotype stays on the same marker, is then a product/sum of these terms, without calls to Math.pow.<br/>
+ * The terms are combined in the same order as in Estiage, so the likelihood of a subset is identical to the likelihood
+ * of a dataset with only these individuals
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+class SideFactors {
+  private final InputData input;
+  private final int side;
+  private final int nMarker;
+  /* Individuals sharing the longest haplotype (end marker == nMarker), the G1 group */
+  private final int[] g1;
+  /* Individuals with end allele == nMarker (the condition used by the original code in the inner loops of likeA and likeB) */
+  private final int[] q;
+  /* Individuals of the G2 group (end marker != nMarker) */
+  private final int[] g2;
+
+  /* likeA : pow(u * h(MISSING, endAllele[j]), pp[j]), for j in G1 and q */
+  private final double[] a;
+  /* likeA and likeB : pow(u * p1 * f1, pp[j]) and pow(u * p1 * p2 * f2, pp[j]), for j in G1 */
+  private final double[] b;
+  private final double[] c;
+  /* likeA : pow(tmpCF, pp[l]), for l in q */
+  private final double[] a4;
+  /* likeB : pow(ui * si, pp[i]), for the i-th individual of G1 */
+  private final double[] anc;
+  /* likeB : pow(u * h(endAllele[i], endAllele[j]), pp[j]), for the i-th individual of G1 and j in G1 and q */
+  private final double[][] m;
+  /* likeB : pow(tmpCF, pp[l] * pp[j]), for the l-th individual of q and the j-th individual of G1 */
+  private final double[][] b4;
+  /* likeC : pow(u * h + p1 * f1 + p1 * p2 * f2, pp[j]), for the j-th individual of G2 */
+  private final double[] g2Factor;
+  private final LikeCKernel kernel;
+
+  /**
+   * Creates the empty factors of a side
+   * @param input the input data
+   * @param side the side
+   */
+  SideFactors(InputData input, int side) {
+    this.input = input;
+    this.side = side;
+    this.nMarker = input.getNMarker(side);
+    final int n = input.getNIndividuals();
+    int nG1 = 0;
+    int nQ = 0;
+    for (int j = 0; j < n; j++) {
+      if (input.getEndMarker(side, j) == nMarker)
+        nG1++;
+      if (input.getEndAlleles(side, j) == nMarker)
+        nQ++;
+    }
+    g1 = new int[nG1];
+    q = new int[nQ];
+    g2 = new int[n - nG1];
+    int i1 = 0, iQ = 0, i2 = 0;
+    for (int j = 0; j < n; j++) {
+      if (input.getEndMarker(side, j) == nMarker)
+        g1[i1++] = j;
+      else
+        g2[i2++] = j;
+      if (input.getEndAlleles(side, j) == nMarker)
+        q[iQ++] = j;
+    }
+    a = new double[n];
+    b = new double[n];
+    c = new double[n];
+    a4 = new double[n];
+    g2Factor = new double[n - nG1];
+    kernel = input.getLikeCKernel(side);
+    anc = new double[nG1];
+    m = new double[nG1][n];
+    b4 = new double[nQ][nG1];
+  }
+
+  /**
+   * Computes the terms for a number of generations (the previous terms are overwritten)
+   * @param t the tables for the number of generations
+   */
+  void compute(GenerationTables t) {
+    computeG1(t);
+    computeG2(t);
+  }
+
+  /**
+   * Computes the terms of the G1 group (likeA and likeB) for a number of generations
+   * @param t the tables for the number of generations
+   */
+  void computeG1(GenerationTables t) {
+    final double p1 = (nMarker > 2) ? input.getFrequencies(side, nMarker) : 0.0;
+    final double p2 = (nMarker > 2) ? input.getFrequencies(side, nMarker - 1) : 0.0;
+    final double u = t.u(nMarker - 1);
+    final double f1 = t.f(side, nMarker - 1);
+    final double f2 = t.f(side, nMarker - 2);
+    final double tmpCF = Math.pow(u * p1 * f1, 2);
+    for (int j : g1) {
+      a[j] = Math.pow(u * t.h(side, nMarker, C.MISSING, input.getEndAlleles(side, j)), input.getPostProbability(j));
+      b[j] = Math.pow(u * p1      * f1, input.getPostProbability(j));
+      c[j] = Math.pow(u * p1 * p2 * f2, input.getPostProbability(j));
+    }
+    for (int l : q) {
+      a[l] = Math.pow(u * t.h(side, nMarker, C.MISSING, input.getEndAlleles(side, l)), input.getPostProbability(l));
+      a4[l] = Math.pow(tmpCF, input.getPostProbability(l));
+    }
+    final double ui = t.u(nMarker);
+    final double si = t.s(side, nMarker);
+    for (int ii = 0; ii < g1.length; ii++) {
+      final int i = g1[ii];
+      final int alleleI = input.getEndAlleles(side, i);
+      anc[ii] = Math.pow(ui * si, input.getPostProbability(i));
+      for (int j : g1)
+        m[ii][j] = Math.pow(u * t.h(side, nMarker, alleleI, input.getEndAlleles(side, j)), input.getPostProbability(j));
+      for (int k : q)
+        m[ii][k] = Math.pow(u * t.h(side, nMarker, alleleI, input.getEndAlleles(side, k)), input.getPostProbability(k));
+    }
+    for (int ll = 0; ll < q.length; ll++)
+      for (int jj = 0; jj < g1.length; jj++)
+        b4[ll][jj] = Math.pow(tmpCF, input.getPostProbability(q[ll]) * input.getPostProbability(g1[jj]));
+  }
+
+  /**
+   * Computes the terms of the G2 group (likeC) for a number of generations
+   * @param t the tables for the number of generations
+   */
+  void computeG2(GenerationTables t) {
+    kernel.factors(t, g2Factor);
+  }
+
+  /**
+   * Computes the term of an individual of the G2 group
+   * @param t the tables for the number of generations
+   * @param j the individual
+   * @return pow(u * h + p1 * f1 + p1 * p2 * f2, pp[j])
+   */
+  double g2Factor(GenerationTables t, int j) {
+    final int endMarkerJ = input.getEndMarker(side, j);
+    final double p1 = (endMarkerJ > 2) ? input.getFrequencies(side, endMarkerJ): 0.0;
+    final double p2 = (endMarkerJ > 2) ? input.getFrequencies(side, endMarkerJ - 1) : 0.0;
+    final double u = t.u(endMarkerJ - 1);
+    final double h = t.h(side, endMarkerJ, input.getAncestralAlleles(side,endMarkerJ), input.getEndAlleles(side,j));
+    final double f1 = t.f(side, endMarkerJ - 1);
+    final double f2 = t.f(side, endMarkerJ - 2);
+    return Math.pow(u * h + p1 * f1 + p1 * p2 * f2, input.getPostProbability(j));
+  }
+
+  /**
+   * @param j an individual
+   * @return true if the individual belongs to the G1 group of this side
+   */
+  boolean isG1(int j) {
+    return input.getEndMarker(side, j) == nMarker;
+  }
+
+  /**
+   * @param j an individual
+   * @return true if the end allele of the individual is nMarker (such individuals are used in the inner loops of likeA and likeB)
+   */
+  boolean isQ(int j) {
+    return input.getEndAlleles(side, j) == nMarker;
+  }
+
+  /**
+   * @return the number of individuals in the G1 group of this side
+   */
+  int getNG1() {
+    return g1.length;
+  }
+
+  /**
+   * Computes the likelihood of the side, for the last number of generations computed, without one individual
+   * @param excluded the individual left out (-1 to keep every individual)
+   * @return the likelihood, (likeA + likeB) * likeC
+   */
+  double like(int excluded) {
+    return g1Like(excluded) * g2Like(excluded);
+  }
+
+  /**
+   * Computes the likelihood of the G1 group, for the last number of generations computed, without one individual
+   * @param excluded the individual left out (-1 to keep every individual)
+   * @return likeA + likeB
+   */
+  double g1Like(int excluded) {
+    final int n = g1.length - (excluded >= 0 && isG1(excluded) ? 1 : 0);
+    int last = input.getNIndividuals() - 1;
+    if (last == excluded)
+      last--;
+    return likeA(excluded, n, last) + likeB(excluded, n);
+  }
+
+  /**
+   * Computes the likelihood of the G2 group, for the last number of generations computed, without one individual
+   * @param excluded the individual left out (-1 to keep every individual)
+   * @return likeC
+   */
+  double g2Like(int excluded) {
+    return likeC(excluded);
+  }
+
+  private double likeA(int excluded, int n, int last) {
+    double likTmp1 = 1.0;
+    double totLikTmp2 = 0.0;
+    double totLikTmp3 = 0.0;
+    double totTotLikTmp4 = 0.0;
+    for (int j : g1) {
+      if (j == excluded)
+        continue;
+      double totLikTmp4 = 0.0;
+      double likTmp2 = 0;
+      double likTmp3 = 0;
+      likTmp1 *= a[j];
+      if (n > 1) {
+        likTmp2 = b[j];
+        likTmp3 = c[j];
+        for (int k : g1)
+          if (k != j && k != excluded) {
+            likTmp2 *= a[k];
+            likTmp3 *= a[k];
+          }
+        if (n > 2) {
+          for (int l : q)
+            if (l > j && l != last && l != excluded) {
+              double likTmp4 = a4[l];
+              for (int mm : q)
+                if (mm != l && mm != last && mm != j && mm != excluded)
+                  likTmp4 *= a[mm];
+              totLikTmp4 += likTmp4;
+            }
+        }
+      }
+      totLikTmp2 += likTmp2;
+      totLikTmp3 += likTmp3;
+      totTotLikTmp4 += totLikTmp4;
+    }
+    return likTmp1 + totLikTmp2 + totLikTmp3 + totTotLikTmp4;
+  }
+
+  private double likeB(int excluded, int n) {
+    double likB = 0;
+    for (int ii = 0; ii < g1.length; ii++) {
+      final int i = g1[ii];
+      if (i == excluded)
+        continue;
+      final double[] mi = m[ii];
+      double likTmp1 = 1;
+      double likTmp2 = 0;
+      double likTmp3 = 0;
+      double totLikTmp2 = 0;
+      double totLikTmp3 = 0;
+      double totTotLikTmp4 = 0;
+      for (int jj = 0; jj < g1.length; jj++) {
+        final int j = g1[jj];
+        if (j == i || j == excluded)
+          continue;
+        double totLikTmp4 = 0.0;
+        likTmp1 *= mi[j];
+        if (n > 1) {
+          likTmp2 = b[j];
+          likTmp3 = c[j];
+          for (int k : q)
+            if (k != i && k != j && k != excluded) {
+              likTmp2 *= mi[k];
+              likTmp3 *= mi[k];
+            }
+          if (n > 2) {
+            for (int ll = 0; ll < q.length; ll++) {
+              final int l = q[ll];
+              if (l > j && l != i && l != excluded) {
+                double likTmp4 = b4[ll][jj];
+                for (int mm : q)
+                  if (mm != l && mm != i && mm != j && mm != excluded)
+                    likTmp4 *= mi[mm];
+                totLikTmp4 += likTmp4;
+              }
+            }
+          }
+        }
+        totLikTmp2 += likTmp2;
+        totLikTmp3 += likTmp3;
+        totTotLikTmp4 += totLikTmp4;
+      }
+      likB += anc[ii] * (likTmp1 + totLikTmp2 + totLikTmp3 + totTotLikTmp4);
+    }
+    return likB;
+  }
+
+  private double likeC(int excluded) {
+    double likC = 1;
+    for (int jj = 0; jj < g2.length; jj++)
+      if (g2[jj] != excluded)
+        likC *= g2Factor[jj];
+    return likC;
+  }
+}
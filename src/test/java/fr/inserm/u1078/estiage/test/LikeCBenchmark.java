@@ -0,0 +1,80 @@
+package fr.inserm.u1078.estiage.test;
+
+import fr.inserm.u1078.estiage.ctranslation.GenerationTables;
+import fr.inserm.u1078.estiage.ctranslation.InputData;
+import fr.inserm.u1078.estiage.ctranslation.LikeCKernel;
+
+/**
+ * Compares the time spent in likeC by the original loop and by the {@link LikeCKernel}<br/>
+ * Usage : java LikeCBenchmark input1 [input2...] (-Dgenerations=N, default 2000; -Drounds=N, default 20)
+ *
+ * @author Thomas E. Ludwig (INSERM - U1078)
+ * Started on             2026-10-19
+ * Checked for release on XXXX-XX-XX
+ * Unit Test defined on   XXXX-XX-XX
+ */
+public class LikeCBenchmark {
+  private static final int WARMUP = 5;
+
+  /* prevents the JIT from removing the computations */
+  private static double sink;
+
+  public static void main(String[] args) throws Exception {
+    if(args.length == 0) {
+      System.err.println("Usage : java "+LikeCBenchmark.class.getName()+" input1 [input2...]");
+      return;
+    }
+    final int generations = Integer.getInteger("generations", 2000);
+    final int rounds = Integer.getInteger("rounds", 20);
+    System.out.println("#input\tside\tindividuals\tpairs\tscalar_ns_per_generation\tkernel_ns_per_generation\tspeedup\tidentical");
+    for(String filename : args) {
+      final InputData input = InputData.load(filename);
+      final GenerationTables[] tables = new GenerationTables[generations + 1];
+      final GenerationTables.Cache cache = new GenerationTables.Cache(input);
+      for(int gen = 1; gen <= generations; gen++)
+        tables[gen] = cache.get(gen);
+      for(int side = 0; side < 2; side++) {
+        if(side == 0 ? !input.hasLeft : !input.hasRight)
+          continue;
+        final LikeCKernel kernel = new LikeCKernel(input, side);
+        boolean identical = true;
+        for(int gen = 1; gen <= generations; gen++)
+          identical &= Double.doubleToLongBits(kernel.like(tables[gen])) == Double.doubleToLongBits(LikeCKernel.scalar(input, side, tables[gen]));
+        for(int r = 0; r < WARMUP; r++) {
+          scalar(input, side, tables);
+          kernel(kernel, tables);
+        }
+        long scalar = Long.MAX_VALUE;
+        long vector = Long.MAX_VALUE;
+        for(int r = 0; r < rounds; r++) {
+          scalar = Math.min(scalar, scalar(input, side, tables));
+          vector = Math.min(vector, kernel(kernel, tables));
+        }
+        System.out.println(filename+"\t"+side+"\t"+kernel.getNIndividuals()+"\t"+kernel.getNPairs()
+                +"\t"+(scalar / generations)+"\t"+(vector / generations)+"\t"+String.format("%.2f", scalar / (double)vector)+"\t"+identical);
+      }
+    }
+    if(sink == 42)
+      System.out.println();
+  }
+
+  private static long scalar(InputData input, int side, GenerationTables[] tables) {
+    final long start = System.nanoTime();
+    double sum = 0;
+    for(int gen = 1; gen < tables.length; gen++)
+      sum += LikeCKernel.scalar(input, side, tables[gen]);
+    final long time = System.nanoTime() - start;
+    sink += sum;
+    return time;
+  }
+
+  private static long kernel(LikeCKernel kernel, GenerationTables[] tables) {
+    final long start = System.nanoTime();
+    double sum = 0;
+    for(int gen = 1; gen < tables.length; gen++)
+      sum += kernel.like(tables[gen]);
+    final long time = System.nanoTime() - start;
+    sink += sum;
+    return time;
+  }
+}
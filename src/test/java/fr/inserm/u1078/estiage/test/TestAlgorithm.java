@@ -1,13 +1,52 @@
 package fr.inserm.u1078.estiage.test;
 
+import fr.inserm.u1078.estiage.AnnotationCache;
+import fr.inserm.u1078.estiage.BGZFOutputStream;
+import fr.inserm.u1078.estiage.EstiageFormatException;
+import fr.inserm.u1078.estiage.EstiagePipeline;
+import fr.inserm.u1078.estiage.FrequencyStore;
+import fr.inserm.u1078.estiage.GeneticMapStore;
+import fr.inserm.u1078.estiage.GnomAD;
+import fr.inserm.u1078.estiage.HapMap;
+import fr.inserm.u1078.estiage.InputFile;
+import fr.inserm.u1078.estiage.JSON;
+import fr.inserm.u1078.estiage.Log;
 import fr.inserm.u1078.estiage.Main;
+import fr.inserm.u1078.estiage.RateBatch;
+import fr.inserm.u1078.estiage.Resources;
+import fr.inserm.u1078.estiage.Server;
+import fr.inserm.u1078.estiage.TSVFile;
+import fr.inserm.u1078.estiage.Utils;
+import fr.inserm.u1078.estiage.VCFFile;
+import fr.inserm.u1078.estiage.Unphased;
+import fr.inserm.u1078.estiage.ctranslation.AnalysisState;
+import fr.inserm.u1078.estiage.ctranslation.Bootstrap;
+import fr.inserm.u1078.estiage.ctranslation.BootstrapResults;
+import fr.inserm.u1078.estiage.ctranslation.Estiage;
+import fr.inserm.u1078.estiage.ctranslation.EstiageException;
+import fr.inserm.u1078.estiage.ctranslation.GenerationTables;
+import fr.inserm.u1078.estiage.ctranslation.Influence;
+import fr.inserm.u1078.estiage.ctranslation.InfluenceResults;
+import fr.inserm.u1078.estiage.ctranslation.InputContent;
+import fr.inserm.u1078.estiage.ctranslation.InputData;
+import fr.inserm.u1078.estiage.ctranslation.JointEstimation;
+import fr.inserm.u1078.estiage.ctranslation.JointResults;
+import fr.inserm.u1078.estiage.ctranslation.LikeCKernel;
+import fr.inserm.u1078.estiage.ctranslation.Results;
 import fr.inserm.u1078.tludwig.maok.UniversalReader;
-import fr.inserm.u1078.tludwig.maok.tools.Message;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * XXXXXXXXXXXXXXXXXXXXXXXXXXXXXX
@@ -18,12 +57,117 @@ import java.util.ArrayList;
  * Unit Test defined on   XXXX-XX-XX
  */
 public class TestAlgorithm {
+  private static final String F508_INPUT = "24 16 12\n" +
+          "2.771067021944659E-4 6.265502119854636E-4 7.099501314594511E-4 7.125775084720532E-4 8.908490785231561E-4 9.15740123327412E-4 0.0021676843556302527 0.002681018607915704 0.0031482097226622134 0.003474526581724931 0.004693223819911853 0.005813958849841483 0.0063223414981944115 0.007379135971942818 0.008982089166839057 0.008983564884664312\n" +
+          "0.0823529 0.502353 0.766471 0.74 0.0176471 0.9882353 0.681765 0.9882353 0.9564706 0.00588235 0.9723529 0.534706 0.628235 0.418235 0.9835294 0.0\n" +
+          "1.5765061846132378E-4 2.8372539595914034E-4 2.838634824378612E-4 3.592323267671148E-4 5.837335236468365E-4 7.621413500345191E-4 8.272063539536219E-4 0.0018748766000957983 0.0018886781913002788 0.00246193731359268 0.004938675059907856 0.019097818871431478\n" +
+          "0.0211765 0.849412 0.99705882 0.9876471 0.611176 0.616471 0.388235 0.269412 0.577059 0.375882 0.0135294 0.0\n" +
+          "0.001 0\n" +
+          "1 1 1 1 1 1 1 1 1 1 1 1 1 1 1 -1\n" +
+          "1 1 1 1 1 1 1 1 1 1 1 -1\n" +
+          "5 5 2 2\n" +
+          "10 6 2 2\n" +
+          "5 7 2 2\n" +
+          "13 11 2 2\n" +
+          "2 7 2 2\n" +
+          "4 7 2 2\n" +
+          "2 3 2 2\n" +
+          "2 3 2 2\n" +
+          "16 9 1 2\n" +
+          "11 12 2 1\n" +
+          "13 1 2 2\n" +
+          "7 7 2 2\n" +
+          "10 7 2 2\n" +
+          "1 3 2 2\n" +
+          "6 8 2 2\n" +
+          "16 12 1 1\n" +
+          "14 9 2 2\n" +
+          "2 3 2 2\n" +
+          "10 6 2 2\n" +
+          "12 9 2 2\n" +
+          "11 10 2 2\n" +
+          "9 7 2 2\n" +
+          "8 4 2 2\n" +
+          "3 3 2 2";
+  private static final String F508_RESULTS = "n = 149, nend = 294, ninf = 109, nsup = 209, likelihood = -114.29372603629017";
+  private static final String COMPLETE = ".\tLeft6\tLeft5\tLeft4\tLeft3\tLeft2\tLeft1\tTarget\tRight1\tRight2\tRight3\tRight4\tRight5\tRight6\n" +
+          "Samples\\Markers\tchr7:473905\tchr7:473937\tchr7:479324\tchr7:481272\tchr7:481829\tchr7:482348\tchr7:500000\tchr7:515066\tchr7:517225\tchr7:519894\tchr7:520148\tchr7:523425\tchr7:525667\n" +
+          "S0\tC\tG\tG\tG\tG\tT\t\tT\tT\tT\tT\tT\tG\n" +
+          "S1\tC\tG\tG\tG\tG\tT\t\tT\tT\tT\tT\tT\tG\n" +
+          "S2\tC\tG\tG\tG\tG\tT\t\tT\tT\tT\tT\tT\tG\n" +
+          "S3\tC\tG\tG\tG\tG\tT\t\tT\tT\tT\tT\tT\tA\n" +
+          "S4\t\t\tA\tG\tG\tT\t\tT\tT\tT\tT\tT\tG\n" +
+          "S5\tT\tG\tG\tG\tG\tT\t\tT\tT\tT\tT\tT\tG\n" +
+          "S12\tC\tG\tG\tG\tG\tT\t\tT\tT\tT\tC\t\t\n" +
+          "S14\t\t\t\t\tA\tT\t\tT\tT\tT\tT\tT\tG\n" +
+          "S18\t\tA\tG\tG\tG\tT\t\tT\tT\tT\tC\t\t\n" +
+          "S21\tC\tG\tG\tG\tG\tT\t\tT\tT\tT\tC\t\t\n" +
+          "S23\t\t\tA\tG\tG\tT\t\tT\tC\t\t\t\t\n" +
+          "S31\tT\tG\tG\tG\tG\tT\t\tT\tT\tT\tT\tT\tG\n" +
+          "Position\tchr7:473905\tchr7:473937\tchr7:479324\tchr7:481272\tchr7:481829\tchr7:482348\tchr7:500000\tchr7:515066\tchr7:517225\tchr7:519894\tchr7:520148\tchr7:523425\tchr7:525667\n" +
+          "Ancestral\tC\tG\tG\tG\tG\tT\t\tT\tT\tT\tT\tT\tG\n" +
+          "mb\t0.473905\t0.473937\t0.479324\t0.481272\t0.481829\t0.482348\t0.5\t0.515066\t0.517225\t0.519894\t0.520148\t0.523425\t0.525667\n" +
+          "Distance\t0.02609499999999998\t0.026063000000000003\t0.020676000000000028\t0.018728000000000022\t0.018170999999999993\t0.017652\t\t0.015066000000000024\t0.017225000000000046\t0.019893999999999967\t0.020148000000000055\t0.02342500000000003\t0.025666999999999995\n" +
+          "Mean rate\t1.5889214367824833\t1.5899042219603534\t1.7437531070009553\t1.6942243486981579\t1.6669650183721172\t1.635425375446287\t\t2.7240383303947877\t2.795318022846529\t2.7690260560511977\t2.76003319604673\t2.5762882172482247\t2.4726513147310714\n" +
+          "cM\t0.04146290489283887\t0.041437673736952695\t0.0360538392403518\t0.03172943360241914\t0.03029042134883973\t0.02886852872737786\t\t0.041040361485727934\t0.04814935294353159\t0.05508700435908243\t0.05560914883394966\t0.06034955148903974\t0.06346554129520239\n" +
+          "? Recombination Fraction\t4.1462895388589004E-4\t4.1437664250042433E-4\t3.6053832991599284E-4\t3.172942934324443E-4\t3.029041764327368E-4\t2.8868525519540805E-4\t\t4.104035226910036E-4\t4.814933805986441E-4\t5.508698207032056E-4\t5.560912590536494E-4\t6.034952218276266E-4\t6.346550721105628E-4\n" +
+          "Freq\t0.53409\t0.55376\t0.98509\t0.44536\t0.72007\t0.97858\t\t0.11014\t0.67614\t0.40369\t0.08269\t0.52893\t0.19185\n";
+  private static final String HAPMAP = "Chromosome\tPosition(bp)\tRate(cM/Mb)\tMap(cM)\n" +
+          "chr7\t1000\t2.0\t0.0\n" +
+          "chr7\t2000\t3.0\t0.0025\n" +
+          "chr7\t4000\t1.0\t0.0065\n" +
+          "chr7\t5000\t4.0\t0.009\n" +
+          "chr7\t8000\t2.5\t0.01875\n" +
+          "chr7\t9000\t0.5\t0.0203\n";
+
   public static void main(String[] args) throws Exception {
-    Message.setDebugActive(true);
+    Log.setLevel(Log.Level.DEBUG);
     testPhasing();
+    testPipeline();
+    testInMemoryInput();
+    testBootstrap();
+    testInfluence();
+    testState();
+    testJoint();
+    testLikeCKernel();
+    testFrequencyStore();
+    testServer();
+    testResources();
+    testAnnotationCache();
+    testConcurrentGnomAD();
+    testHapMapRates();
+    testGeneticMapStore();
+    testRateBatch();
     //testF508Del();
   }
 
+  /**
+   * Loads the F508 dataset, written to a temporary input file
+   * @return the F508 data
+   */
+  private static InputData loadF508() throws IOException, EstiageException {
+    File tmpFile = Files.createTempFile("test", ".estiage").toFile();
+    Files.write(tmpFile.toPath(), F508_INPUT.getBytes());
+    try {
+      return InputData.load(tmpFile.toString());
+    } finally {
+      Files.delete(tmpFile.toPath());
+    }
+  }
+
+  /**
+   * Prints the outcome of a test
+   * @param success true if the test succeeded
+   * @param successMessage the message printed on success
+   * @param failureMessage the message printed on failure
+   */
+  private static void report(boolean success, String successMessage, String failureMessage) {
+    if(success)
+      System.err.println("[SUCCESS] " + successMessage);
+    else
+      System.err.println("[FAILURE] " + failureMessage);
+  }
+
   private static void testPhasing() throws Exception {
     String inputData = "Marker\tD1S211\t\tD1S451\t\tD1S2720\t\tD1S197\t\tD1S2661\t\tD1S417\t\trs28942111\t\tD1S200\t\tD1S2742\t\tD1S220\t\tD1S473\t\tD1S390\t\n" +
             "HC2\t163\t185\t175\t177\t237\t241\t132\t136\t182\t186\t188\t190\tA\tA\t169\t171\t242\t248\t235\t237\t236\t238\t196\t204\n" +
@@ -158,6 +302,8 @@ public class TestAlgorithm {
     success &= testPhasing(inputData, expectedResultsTT, col, position, true, true);
     success &= testPhasing(inputData, expectedResultsFT, col, position, false, true);
     success &= testPhasing(inputData, expectedResultsFF, col, position, false, false);
+    success &= testEMPhasing(inputData, col, position);
+    success &= testMultiPhasing(inputData);
 
     if(success)
       System.err.println("[SUCCESS] Everything went well");
@@ -216,6 +362,554 @@ public class TestAlgorithm {
     return success;
   }
 
+  private static boolean testMultiPhasing(String inputData) throws Exception {
+    File inputFile = Files.createTempFile("test", ".estiage").toFile();
+    inputFile.deleteOnExit();
+    Files.write(inputFile.toPath(), inputData.getBytes());
+    final int[] cols = {7, 4, 10};
+    final String[] positions = {"1:55044016", "1:54000000", "1:56000000"};
+    final String prefix = inputFile.toString();
+
+    //the multi-target output is the output of the single-target phasing, with 1 or several threads
+    boolean success = true;
+    final String threads = System.getProperty("threads");
+    for(String n : new String[]{"1", "4"}) {
+      System.setProperty("threads", n);
+      String[] outputs = new Unphased(inputFile.toString()).phase(cols, positions, true, false, prefix);
+      for(int i = 0; i < cols.length; i++) {
+        File single = new File(outputs[i] + ".single");
+        Main.phase(inputFile.toString(), single.toString(), cols[i], positions[i], true, false);
+        success &= Arrays.equals(Files.readAllBytes(single.toPath()), Files.readAllBytes(Paths.get(outputs[i])));
+        Files.delete(single.toPath());
+        Files.delete(Paths.get(outputs[i]));
+      }
+    }
+    if(threads == null)
+      System.clearProperty("threads");
+    else
+      System.setProperty("threads", threads);
+
+    //a target requested twice would overwrite its own output
+    try {
+      new Unphased(inputFile.toString()).phase(new int[]{7, 7}, new String[]{"1:55044016", "1:55044016"}, true, false, prefix);
+      success = false;
+    } catch(EstiageFormatException e) {
+      //expected
+    }
+    if(success)
+      System.err.println("SUCCESS : multi-target phasing matches single-target phasing");
+    else
+      System.err.println("FAILURE : multi-target phasing differs from single-target phasing");
+    return success;
+  }
+
+  private static boolean testEMPhasing(String inputData, int col, String position) throws Exception {
+    //every sample carries the target allele : the most likely haplotype of each sample, and its posterior probability
+    final String expectedResults = ".\tLeft6\tLeft5\tLeft4\tLeft3\tLeft2\tLeft1\tTarget\tRight1\tRight2\tRight3\tRight4\tRight5\tPosterior\n" +
+            "Samples\\Markers\tD1S211\tD1S451\tD1S2720\tD1S197\tD1S2661\tD1S417\trs28942111\tD1S200\tD1S2742\tD1S220\tD1S473\tD1S390\tPosterior\n" +
+            "HC2\t163\t177\t237\t132\t186\t188\tA\t169\t242\t235\t236\t196\t0.12500000015385682\n" +
+            "HC806\t169\t175\t241\t140\t\t188\tA\t169\t248\t235\t240\t204\t0.5\n" +
+            "HC92\t181\t175\t235\t134\t182\t188\tA\t169\t248\t223\t242\t200\t1.0\n" +
+            "HC748\t183\t175\t237\t138\t182\t188\tA\t169\t260\t235\t240\t208\t1.0\n" +
+            "HC2062\t165\t177\t235\t132\t\t188\tA\t169\t248\t235\t240\t208\t1.0\n" +
+            "Lyon1\t175\t177\t237\t132\t186\t188\tA\t169\t246\t221\t252\t200\t0.5\n" +
+            "Lyon2\t163\t175\t237\t142\t186\t188\tA\t169\t246\t223\t236\t212\t1.0\n" +
+            "S Afr\t165\t175\t237\t138\t182\t188\tA\t167\t256\t237\t242\t200\t1.0\n" +
+            "CAD3077\t163\t175\t237\t136\t186\t188\tA\t175\t248\t233\t236\t212\t1.0\n" +
+            "CAD3087\t165\t177\t237\t132\t190\t190\tA\t169\t246\t235\t236\t208\t1.0\n" +
+            "CAD3242\t183\t177\t237\t136\t190\t190\tA\t173\t244\t223\t242\t204\t1.0\n" +
+            "CAD3428\t163\t175\t237\t134\t186\t188\tA\t169\t246\t223\t242\t208\t1.0\n" +
+            "CAD3553\t183\t179\t237\t134\t186\t188\tA\t169\t248\t237\t244\t204\t1.0\n" +
+            "CAD3645\t163\t175\t237\t138\t182\t188\tA\t169\t248\t225\t242\t208\t1.0\n" +
+            "CAD3898\t183\t175\t237\t134\t188\t188\tA\t169\t248\t223\t244\t196\t1.0\n" +
+            "CAD4978\t185\t179\t237\t142\t188\t188\tA\t169\t248\t235\t244\t208\t1.0\n" +
+            "8053\t183\t175\t237\t136\t184\t188\tA\t169\t246\t235\t240\t212\t1.0\n" +
+            "3908\t165\t173\t237\t128\t182\t188\tA\t163\t240\t235\t244\t196\t1.0\n" +
+            "L2E05\t205\t177\t235\t142\t188\t188\tA\t169\t250\t233\t244\t204\t1.0\n" +
+            "CAD5914\t183\t167\t235\t144\t188\t188\tA\t169\t258\t235\t244\t204\t1.0\n" +
+            "NW1\t169\t177\t237\t\t186\t188\tA\t161\t244\t225\t236\t204\t1.0\n" +
+            "NW3\t169\t177\t237\t138\t186\t188\tA\t161\t244\t235\t236\t204\t1.0\n" +
+            "Positions\t???:???\t???:???\t???:???\t???:???\t???:???\t???:???\t55044016\t???:???\t???:???\t???:???\t???:???\t???:???\t";
+    File tmpDir = new File(System.getProperty("java.io.tmpdir"));
+    File inputFile = File.createTempFile("test", ".estiage", tmpDir);
+    inputFile.deleteOnExit();
+    File outputFile = new File(inputFile+".phased");
+    outputFile.deleteOnExit();
+    Files.write(inputFile.toPath(), inputData.getBytes());
+
+    Main.emphase(inputFile.toString(), outputFile.toString(), col, position);
+
+    List<String> lines = Files.readAllLines(outputFile.toPath());
+    String[] expect = expectedResults.split("\n", -1);
+    boolean success = lines.size() == expect.length;
+    for(int i = 0; success && i < expect.length; i++) {
+      String[] e = expect[i].split("\t", -1);
+      String[] a = lines.get(i).split("\t", -1);
+      success = e.length == a.length;
+      //the haplotypes are compared exactly, the posterior probabilities (computed by EM) up to 1e-9
+      final boolean sample = i >= 2 && i < expect.length - 1;
+      for(int f = 0; success && f < (sample ? e.length - 1 : e.length); f++)
+        success = e[f].equals(a[f]);
+      if(success && sample)
+        success = Math.abs(Double.parseDouble(e[e.length - 1]) - Double.parseDouble(a[a.length - 1])) < 1e-9;
+      if(!success) {
+        System.err.println("Line "+(i+1));
+        System.err.println("Expected |"+expect[i]);
+        System.err.println("Actual   |"+lines.get(i));
+      }
+    }
+    if(success)
+      System.err.println("SUCCESS : EM phasing output matches expected output");
+    else
+      System.err.println("FAILURE : EM phasing output does not match expected output");
+    return success;
+  }
+
+  private static void testPipeline() throws Exception {
+    final EstiagePipeline pipeline = new EstiagePipeline();
+    final InputData input = loadF508();
+
+    //concurrent jobs on the same pipeline and the same data
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    ArrayList<Future<Results>> futures = new ArrayList<>();
+    for(int i = 0; i < 4; i++)
+      futures.add(executor.submit(() -> pipeline.estimate(input)));
+    boolean success = true;
+    for(Future<Results> future : futures) {
+      Results results = future.get();
+      success &= F508_RESULTS.equals(results.toString());
+      success &= results.getLikelihoods().length == results.getEnd() + 1;
+      success &= Math.log(results.getLikelihoods()[results.getMax()]) == results.getLnTotLike();
+    }
+    executor.shutdown();
+    report(success, "Pipeline API is consistent", "Pipeline API results differ from the expected results");
+  }
+
+  private static void testInMemoryInput() throws Exception {
+    File completeFile = Files.createTempFile("test", ".estifull").toFile();
+    Files.write(completeFile.toPath(), COMPLETE.getBytes());
+    boolean success = true;
+    try {
+      TSVFile complete = new TSVFile(completeFile.toString(), TSVFile.Type.COMPLETE);
+      for(int mutationModel : new int[]{0, 1})
+        for(String extension : new String[]{".estinput", InputContent.BINARY_EXTENSION}) {
+          //through the input file
+          InputFile exported = new InputFile(complete, mutationModel, 0.001);
+          exported.fromPreInput2Input();
+          File inputFile = Files.createTempFile("test", extension).toFile();
+          Results read;
+          try {
+            exported.export(inputFile.toString());
+            read = Estiage.estimate(InputData.load(inputFile.toString()));
+          } finally {
+            Files.delete(inputFile.toPath());
+          }
+          //in memory
+          InputFile converted = new InputFile(complete, mutationModel, 0.001);
+          converted.fromPreInput2Input();
+          Results direct = Estiage.estimate(converted.toInputData());
+          success &= read.toString().equals(direct.toString()) && Arrays.equals(read.getLikelihoods(), direct.getLikelihoods());
+        }
+    } finally {
+      Files.delete(completeFile.toPath());
+    }
+    report(success, "In-memory input data give the results of the exported input file", "In-memory input data and the exported input file give different results");
+  }
+
+  private static void testBootstrap() throws Exception {
+    final InputData input = loadF508();
+
+    //a sample with every individual is the whole dataset
+    int[] all = new int[input.getNIndividuals()];
+    for(int i = 0; i < all.length; i++)
+      all[i] = i;
+    boolean success = F508_RESULTS.equals(Estiage.estimate(new InputData(input, all)).toString());
+    //the replicates only depend on the seed, not on the number of threads
+    BootstrapResults single = new Bootstrap(input, 40, 1078, 1).run();
+    BootstrapResults multi = new Bootstrap(input, 40, 1078, 4).run();
+    success &= F508_RESULTS.equals(multi.getResults().toString());
+    success &= Arrays.equals(single.getAges(), multi.getAges());
+    success &= multi.getReplicates() + multi.getFailed() == 40;
+    success &= multi.getInf() <= multi.getMedian() && multi.getMedian() <= multi.getSup();
+    report(success, "Bootstrap is reproducible", "Bootstrap results are not reproducible");
+  }
+
+  private static void testInfluence() throws Exception {
+    final InputData input = loadF508();
+
+    InfluenceResults influence = new Influence(input).run();
+    boolean success = F508_RESULTS.equals(influence.getResults().toString());
+    //each leave-one-out result is the result of the dataset without the individual
+    for(int r = 0; r < input.getNIndividuals(); r++) {
+      int[] others = new int[input.getNIndividuals() - 1];
+      for(int i = 0; i < others.length; i++)
+        others[i] = i < r ? i : i + 1;
+      Results expected = Estiage.estimate(new InputData(input, others));
+      Results actual = influence.getResults(r);
+      success &= actual != null && expected.toString().equals(actual.toString()) && Arrays.equals(expected.getLikelihoods(), actual.getLikelihoods());
+    }
+    report(success, "Influence matches the leave-one-out estimations", "Influence does not match the leave-one-out estimations");
+  }
+
+  private static void testJoint() throws Exception {
+    final InputData input = loadF508();
+    final int[] first = new int[18];
+    for(int i = 0; i < first.length; i++)
+      first[i] = i;
+    final InputData subset = new InputData(input, first);
+
+    //a single cohort gives the results of the estimation
+    JointResults single = new JointEstimation(new InputData[]{input}, null, 1).run();
+    boolean success = F508_RESULTS.equals(single.getResults().toString())
+            && Arrays.equals(Estiage.estimate(input).getLikelihoods(), single.getResults().getLikelihoods());
+
+    //several cohorts : same results with 1 or 4 threads, each cohort alone gives its own estimation
+    InputData[] cohorts = {input, subset};
+    JointResults sequential = new JointEstimation(cohorts, null, 1).run();
+    JointResults parallel = new JointEstimation(cohorts, null, 4).run();
+    success &= sequential.toString().equals(parallel.toString());
+    double sum = 0;
+    for(int c = 0; c < cohorts.length; c++) {
+      success &= Estiage.estimate(cohorts[c]).toString().equals(parallel.getResults(c).toString());
+      sum += parallel.getContribution(c);
+    }
+    success &= Math.abs(sum - parallel.getResults().getLnTotLike()) < 1e-9;
+    report(success, "Joint estimation matches the estimations of the cohorts", "Joint estimation does not match the estimations of the cohorts");
+  }
+
+  private static void testLikeCKernel() throws Exception {
+    final InputData input = loadF508();
+
+    //the kernel gives exactly the results of the original loop
+    boolean success = true;
+    final GenerationTables.Cache tables = new GenerationTables.Cache(input);
+    for(int side = 0; side < 2; side++) {
+      LikeCKernel kernel = new LikeCKernel(input, side);
+      for(int gen = 1; gen <= 1000; gen++) {
+        GenerationTables t = tables.get(gen);
+        success &= Double.doubleToLongBits(kernel.like(t)) == Double.doubleToLongBits(LikeCKernel.scalar(input, side, t));
+      }
+    }
+    report(success, "The likeC kernel matches the original loop", "The likeC kernel does not match the original loop");
+  }
+
+  private static void testServer() throws Exception {
+    File input = Files.createTempFile("test", ".estinput").toFile();
+    Files.write(input.toPath(), F508_INPUT.getBytes());
+    String jobs = "{not json\n" +
+            "[\"run\"]\n" +
+            "{\"id\":1,\"command\":\"unknown\"}\n" +
+            "{\"id\":2,\"command\":\"run\",\"args\":\"" + input + "\"}\n" +
+            "{\"id\":3,\"command\":\"run\"}\n" +
+            "{\"id\":4,\"command\":\"status\"}\n" +
+            "{\"id\":5,\"command\":\"RUN\",\"args\":[" + JSON.toJSON(input.toString()) + "]}\n";
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Server server = new Server();
+    try {
+      server.serve(new ByteArrayInputStream(jobs.getBytes(StandardCharsets.UTF_8)), output);
+    } finally {
+      server.close();
+      Files.delete(input.toPath());
+    }
+    //the jobs are run concurrently, the responses are matched by id
+    String[] lines = new String(output.toByteArray(), StandardCharsets.UTF_8).split("\n");
+    boolean success = lines.length == 7;
+    int errors = 0;
+    for(String line : lines) {
+      Map<?, ?> response = (Map<?, ?>) JSON.parse(line);
+      Object id = response.get(Server.ID);
+      String status = (String) response.get(Server.STATUS);
+      if(id == null) {
+        errors++;
+        success &= Server.ERROR.equals(status) && "EstiageFormatException".equals(response.get(Server.TYPE));
+      } else {
+        switch(((Number) id).intValue()) {
+          case 1:
+            success &= Server.ERROR.equals(status) && ((String) response.get(Server.ERROR)).startsWith("Unknown or unsupported command [unknown]");
+            break;
+          case 3:
+            success &= Server.ERROR.equals(status) && "EstiageFormatException".equals(response.get(Server.TYPE));
+            break;
+          case 4:
+            success &= Server.OK.equals(status) && ((String) response.get(Server.RESULT)).startsWith("Opened resources");
+            break;
+          case 5:
+            success &= Server.OK.equals(status) && F508_RESULTS.equals(response.get(Server.RESULT)) && "run".equals(response.get(Server.COMMAND));
+            break;
+          default:
+            success = false;
+        }
+      }
+    }
+    //jobs that can't be parsed (including id 2, whose arguments are not an array) are answered without id
+    success &= errors == 3;
+    report(success, "Server parses the jobs and reports the errors", "Server responses are wrong :\n" + String.join("\n", lines));
+  }
+
+  private static void testResources() throws Exception {
+    String vcf = "##fileformat=VCFv4.2\n" +
+            "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\tFORMAT\tS1\n" +
+            "7\t100\t.\tA\tT\t.\tPASS\tAF=0.1\tGT\t0/1\n";
+    File vcfFile = Files.createTempFile("test", ".vcf").toFile();
+    File storeFile = Files.createTempFile("test", FrequencyStore.EXTENSION).toFile();
+    Files.write(vcfFile.toPath(), vcf.getBytes());
+    FrequencyStore.build(vcfFile.toString(), storeFile.toString(), new String[]{"AF"}, null);
+    Resources resources = new Resources();
+    try {
+      GnomAD gnomAD = resources.getGnomAD(storeFile.toString());
+      boolean success = resources.getGnomAD(storeFile.toString()) == gnomAD;
+      //a modified file is opened again and replaces the older version
+      success &= storeFile.setLastModified(storeFile.lastModified() - 10000);
+      GnomAD modified = resources.getGnomAD(storeFile.toString());
+      success &= modified != gnomAD && resources.getGnomAD(storeFile.toString()) == modified;
+      //the header of a VCF file is kept for each mode
+      resources.getVCFFile(vcfFile.toString(), VCFFile.Mode.IGNORE);
+      resources.getVCFFile(vcfFile.toString(), VCFFile.Mode.HOMOZYGOUS);
+      resources.getVCFFile(vcfFile.toString(), VCFFile.Mode.IGNORE);
+      success &= vcfFile.setLastModified(vcfFile.lastModified() - 10000);
+      resources.getVCFFile(vcfFile.toString(), VCFFile.Mode.IGNORE);
+      success &= resources.getSummary().equals("Opened resources : 0 genetic maps, 1 gnomAD files, 2 VCF files");
+      report(success, "Resources are reused, and replaced when their file is modified", "Resources are not reused or not replaced : " + resources.getSummary());
+    } finally {
+      Files.delete(vcfFile.toPath());
+      Files.delete(storeFile.toPath());
+    }
+  }
+
+  private static void testAnnotationCache() throws Exception {
+    File directory = Files.createTempDirectory("cache").toFile();
+    File map = Files.createTempFile("test", ".map").toFile();
+    File gnomad = Files.createTempFile("test", ".vcf").toFile();
+    try {
+      String mapId = AnnotationCache.identity(map.toString());
+      AnnotationCache cache = new AnnotationCache(directory, 10, 4);
+      for(int pos = 1; pos <= 3; pos++)
+        cache.put(mapId, "7", pos, "@0", pos);
+      cache.save();
+      //a disk hit makes the entry the most recently used
+      cache = new AnnotationCache(directory, 10, 4);
+      boolean success = cache.get(mapId, "7", 1, "@0") != null;
+      cache.put(mapId, "7", 4, "@0", 4);
+      cache.put(mapId, "7", 5, "@0", 5);
+      cache.save();
+      cache = new AnnotationCache(directory, 10, 4);
+      success &= cache.get(mapId, "7", 2, "@0") == null;
+      for(int pos : new int[]{1, 3, 4, 5})
+        success &= cache.get(mapId, "7", pos, "@0") == pos;
+      //a modified resource replaces the cache file of its previous version
+      success &= map.setLastModified(map.lastModified() - 10000);
+      String newMapId = AnnotationCache.identity(map.toString());
+      cache = new AnnotationCache(directory, 10, 4);
+      cache.put(newMapId, "7", 6, "@0", 6);
+      cache.save();
+      success &= directory.list().length == 1;
+      cache = new AnnotationCache(directory, 10, 4);
+      success &= cache.get(newMapId, "7", 6, "@0") == 6 && cache.get(newMapId, "7", 1, "@0") == null;
+      //the bound applies to the whole directory : the least recently saved file is dropped first
+      Thread.sleep(50);
+      String gnomadId = AnnotationCache.identity(gnomad.toString());
+      cache = new AnnotationCache(directory, 10, 4);
+      for(int pos = 1; pos <= 4; pos++)
+        cache.put(gnomadId, "7", pos, "A", pos / 10D);
+      cache.save();
+      success &= directory.list().length == 1;
+      cache = new AnnotationCache(directory, 10, 4);
+      success &= cache.get(newMapId, "7", 6, "@0") == null && cache.get(gnomadId, "7", 1, "A") == 0.1;
+      report(success, "Annotation cache keeps the most recently used entries and drops the modified resources", "Annotation cache does not evict the expected entries");
+    } finally {
+      for(File file : directory.listFiles())
+        Files.delete(file.toPath());
+      Files.delete(directory.toPath());
+      Files.delete(map.toPath());
+      Files.delete(gnomad.toPath());
+    }
+  }
+
+  private static void testConcurrentGnomAD() throws Exception {
+    String vcf = "##fileformat=VCFv4.2\n" +
+            "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\n" +
+            "7\t100\t.\tA\tT,G\t.\tPASS\tAF=0.1,0.3\n" +
+            "7\t100\t.\tAC\tA\t.\tPASS\tAF=0.05\n" +
+            "7\t200\t.\tC\tG\t.\tPASS\tAF=0.25\n" +
+            "7\t5000\t.\tG\tA\t.\tPASS\tAF=0.5\n" +
+            "8\t200\t.\tC\tT\t.\tPASS\tAF=0.75\n";
+    final int[] positions = {5000, 100, 200, 100, 300, 200, 100};
+    final String[] alleles = {"A", "G", "G", "T", "C", "T", "A"};
+    final double[] expected = {0.5, 0.3, 0.25, 0.1, 0, 0, 0.05};
+    File vcfFile = Files.createTempFile("test", ".vcf.gz").toFile();
+    File storeFile = Files.createTempFile("test", FrequencyStore.EXTENSION).toFile();
+    File index = new File(vcfFile + ".tbi");
+    try {
+      try(OutputStream out = new BGZFOutputStream(new FileOutputStream(vcfFile))) {
+        out.write(vcf.getBytes(StandardCharsets.UTF_8));
+      }
+      //the store gives the same frequencies on both paths
+      FrequencyStore.build(vcfFile.toString(), storeFile.toString(), new String[]{"AF"}, null);
+      GnomAD store = new GnomAD(storeFile.toString());
+      boolean success = Arrays.equals(expected, store.getFrequencies("chr7", positions, alleles))
+              && Arrays.equals(expected, store.getFrequencies("chr7", positions, alleles, 3));
+      //the per-marker tabix calls give the same frequencies as the batch query
+      Process indexing = new ProcessBuilder(Utils.getTabix(), "-p", "vcf", vcfFile.toString()).redirectErrorStream(true).start();
+      indexing.getInputStream().readAllBytes();
+      if(indexing.waitFor() == 0 && index.exists()) {
+        GnomAD tabix = new GnomAD(vcfFile.toString());
+        double[] batch = tabix.getFrequencies("chr7", positions, alleles);
+        success &= Arrays.equals(expected, batch);
+        for(int concurrency : new int[]{1, 3})
+          success &= Arrays.equals(batch, tabix.getFrequencies("chr7", positions, alleles, concurrency));
+      } else
+        Log.warning("tabix could not index [" + vcfFile + "], only the frequency store was checked");
+      report(success, "Per-marker and batch gnomAD lookups give the same frequencies", "Per-marker and batch gnomAD lookups differ");
+    } finally {
+      Files.delete(vcfFile.toPath());
+      Files.delete(storeFile.toPath());
+      Files.deleteIfExists(index.toPath());
+    }
+  }
+
+  private static void testHapMapRates() throws Exception {
+    //windows {first, last}, pairs {p1, p2} queried in each window, and the rates computed before the prefix sums
+    final int[][] windows = {{1500, 6000}, {500, 9500}, {4500, 6000}};
+    final int[][][] pairs = {
+            {{1500, 6000}, {6000, 1500}, {2500, 3500}, {3000, 3000}, {4000, 5000}},
+            {{500, 9500}, {500, 1200}, {8500, 9500}, {9500, 500}, {700, 700}},
+            {{3000, 5500}, {3000, 3500}, {5500, 9500}, {8500, 9700}}
+    };
+    final double[][] expected = {
+            {2.5835369917796047, 2.5835369917796047, 1.9995004995004995, 0, 2.5014985014985016},
+            {2.5694783496694393, 1.4944003215044586, 2.5, 2.5694783496694393, 0},
+            {2.17562974810076, 1.0, 2.8905273681579606, 2.5}
+    };
+    File mapFile = Files.createTempFile("test", ".txt").toFile();
+    Files.write(mapFile.toPath(), HAPMAP.getBytes());
+    boolean success = true;
+    try {
+      for(int w = 0; w < windows.length; w++) {
+        HapMap map = new HapMap(mapFile.toString(), windows[w][0], windows[w][1]);
+        for(int p = 0; p < pairs[w].length; p++) {
+          int[] pair = pairs[w][p];
+          double rate = map.getRate(pair[0], pair[1]);
+          double batch = map.getRates(pair[0], new int[]{pair[1]})[0];
+          success &= Math.abs(rate - expected[w][p]) <= 1e-13 * expected[w][p] && rate == batch;
+        }
+      }
+    } finally {
+      Files.delete(mapFile.toPath());
+    }
+    report(success, "Genetic map rates match the values of the previous algorithm", "Genetic map rates differ from the values of the previous algorithm");
+  }
+
+  private static void testGeneticMapStore() throws Exception {
+    String map = HAPMAP +
+            "chr8\t300\t1.5\t0.0\n" +
+            "chr8\t2500\t0.5\t0.0022\n" +
+            "chr8\t7000\t3.5\t0.0112\n";
+    //the first marker of the second and third windows is before the first map point of chr7 and chr8
+    final String[] chromosomes = {"chr7", "7", "chr8"};
+    final int[][] windows = {{1500, 6000}, {500, 9500}, {100, 8000}};
+    File mapFile = Files.createTempFile("test", ".txt").toFile();
+    File storeFile = Files.createTempFile("test", GeneticMapStore.EXTENSION).toFile();
+    Files.write(mapFile.toPath(), map.getBytes());
+    boolean success = true;
+    try {
+      GeneticMapStore.build(mapFile.toString(), storeFile.toString(), GeneticMapStore.Format.HAPMAP);
+      GeneticMapStore store = new GeneticMapStore(storeFile.toString());
+      for(String chr : chromosomes)
+        for(int[] window : windows) {
+          HapMap text = new HapMap(mapFile.toString(), chr, window[0], window[1]);
+          HapMap stored = new HapMap(store, chr, window[0], window[1]);
+          HapMap opened = new HapMap(storeFile.toString(), chr, window[0], window[1]);
+          int[] positions = {window[0], (window[0] + window[1]) / 2, window[1], window[1] + 1000};
+          for(int p1 : positions)
+            for(int p2 : positions) {
+              double rate = text.getRate(p1, p2);
+              success &= rate == stored.getRate(p1, p2) && rate == opened.getRate(p1, p2);
+            }
+          success &= Arrays.equals(text.getRates(window[0], positions), stored.getRates(window[0], positions));
+        }
+    } finally {
+      Files.delete(mapFile.toPath());
+      Files.delete(storeFile.toPath());
+    }
+    report(success, "Genetic map store gives the rates of the text map", "Genetic map store and text map give different rates");
+  }
+
+  private static void testRateBatch() throws Exception {
+    //the second pair is the first one reversed
+    final int[][] pairs = {{1500, 6000}, {6000, 1500}, {500, 1200}, {8500, 9500}};
+    File mapFile = Files.createTempFile("test", ".txt").toFile();
+    Files.write(mapFile.toPath(), HAPMAP.getBytes());
+    boolean success = true;
+    PrintStream stdout = System.out;
+    try {
+      RateBatch batch = new RateBatch(mapFile.toString());
+      for(int[] pair : pairs)
+        batch.add("chr7", pair[0], pair[1]);
+      ByteArrayOutputStream rates = new ByteArrayOutputStream();
+      batch.export(new PrintStream(rates, true));
+      String[] lines = rates.toString().split("\n");
+      for(int p = 0; p < pairs.length; p++) {
+        ByteArrayOutputStream rate = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(rate, true));
+        Main.rate(mapFile.toString(), "" + pairs[p][0], "" + pairs[p][1], "chr7");
+        System.setOut(stdout);
+        //distance(b), distance(Mb), rate, cM, Morgans and theta, in the same order in both outputs
+        String[] values = Arrays.copyOfRange(lines[p + 1].split("\t"), 3, 9);
+        String[] expected = Arrays.stream(rate.toString().split("\n")).skip(1).map(l -> l.substring(l.indexOf(" : ") + 3)).toArray(String[]::new);
+        success &= Arrays.equals(expected, values);
+      }
+    } finally {
+      System.setOut(stdout);
+      Files.delete(mapFile.toPath());
+    }
+    report(success, "Batch rates match the rate command", "Batch rates differ from the rate command");
+  }
+
+  private static void testFrequencyStore() throws Exception {
+    //TAAGGTCA and ACGCCAGAT have the same hashCode
+    String vcf = "##fileformat=VCFv4.2\n" +
+            "#CHROM\tPOS\tID\tREF\tALT\tQUAL\tFILTER\tINFO\n" +
+            "7\t100\t.\tA\tTAAGGTCA,ACGCCAGAT\t.\tPASS\tAF=0.1,0.3\n" +
+            "7\t200\t.\tC\tG\t.\tPASS\tAF=0.25\n";
+    File vcfFile = Files.createTempFile("test", ".vcf").toFile();
+    File storeFile = Files.createTempFile("test", FrequencyStore.EXTENSION).toFile();
+    Files.write(vcfFile.toPath(), vcf.getBytes());
+    FrequencyStore.build(vcfFile.toString(), storeFile.toString(), new String[]{"AF"}, null);
+    FrequencyStore store = new FrequencyStore(storeFile.toString());
+    boolean success = store.getFrequency("chr7", 100, "TAAGGTCA") == 0.1;
+    success &= store.getFrequency("chr7", 100, "ACGCCAGAT") == 0.3;
+    success &= store.getFrequency("chr7", 200, "G") == 0.25;
+    success &= store.getFrequency("chr7", 200, "T") == 0;
+    Files.delete(vcfFile.toPath());
+    Files.delete(storeFile.toPath());
+    report(success, "Frequency store returns the frequency of the requested allele", "Frequency store confuses alleles");
+  }
+
+  private static void testState() throws Exception {
+    //the first 18 individuals, then the 6 others, on the same markers
+    String[] lines = F508_INPUT.split("\n");
+    String header = String.join("\n", Arrays.copyOfRange(lines, 1, 8)) + "\n";
+    String first = "18 16 12\n" + header + String.join("\n", Arrays.copyOfRange(lines, 8, 26)) + "\n";
+    String added = "6 16 12\n" + header + String.join("\n", Arrays.copyOfRange(lines, 26, 32)) + "\n";
+    File firstFile = Files.createTempFile("test", ".estiage").toFile();
+    File addedFile = Files.createTempFile("test", ".estiage").toFile();
+    File stateFile = Files.createTempFile("test", ".estistate").toFile();
+    Files.write(firstFile.toPath(), first.getBytes());
+    Files.write(addedFile.toPath(), added.getBytes());
+
+    AnalysisState.create(InputContent.readText(firstFile.toString())).write(stateFile.toString());
+    AnalysisState state = AnalysisState.read(stateFile.toString()).append(InputContent.readText(addedFile.toString()));
+    Files.delete(firstFile.toPath());
+    Files.delete(addedFile.toPath());
+    Files.delete(stateFile.toPath());
+
+    //the updated state gives the results of the whole dataset
+    Results whole = Estiage.estimate(state.getContent().toInputData());
+    boolean success = state.getNIndividuals() == 24 && F508_RESULTS.equals(state.getResults().toString());
+    success &= Arrays.equals(whole.getLikelihoods(), state.getResults().getLikelihoods());
+    report(success, "Appending to a state gives the results of the whole dataset", "Appending to a state does not give the results of the whole dataset");
+  }
+
   private static void testF508Del() throws Exception {
     final String inputdata = "24 16 12\n" +
             "2.771067021944659E-4 6.265502119854636E-4 7.099501314594511E-4 7.125775084720532E-4 8.908490785231561E-4 9.15740123327412E-4 0.0021676843556302527 0.002681018607915704 0.0031482097226622134 0.003474526581724931 0.004693223819911853 0.005813958849841483 0.0063223414981944115 0.007379135971942818 0.008982089166839057 0.008983564884664312\n" +